@@ -51,3 +51,11 @@ endef
 define cts-get-test-xmls
 	$(foreach name,$(1),$(CTS_TESTCASES_OUT)/$(name).xml)
 endef
+
+define cts-get-test-descriptors
+	$(foreach name,$(1),$(CTS_TESTCASES_OUT)/$(name).pkgdesc)
+endef
+
+# The compact test package descriptors are written by the same rules as the test XMLs.
+$(CTS_TESTCASES_OUT)/%.pkgdesc: $(CTS_TESTCASES_OUT)/%.xml
+	@true
@@ -160,7 +160,11 @@ CTS_TEST_CASES := $(call cts-get-lib-paths,$(cts_host_libraries)) \
 CTS_TEST_XMLS := $(call cts-get-test-xmls,$(cts_host_libraries)) \
     $(call cts-get-test-xmls,$(cts_test_packages)) \
     $(call cts-get-test-xmls,$(cts_native_exes)) \
-    $(call cts-get-test-xmls,$(cts_ui_tests))
+    $(call cts-get-test-xmls,$(cts_ui_tests)) \
+    $(call cts-get-test-descriptors,$(cts_host_libraries)) \
+    $(call cts-get-test-descriptors,$(cts_test_packages)) \
+    $(call cts-get-test-descriptors,$(cts_native_exes)) \
+    $(call cts-get-test-descriptors,$(cts_ui_tests))
 
 
 # The following files will be placed in the tools directory of the CTS distribution
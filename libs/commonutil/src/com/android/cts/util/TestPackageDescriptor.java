@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of a test package xml. The xml generators write it along with the xml,
+ * and cts-tradefed loads it in place of the xml.
+ * <p/>
+ * Like the xml, the descriptor holds the tree of suites and cases of the package, the class
+ * names being split at dots. Each name is stored once in a table and referenced by its index,
+ * and the known failures and the timeouts of the tests of a case are stored as bitsets. All
+ * numbers are unsigned varints.
+ * <pre>
+ * descriptor := MAGIC VERSION attributeCount (name value)* nameCount name* suite
+ * suite      := childCount ((nameIndex << 1) suite | (nameIndex << 1 | 1) case)*
+ * case       := testCount testNameIndex* knownFailureBits timeoutBits timeout*
+ * </pre>
+ * The tests are read back in the order they were added, as long as the tests of a class are
+ * added together.
+ */
+public class TestPackageDescriptor {
+
+    /** The extension of a descriptor file, which replaces the .xml of the package xml. */
+    public static final String FILE_EXTENSION = ".pkgdesc";
+
+    private static final String XML_EXTENSION = ".xml";
+    /** "CTSD" */
+    private static final int MAGIC = 0x43545344;
+    private static final int VERSION = 1;
+
+    /**
+     * Receives the content of a descriptor while it is read.
+     */
+    public interface Listener {
+        /**
+         * Called first, with the attributes of the TestPackage element of the xml.
+         */
+        void onPackage(Map<String, String> attributes);
+
+        /**
+         * Called for each test, in the order the tests were added.
+         *
+         * @param className the name of the test class, the same instance for all its tests
+         * @param methodName the name of the test method
+         * @param knownFailure whether the test is an expected failure
+         * @param timeout the timeout of the test, or -1 if it has none
+         */
+        void onTest(String className, String methodName, boolean knownFailure, int timeout);
+    }
+
+    /** A suite or a case of the tree, in the order they were added. */
+    private static class Node {
+        final String mName;
+        final boolean mIsCase;
+        final List<Node> mChildren = new ArrayList<Node>();
+        final Map<String, Node> mSuites = new HashMap<String, Node>();
+        final Map<String, Node> mCases = new HashMap<String, Node>();
+        final List<String> mTests = new ArrayList<String>();
+        final BitSet mKnownFailures = new BitSet();
+        final List<Integer> mTimeouts = new ArrayList<Integer>();
+
+        Node(String name, boolean isCase) {
+            mName = name;
+            mIsCase = isCase;
+        }
+
+        Node getChild(String name, boolean isCase) {
+            Map<String, Node> children = isCase ? mCases : mSuites;
+            Node child = children.get(name);
+            if (child == null) {
+                child = new Node(name, isCase);
+                children.put(name, child);
+                mChildren.add(child);
+            }
+            return child;
+        }
+    }
+
+    private final Map<String, String> mAttributes = new LinkedHashMap<String, String>();
+    private final Node mRoot = new Node(null, false);
+
+    /**
+     * Returns the descriptor file that goes with the given test package xml.
+     */
+    public static File getDescriptorFile(File xmlFile) {
+        String name = xmlFile.getName();
+        if (name.endsWith(XML_EXTENSION)) {
+            name = name.substring(0, name.length() - XML_EXTENSION.length());
+        }
+        return new File(xmlFile.getParentFile(), name + FILE_EXTENSION);
+    }
+
+    /**
+     * Sets an attribute of the TestPackage element. Attributes keep the order they are set in.
+     */
+    public void setAttribute(String name, String value) {
+        mAttributes.put(name, value);
+    }
+
+    /**
+     * Adds a test.
+     *
+     * @param className the fully qualified name of the test class
+     * @param methodName the name of the test method
+     * @param knownFailure whether the test is an expected failure
+     * @param timeout the timeout of the test, or -1 if it has none
+     */
+    public void addTest(String className, String methodName, boolean knownFailure,
+            int timeout) {
+        Node suite = mRoot;
+        int start = 0;
+        for (int dot; (dot = className.indexOf('.', start)) != -1; start = dot + 1) {
+            suite = suite.getChild(className.substring(start, dot), false);
+        }
+        Node testCase = suite.getChild(className.substring(start), true);
+        if (knownFailure) {
+            testCase.mKnownFailures.set(testCase.mTests.size());
+        }
+        testCase.mTests.add(methodName);
+        testCase.mTimeouts.add(timeout);
+    }
+
+    /**
+     * Writes the descriptor to the given file.
+     */
+    public void write(File file) throws IOException {
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(output);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Writes the descriptor to the given stream.
+     */
+    public void write(OutputStream output) throws IOException {
+        Map<String, Integer> nameIndexes = new LinkedHashMap<String, Integer>();
+        internNames(mRoot, nameIndexes);
+
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        writeVarInt(out, VERSION);
+        writeVarInt(out, mAttributes.size());
+        for (Map.Entry<String, String> attribute : mAttributes.entrySet()) {
+            out.writeUTF(attribute.getKey());
+            out.writeUTF(attribute.getValue());
+        }
+        writeVarInt(out, nameIndexes.size());
+        for (String name : nameIndexes.keySet()) {
+            out.writeUTF(name);
+        }
+        writeSuite(out, mRoot, nameIndexes);
+        out.flush();
+    }
+
+    private static void internNames(Node suite, Map<String, Integer> nameIndexes) {
+        for (Node child : suite.mChildren) {
+            internName(child.mName, nameIndexes);
+            if (child.mIsCase) {
+                for (String test : child.mTests) {
+                    internName(test, nameIndexes);
+                }
+            } else {
+                internNames(child, nameIndexes);
+            }
+        }
+    }
+
+    private static void internName(String name, Map<String, Integer> nameIndexes) {
+        if (!nameIndexes.containsKey(name)) {
+            nameIndexes.put(name, nameIndexes.size());
+        }
+    }
+
+    private static void writeSuite(DataOutputStream out, Node suite,
+            Map<String, Integer> nameIndexes) throws IOException {
+        writeVarInt(out, suite.mChildren.size());
+        for (Node child : suite.mChildren) {
+            int nameIndex = nameIndexes.get(child.mName);
+            if (child.mIsCase) {
+                writeVarInt(out, nameIndex << 1 | 1);
+                writeCase(out, child, nameIndexes);
+            } else {
+                writeVarInt(out, nameIndex << 1);
+                writeSuite(out, child, nameIndexes);
+            }
+        }
+    }
+
+    private static void writeCase(DataOutputStream out, Node testCase,
+            Map<String, Integer> nameIndexes) throws IOException {
+        int testCount = testCase.mTests.size();
+        writeVarInt(out, testCount);
+        for (String test : testCase.mTests) {
+            writeVarInt(out, nameIndexes.get(test));
+        }
+        BitSet hasTimeout = new BitSet();
+        for (int i = 0; i < testCount; i++) {
+            if (testCase.mTimeouts.get(i) >= 0) {
+                hasTimeout.set(i);
+            }
+        }
+        writeBits(out, testCase.mKnownFailures, testCount);
+        writeBits(out, hasTimeout, testCount);
+        for (int i = hasTimeout.nextSetBit(0); i >= 0; i = hasTimeout.nextSetBit(i + 1)) {
+            writeVarInt(out, testCase.mTimeouts.get(i));
+        }
+    }
+
+    /**
+     * Reads a descriptor, passing its content to the given {@link Listener}.
+     *
+     * @throws IOException if the stream could not be read, or is not a descriptor of this version
+     */
+    public static void read(InputStream input, Listener listener) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a test package descriptor");
+        }
+        int version = readVarInt(in);
+        if (version != VERSION) {
+            throw new IOException("unsupported test package descriptor version " + version);
+        }
+        int attributeCount = readVarInt(in);
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.put(in.readUTF(), in.readUTF());
+        }
+        listener.onPackage(attributes);
+        String[] names = new String[readVarInt(in)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        readSuite(in, names, new StringBuilder(), listener);
+    }
+
+    private static void readSuite(DataInputStream in, String[] names, StringBuilder className,
+            Listener listener) throws IOException {
+        int childCount = readVarInt(in);
+        for (int i = 0; i < childCount; i++) {
+            int child = readVarInt(in);
+            String name = getName(names, child >>> 1);
+            int length = className.length();
+            if (length > 0) {
+                className.append('.');
+            }
+            className.append(name);
+            if ((child & 1) != 0) {
+                readCase(in, names, className.toString(), listener);
+            } else {
+                readSuite(in, names, className, listener);
+            }
+            className.setLength(length);
+        }
+    }
+
+    private static void readCase(DataInputStream in, String[] names, String className,
+            Listener listener) throws IOException {
+        int testCount = readVarInt(in);
+        String[] tests = new String[testCount];
+        for (int i = 0; i < testCount; i++) {
+            tests[i] = getName(names, readVarInt(in));
+        }
+        BitSet knownFailures = readBits(in, testCount);
+        BitSet hasTimeout = readBits(in, testCount);
+        for (int i = 0; i < testCount; i++) {
+            int timeout = hasTimeout.get(i) ? readVarInt(in) : -1;
+            listener.onTest(className, tests[i], knownFailures.get(i), timeout);
+        }
+    }
+
+    private static String getName(String[] names, int index) throws IOException {
+        if (index >= names.length) {
+            throw new IOException("invalid name index " + index);
+        }
+        return names[index];
+    }
+
+    private static void writeBits(DataOutputStream out, BitSet bits, int count)
+            throws IOException {
+        for (int i = 0; i < count; i += 8) {
+            int b = 0;
+            for (int j = 0; j < 8; j++) {
+                if (bits.get(i + j)) {
+                    b |= 1 << j;
+                }
+            }
+            out.writeByte(b);
+        }
+    }
+
+    private static BitSet readBits(DataInputStream in, int count) throws IOException {
+        BitSet bits = new BitSet(count);
+        for (int i = 0; i < count; i += 8) {
+            int b = in.readUnsignedByte();
+            for (int j = 0; b != 0; j++, b >>>= 1) {
+                if ((b & 1) != 0) {
+                    bits.set(i + j);
+                }
+            }
+        }
+        return bits;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("invalid number " + (value & 0xffffffffL));
+                }
+                return value;
+            }
+        }
+        throw new IOException("malformed number");
+    }
+}
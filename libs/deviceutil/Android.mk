@@ -29,3 +29,6 @@ LOCAL_MODULE_TAGS := optional
 LOCAL_MODULE := ctsdeviceutil
 
 include $(BUILD_STATIC_JAVA_LIBRARY)
+
+# Build all sub-directories
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.cts.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Waits for a condition to become true.
+ * <p/>
+ * The timeout is measured against {@link System#nanoTime()}, so time spent evaluating the
+ * condition counts towards it. Between evaluations the waiter backs off exponentially, from
+ * {@link #MIN_BACKOFF_NS} up to {@link #MAX_BACKOFF_NS}, so conditions that become true
+ * quickly are noticed quickly without busy looping on slow ones.
+ * <p/>
+ * Code that changes the state the condition depends on can call {@link #signal()} to wake
+ * up the waiting thread and re-evaluate the condition immediately.
+ */
+public class ConditionWaiter {
+    /** the first, shortest wait between two evaluations of the condition */
+    static final long MIN_BACKOFF_NS = TimeUnit.MICROSECONDS.toNanos(10);
+    /** the longest wait between two evaluations of the condition */
+    static final long MAX_BACKOFF_NS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mSignalled = mLock.newCondition();
+    /** incremented on each {@link #signal()}, so a waiter can tell it missed none */
+    private long mSignalCount = 0;
+
+    /**
+     * Wakes up the threads waiting in {@link #waitFor(Callable, long)}, so they re-evaluate
+     * their condition without waiting for the rest of their backoff.
+     */
+    public void signal() {
+        mLock.lock();
+        try {
+            mSignalCount++;
+            mSignalled.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the condition is true or the timeout expires.
+     * <p/>
+     * The condition is always evaluated at least once, even if the timeout is 0.
+     *
+     * @param condition the condition to wait for
+     * @param timeoutMs the maximum time to wait in ms
+     * @return <code>true</code> if the condition became true, <code>false</code> on timeout
+     * @throws InterruptedException if the waiting thread was interrupted
+     * @throws Exception if the condition threw
+     */
+    public boolean waitFor(Callable<Boolean> condition, long timeoutMs) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        long backoff = MIN_BACKOFF_NS;
+        while (true) {
+            // read before evaluating, so that a signal sent during the evaluation isn't lost
+            long signalCount = getSignalCount();
+            if (condition.call()) {
+                return true;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (awaitSignal(signalCount, Math.min(backoff, remaining))) {
+                backoff = MIN_BACKOFF_NS;
+            } else {
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_NS);
+            }
+        }
+    }
+
+    /**
+     * Waits until the condition is true or the timeout expires, without a signal source.
+     *
+     * @see #waitFor(Callable, long)
+     */
+    public static boolean poll(Callable<Boolean> condition, long timeoutMs) throws Exception {
+        return new ConditionWaiter().waitFor(condition, timeoutMs);
+    }
+
+    private long getSignalCount() {
+        mLock.lock();
+        try {
+            return mSignalCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until {@link #signal()} is called or the given time passes.
+     *
+     * @param signalCount the signal count read before the condition was last evaluated
+     * @param timeoutNs the maximum time to wait in ns
+     * @return <code>true</code> if a signal was received since the signal count was read
+     */
+    private boolean awaitSignal(long signalCount, long timeoutNs) throws InterruptedException {
+        mLock.lock();
+        try {
+            long remaining = timeoutNs;
+            while (mSignalCount == signalCount && remaining > 0) {
+                remaining = mSignalled.awaitNanos(remaining);
+            }
+            return mSignalCount != signalCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -35,5 +35,6 @@ public class EvaluateJsResultPollingCheck  extends PollingCheck
     @Override
     public synchronized void onReceiveValue(String result) {
         mActualResult = result;
+        signal();
     }
 }
\ No newline at end of file
@@ -21,8 +21,8 @@ import java.util.concurrent.Callable;
 import junit.framework.Assert;
 
 public abstract class PollingCheck {
-    private static final long TIME_SLICE = 50;
     private long mTimeout = 3000;
+    private final ConditionWaiter mWaiter = new ConditionWaiter();
 
     public PollingCheck() {
     }
@@ -33,40 +33,41 @@ public abstract class PollingCheck {
 
     protected abstract boolean check();
 
+    /**
+     * Wakes up {@link #run()} to call {@link #check()} again right away. Subclasses can call
+     * this whenever the state they check changes.
+     */
+    protected void signal() {
+        mWaiter.signal();
+    }
+
     public void run() {
-        if (check()) {
-            return;
+        boolean success = false;
+        try {
+            success = mWaiter.waitFor(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return check();
+                }
+            }, mTimeout);
+        } catch (InterruptedException e) {
+            Assert.fail("unexpected InterruptedException");
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // check() doesn't throw checked exceptions
+            throw new RuntimeException(e);
         }
 
-        long timeout = mTimeout;
-        while (timeout > 0) {
-            try {
-                Thread.sleep(TIME_SLICE);
-            } catch (InterruptedException e) {
-                Assert.fail("unexpected InterruptedException");
-            }
-
-            if (check()) {
-                return;
-            }
-
-            timeout -= TIME_SLICE;
+        if (!success) {
+            Assert.fail("unexpected timeout");
         }
-
-        Assert.fail("unexpected timeout");
     }
 
     public static void check(CharSequence message, long timeout, Callable<Boolean> condition)
             throws Exception {
-        while (timeout > 0) {
-            if (condition.call()) {
-                return;
-            }
-
-            Thread.sleep(TIME_SLICE);
-            timeout -= TIME_SLICE;
+        if (!ConditionWaiter.poll(condition, timeout)) {
+            Assert.fail(message.toString());
         }
-
-        Assert.fail(message.toString());
     }
 }
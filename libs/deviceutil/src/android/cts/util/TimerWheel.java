@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.cts.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel running many coarse timers on a single thread.
+ * <p/>
+ * Time is divided into ticks, and each timer is put into the slot of the tick its deadline
+ * falls in, modulo the number of slots. Every tick the wheel thread only looks at the timers
+ * of one slot, so scheduling and expiring a timer are constant time regardless of how many
+ * timers are running. Timers fire up to one tick late.
+ * <p/>
+ * Timers are run on the wheel thread and must return quickly. The thread is a daemon, started
+ * with the first timer, and sleeps while no timer is scheduled.
+ */
+class TimerWheel {
+    /** returned by {@link Timer#onExpired(long)} to not reschedule the timer */
+    static final long CANCELLED = Long.MIN_VALUE;
+
+    private static final long DEFAULT_TICK_MS = 10;
+    private static final int DEFAULT_SLOT_COUNT = 512;
+
+    private static TimerWheel sInstance;
+
+    /**
+     * A timer driven by the {@link TimerWheel}.
+     */
+    interface Timer {
+        /**
+         * Called on the wheel thread once the deadline the timer was scheduled for has passed.
+         *
+         * @param nowNs the current {@link System#nanoTime()}
+         * @return the {@link System#nanoTime()} at which to call the timer again, or
+         *         {@link TimerWheel#CANCELLED}
+         */
+        long onExpired(long nowNs);
+    }
+
+    private static class Entry {
+        final Timer mTimer;
+        /** the absolute tick at which the timer expires */
+        long mTick;
+
+        Entry(Timer timer) {
+            mTimer = timer;
+        }
+    }
+
+    private final long mTickNs;
+    private final List<List<Entry>> mSlots;
+    private final long mStartNs;
+    private final Object mLock = new Object();
+    /** the last tick processed by the wheel thread */
+    private long mCurrentTick = 0;
+    private int mTimerCount = 0;
+    private Thread mThread = null;
+
+    /**
+     * Returns the wheel shared by all users of this process.
+     */
+    static synchronized TimerWheel getInstance() {
+        if (sInstance == null) {
+            sInstance = new TimerWheel(DEFAULT_TICK_MS, DEFAULT_SLOT_COUNT);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a {@link TimerWheel}.
+     * <p/>
+     * Exposed for unit testing, use {@link #getInstance()} instead.
+     *
+     * @param tickMs the duration of one tick in ms
+     * @param slotCount the number of slots of the wheel
+     */
+    TimerWheel(long tickMs, int slotCount) {
+        mTickNs = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        mSlots = new ArrayList<List<Entry>>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            mSlots.add(new ArrayList<Entry>());
+        }
+        mStartNs = System.nanoTime();
+    }
+
+    /**
+     * Schedules a timer.
+     *
+     * @param timer the timer to call once the deadline passed
+     * @param deadlineNs the {@link System#nanoTime()} at which to call the timer
+     */
+    void schedule(Timer timer, long deadlineNs) {
+        synchronized (mLock) {
+            if (mTimerCount == 0) {
+                // the wheel didn't tick while idle, catch up with the clock
+                mCurrentTick = Math.max(mCurrentTick, getTick(System.nanoTime()) - 1);
+            }
+            add(new Entry(timer), deadlineNs);
+            if (mThread == null) {
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runWheel();
+                    }
+                }, "TimerWheel");
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of scheduled timers.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    int getTimerCount() {
+        synchronized (mLock) {
+            return mTimerCount;
+        }
+    }
+
+    /** Returns the tick that contains the given time, rounded up. */
+    private long getTick(long timeNs) {
+        return (timeNs - mStartNs + mTickNs - 1) / mTickNs;
+    }
+
+    private void add(Entry entry, long deadlineNs) {
+        // never schedule into the past, or into the tick that is being processed
+        entry.mTick = Math.max(getTick(deadlineNs), mCurrentTick + 1);
+        mSlots.get((int)(entry.mTick % mSlots.size())).add(entry);
+        mTimerCount++;
+    }
+
+    private void runWheel() {
+        List<Entry> expired = new ArrayList<Entry>();
+        while (true) {
+            synchronized (mLock) {
+                try {
+                    waitForNextTick();
+                } catch (InterruptedException e) {
+                    // the wheel thread is never interrupted, but if it happens just keep going
+                    continue;
+                }
+                mCurrentTick++;
+                Iterator<Entry> iter = mSlots.get((int)(mCurrentTick % mSlots.size())).iterator();
+                while (iter.hasNext()) {
+                    Entry entry = iter.next();
+                    if (entry.mTick <= mCurrentTick) {
+                        iter.remove();
+                        mTimerCount--;
+                        expired.add(entry);
+                    }
+                }
+            }
+            if (expired.isEmpty()) {
+                continue;
+            }
+            long now = System.nanoTime();
+            for (Entry entry : expired) {
+                long next = CANCELLED;
+                try {
+                    next = entry.mTimer.onExpired(now);
+                } catch (Throwable t) {
+                    // don't let one timer stop the others, but still report it like the
+                    // thread of the timer would have
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                }
+                if (next != CANCELLED) {
+                    synchronized (mLock) {
+                        add(entry, next);
+                    }
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Waits until the clock passed the start of the next tick, and a timer is scheduled.
+     * Must be called with {@link #mLock} held.
+     */
+    private void waitForNextTick() throws InterruptedException {
+        while (true) {
+            if (mTimerCount == 0) {
+                mLock.wait();
+                continue;
+            }
+            long waitNs = mStartNs + (mCurrentTick + 1) * mTickNs - System.nanoTime();
+            if (waitNs <= 0) {
+                return;
+            }
+            mLock.wait(TimeUnit.NANOSECONDS.toMillis(waitNs),
+                    (int)(waitNs % TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+}
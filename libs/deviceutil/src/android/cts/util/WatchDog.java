@@ -15,7 +15,6 @@
  */
 package android.cts.util;
 
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
@@ -25,72 +24,90 @@ import junit.framework.Assert;
 /**
  * class for checking if rendering function is alive or not.
  * panic if watch-dog is not reset over certain amount of time
+ * <p/>
+ * All watch-dogs are checked by one shared {@link TimerWheel} thread, and {@link #reset()} only
+ * records the time, so it is cheap enough to call on every frame.
  */
-public class WatchDog implements Runnable {
+public class WatchDog {
     private static final String TAG = "WatchDog";
-    private Thread mThread;
-    private Semaphore mSemaphore;
-    private volatile boolean mStopRequested;
-    private final long mTimeoutInMilliSecs;
+    private final TimerWheel mTimerWheel;
+    private final long mTimeoutNs;
     private TimeoutCallback mCallback = null;
+    private volatile long mLastResetNs;
+    private Timeout mTimeout = null;
+
+    /**
+     * Checks for a timeout each time the {@link TimerWheel} reaches the deadline of the
+     * last reset. A new instance is used for each {@link WatchDog#start()}.
+     */
+    private class Timeout implements TimerWheel.Timer {
+        private boolean mCancelled = false;
+
+        /** Prevents any further timeout, waiting for a running callback to finish. */
+        synchronized void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public synchronized long onExpired(long nowNs) {
+            if (mCancelled) {
+                return TimerWheel.CANCELLED;
+            }
+            long deadline = mLastResetNs + mTimeoutNs;
+            if (nowNs - deadline < 0) {
+                // was reset since it got scheduled
+                return deadline;
+            }
+            if (mCallback == null) {
+                Assert.fail("Watchdog timed-out");
+            }
+            mCallback.onTimeout();
+            // give it another full timeout before the next callback
+            mLastResetNs = nowNs;
+            return nowNs + mTimeoutNs;
+        }
+    }
 
     public WatchDog(long timeoutInMilliSecs) {
-        mTimeoutInMilliSecs = timeoutInMilliSecs;
+        this(timeoutInMilliSecs, null);
     }
 
     public WatchDog(long timeoutInMilliSecs, TimeoutCallback callback) {
-        this(timeoutInMilliSecs);
+        this(timeoutInMilliSecs, callback, TimerWheel.getInstance());
+    }
+
+    /**
+     * Creates a {@link WatchDog} checked by the given {@link TimerWheel}.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    WatchDog(long timeoutInMilliSecs, TimeoutCallback callback, TimerWheel timerWheel) {
+        mTimeoutNs = TimeUnit.MILLISECONDS.toNanos(timeoutInMilliSecs);
         mCallback = callback;
+        mTimerWheel = timerWheel;
     }
 
     /** start watch-dog */
     public void start() {
         Log.i(TAG, "start");
-        mStopRequested = false;
-        mSemaphore = new Semaphore(0);
-        mThread = new Thread(this);
-        mThread.start();
+        mLastResetNs = System.nanoTime();
+        mTimeout = new Timeout();
+        mTimerWheel.schedule(mTimeout, mLastResetNs + mTimeoutNs);
     }
 
     /** stop watch-dog */
     public void stop() {
         Log.i(TAG, "stop");
-        if (mThread == null) {
+        if (mTimeout == null) {
             return; // already finished
         }
-        mStopRequested = true;
-        mSemaphore.release();
-        try {
-            mThread.join();
-        } catch (InterruptedException e) {
-            // ignore
-        }
-        mThread = null;
-        mSemaphore = null;
+        mTimeout.cancel();
+        mTimeout = null;
     }
 
     /** resets watch-dog, thus prevent it from panic */
     public void reset() {
-        if (!mStopRequested) { // stop requested, but rendering still on-going
-            mSemaphore.release();
-        }
-    }
-
-    @Override
-    public void run() {
-        while (!mStopRequested) {
-            try {
-                boolean success = mSemaphore.tryAcquire(mTimeoutInMilliSecs, TimeUnit.MILLISECONDS);
-                if (mCallback == null) {
-                    Assert.assertTrue("Watchdog timed-out", success);
-                } else if (!success) {
-                    mCallback.onTimeout();
-                }
-            } catch (InterruptedException e) {
-                // this thread will not be interrupted,
-                // but if it happens, just check the exit condition.
-            }
-        }
+        mLastResetNs = System.nanoTime();
     }
 
     /**
@@ -0,0 +1,32 @@
+# Copyright (C) 2013 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+# The timer wheel and the watch-dog only use android for logging, which is
+# stubbed, and the condition waiter is plain java, so they are tested on the host.
+LOCAL_SRC_FILES := \
+    $(call all-java-files-under, src) \
+    $(call all-java-files-under, stubs) \
+    ../src/android/cts/util/ConditionWaiter.java \
+    ../src/android/cts/util/TimerWheel.java \
+    ../src/android/cts/util/WatchDog.java
+
+LOCAL_MODULE := ctsdeviceutil-tests
+LOCAL_MODULE_TAGS := optional
+LOCAL_JAVA_LIBRARIES := junit
+
+include $(BUILD_HOST_JAVA_LIBRARY)
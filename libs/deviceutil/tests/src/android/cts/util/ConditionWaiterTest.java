@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.cts.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ConditionWaiter}.
+ */
+public class ConditionWaiterTest extends TestCase {
+
+    private static final long WAIT_MS = 5000;
+
+    /**
+     * Test that the time spent evaluating a slow condition counts against the timeout.
+     */
+    public void testWaitFor_slowCondition() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<Boolean> condition = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                calls.incrementAndGet();
+                Thread.sleep(100);
+                return false;
+            }
+        };
+        long startNs = System.nanoTime();
+        assertFalse(ConditionWaiter.poll(condition, 250));
+        long elapsedNs = System.nanoTime() - startNs;
+        // evaluated at about 0, 100 and 200 ms, after which the deadline has passed
+        assertTrue("condition evaluated " + calls.get() + " times", calls.get() <= 3);
+        assertTrue(elapsedNs >= TimeUnit.MILLISECONDS.toNanos(250));
+        assertTrue(elapsedNs < TimeUnit.MILLISECONDS.toNanos(WAIT_MS));
+    }
+
+    /**
+     * Test that {@link ConditionWaiter#signal()} wakes up a waiting thread before its backoff
+     * ends.
+     */
+    public void testSignal() throws Exception {
+        final ConditionWaiter waiter = new ConditionWaiter();
+        long totalLatencyNs = 0;
+        for (int i = 0; i < 5; i++) {
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicBoolean result = new AtomicBoolean();
+            final long[] returnNs = new long[1];
+            Thread waitingThread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        result.set(waiter.waitFor(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() {
+                                return done.get();
+                            }
+                        }, WAIT_MS));
+                    } catch (Exception e) {
+                        // result stays false
+                    }
+                    returnNs[0] = System.nanoTime();
+                }
+            };
+            waitingThread.start();
+            // long enough for the backoff to reach its maximum
+            Thread.sleep(200);
+            long signalNs = System.nanoTime();
+            done.set(true);
+            waiter.signal();
+            waitingThread.join(WAIT_MS);
+            assertTrue(result.get());
+            totalLatencyNs += returnNs[0] - signalNs;
+        }
+        // without the signal, each waiter would sleep for half the maximum backoff on average
+        assertTrue("total latency " + totalLatencyNs + " ns",
+                totalLatencyNs < ConditionWaiter.MAX_BACKOFF_NS);
+    }
+
+    /**
+     * Test that a condition which becomes true soon is noticed without waiting for the maximum
+     * backoff.
+     */
+    public void testWaitFor_quickCondition() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<Boolean> condition = new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return calls.incrementAndGet() == 3;
+            }
+        };
+        long startNs = System.nanoTime();
+        assertTrue(ConditionWaiter.poll(condition, WAIT_MS));
+        long elapsedNs = System.nanoTime() - startNs;
+        assertEquals(3, calls.get());
+        assertTrue("took " + elapsedNs + " ns", elapsedNs < ConditionWaiter.MAX_BACKOFF_NS);
+    }
+}
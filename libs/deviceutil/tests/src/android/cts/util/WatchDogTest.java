@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.cts.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link WatchDog} and the {@link TimerWheel} driving it.
+ */
+public class WatchDogTest extends TestCase {
+
+    private static final long TICK_MS = 5;
+    /** a small wheel, spanning 40 ms */
+    private static final int SLOT_COUNT = 8;
+    private static final long WAIT_MS = 5000;
+
+    private TimerWheel mTimerWheel;
+    private WatchDog mWatchDog;
+
+    private static class CountingCallback implements WatchDog.TimeoutCallback {
+        final AtomicInteger mCount = new AtomicInteger();
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile long mFirstTimeoutNs;
+
+        @Override
+        public void onTimeout() {
+            if (mCount.incrementAndGet() == 1) {
+                mFirstTimeoutNs = System.nanoTime();
+                mLatch.countDown();
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTimerWheel = new TimerWheel(TICK_MS, SLOT_COUNT);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mWatchDog != null) {
+            mWatchDog.stop();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Test that a watch-dog reset more often than its timeout never times out.
+     */
+    public void testReset_inTime() throws InterruptedException {
+        CountingCallback callback = new CountingCallback();
+        mWatchDog = new WatchDog(200, callback, mTimerWheel);
+        mWatchDog.start();
+        for (int i = 0; i < 40; i++) {
+            Thread.sleep(10);
+            mWatchDog.reset();
+        }
+        assertEquals(0, callback.mCount.get());
+        assertEquals(1, mTimerWheel.getTimerCount());
+    }
+
+    /**
+     * Test that a watch-dog that is not reset times out.
+     */
+    public void testTimeout() throws InterruptedException {
+        CountingCallback callback = new CountingCallback();
+        mWatchDog = new WatchDog(50, callback, mTimerWheel);
+        long startNs = System.nanoTime();
+        mWatchDog.start();
+        assertTrue(callback.mLatch.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(callback.mFirstTimeoutNs - startNs >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    /**
+     * Test that no callback is made once the watch-dog is stopped, and that its timer leaves the
+     * wheel.
+     */
+    public void testStop() throws InterruptedException {
+        CountingCallback callback = new CountingCallback();
+        mWatchDog = new WatchDog(50, callback, mTimerWheel);
+        mWatchDog.start();
+        mWatchDog.stop();
+        assertFalse(callback.mLatch.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, callback.mCount.get());
+        assertEquals(0, mTimerWheel.getTimerCount());
+    }
+
+    /**
+     * Test that a timeout spanning several turns of the wheel neither fires early nor is lost.
+     */
+    public void testTimeout_longerThanWheel() throws InterruptedException {
+        long timeoutMs = 5 * TICK_MS * SLOT_COUNT;
+        CountingCallback callback = new CountingCallback();
+        mWatchDog = new WatchDog(timeoutMs, callback, mTimerWheel);
+        long startNs = System.nanoTime();
+        mWatchDog.start();
+        assertTrue(callback.mLatch.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(callback.mFirstTimeoutNs - startNs >=
+                TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+    }
+}
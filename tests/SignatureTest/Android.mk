@@ -86,5 +86,28 @@ signature_res_dir :=
 android_api_description :=
 CTS_API_VERSION :=
 
+# ======================================================
+# also build the signature checker as a host library, to check an api
+# description against a host JVM:
+#   java -jar signature-checker.jar [--threads N] api.xml...
+include $(CLEAR_VARS)
+
+LOCAL_SRC_FILES := $(addprefix src/android/tests/sigtest/, \
+	FAILURE_TYPE.java \
+	JDiffClassDescription.java \
+	ResultObserver.java \
+	SignatureChecker.java \
+	SignatureTestLog.java)
+
+LOCAL_JAR_MANIFEST := etc/MANIFEST.mf
+
+LOCAL_STATIC_JAVA_LIBRARIES := kxml2-2.3.0
+
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_MODULE := signature-checker
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
 # Use the following include to make our test apk.
 include $(call all-makefiles-under,$(LOCAL_PATH))
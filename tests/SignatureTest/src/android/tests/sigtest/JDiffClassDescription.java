@@ -16,11 +16,10 @@
 
 package android.tests.sigtest;
 
-import android.tests.sigtest.SignatureTest.FAILURE_TYPE;
-
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
@@ -28,8 +27,10 @@ import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.lang.reflect.WildcardType;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -75,6 +76,19 @@ public class JDiffClassDescription {
     private ResultObserver mResultObserver;
     private JDiffType mClassType;
 
+    /**
+     * The declared methods of the class under test, by name and number of parameters. Built
+     * on first use.
+     */
+    private Map<String, List<ReflectedMember<Method>>> mMethodIndex = null;
+    /**
+     * The declared constructors of the class under test, by number of parameters, not counting
+     * the implicit outer instance of an inner class. Built on first use.
+     */
+    private Map<Integer, List<ReflectedMember<Constructor<?>>>> mConstructorIndex = null;
+    /** The declared fields of the class under test, by name. Built on first use. */
+    private Map<String, Field> mFieldIndex = null;
+
     /**
      * Creates a new JDiffClassDescription.
      *
@@ -540,38 +554,19 @@ public class JDiffClassDescription {
      * Checks if the two types of methods are the same.
      *
      * @param jDiffMethod the jDiffMethod to compare
-     * @param method the reflected method to compare
+     * @param method the reflected method to compare, with the same name and number of
+     *            parameters
      * @return true, if both methods are the same
      */
-    private boolean matches(JDiffMethod jDiffMethod, Method method) {
-        // If the method names aren't equal, the methods can't match.
-        if (jDiffMethod.mName.equals(method.getName())) {
-            String jdiffReturnType = jDiffMethod.mReturnType;
-            String reflectionReturnType = typeToString(method.getGenericReturnType());
-            List<String> jdiffParamList = jDiffMethod.mParamList;
-
-            // Next, compare the return types of the two methods.  If
-            // they aren't equal, the methods can't match.
-            if (jdiffReturnType.equals(reflectionReturnType)) {
-                Type[] params = method.getGenericParameterTypes();
-                // Next, check the method parameters.  If they have
-                // different number of parameters, the two methods
-                // can't match.
-                if (jdiffParamList.size() == params.length) {
-                    // If any of the parameters don't match, the
-                    // methods can't match.
-                    for (int i = 0; i < jdiffParamList.size(); i++) {
-                        if (!compareParam(jdiffParamList.get(i), params[i])) {
-                            return false;
-                        }
-                    }
-                    // We've passed all the tests, the methods do
-                    // match.
-                    return true;
-                }
-            }
+    private static boolean matches(JDiffMethod jDiffMethod, ReflectedMember<Method> method) {
+        // Compare the return types of the two methods.  If they
+        // aren't equal, the methods can't match.
+        if (!jDiffMethod.mReturnType.equals(method.getReturnType())) {
+            return false;
         }
-        return false;
+        // If any of the parameters don't match, the methods can't
+        // match.
+        return matchesParams(jDiffMethod.mParamList, method, 0);
     }
 
     /**
@@ -580,34 +575,65 @@ public class JDiffClassDescription {
      * @param method description of the method to find
      * @return the reflected method, or null if not found.
      */
-    @SuppressWarnings("unchecked")
     private Method findMatchingMethod(JDiffMethod method) {
-        Method[] methods = mClass.getDeclaredMethods();
-        boolean found = false;
-
-        for (Method m : methods) {
-            if (matches(method, m)) {
-                return m;
+        if (mMethodIndex == null) {
+            mMethodIndex = new HashMap<String, List<ReflectedMember<Method>>>();
+            for (Method m : mClass.getDeclaredMethods()) {
+                ReflectedMember<Method> member = new ReflectedMember<Method>(m,
+                        m.getGenericReturnType(), m.getGenericParameterTypes());
+                addToIndex(mMethodIndex, getMethodKey(m.getName(), member.getParamCount()),
+                        member);
+            }
+        }
+        List<ReflectedMember<Method>> candidates = mMethodIndex.get(getMethodKey(method.mName,
+                method.mParamList.size()));
+        if (candidates != null) {
+            for (ReflectedMember<Method> m : candidates) {
+                if (matches(method, m)) {
+                    return m.mMember;
+                }
             }
         }
-
         return null;
     }
 
+    private static String getMethodKey(String name, int paramCount) {
+        return name + "/" + paramCount;
+    }
+
+    /**
+     * Compares the parameters from the API with the parameters of a reflected method or
+     * constructor.
+     *
+     * @param jdiffParamList params parsed from the API xml file.
+     * @param member the reflected method or constructor
+     * @param startParamOffset the number of leading reflected params to skip
+     * @return True if all params match, otherwise return false.
+     */
+    private static boolean matchesParams(List<String> jdiffParamList,
+            ReflectedMember<?> member, int startParamOffset) {
+        for (int i = 0; i < jdiffParamList.size(); i++) {
+            if (!compareParam(jdiffParamList.get(i),
+                    member.getParamType(startParamOffset + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Compares the parameter from the API and the parameter from
      * reflection.
      *
      * @param jdiffParam param parsed from the API xml file.
-     * @param reflectionParamType param gotten from the Java reflection.
+     * @param reflectionParam param gotten from the Java reflection, as a jdiff string.
      * @return True if the two params match, otherwise return false.
      */
-    private static boolean compareParam(String jdiffParam, Type reflectionParamType) {
+    private static boolean compareParam(String jdiffParam, String reflectionParam) {
         if (jdiffParam == null) {
             return false;
         }
 
-        String reflectionParam = typeToString(reflectionParamType);
         // Most things aren't varargs, so just do a simple compare
         // first.
         if (jdiffParam.equals(reflectionParam)) {
@@ -668,38 +694,30 @@ public class JDiffClassDescription {
      * @param jdiffDes constructor description to find.
      * @return reflected constructor, or null if not found.
      */
-    @SuppressWarnings("unchecked")
     private Constructor<?> findMatchingConstructor(JDiffConstructor jdiffDes) {
-        for (Constructor<?> c : mClass.getDeclaredConstructors()) {
-            Type[] params = c.getGenericParameterTypes();
-            boolean isStaticClass = ((mClass.getModifiers() & Modifier.STATIC) != 0);
-
-            int startParamOffset = 0;
-            int numberOfParams = params.length;
-
-            // non-static inner class -> skip implicit parent pointer
-            // as first arg
-            if (mClass.isMemberClass() && !isStaticClass && params.length >= 1) {
-                startParamOffset = 1;
-                --numberOfParams;
-            }
-
-            ArrayList<String> jdiffParamList = jdiffDes.mParamList;
-            if (jdiffParamList.size() == numberOfParams) {
-                boolean isFound = true;
-                // i counts jdiff params, j counts reflected params
-                int i = 0;
-                int j = startParamOffset;
-                while (i < jdiffParamList.size()) {
-                    if (!compareParam(jdiffParamList.get(i), params[j])) {
-                        isFound = false;
-                        break;
-                    }
-                    ++i;
-                    ++j;
+        // non-static inner class -> skip implicit parent pointer
+        // as first arg
+        boolean isStaticClass = ((mClass.getModifiers() & Modifier.STATIC) != 0);
+        int startParamOffset = mClass.isMemberClass() && !isStaticClass ? 1 : 0;
+        if (mConstructorIndex == null) {
+            mConstructorIndex = new HashMap<Integer, List<ReflectedMember<Constructor<?>>>>();
+            for (Constructor<?> c : mClass.getDeclaredConstructors()) {
+                ReflectedMember<Constructor<?>> member = new ReflectedMember<Constructor<?>>(c,
+                        null, c.getGenericParameterTypes());
+                int numberOfParams = member.getParamCount();
+                if (numberOfParams >= startParamOffset) {
+                    numberOfParams -= startParamOffset;
                 }
-                if (isFound) {
-                    return c;
+                addToIndex(mConstructorIndex, numberOfParams, member);
+            }
+        }
+        List<ReflectedMember<Constructor<?>>> candidates = mConstructorIndex.get(
+                jdiffDes.mParamList.size());
+        if (candidates != null) {
+            for (ReflectedMember<Constructor<?>> c : candidates) {
+                int offset = Math.min(startParamOffset, c.getParamCount());
+                if (matchesParams(jdiffDes.mParamList, c, offset)) {
+                    return c.mMember;
                 }
             }
         }
@@ -758,13 +776,62 @@ public class JDiffClassDescription {
      * @return the reflected field, or null if not found.
      */
     private Field findMatchingField(JDiffField field){
-        Field[] fields = mClass.getDeclaredFields();
-        for (Field f : fields) {
-            if (f.getName().equals(field.mName)) {
-                return f;
+        if (mFieldIndex == null) {
+            Field[] fields = mClass.getDeclaredFields();
+            mFieldIndex = new HashMap<String, Field>(fields.length * 2);
+            for (Field f : fields) {
+                if (!mFieldIndex.containsKey(f.getName())) {
+                    mFieldIndex.put(f.getName(), f);
+                }
             }
         }
-        return null;
+        return mFieldIndex.get(field.mName);
+    }
+
+    private static <K, V> void addToIndex(Map<K, List<V>> index, K key, V value) {
+        List<V> values = index.get(key);
+        if (values == null) {
+            values = new ArrayList<V>(1);
+            index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * A reflected method or constructor. Its generic types are converted into jdiff strings
+     * on first use only, since most candidates are rejected after comparing a few of them.
+     */
+    private static final class ReflectedMember<T extends Member> {
+        final T mMember;
+        private final Type mReturnType;
+        private final Type[] mParamTypes;
+        private String mReturnTypeString = null;
+        private final String[] mParamTypeStrings;
+
+        ReflectedMember(T member, Type returnType, Type[] paramTypes) {
+            mMember = member;
+            mReturnType = returnType;
+            mParamTypes = paramTypes;
+            mParamTypeStrings = new String[paramTypes.length];
+        }
+
+        int getParamCount() {
+            return mParamTypes.length;
+        }
+
+        String getReturnType() {
+            if (mReturnTypeString == null) {
+                mReturnTypeString = typeToString(mReturnType);
+            }
+            return mReturnTypeString;
+        }
+
+        String getParamType(int index) {
+            if (mParamTypeStrings[index] == null) {
+                mParamTypeStrings[index] = typeToString(mParamTypes[index]);
+            }
+            return mParamTypeStrings[index];
+        }
     }
 
     /**
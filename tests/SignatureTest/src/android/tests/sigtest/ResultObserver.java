@@ -16,7 +16,6 @@
 
 package android.tests.sigtest;
 
-import android.tests.sigtest.SignatureTest.FAILURE_TYPE;
 /**
  * Interface for saving signature test result.
  */
@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.tests.sigtest;
+
+import android.tests.sigtest.JDiffClassDescription.JDiffConstructor;
+import android.tests.sigtest.JDiffClassDescription.JDiffField;
+import android.tests.sigtest.JDiffClassDescription.JDiffMethod;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses a jdiff API description and checks each class it describes against the classes
+ * loaded in the current VM.
+ * <p/>
+ * The parser hands each completed {@link JDiffClassDescription} to a pool of worker threads
+ * through a bounded queue, so the parser never gets more than a few classes ahead of the
+ * checks. Failures are buffered per class and replayed to the {@link ResultObserver} in the
+ * order the classes appear in the API description, regardless of which worker checked them.
+ * <p/>
+ * Only depends on java.lang.reflect and xmlpull, so it can also be run on a host JVM against
+ * a host side API description via {@link #main(String[])}.
+ */
+public class SignatureChecker {
+
+    private static final String TAG_ROOT = "api";
+    private static final String TAG_PACKAGE = "package";
+    private static final String TAG_CLASS = "class";
+    private static final String TAG_INTERFACE = "interface";
+    private static final String TAG_IMPLEMENTS = "implements";
+    private static final String TAG_CONSTRUCTOR = "constructor";
+    private static final String TAG_METHOD = "method";
+    private static final String TAG_PARAM = "parameter";
+    private static final String TAG_EXCEPTION = "exception";
+    private static final String TAG_FIELD = "field";
+
+    private static final String MODIFIER_ABSTRACT = "abstract";
+    private static final String MODIFIER_FINAL = "final";
+    private static final String MODIFIER_NATIVE = "native";
+    private static final String MODIFIER_PRIVATE = "private";
+    private static final String MODIFIER_PROTECTED = "protected";
+    private static final String MODIFIER_PUBLIC = "public";
+    private static final String MODIFIER_STATIC = "static";
+    private static final String MODIFIER_SYNCHRONIZED = "synchronized";
+    private static final String MODIFIER_TRANSIENT = "transient";
+    private static final String MODIFIER_VOLATILE = "volatile";
+    private static final String MODIFIER_VISIBILITY = "visibility";
+
+    private static final String ATTRIBUTE_NAME = "name";
+    private static final String ATTRIBUTE_EXTENDS = "extends";
+    private static final String ATTRIBUTE_TYPE = "type";
+    private static final String ATTRIBUTE_RETURN = "return";
+
+    /** the number of parsed classes each worker may have waiting in the queue */
+    private static final int QUEUED_CLASSES_PER_THREAD = 4;
+
+    private static final Set<String> KEY_TAG_SET = new HashSet<String>(Arrays.asList(
+            TAG_PACKAGE, TAG_CLASS, TAG_INTERFACE, TAG_IMPLEMENTS, TAG_CONSTRUCTOR,
+            TAG_METHOD, TAG_PARAM, TAG_EXCEPTION, TAG_FIELD));
+
+    private final ResultObserver mResultObserver;
+    private final ThreadPoolExecutor mExecutor;
+    /** the classes submitted for checking whose failures were not reported yet, in parse order */
+    private final LinkedList<ClassResult> mPendingResults = new LinkedList<ClassResult>();
+
+    /**
+     * Buffers the failures of a single class until they can be reported in order.
+     */
+    private static class ClassResult implements ResultObserver {
+        private final String mClassName;
+        private final List<Object[]> mFailures = new ArrayList<Object[]>();
+        private Future<?> mFuture;
+
+        ClassResult(String className) {
+            mClassName = className;
+        }
+
+        public void notifyFailure(FAILURE_TYPE type, String name, String errorMessage) {
+            mFailures.add(new Object[] {type, name, errorMessage});
+        }
+
+        void replay(ResultObserver resultObserver) {
+            for (Object[] failure : mFailures) {
+                resultObserver.notifyFailure((FAILURE_TYPE)failure[0], (String)failure[1],
+                        (String)failure[2]);
+            }
+        }
+    }
+
+    /**
+     * Creates a {@link SignatureChecker} using one worker thread per available core.
+     *
+     * @param resultObserver the observer to report failures to
+     */
+    public SignatureChecker(ResultObserver resultObserver) {
+        this(resultObserver, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a {@link SignatureChecker}.
+     *
+     * @param resultObserver the observer to report failures to. Will only be called from the
+     *            thread calling {@link #checkSignatureCompliance(XmlPullParser)}
+     * @param threadCount the number of worker threads checking classes
+     */
+    public SignatureChecker(ResultObserver resultObserver, int threadCount) {
+        mResultObserver = resultObserver;
+        final AtomicInteger threadId = new AtomicInteger();
+        // when the queue is full the parser checks the class itself, which throttles parsing
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threadCount * QUEUED_CLASSES_PER_THREAD),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SignatureChecker-" +
+                                threadId.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Checks all classes of the given API description, and reports their failures.
+     * <p/>
+     * Returns once every class parsed from the description has been checked.
+     *
+     * @param parser the {@link XmlPullParser} positioned at the start of the API description
+     */
+    public void checkSignatureCompliance(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        try {
+            parse(parser);
+        } finally {
+            reportResults(true);
+        }
+    }
+
+    /**
+     * Stops the worker threads. The {@link SignatureChecker} can't be used afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static void beginDocument(XmlPullParser parser, String firstElementName)
+            throws XmlPullParserException, IOException {
+        int type;
+        while ((type=parser.next()) != XmlPullParser.START_TAG
+                   && type != XmlPullParser.END_DOCUMENT) { }
+
+        if (type != XmlPullParser.START_TAG) {
+            throw new XmlPullParserException("No start tag found");
+        }
+
+        if (!parser.getName().equals(firstElementName)) {
+            throw new XmlPullParserException("Unexpected start tag: found " + parser.getName() +
+                    ", expected " + firstElementName);
+        }
+    }
+
+    private void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+        JDiffClassDescription currentClass = null;
+        ClassResult currentResult = null;
+        String currentPackage = "";
+        JDiffMethod currentMethod = null;
+
+        beginDocument(parser, TAG_ROOT);
+        int type;
+        while (true) {
+            type = XmlPullParser.START_DOCUMENT;
+            while ((type=parser.next()) != XmlPullParser.START_TAG
+                       && type != XmlPullParser.END_DOCUMENT
+                       && type != XmlPullParser.END_TAG) {
+
+            }
+
+            if (type == XmlPullParser.END_TAG) {
+                if (TAG_CLASS.equals(parser.getName())
+                        || TAG_INTERFACE.equals(parser.getName())) {
+                    submit(currentClass, currentResult);
+                } else if (TAG_PACKAGE.equals(parser.getName())) {
+                    currentPackage = "";
+                }
+                continue;
+            }
+
+            if (type == XmlPullParser.END_DOCUMENT) {
+                break;
+            }
+
+            String tagname = parser.getName();
+            if (!KEY_TAG_SET.contains(tagname)) {
+                continue;
+            }
+
+            if (type == XmlPullParser.START_TAG && tagname.equals(TAG_PACKAGE)) {
+                currentPackage = parser.getAttributeValue(null, ATTRIBUTE_NAME);
+            } else if (tagname.equals(TAG_CLASS) || tagname.equals(TAG_INTERFACE)) {
+                currentResult = new ClassResult(currentPackage + "." +
+                        parser.getAttributeValue(null, ATTRIBUTE_NAME));
+                currentClass = loadClassInfo(parser, tagname.equals(TAG_INTERFACE),
+                        currentPackage, currentResult);
+            } else if (tagname.equals(TAG_IMPLEMENTS)) {
+                currentClass.addImplInterface(parser.getAttributeValue(null, ATTRIBUTE_NAME));
+            } else if (tagname.equals(TAG_CONSTRUCTOR)) {
+                JDiffConstructor constructor = loadConstructorInfo(parser, currentClass);
+                currentClass.addConstructor(constructor);
+                currentMethod = constructor;
+            } else if (tagname.equals(TAG_METHOD)) {
+                currentMethod = loadMethodInfo(currentClass.getClassName(), parser);
+                currentClass.addMethod(currentMethod);
+            } else if (tagname.equals(TAG_PARAM)) {
+                currentMethod.addParam(parser.getAttributeValue(null, ATTRIBUTE_TYPE));
+            } else if (tagname.equals(TAG_EXCEPTION)) {
+                currentMethod.addException(parser.getAttributeValue(null, ATTRIBUTE_TYPE));
+            } else if (tagname.equals(TAG_FIELD)) {
+                JDiffField field = loadFieldInfo(currentClass.getClassName(), parser);
+                currentClass.addField(field);
+            } else {
+                throw new RuntimeException(
+                        "unknow tag exception:" + tagname);
+            }
+        }
+    }
+
+    /**
+     * Queues a fully parsed class for checking, and reports the failures of the classes
+     * before it that have been checked already.
+     */
+    private void submit(final JDiffClassDescription classDescription, ClassResult result) {
+        result.mFuture = mExecutor.submit(new Runnable() {
+            public void run() {
+                classDescription.checkSignatureCompliance();
+            }
+        });
+        mPendingResults.add(result);
+        reportResults(false);
+    }
+
+    /**
+     * Reports the failures of the pending classes in parse order.
+     *
+     * @param waitForAll if <code>true</code> wait for all pending classes to be checked,
+     *            otherwise stop at the first class that is still being checked
+     */
+    private void reportResults(boolean waitForAll) {
+        while (!mPendingResults.isEmpty()) {
+            ClassResult result = mPendingResults.getFirst();
+            if (!waitForAll && !result.mFuture.isDone()) {
+                return;
+            }
+            mPendingResults.removeFirst();
+            try {
+                result.mFuture.get();
+                result.replay(mResultObserver);
+            } catch (ExecutionException e) {
+                result.replay(mResultObserver);
+                mResultObserver.notifyFailure(FAILURE_TYPE.CAUGHT_EXCEPTION, result.mClassName,
+                        String.valueOf(e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mResultObserver.notifyFailure(FAILURE_TYPE.CAUGHT_EXCEPTION, result.mClassName,
+                        "Interrupted while waiting for signature check");
+                for (ClassResult pending : mPendingResults) {
+                    pending.mFuture.cancel(true);
+                }
+                mPendingResults.clear();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Load field information from xml to memory.
+     *
+     * @param className of the class being examined which will be shown in error messages
+     * @param parser The XmlPullParser which carries the xml information.
+     * @return the new field
+     */
+    private static JDiffField loadFieldInfo(String className, XmlPullParser parser) {
+        String fieldName = parser.getAttributeValue(null, ATTRIBUTE_NAME);
+        String fieldType = parser.getAttributeValue(null, ATTRIBUTE_TYPE);
+        int modifier = jdiffModifierToReflectionFormat(className, parser);
+        return new JDiffField(fieldName, fieldType, modifier);
+    }
+
+    /**
+     * Load method information from xml to memory.
+     *
+     * @param className of the class being examined which will be shown in error messages
+     * @param parser The XmlPullParser which carries the xml information.
+     * @return the newly loaded method.
+     */
+    private static JDiffMethod loadMethodInfo(String className, XmlPullParser parser) {
+        String methodName = parser.getAttributeValue(null, ATTRIBUTE_NAME);
+        String returnType = parser.getAttributeValue(null, ATTRIBUTE_RETURN);
+        int modifier = jdiffModifierToReflectionFormat(className, parser);
+        return new JDiffMethod(methodName, modifier, returnType);
+    }
+
+    /**
+     * Load constructor information from xml to memory.
+     *
+     * @param parser The XmlPullParser which carries the xml information.
+     * @param currentClass the current class being loaded.
+     * @return the new constructor
+     */
+    private static JDiffConstructor loadConstructorInfo(XmlPullParser parser,
+                                                        JDiffClassDescription currentClass) {
+        String name = currentClass.getClassName();
+        int modifier = jdiffModifierToReflectionFormat(name, parser);
+        return new JDiffConstructor(name, modifier);
+    }
+
+    /**
+     * Load class or interface information to memory.
+     *
+     * @param parser The XmlPullParser which carries the xml information.
+     * @param isInterface true if the current class is an interface, otherwise is false.
+     * @param pkg the name of the java package this class can be found in.
+     * @param resultObserver the observer collecting the failures of this class.
+     * @return the new class description.
+     */
+    private static JDiffClassDescription loadClassInfo(XmlPullParser parser,
+                                                       boolean isInterface,
+                                                       String pkg,
+                                                       ResultObserver resultObserver) {
+        String className = parser.getAttributeValue(null, ATTRIBUTE_NAME);
+        JDiffClassDescription currentClass = new JDiffClassDescription(pkg,
+                                                                       className,
+                                                                       resultObserver);
+        currentClass.setModifier(jdiffModifierToReflectionFormat(className, parser));
+        currentClass.setType(isInterface ? JDiffClassDescription.JDiffType.INTERFACE :
+                             JDiffClassDescription.JDiffType.CLASS);
+        currentClass.setExtendsClass(parser.getAttributeValue(null, ATTRIBUTE_EXTENDS));
+        return currentClass;
+    }
+
+    /**
+     * Convert string modifier to int modifier.
+     *
+     * @param name of the class/method/field being examined which will be shown in error messages
+     * @param key modifier name
+     * @param value modifier value
+     * @return converted modifier value
+     */
+    private static int modifierDescriptionToReflectedType(String name, String key, String value) {
+        if (key.equals(MODIFIER_ABSTRACT)) {
+            return value.equals("true") ? Modifier.ABSTRACT : 0;
+        } else if (key.equals(MODIFIER_FINAL)) {
+            return value.equals("true") ? Modifier.FINAL : 0;
+        } else if (key.equals(MODIFIER_NATIVE)) {
+            return value.equals("true") ? Modifier.NATIVE : 0;
+        } else if (key.equals(MODIFIER_STATIC)) {
+            return value.equals("true") ? Modifier.STATIC : 0;
+        } else if (key.equals(MODIFIER_SYNCHRONIZED)) {
+            return value.equals("true") ? Modifier.SYNCHRONIZED : 0;
+        } else if (key.equals(MODIFIER_TRANSIENT)) {
+            return value.equals("true") ? Modifier.TRANSIENT : 0;
+        } else if (key.equals(MODIFIER_VOLATILE)) {
+            return value.equals("true") ? Modifier.VOLATILE : 0;
+        } else if (key.equals(MODIFIER_VISIBILITY)) {
+            if (value.equals(MODIFIER_PRIVATE)) {
+                throw new RuntimeException("Private visibility found in API spec: " + name);
+            } else if (value.equals(MODIFIER_PROTECTED)) {
+                return Modifier.PROTECTED;
+            } else if (value.equals(MODIFIER_PUBLIC)) {
+                return Modifier.PUBLIC;
+            } else if ("".equals(value)) {
+                // If the visibility is "", it means it has no modifier.
+                // which is package private. We should return 0 for this modifier.
+                return 0;
+            } else {
+                throw new RuntimeException("Unknown modifier found in API spec: " + value);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Transfer string modifier to int one.
+     *
+     * @param name of the class/method/field being examined which will be shown in error messages
+     * @param parser XML resource parser
+     * @return converted modifier
+     */
+    private static int jdiffModifierToReflectionFormat(String name, XmlPullParser parser){
+        int modifier = 0;
+        for (int i = 0;i < parser.getAttributeCount();i++) {
+            modifier |= modifierDescriptionToReflectedType(name, parser.getAttributeName(i),
+                    parser.getAttributeValue(i));
+        }
+        return modifier;
+    }
+
+    /**
+     * Checks the classes on the class path of a host JVM against one or more API descriptions,
+     * printing each failure and the elapsed time.
+     * <p/>
+     * Usage: SignatureChecker [--threads N] api.xml...
+     */
+    public static void main(String[] args) throws Exception {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threadCount = Integer.parseInt(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: SignatureChecker [--threads N] api.xml...");
+            System.exit(2);
+        }
+
+        final AtomicInteger failures = new AtomicInteger();
+        SignatureChecker checker = new SignatureChecker(new ResultObserver() {
+            public void notifyFailure(FAILURE_TYPE type, String name, String errorMessage) {
+                failures.incrementAndGet();
+                System.out.println(type.toString().toLowerCase() + ":\t" + name + "\t" +
+                        errorMessage);
+            }
+        }, threadCount);
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        long startTime = System.currentTimeMillis();
+        try {
+            for (String file : files) {
+                Reader reader = new BufferedReader(new FileReader(file));
+                try {
+                    XmlPullParser parser = factory.newPullParser();
+                    parser.setInput(reader);
+                    checker.checkSignatureCompliance(parser);
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            checker.shutdown();
+        }
+        System.out.println(String.format("%d failures, checked with %d threads in %d ms",
+                failures.get(), threadCount, System.currentTimeMillis() - startTime));
+        System.exit(failures.get() == 0 ? 0 : 1);
+    }
+}
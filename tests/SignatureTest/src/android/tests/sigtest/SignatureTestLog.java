@@ -16,16 +16,46 @@
 
 package android.tests.sigtest;
 
-import android.util.Log;
-
+/**
+ * The log of the signature checks. It goes to stderr unless a {@link Logger} is set, so that the
+ * checks also run on a host JVM.
+ */
 public class SignatureTestLog {
-    private static final String TAG = "CTSSignatureTest";
+    static final String TAG = "CTSSignatureTest";
+
+    /**
+     * Receives the log of the signature checks.
+     */
+    public interface Logger {
+        void e(String msg, Exception e);
+        void d(String msg);
+    }
+
+    private static volatile Logger sLogger = null;
+
+    /**
+     * Sets the {@link Logger} to send the log to, or <code>null</code> for stderr.
+     */
+    public static void setLogger(Logger logger) {
+        sLogger = logger;
+    }
 
     public static void e(String msg, Exception e) {
-        Log.e(TAG, msg, e);
+        Logger logger = sLogger;
+        if (logger != null) {
+            logger.e(msg, e);
+        } else {
+            System.err.println(TAG + ": " + msg);
+            e.printStackTrace();
+        }
     }
 
     public static void d(String msg) {
-        Log.d(TAG, msg);
+        Logger logger = sLogger;
+        if (logger != null) {
+            logger.d(msg);
+        } else {
+            System.err.println(TAG + ": " + msg);
+        }
     }
 }
@@ -17,9 +17,9 @@
 package android.tests.sigtest.tests;
 
 import android.test.InstrumentationTestCase;
+import android.tests.sigtest.FAILURE_TYPE;
 import android.tests.sigtest.JDiffClassDescription;
 import android.tests.sigtest.ResultObserver;
-import android.tests.sigtest.SignatureTest.FAILURE_TYPE;
 
 import java.lang.reflect.Modifier;
 
@@ -185,6 +185,36 @@ public class JDiffClassDescriptionTest extends InstrumentationTestCase {
         clz.checkSignatureCompliance();
         assertEquals(method.toSignatureString(), "public native void nativeMethod()");
     }
+    public void testAllMembers() {
+        JDiffClassDescription clz = createNormalClass();
+        clz.addConstructor(new JDiffClassDescription.JDiffConstructor("NormalClass", Modifier.PUBLIC));
+        clz.addConstructor(new JDiffClassDescription.JDiffConstructor("NormalClass",
+                new String[] {"java.lang.String"}, Modifier.PRIVATE));
+        clz.addConstructor(new JDiffClassDescription.JDiffConstructor("NormalClass",
+                new String[] {"java.lang.String", "java.lang.String", "java.lang.String"}, 0));
+        clz.addMethod(new JDiffClassDescription.JDiffMethod("staticMethod", Modifier.STATIC | Modifier.PUBLIC, "void"));
+        clz.addMethod(new JDiffClassDescription.JDiffMethod("protectedMethod", Modifier.PROTECTED, "java.lang.String"));
+        clz.addField(new JDiffClassDescription.JDiffField("FINAL_FIELD", "java.lang.String", Modifier.PUBLIC | Modifier.FINAL));
+        clz.addField(new JDiffClassDescription.JDiffField("STATIC_FIELD", "java.lang.String", Modifier.PUBLIC | Modifier.STATIC));
+        clz.checkSignatureCompliance();
+    }
+    public void testMethodWrongParamCount() {
+        ExpectFailure observer = new ExpectFailure(FAILURE_TYPE.MISSING_METHOD);
+        JDiffClassDescription clz = createNormalClass(observer);
+        JDiffClassDescription.JDiffMethod method = new JDiffClassDescription.JDiffMethod("staticMethod", Modifier.STATIC | Modifier.PUBLIC, "void");
+        method.addParam("java.lang.String");
+        clz.addMethod(method);
+        clz.checkSignatureCompliance();
+        observer.validate();
+    }
+    public void testMethodWrongReturnType() {
+        ExpectFailure observer = new ExpectFailure(FAILURE_TYPE.MISSING_METHOD);
+        JDiffClassDescription clz = createNormalClass(observer);
+        JDiffClassDescription.JDiffMethod method = new JDiffClassDescription.JDiffMethod("protectedMethod", Modifier.PROTECTED, "java.lang.Object");
+        clz.addMethod(method);
+        clz.checkSignatureCompliance();
+        observer.validate();
+    }
 
     public void testFinalField() {
         JDiffClassDescription clz = createNormalClass();
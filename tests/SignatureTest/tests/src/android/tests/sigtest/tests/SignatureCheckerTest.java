@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.tests.sigtest.tests;
+
+import android.test.InstrumentationTestCase;
+import android.tests.sigtest.FAILURE_TYPE;
+import android.tests.sigtest.ResultObserver;
+import android.tests.sigtest.SignatureChecker;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test class for SignatureChecker.
+ */
+public class SignatureCheckerTest extends InstrumentationTestCase {
+
+    private static final String PACKAGE = "android.tests.sigtest.tests.data";
+
+    private class RecordingObserver implements ResultObserver {
+        List<String> mFailures = new ArrayList<String>();
+
+        public void notifyFailure(FAILURE_TYPE type, String name, String errorMessage) {
+            mFailures.add(type + ":" + name);
+        }
+    }
+
+    public void testCompliantApi() throws Exception {
+        RecordingObserver observer = check(4,
+                "<class name=\"NormalClass\" visibility=\"public\">" +
+                    "<constructor name=\"NormalClass\" visibility=\"public\" />" +
+                    "<method name=\"staticMethod\" return=\"void\" static=\"true\" " +
+                        "visibility=\"public\" />" +
+                "</class>" +
+                "<interface name=\"NormalInterface\" abstract=\"true\" visibility=\"public\">" +
+                "</interface>");
+        assertTrue(observer.mFailures.isEmpty());
+    }
+
+    /**
+     * Test that failures are reported in the order of the API description, even when the
+     * classes are checked by several threads.
+     */
+    public void testFailureOrder() throws Exception {
+        StringBuilder api = new StringBuilder();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            api.append("<class name=\"NormalClass\" visibility=\"public\">");
+            api.append("<method name=\"noSuchMethod" + i + "\" return=\"void\" " +
+                    "visibility=\"public\" />");
+            api.append("</class>");
+            api.append("<class name=\"NoSuchClass" + i + "\" visibility=\"public\"></class>");
+            expected.add(FAILURE_TYPE.MISSING_METHOD + ":" + PACKAGE + ".NormalClass#noSuchMethod" +
+                    i + "()");
+            expected.add(FAILURE_TYPE.MISSING_CLASS + ":" + PACKAGE + ".NoSuchClass" + i);
+        }
+        assertEquals(expected, check(4, api.toString()).mFailures);
+        assertEquals(expected, check(1, api.toString()).mFailures);
+    }
+
+    private RecordingObserver check(int threadCount, String classes) throws Exception {
+        String api = "<api><package name=\"" + PACKAGE + "\">" + classes + "</package></api>";
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new StringReader(api));
+        RecordingObserver observer = new RecordingObserver();
+        SignatureChecker checker = new SignatureChecker(observer, threadCount);
+        try {
+            checker.checkSignatureCompliance(parser);
+        } finally {
+            checker.shutdown();
+        }
+        return observer;
+    }
+}
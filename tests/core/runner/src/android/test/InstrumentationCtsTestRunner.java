@@ -36,8 +36,11 @@ import java.lang.reflect.Modifier;
 import java.net.Authenticator;
 import java.net.CookieHandler;
 import java.net.ResponseCache;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -63,6 +66,12 @@ public class InstrumentationCtsTestRunner extends InstrumentationTestRunner {
 
     private static final String TAG = "InstrumentationCtsTestRunner";
 
+    /**
+     * Instrumentation argument for logging the memory usage before every N-th test class.
+     * Memory usage isn't logged if it is missing or 0.
+     */
+    private static final String ARGUMENT_MEMORY_LOG_INTERVAL = "memory_log_interval";
+
     /**
      * True if (and only if) we are running in single-test mode (as opposed to
      * batch mode).
@@ -71,6 +80,8 @@ public class InstrumentationCtsTestRunner extends InstrumentationTestRunner {
 
     private TestEnvironment mEnvironment;
 
+    private int mMemoryLogInterval = 0;
+
     @Override
     public void onCreate(Bundle arguments) {
         // We might want to move this to /sdcard, if is is mounted/writable.
@@ -91,6 +102,16 @@ public class InstrumentationCtsTestRunner extends InstrumentationTestRunner {
         if (arguments != null) {
             String classArg = arguments.getString(ARGUMENT_TEST_CLASS);
             mSingleTest = classArg != null && classArg.contains("#");
+
+            String memoryLogInterval = arguments.getString(ARGUMENT_MEMORY_LOG_INTERVAL);
+            if (memoryLogInterval != null) {
+                try {
+                    mMemoryLogInterval = Integer.parseInt(memoryLogInterval);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Invalid " + ARGUMENT_MEMORY_LOG_INTERVAL + ": " +
+                            memoryLogInterval);
+                }
+            }
         }
 
         // attempt to disable keyguard,  if current test has permission to do so
@@ -119,11 +140,25 @@ public class InstrumentationCtsTestRunner extends InstrumentationTestRunner {
              */
             private Class<?> lastClass;
 
+            /**
+             * The number of test classes we executed code from.
+             */
+            private int classCount = 0;
+
+            /**
+             * The fields to null after each test, per test class.
+             */
+            private final Map<Class<?>, Field[]> cleanupPlans = new HashMap<Class<?>, Field[]>();
+
             @Override
             public void startTest(Test test) {
                 if (test.getClass() != lastClass) {
                     lastClass = test.getClass();
-                    printMemory(test.getClass());
+                    Log.d(TAG, "Now executing : " + test.getClass().getName());
+                    if (mMemoryLogInterval > 0 && classCount % mMemoryLogInterval == 0) {
+                        printMemory();
+                    }
+                    classCount++;
                 }
 
                 Thread.currentThread().setContextClassLoader(
@@ -152,7 +187,7 @@ public class InstrumentationCtsTestRunner extends InstrumentationTestRunner {
             /**
              * Dumps some memory info.
              */
-            private void printMemory(Class<? extends Test> testClass) {
+            private void printMemory() {
                 Runtime runtime = Runtime.getRuntime();
 
                 long total = runtime.totalMemory();
@@ -162,7 +197,6 @@ public class InstrumentationCtsTestRunner extends InstrumentationTestRunner {
                 Log.d(TAG, "Total memory  : " + total);
                 Log.d(TAG, "Used memory   : " + used);
                 Log.d(TAG, "Free memory   : " + free);
-                Log.d(TAG, "Now executing : " + testClass.getName());
             }
 
             /**
@@ -173,25 +207,44 @@ public class InstrumentationCtsTestRunner extends InstrumentationTestRunner {
              * test cases, a little help might be a good idea.
              */
             private void cleanup(TestCase test) {
-                Class<?> clazz = test.getClass();
+                for (Field f : getCleanupPlan(test.getClass())) {
+                    try {
+                        f.set(test, null);
+                    } catch (Exception ignored) {
+                        // Nothing we can do about it.
+                    }
+                }
+            }
 
-                while (clazz != TestCase.class) {
-                    Field[] fields = clazz.getDeclaredFields();
-                    for (int i = 0; i < fields.length; i++) {
-                        Field f = fields[i];
+            /**
+             * Returns the non-static reference fields of the given test class
+             * and its super classes up to TestCase, already made accessible.
+             * Looked up once per class, as the reflection is expensive compared
+             * to the many short tests of a core test class.
+             */
+            private Field[] getCleanupPlan(Class<?> testClass) {
+                Field[] plan = cleanupPlans.get(testClass);
+                if (plan != null) {
+                    return plan;
+                }
+                List<Field> fields = new ArrayList<Field>();
+                for (Class<?> clazz = testClass; clazz != TestCase.class;
+                        clazz = clazz.getSuperclass()) {
+                    for (Field f : clazz.getDeclaredFields()) {
                         if (!f.getType().isPrimitive() &&
                                 !Modifier.isStatic(f.getModifiers())) {
                             try {
                                 f.setAccessible(true);
-                                f.set(test, null);
-                            } catch (Exception ignored) {
+                                fields.add(f);
+                            } catch (SecurityException ignored) {
                                 // Nothing we can do about it.
                             }
                         }
                     }
-
-                    clazz = clazz.getSuperclass();
                 }
+                plan = fields.toArray(new Field[fields.size()]);
+                cleanupPlans.put(testClass, plan);
+                return plan;
             }
 
         });
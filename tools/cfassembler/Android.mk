@@ -37,7 +37,8 @@ INTERNAL_DALVIK_MODULES += $(LOCAL_INSTALLED_MODULE)
 # ============================================================
 include $(CLEAR_VARS)
 
-LOCAL_SRC_FILES := src/dxconvext/ClassFileAssembler.java src/dxconvext/util/FileUtils.java
+LOCAL_SRC_FILES := src/dxconvext/ClassFileAssembler.java src/dxconvext/HexDecoder.java \
+    src/dxconvext/util/FileUtils.java
 LOCAL_JAR_MANIFEST := etc/cfassembler_manifest.txt
 
 LOCAL_MODULE:= cfassembler
@@ -16,32 +16,42 @@
 
 package dxconvext;
 
-import dxconvext.util.FileUtils;
-
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
-import java.security.DigestException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.zip.Adler32;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ClassFileAssembler {
 
+    private static final String CLASS_HEADER = "//@class:";
+    private static final String DEX_HEADER = "// Processing '";
+
     /**
      * @param args
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("-batch")) {
+            if (args.length < 3) {
+                System.out.println("usage: cfassembler -batch <inputdir> <outputdir> [<threads>]");
+                System.exit(1);
+            }
+            int threadCount = args.length > 3 ? Integer.parseInt(args[3])
+                    : Runtime.getRuntime().availableProcessors();
+            int failures = assembleDirectory(new File(args[1]), new File(args[2]), threadCount);
+            System.exit(failures == 0 ? 0 : 1);
+        }
         ClassFileAssembler cfa = new ClassFileAssembler();
         cfa.run(args);
     }
@@ -74,139 +84,164 @@ public class ClassFileAssembler {
         
         boolean isDex = cfhF.getName().endsWith(".dfh");
         
-        byte[] cfhbytes = FileUtils.readFile(cfhF);
-        ByteArrayInputStream bais = new ByteArrayInputStream(cfhbytes);
         // encoding should not matter, since we are skipping comment lines and parsing
         try {
-            // get the package name
-            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(cfhF)));
-            String firstLine = br.readLine();
-            br.close();
-            String classHdr = "//@class:";
-            String dexHdr = "// Processing '";
-            String hdr;
-            if(isDex)
-                hdr = dexHdr;
-            else
-                hdr = classHdr;
-            
-            if (!firstLine.startsWith(hdr)) throw new RuntimeException("wrong format:"+firstLine +" isDex=" + isDex);
+            // the output name is taken from the first line, so the whole file is decoded
+            // before anything is written
+            HexDecoder decoder = new HexDecoder(isDex);
+            byte[] bytes = decode(decoder, cfhF);
             String tFile;
             if(isDex) {
+                checkHeader(decoder.getFirstLine(), isDex);
                 tFile = outBase + "/classes.dex";
             } else {
-                String classO = firstLine.substring(hdr.length()).trim();
-                tFile = outBase +"/"+classO+".class";
+                tFile = outBase + "/" + getClassName(decoder.getFirstLine()) + ".class";
             }
             File outFile = new File(tFile);
             System.out.println("outfile:" + outFile);
             String mkdir = tFile.substring(0, tFile.lastIndexOf("/"));
             new File(mkdir).mkdirs();
             
-            Reader r = new InputStreamReader(bais,"utf-8");
-            OutputStream os = new FileOutputStream(outFile);
-            BufferedOutputStream bos = new BufferedOutputStream(os);
-            writeClassFile(r, bos, isDex);
-            bos.close();
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("problem while parsing .dfh or .cfh file: "+cfhF.getAbsolutePath(), e);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException("problem while parsing .dfh or .cfh file: "+cfhF.getAbsolutePath(), e);
+            writeFile(outFile, bytes);
         } catch (IOException e) {
             throw new RuntimeException("problem while parsing .dfh or .cfh file: "+cfhF.getAbsolutePath(), e);
         } 
     }
-    
+
     /**
-     * Calculates the signature for the <code>.dex</code> file in the
-     * given array, and modify the array to contain it.
-     * 
-     * Originally from com.android.dx.dex.file.DexFile.
-     * 
-     * @param bytes non-null; the bytes of the file
+     * Assembles all .cfh and .dfh files below the given directory on a thread pool. A .cfh file
+     * is written to <code>outDir/&lt;class&gt;.class</code> as in single file mode, a .dfh file
+     * to <code>outDir/&lt;path relative to inDir&gt;.dex</code>, which is the layout the
+     * vm-tests build uses. Outputs which are newer than their input are not rebuilt.
+     *
+     * @return the number of files which could not be assembled
      */
-    private void calcSignature(byte[] bytes) {
-        MessageDigest md;
+    public static int assembleDirectory(File inDir, final File outDir, int threadCount) {
+        List<File> inputs = new ArrayList<File>();
+        collectInputs(inDir, inputs);
+        final String inPath = inDir.getAbsolutePath();
 
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
         try {
-            md = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException ex) {
-            throw new RuntimeException(ex);
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(inputs.size());
+            for (final File input : inputs) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        String relative = input.getAbsolutePath().substring(inPath.length() + 1);
+                        return assembleIfOutdated(input, relative, outDir);
+                    }
+                }));
+            }
+            int built = 0;
+            int failures = 0;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (results.get(i).get()) {
+                        built++;
+                    }
+                } catch (ExecutionException e) {
+                    System.err.println("problem while parsing .dfh or .cfh file: "
+                            + inputs.get(i).getAbsolutePath() + ": " + e.getCause());
+                    failures++;
+                }
+            }
+            System.out.println("assembled " + built + " of " + inputs.size() + " files, "
+                    + failures + " failed");
+            return failures;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
-        md.update(bytes, 32, bytes.length - 32);
-
-        try {
-            int amt = md.digest(bytes, 12, 20);
-            if (amt != 20) {
-                throw new RuntimeException("unexpected digest write: " + amt +
-                                           " bytes");
+    private static void collectInputs(File dir, List<File> inputs) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectInputs(file, inputs);
+            } else if (file.getName().endsWith(".cfh") || file.getName().endsWith(".dfh")) {
+                inputs.add(file);
             }
-        } catch (DigestException ex) {
-            throw new RuntimeException(ex);
         }
     }
 
     /**
-     * Calculates the checksum for the <code>.dex</code> file in the
-     * given array, and modify the array to contain it.
-     * 
-     * Originally from com.android.dx.dex.file.DexFile.
-     * 
-     * @param bytes non-null; the bytes of the file
+     * @return <code>true</code> if the file was assembled, <code>false</code> if its output
+     *         was up to date
      */
-    private void calcChecksum(byte[] bytes) {
-        Adler32 a32 = new Adler32();
+    private static boolean assembleIfOutdated(File input, String relative, File outDir)
+            throws IOException {
+        boolean isDex = input.getName().endsWith(".dfh");
+        File outFile;
+        if (isDex) {
+            outFile = new File(outDir, relative.substring(0, relative.length() - 4) + ".dex");
+        } else {
+            // the class name is only known from the header line, read it for the up-to-date
+            // check so that unchanged files are not decoded at all
+            BufferedReader br = new BufferedReader(new FileReader(input));
+            String firstLine;
+            try {
+                firstLine = br.readLine();
+            } finally {
+                br.close();
+            }
+            outFile = new File(outDir, getClassName(firstLine) + ".class");
+        }
+        if (outFile.lastModified() > input.lastModified()) {
+            return false;
+        }
+        HexDecoder decoder = new HexDecoder(isDex);
+        byte[] bytes = decode(decoder, input);
+        if (isDex) {
+            checkHeader(decoder.getFirstLine(), isDex);
+        }
+        outFile.getParentFile().mkdirs();
+        writeFile(outFile, bytes);
+        return true;
+    }
+
+    private static byte[] decode(HexDecoder decoder, File input) throws IOException {
+        Reader r = new InputStreamReader(new FileInputStream(input), "utf-8");
+        try {
+            return decoder.decode(r);
+        } finally {
+            r.close();
+        }
+    }
 
-        a32.update(bytes, 12, bytes.length - 12);
+    private static void checkHeader(String firstLine, boolean isDex) {
+        String hdr = isDex ? DEX_HEADER : CLASS_HEADER;
+        if (firstLine == null || !firstLine.startsWith(hdr)) {
+            throw new RuntimeException("wrong format:" + firstLine + " isDex=" + isDex);
+        }
+    }
 
-        int sum = (int) a32.getValue();
+    private static String getClassName(String firstLine) {
+        checkHeader(firstLine, false);
+        return firstLine.substring(CLASS_HEADER.length()).trim();
+    }
 
-        bytes[8]  = (byte) sum;
-        bytes[9]  = (byte) (sum >> 8);
-        bytes[10] = (byte) (sum >> 16);
-        bytes[11] = (byte) (sum >> 24);
-    }   
+    private static void writeFile(File outFile, byte[] bytes) throws IOException {
+        OutputStream os = new FileOutputStream(outFile);
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
 
+    /**
+     * Decodes a .cfh or .dfh file and writes the result to the given stream, which is closed
+     * afterwards. For dex files the checksum and the signature are updated.
+     */
     public void writeClassFile(Reader r, OutputStream rOs, boolean isDex) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
-        BufferedReader br = new BufferedReader(r);
-        String line;
-        String secondLine = null;
-        int lineCnt = 0;
         try {
-            while ((line = br.readLine()) != null) {
-                if (isDex && lineCnt++ == 1) {
-                    secondLine = line;
-                }
-                // skip it if it is a comment
-                if (!line.trim().startsWith("//")) {
-                    // we have a row like "    ae 08 21 ff" etc.
-                    String[] parts = line.split("\\s+");
-                    for (int i = 0; i < parts.length; i++) {
-                        String part = parts[i].trim();
-                        if (!part.equals("")) {
-                            int res = Integer.parseInt(part, 16);
-                            baos.write(res);
-                        }
-                    }
-                }
-            }
-            
-            // now for dex, update the checksum and the signature.
-            // special case:
-            // for two tests (currently T_f1_9.dfh and T_f1_10.dfh), we need
-            // to keep the checksum or the signature, respectively.
-            byte[] outBytes = baos.toByteArray();
-            if (isDex) {
-                boolean leaveChecksum = secondLine.contains("//@leaveChecksum");
-                boolean leaveSignature= secondLine.contains("//@leaveSignature");
-                // update checksum and signature for dex file            
-                if(!leaveSignature)
-                    calcSignature(outBytes);
-                if(!leaveChecksum)
-                    calcChecksum(outBytes);
-            }
+            byte[] outBytes = new HexDecoder(isDex).decode(r);
             rOs.write(outBytes);
             rOs.close();
         } catch (IOException e) {
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dxconvext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+
+/**
+ * Decodes a .cfh or .dfh file in a single pass over its characters.
+ * <p>
+ * Lines whose first non-whitespace characters are "//" are comments, all other lines hold
+ * whitespace separated hex values, one byte each. For .dfh files the checksum and the signature
+ * of the dex header are computed while the bytes are decoded: everything after the first 32
+ * bytes is fed to SHA-1 and Adler32 as it arrives, and the Adler32 of the (new) signature is
+ * combined with the running value of the rest of the file at the end.
+ * <p>
+ * The second line of a .dfh file may contain "//@leaveChecksum" or "//@leaveSignature" to keep
+ * the respective value of the input.
+ */
+final class HexDecoder {
+
+    /** the part of the dex header which is covered by neither checksum nor signature */
+    private static final int DEX_SIGNATURE_START = 12;
+
+    /** the part of the dex header which is not covered by the signature */
+    private static final int DEX_SIGNATURE_END = 32;
+
+    private static final int ADLER_BASE = 65521;
+
+    private final boolean isDex;
+
+    private String firstLine;
+    private String secondLine;
+
+    private final byte[] header = new byte[DEX_SIGNATURE_END];
+    private int count;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+    private final byte[] chunk = new byte[4096];
+    private int chunkLength;
+    private MessageDigest sha1;
+    private Adler32 adler;
+
+    HexDecoder(boolean isDex) {
+        this.isDex = isDex;
+    }
+
+    /**
+     * Returns the first line of the last decoded file, or null if it was empty.
+     */
+    String getFirstLine() {
+        return firstLine;
+    }
+
+    /**
+     * Decodes the given file. A decoder can only be used once.
+     *
+     * @param r the .cfh or .dfh file
+     * @return the decoded bytes, with checksum and signature fixed up for dex files
+     */
+    byte[] decode(Reader r) throws IOException {
+        if (isDex) {
+            try {
+                sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            }
+            adler = new Adler32();
+        }
+
+        StringBuilder lineText = new StringBuilder();
+        char[] buf = new char[8192];
+        int lineNo = 0;
+        boolean lineStart = true;  // only whitespace seen on this line so far
+        boolean slash = false;     // a '/' was seen at the start of this line
+        boolean comment = false;
+        boolean lastCr = false;
+        int value = 0;
+        int digits = 0;
+
+        int n;
+        while ((n = r.read(buf)) != -1) {
+            for (int i = 0; i < n; i++) {
+                char c = buf[i];
+                if (c == '\n' || c == '\r') {
+                    if (c == '\n' && lastCr) {
+                        // second half of a \r\n line terminator
+                        lastCr = false;
+                        continue;
+                    }
+                    lastCr = c == '\r';
+                    if (slash) {
+                        throw invalid(lineNo, "/");
+                    }
+                    if (digits > 0) {
+                        write(value);
+                        value = 0;
+                        digits = 0;
+                    }
+                    if (lineNo == 0) {
+                        firstLine = lineText.toString();
+                    } else if (lineNo == 1) {
+                        secondLine = lineText.toString();
+                    }
+                    lineText.setLength(0);
+                    lineNo++;
+                    lineStart = true;
+                    comment = false;
+                    continue;
+                }
+                lastCr = false;
+                if (lineNo < 2) {
+                    lineText.append(c);
+                }
+                if (comment) {
+                    continue;
+                }
+                if (c <= ' ') {
+                    if (slash) {
+                        throw invalid(lineNo, "/");
+                    }
+                    if (digits > 0) {
+                        write(value);
+                        value = 0;
+                        digits = 0;
+                    }
+                } else if (c == '/' && lineStart) {
+                    if (slash) {
+                        comment = true;
+                        slash = false;
+                    } else {
+                        slash = true;
+                    }
+                } else {
+                    int digit = Character.digit(c, 16);
+                    if (digit < 0 || slash || ++digits > 8 || (digits == 8 && value > 0x7ffffff)) {
+                        throw invalid(lineNo, String.valueOf(c));
+                    }
+                    value = (value << 4) | digit;
+                    lineStart = false;
+                }
+            }
+        }
+        if (slash) {
+            throw invalid(lineNo, "/");
+        }
+        if (digits > 0) {
+            write(value);
+        }
+        if (lineText.length() > 0) {
+            if (lineNo == 0) {
+                firstLine = lineText.toString();
+            } else if (lineNo == 1) {
+                secondLine = lineText.toString();
+            }
+        }
+        flushChunk();
+
+        if (!isDex) {
+            return body.toByteArray();
+        }
+        return finishDex();
+    }
+
+    private byte[] finishDex() {
+        if (count < DEX_SIGNATURE_END) {
+            throw new RuntimeException("dex file too short: " + count + " bytes");
+        }
+        // special case:
+        // for two tests (currently T_f1_9.dfh and T_f1_10.dfh), we need
+        // to keep the checksum or the signature, respectively.
+        boolean leaveChecksum = secondLine != null && secondLine.contains("//@leaveChecksum");
+        boolean leaveSignature = secondLine != null && secondLine.contains("//@leaveSignature");
+
+        if (!leaveSignature) {
+            byte[] signature = sha1.digest();
+            System.arraycopy(signature, 0, header, DEX_SIGNATURE_START, signature.length);
+        }
+        if (!leaveChecksum) {
+            Adler32 signatureAdler = new Adler32();
+            signatureAdler.update(header, DEX_SIGNATURE_START,
+                    DEX_SIGNATURE_END - DEX_SIGNATURE_START);
+            int sum = (int) combineAdler32(signatureAdler.getValue(), adler.getValue(),
+                    count - DEX_SIGNATURE_END);
+            header[8]  = (byte) sum;
+            header[9]  = (byte) (sum >> 8);
+            header[10] = (byte) (sum >> 16);
+            header[11] = (byte) (sum >> 24);
+        }
+
+        byte[] result = new byte[count];
+        System.arraycopy(header, 0, result, 0, DEX_SIGNATURE_END);
+        byte[] rest = body.toByteArray();
+        System.arraycopy(rest, 0, result, DEX_SIGNATURE_END, rest.length);
+        return result;
+    }
+
+    private void write(int value) {
+        if (isDex && count < DEX_SIGNATURE_END) {
+            header[count++] = (byte) value;
+            return;
+        }
+        count++;
+        chunk[chunkLength++] = (byte) value;
+        if (chunkLength == chunk.length) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() {
+        if (chunkLength == 0) {
+            return;
+        }
+        if (isDex) {
+            sha1.update(chunk, 0, chunkLength);
+            adler.update(chunk, 0, chunkLength);
+        }
+        body.write(chunk, 0, chunkLength);
+        chunkLength = 0;
+    }
+
+    private static RuntimeException invalid(int lineNo, String token) {
+        return new NumberFormatException("invalid hex value at line " + (lineNo + 1)
+                + ": '" + token + "'");
+    }
+
+    /**
+     * Returns the Adler32 checksum of the concatenation of two byte sequences, as in zlib's
+     * adler32_combine().
+     *
+     * @param adler1 the checksum of the first sequence
+     * @param adler2 the checksum of the second sequence
+     * @param len2 the length of the second sequence
+     */
+    static long combineAdler32(long adler1, long adler2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= ((long) ADLER_BASE << 1)) sum2 -= ((long) ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.android.cts.xmlgenerator;
 
+import com.android.cts.util.TestPackageDescriptor;
+
 import vogar.Expectation;
 import vogar.ExpectationStore;
 
@@ -25,9 +27,18 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Generator of TestPackage XML files for native tests.
@@ -43,6 +54,9 @@ import java.util.List;
  * suite: x.y
  * case:TestClass3
  * test:testMethod2
+ *
+ * When writing to a file, it also writes the {@link TestPackageDescriptor} of the package next
+ * to it.
  */
 class XmlGenerator {
 
@@ -72,6 +86,15 @@ class XmlGenerator {
     /** ExpectationStore to filter out known failures. */
     private final ExpectationStore mExpectations;
 
+    /**
+     * The known failures of each test case, indexed by the position of the test in the
+     * sorted tests of the case. Cases without known failures are missing.
+     */
+    private final Map<TestCase, BitSet> mKnownFailures = new HashMap<TestCase, BitSet>();
+
+    /** The compact descriptor of the package, built along with the xml. */
+    private final TestPackageDescriptor mDescriptor = new TestPackageDescriptor();
+
     XmlGenerator(ExpectationStore expectations, String appNameSpace, String appPackageName,
             String name, String runner, String targetBinaryName, String targetNameSpace,
             String jarPath, String testType, String outputPath) {
@@ -89,8 +112,9 @@ class XmlGenerator {
 
     public void writePackageXml() throws IOException {
         OutputStream output = System.out;
+        File outputFile = null;
         if (mOutputPath != null) {
-            File outputFile = new File(mOutputPath);
+            outputFile = new File(mOutputPath);
             output = new FileOutputStream(outputFile);
         }
 
@@ -104,39 +128,55 @@ class XmlGenerator {
                 writer.close();
             }
         }
+        if (writer.checkError()) {
+            throw new IOException("Failed to write " + mOutputPath);
+        }
+        // written after the xml, so that it is never older than the xml it was built with
+        if (outputFile != null) {
+            mDescriptor.write(TestPackageDescriptor.getDescriptorFile(outputFile));
+        }
     }
 
-    private void writeTestPackage(PrintWriter writer) {
-        writer.append("<TestPackage");
+    private void writeTestPackage(PrintWriter writer) throws IOException {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
         if (mAppNamespace != null) {
-            writer.append(" appNameSpace=\"").append(mAppNamespace).append("\"");
+            attributes.put("appNameSpace", mAppNamespace);
         }
 
-        writer.append(" appPackageName=\"").append(mAppPackageName).append("\"");
-        writer.append(" name=\"").append(mName).append("\"");
+        attributes.put("appPackageName", mAppPackageName);
+        attributes.put("name", mName);
 
         if (mRunner != null) {
-            writer.append(" runner=\"").append(mRunner).append("\"");
+            attributes.put("runner", mRunner);
         }
 
         if (mAppNamespace != null && mTargetNameSpace != null
                 && !mAppNamespace.equals(mTargetNameSpace)) {
-            writer.append(" targetBinaryName=\"").append(mTargetBinaryName).append("\"");
-            writer.append(" targetNameSpace=\"").append(mTargetNameSpace).append("\"");
+            attributes.put("targetBinaryName", mTargetBinaryName);
+            attributes.put("targetNameSpace", mTargetNameSpace);
         }
 
         if (mTestType != null && !mTestType.isEmpty()) {
-            writer.append(" testType=\"").append(mTestType).append("\"");
+            attributes.put("testType", mTestType);
         }
 
         if (mJarPath != null) {
-            writer.append(" jarPath=\"").append(mJarPath).append("\"");
+            attributes.put("jarPath", mJarPath);
         }
 
-        writer.println(" version=\"1.0\">");
+        attributes.put("version", "1.0");
+
+        writer.append("<TestPackage");
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            writer.append(" ").append(attribute.getKey()).append("=\"")
+                    .append(attribute.getValue()).append("\"");
+            mDescriptor.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+        writer.println(">");
 
         TestListParser parser = new TestListParser();
         Collection<TestSuite> suites = parser.parse(System.in);
+        computeKnownFailures(suites);
         StringBuilder nameCollector = new StringBuilder();
         writeTestSuites(writer, suites, nameCollector);
         writer.println("</TestPackage>");
@@ -171,7 +211,7 @@ class XmlGenerator {
             writer.append("<TestCase name=\"").append(name).println("\">");
             nameCollector.append('.').append(name);
 
-            writeTests(writer, testCase.getTests(), nameCollector);
+            writeTests(writer, testCase, nameCollector);
 
             nameCollector.delete(nameCollector.length() - name.length() - 1,
                     nameCollector.length());
@@ -179,13 +219,18 @@ class XmlGenerator {
         }
     }
 
-    private void writeTests(PrintWriter writer, Collection<Test> tests,
+    private void writeTests(PrintWriter writer, TestCase testCase,
             StringBuilder nameCollector) {
-        Collection<Test> sorted = sortCollection(tests);
+        Collection<Test> sorted = sortCollection(testCase.getTests());
+        BitSet knownFailures = mKnownFailures.get(testCase);
+        String className = nameCollector.toString();
+        int index = 0;
         for (Test test : sorted) {
+            boolean isKnownFailure = knownFailures != null && knownFailures.get(index);
+            mDescriptor.addTest(className, test.getName(), isKnownFailure, test.getTimeout());
             nameCollector.append('#').append(test.getName());
             writer.append("<Test name=\"").append(test.getName()).append("\"");
-            if (isKnownFailure(mExpectations, nameCollector.toString())) {
+            if (isKnownFailure) {
                 writer.append(" expectation=\"failure\"");
             }
             if (test.getTimeout() >= 0) {
@@ -195,6 +240,68 @@ class XmlGenerator {
 
             nameCollector.delete(nameCollector.length() - test.getName().length() - 1,
                     nameCollector.length());
+            index++;
+        }
+    }
+
+    /**
+     * Looks up the expectations of all tests up front, one test case per task on a pool sized
+     * to the available cores, and stores the known failures of each case as a {@link BitSet}.
+     */
+    private void computeKnownFailures(Collection<TestSuite> suites) throws IOException {
+        if (mExpectations == null) {
+            return;
+        }
+        final List<TestCase> cases = new ArrayList<TestCase>();
+        final List<String> caseNames = new ArrayList<String>();
+        collectTestCases(suites, "", cases, caseNames);
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<BitSet>> results = new ArrayList<Future<BitSet>>(cases.size());
+            for (int i = 0; i < cases.size(); i++) {
+                final TestCase testCase = cases.get(i);
+                final String caseName = caseNames.get(i);
+                results.add(executor.submit(new Callable<BitSet>() {
+                    @Override
+                    public BitSet call() {
+                        BitSet knownFailures = new BitSet();
+                        int index = 0;
+                        for (Test test : sortCollection(testCase.getTests())) {
+                            if (isKnownFailure(mExpectations, caseName + "#" + test.getName())) {
+                                knownFailures.set(index);
+                            }
+                            index++;
+                        }
+                        return knownFailures;
+                    }
+                }));
+            }
+            for (int i = 0; i < cases.size(); i++) {
+                BitSet knownFailures = results.get(i).get();
+                if (!knownFailures.isEmpty()) {
+                    mKnownFailures.put(cases.get(i), knownFailures);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while looking up expectations", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to look up expectations", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void collectTestCases(Collection<TestSuite> suites, String prefix,
+            List<TestCase> cases, List<String> caseNames) {
+        for (TestSuite suite : suites) {
+            String suiteName = prefix.isEmpty() ? suite.getName() : prefix + "." + suite.getName();
+            collectTestCases(suite.getSuites(), suiteName, cases, caseNames);
+            for (TestCase testCase : suite.getCases()) {
+                cases.add(testCase);
+                caseNames.add(suiteName + "." + testCase.getName());
+            }
         }
     }
 
@@ -57,14 +57,23 @@ import com.android.dx.rop.type.Type;
 import com.android.dx.rop.type.TypeList;
 import com.android.dx.util.IntList;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 //TODO: copyright notice
 
@@ -97,7 +106,7 @@ public class DAsm {
     String superclass_name;
     String source_name;
     String filename;
-    Vector<String> interfaces = new Vector<String>();
+    ArrayList<String> interfaces = new ArrayList<String>();
     ClassDefItem classDef;
 
     // method being built
@@ -110,7 +119,7 @@ public class DAsm {
     /**
      * list of exceptions that method can throw.
      */
-    Vector<String> throw_list = new Vector<String>();
+    ArrayList<String> throw_list = new ArrayList<String>();
 
     /**
      * Constructor of CatchTable instances from method data.
@@ -136,7 +145,7 @@ public class DAsm {
     /**
      * Hold a translation table "LabelX" -> CodeAddress, planted.
      */
-    Hashtable<String, LabelTableEntry> labels_table;
+    HashMap<String, LabelTableEntry> labels_table;
 
     /**
      * used by relative forward jumps. When relative forward offset is found,
@@ -146,17 +155,17 @@ public class DAsm {
      * output_finisher.
      */
     int current_insn_number;
-    Hashtable<Integer, CodeAddress> unprocessed_relative_goto_addr =
-            new Hashtable<Integer, CodeAddress>();
+    HashMap<Integer, CodeAddress> unprocessed_relative_goto_addr =
+            new HashMap<Integer, CodeAddress>();
 
     // fill-array-data data
     int fill_data_reg;
     String fill_array_data_type;
-    Vector<Number> fill_array_data_values;
+    ArrayList<Number> fill_array_data_values;
 
     // packed-switch and sparse-switch data
     int switch_reg;
-    Vector<Object> switch_targets;
+    ArrayList<Object> switch_targets;
     IntList switch_keys;
     int packed_switch_first_key;
     int packed_switch_current_key;
@@ -165,7 +174,7 @@ public class DAsm {
      * holds sparse-switch, packed-switch and fill-array-data data blocks to be
      * added at the end of method
      */
-    Vector<DalvInsn> data_blocks = new Vector<DalvInsn>();
+    ArrayList<DalvInsn> data_blocks = new ArrayList<DalvInsn>();
 
     /**
      * Returns the number of warnings/errors encountered while parsing a file. 0
@@ -286,7 +295,7 @@ public class DAsm {
         boolean found = false;
         // search for duplicates
         for (int i = 0; i < sz; i++) {
-            String s = interfaces.elementAt(i);
+            String s = interfaces.get(i);
             if (s.compareTo(name) == 0) {
                 found = true;
                 break;
@@ -397,7 +406,7 @@ public class DAsm {
         output_finisher = null;
         throw_list.clear();
         unprocessed_relative_goto_addr.clear();
-        labels_table = new Hashtable<String, LabelTableEntry>();
+        labels_table = new HashMap<String, LabelTableEntry>();
         catch_builder = new DasmCatchBuilder(labels_table);
         current_insn_number = 0;
         regs_count = 1;
@@ -419,7 +428,7 @@ public class DAsm {
         // end of method
         int sz = data_blocks.size();
         for (int i = 0; i < sz; i++) {
-            addInsn(data_blocks.elementAt(i));
+            addInsn(data_blocks.get(i));
         }
         data_blocks.clear();
 
@@ -427,12 +436,9 @@ public class DAsm {
         if (unprocessed_relative_goto_addr.size() != 0) {
             report_error("Relative forward jump offset too big.");
         }
-        Enumeration<String> e = labels_table.keys();
-        while (e.hasMoreElements()) {
-            String key = e.nextElement();
-            LabelTableEntry lte = labels_table.get(key);
-            if (lte.planted == false) {
-                report_error("Label " + key + " not found.");
+        for (Map.Entry<String, LabelTableEntry> entry : labels_table.entrySet()) {
+            if (entry.getValue().planted == false) {
+                report_error("Label " + entry.getKey() + " not found.");
             }
         }
 
@@ -1275,7 +1281,7 @@ public class DAsm {
         }
 
         fill_array_data_type = type;
-        fill_array_data_values = new Vector<Number>();
+        fill_array_data_values = new ArrayList<Number>();
     }
 
     /**
@@ -1297,7 +1303,7 @@ public class DAsm {
                 + fill_array_data_type));
         for (int i = 0; i < sz; i++) {
             Constant constant;
-            Number num = fill_array_data_values.elementAt(i);
+            Number num = fill_array_data_values.get(i);
             if (arrayType == CstType.LONG_ARRAY) {
                 constant = CstLong.make(num.longValue());
             } else if (arrayType == CstType.FLOAT_ARRAY) {
@@ -1360,7 +1366,7 @@ public class DAsm {
 
         packed_switch_first_key = first_key;
         packed_switch_current_key = 0;
-        switch_targets = new Vector<Object>();
+        switch_targets = new ArrayList<Object>();
         switch_keys = new IntList();
     }
 
@@ -1402,7 +1408,7 @@ public class DAsm {
             throwDasmError("Bad arguments for sparse-switch (" + reg + ")");
         }
 
-        switch_targets = new Vector<Object>();
+        switch_targets = new ArrayList<Object>();
         switch_keys = new IntList();
     }
 
@@ -1437,7 +1443,7 @@ public class DAsm {
 
         CodeAddress targets[] = new CodeAddress[sz];
         for (int i = 0; i < sz; i++) {
-            Object o = switch_targets.elementAt(i);
+            Object o = switch_targets.get(i);
             CodeAddress addr;
             if (o instanceof String) {
                 String t = (String) o;
@@ -1500,7 +1506,7 @@ public class DAsm {
     /**
      * Creates TypeList from list of types
      */
-    protected TypeList createTypeListFromStrings(Vector<String> strings) {
+    protected TypeList createTypeListFromStrings(List<String> strings) {
         StdTypeList tl;
 
         if (strings.size() == 0)
@@ -1509,7 +1515,7 @@ public class DAsm {
             int sz = strings.size();
             tl = new StdTypeList(sz);
             for (int i = 0; i < sz; i++) {
-                tl.set(i, Type.internClassName(strings.elementAt(i)));
+                tl.set(i, Type.internClassName(strings.get(i)));
             }
         }
         return tl;
@@ -1593,14 +1599,37 @@ public class DAsm {
      */
     public void readD(Reader input, String name, boolean numberLines)
             throws IOException, Exception {
+        parse(input, name, numberLines, new DexFile(dexOptions));
+    }
+
+    /**
+     * Parses a .d file, adding its classes to the given dex file. All parser
+     * state left over from a previous source is reset, so one instance can
+     * parse any number of sources.
+     */
+    private void parse(Reader input, String name, boolean numberLines,
+            DexFile target) throws IOException, Exception {
 
         // TODO: numberLines?
         errors = 0;
         filename = name;
         source_name = name;
         class_header = false;
+        class_name = null;
         classDef = null;
-        dexFile = new DexFile(dexOptions);
+        dexFile = target;
+
+        // a previous source may have stopped in the middle of a method
+        interfaces.clear();
+        throw_list.clear();
+        unprocessed_relative_goto_addr.clear();
+        data_blocks.clear();
+        labels_table = null;
+        catch_builder = null;
+        output_finisher = null;
+        fill_array_data_values = null;
+        switch_targets = null;
+        switch_keys = null;
 
         scanner = new Scanner(input);
         parser parse_obj = new parser(this, scanner);
@@ -1614,4 +1643,211 @@ public class DAsm {
         }
 
     }
+
+    /*
+     * ========================================================================
+     * === BATCH MODE
+     * ========================================================================
+     */
+
+    /**
+     * The outcome of assembling a single source in batch mode.
+     */
+    public static class Result {
+        private final String name;
+        private final String className;
+        private final byte[] dex;
+        private final String error;
+
+        Result(String name, String className, byte[] dex, String error) {
+            this.name = name;
+            this.className = className;
+            this.dex = dex;
+            this.error = error;
+        }
+
+        /**
+         * Returns the name of the source.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the name of the last class in the source, see
+         * {@link DAsm#getClassName()}.
+         */
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * Returns the binary representation of the source, or null if it
+         * could not be assembled.
+         */
+        public byte[] getDex() {
+            return dex;
+        }
+
+        /**
+         * Returns a description of what went wrong, or null if the source
+         * was assembled.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return dex != null;
+        }
+    }
+
+    /**
+     * Assembles a single source into an in-memory .dex file. Unlike
+     * readD()/write() this never throws, and the instance can be reused for
+     * the next source.
+     *
+     * @param input
+     *            is the stream containing the Dalvik assembly code.
+     * @param name
+     *            is the name of the stream, used in error messages.
+     * @param numberLines
+     *            see {@link #readD(Reader, String, boolean)}.
+     */
+    public Result assemble(Reader input, String name, boolean numberLines) {
+        try {
+            parse(input, name, numberLines, new DexFile(dexOptions));
+        } catch (DasmError e) {
+            return new Result(name, class_name, null, "DASM Error: "
+                    + e.getMessage());
+        } catch (Exception e) {
+            return new Result(name, class_name, null, "Exception <"
+                    + e.getClass().getName() + ">" + e.getMessage()
+                    + " while reading and parsing " + name);
+        }
+        if (errors > 0) {
+            return new Result(name, class_name, null, "Found " + errors
+                    + " errors while reading and parsing " + name);
+        }
+        try {
+            return new Result(name, class_name, toByteArray(dexFile), null);
+        } catch (Exception e) {
+            return new Result(name, class_name, null, "Exception <"
+                    + e.getClass().getName() + ">" + e.getMessage()
+                    + " while writing " + name);
+        }
+    }
+
+    /**
+     * Assembles a single .d file, see
+     * {@link #assemble(Reader, String, boolean)}.
+     */
+    public Result assemble(File file, boolean numberLines) {
+        Reader input;
+        try {
+            input = new BufferedReader(new FileReader(file));
+        } catch (IOException e) {
+            return new Result(file.getName(), null, null, e.toString());
+        }
+        try {
+            return assemble(input, file.getName(), numberLines);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Assembles several .d files into one .dex file per source. Each worker
+     * thread reuses a single DAsm instance for all sources it handles.
+     *
+     * @param files
+     *            the .d files to assemble.
+     * @param numberLines
+     *            see {@link #readD(Reader, String, boolean)}.
+     * @param threadCount
+     *            the number of worker threads.
+     * @return the results, in the order of the given files.
+     */
+    public static List<Result> assemble(List<File> files,
+            final boolean numberLines, int threadCount)
+            throws InterruptedException {
+        final ThreadLocal<DAsm> assemblers = new ThreadLocal<DAsm>() {
+            @Override
+            protected DAsm initialValue() {
+                return new DAsm();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(
+                    files.size());
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return assemblers.get().assemble(file, numberLines);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>(files.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Assembles several .d files into a single .dex file holding the classes
+     * of all sources.
+     *
+     * @param files
+     *            the .d files to assemble.
+     * @param numberLines
+     *            see {@link #readD(Reader, String, boolean)}.
+     * @return the merged .dex file.
+     * @throws DasmError
+     *             if any of the sources contains errors.
+     */
+    public byte[] assembleMerged(List<File> files, boolean numberLines)
+            throws IOException, DasmError {
+        DexFile merged = new DexFile(dexOptions);
+        for (File file : files) {
+            Reader input = new BufferedReader(new FileReader(file));
+            try {
+                parse(input, file.getName(), numberLines, merged);
+            } catch (DasmError e) {
+                throw e;
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new DasmError("Exception <" + e.getClass().getName()
+                        + ">" + e.getMessage() + " while reading and parsing "
+                        + file.getName());
+            } finally {
+                input.close();
+            }
+            if (errors > 0) {
+                throw new DasmError("Found " + errors
+                        + " errors while reading and parsing "
+                        + file.getName());
+            }
+        }
+        return toByteArray(merged);
+    }
+
+    private static byte[] toByteArray(DexFile dex) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        dex.writeTo(out, null, true);
+        return out.toByteArray();
+    }
 }
@@ -25,6 +25,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * DAsm entry point
@@ -57,6 +59,11 @@ public class Main {
      */
     private static boolean generateLineNumbers = false;
 
+    /**
+     * single .dex file to place the classes of all input files in
+     */
+    private static String mergedOutput = null;
+
     private static void incompleteOption(String opt) {
         System.err.println("Command line option " + opt
                 + " required argument missed");
@@ -210,6 +217,11 @@ public class Main {
                     incompleteOption("-d");
                 else
                     destPath = args[i];
+            } else if (args[i].equals("-m")) {
+                if (++i >= args.length)
+                    incompleteOption("-m");
+                else
+                    mergedOutput = args[i];
             } else if (args[i].equals("-h")) {
                 humanHeadable = true;
             } else if (args[i].equals("-e")) {
@@ -222,18 +234,58 @@ public class Main {
             }
         }
 
+        if (mergedOutput != null) {
+            List<File> sources = new ArrayList<File>(num_files);
+            for (i = 0; i < num_files; i++) {
+                sources.add(new File(files[i]));
+            }
+            assembleMerged(sources);
+            return;
+        }
+
         for (i = 0; i < num_files; i++) {
             assemble(files[i]);
         }
     }
 
+    /**
+     * Called to assemble several files into the single .dex file given by
+     * the -m option.
+     */
+    private static void assembleMerged(List<File> sources) {
+        File out_file = new File(mergedOutput);
+        FileOutputStream outp = null;
+        try {
+            byte[] dex = new DAsm().assembleMerged(sources,
+                    generateLineNumbers);
+            outp = new FileOutputStream(out_file);
+            outp.write(dex);
+        } catch (DasmError e) {
+            if (DEBUG) e.printStackTrace();
+            System.err.println("DASM Error: " + e.getMessage());
+            return;
+        } catch (Exception e) {
+            if (DEBUG) e.printStackTrace();
+            System.err.println("Exception <" + e.getClass().getName() + ">"
+                    + e.getMessage() + " while writing " + out_file.getPath());
+            close(outp);
+            out_file.delete();
+            return;
+        } finally {
+            close(outp);
+        }
+
+        System.out.println("Generated: " + out_file.getPath());
+    }
+
     static void printUsage() {
         System.err
-                .println("dasm [-d <outpath>] [-g] [-h] [-e <encoding>] <file>"
+                .println("dasm [-d <outpath> | -m <dexfile>] [-g] [-h] [-e <encoding>] <file>"
                         + "[<file> ...]\n\n"
                         + "  -g - autogenerate linenumbers\n"
                         + "  -e - codepage for inputfile encoding\n"
                         + "  -d - path for generated classfiles\n"
+                        + "  -m - place all classes in a single .dex file\n"
                         + "  -h - generate human-readable output\n"
                         + "  file  - sourcefile\n"
                         + "or: dasm -version\n"
@@ -16,15 +16,19 @@
 
 package dasm;
 
-import java.util.Hashtable;
+import java.util.HashMap;
 
 import java_cup.runtime.token;
 
 class ReservedWords {
-    static Hashtable<String, token> reserved_words;
+    // only written during class initialization so it can be read without
+    // locking. The tokens in it are prototypes only: the parser records its
+    // state in the tokens it is given, so each lookup returns a new token.
+    static HashMap<String, token> reserved_words;
 
     public static token get(String name) {
-        return (token) reserved_words.get(name);
+        token prototype = reserved_words.get(name);
+        return prototype == null ? null : new token(prototype.sym);
     }
 
     public static boolean contains(String name) {
@@ -32,7 +36,7 @@ class ReservedWords {
     }
 
     static {
-        reserved_words = new Hashtable<String, token>();
+        reserved_words = new HashMap<String, token>();
 
         // Dasm directives
         reserved_words.put(".annotation", new token(sym.DANNOTATION));
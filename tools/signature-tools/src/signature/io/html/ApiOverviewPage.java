@@ -16,12 +16,15 @@
 
 package signature.io.html;
 
+import org.antlr.stringtemplate.AutoIndentWriter;
 import org.antlr.stringtemplate.StringTemplate;
 
 import signature.compare.model.IApiDelta;
 import signature.compare.model.IPackageDelta;
 import signature.compare.model.impl.SigDelta;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -60,13 +63,13 @@ public class ApiOverviewPage implements IEmitter {
         Collections.sort(changedPackages, new PackageByNameComparator());
     }
 
-    public void writeTo(StringBuilder b) {
+    public void writeTo(Writer writer) throws IOException {
         StringTemplate template = TemplateStore
                 .getStringTemplate("ApiOverviewPage");
         template.setArgumentContext(commonInfos);
         template.setAttribute("removed_packages", removedPackages);
         template.setAttribute("added_packages", addedPackages);
         template.setAttribute("changed_packages", changedPackages);
-        b.append(template.toString());
+        template.write(new AutoIndentWriter(writer));
     }
 }
@@ -16,10 +16,13 @@
 
 package signature.io.html;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Map;
 
+import org.antlr.stringtemplate.AutoIndentWriter;
 import org.antlr.stringtemplate.StringTemplate;
 
 import signature.compare.model.IAnnotationFieldDelta;
@@ -163,7 +166,7 @@ public class ClassOverviewPage implements IEmitter {
         Collections.sort(changedMethods, methodComparator);
     }
 
-    public void writeTo(StringBuilder b) {
+    public void writeTo(Writer writer) throws IOException {
         StringTemplate template = TemplateStore.getStringTemplate(PAGE);
 
         template.setAttribute("class_delta", classDelta);
@@ -200,6 +203,6 @@ public class ClassOverviewPage implements IEmitter {
         template.setAttribute("changed_methods", changedMethods);
 
         template.setArgumentContext(commonInfos);
-        b.append(template.toString());
+        template.write(new AutoIndentWriter(writer));
     }
 }
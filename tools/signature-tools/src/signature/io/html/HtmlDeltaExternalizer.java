@@ -16,6 +16,7 @@
 
 package signature.io.html;
 
+import org.antlr.stringtemplate.AutoIndentWriter;
 import org.antlr.stringtemplate.StringTemplate;
 
 import signature.Version;
@@ -28,20 +29,50 @@ import signature.io.IApiDeltaExternalizer;
 import signature.model.IClassDefinition;
 import signature.model.IPackage;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class HtmlDeltaExternalizer implements IApiDeltaExternalizer {
 
     private static final String OVERVIEW_PAGE_NAME = "changes.html";
     private static final String STYLE_SHEET_NAME = "styles.css";
     private static final String DELTA_FOLDER = "changes" + File.separator;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int threadCount;
+
+    public HtmlDeltaExternalizer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threadCount
+     *            the number of worker threads used to render the package and
+     *            class pages
+     */
+    public HtmlDeltaExternalizer(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount < 1");
+        }
+        this.threadCount = threadCount;
+    }
 
     public void externalize(String location, IApiDelta apiDelta)
             throws IOException {
@@ -62,12 +93,10 @@ public class HtmlDeltaExternalizer implements IApiDeltaExternalizer {
         commonInfos.put("from_desc", apiDelta.getFrom().getName());
         commonInfos.put("to_desc", apiDelta.getTo().getName());
 
-        // write overview page
-        StringBuilder content = new StringBuilder();
-        ApiOverviewPage apiOverviewPage = new ApiOverviewPage(apiDelta,
-                commonInfos);
-        apiOverviewPage.writeTo(content);
-        writeToFile(location + OVERVIEW_PAGE_NAME, content.toString());
+        // write overview page, this may still add entries to commonInfos
+        writeToFile(location + OVERVIEW_PAGE_NAME, new ApiOverviewPage(
+                apiDelta, commonInfos));
+        // from here on commonInfos is only read, it is shared by the workers
 
         // write package overview
         Set<IPackageDelta> changedPackages = SigDelta.getChanged(apiDelta
@@ -79,32 +108,56 @@ public class HtmlDeltaExternalizer implements IApiDeltaExternalizer {
                 file.mkdir();
             }
 
-            for (IPackageDelta packageDelta : changedPackages) {
-                content = new StringBuilder();
-                PackageOverviewPage packagePage = new PackageOverviewPage(
-                        packageDelta, commonInfos);
-                packagePage.writeTo(content);
-                IPackage aPackage = getAnElement(packageDelta);
-                String packageOverviewFileName = location + DELTA_FOLDER
-                        + "pkg_" + aPackage.getName() + ".html";
-                writeToFile(packageOverviewFileName, content.toString());
-
-                // write class overviews
-                for (IClassDefinitionDelta classDelta : packageDelta
-                        .getClassDeltas()) {
-                    content = new StringBuilder();
-                    ClassOverviewPage classPage = new ClassOverviewPage(
-                            classDelta, commonInfos);
-                    classPage.writeTo(content);
-                    IClassDefinition aClass = getAnElement(classDelta);
-                    String classOverviewFileName = location + DELTA_FOLDER
-                            + aPackage.getName() + "." + aClass.getName()
-                            + ".html";
-                    writeToFile(classOverviewFileName, content.toString());
+            ExecutorService executor = Executors
+                    .newFixedThreadPool(threadCount);
+            try {
+                List<Future<Void>> pages = new ArrayList<Future<Void>>();
+                for (IPackageDelta packageDelta : changedPackages) {
+                    IPackage aPackage = getAnElement(packageDelta);
+                    String packageOverviewFileName = location + DELTA_FOLDER
+                            + "pkg_" + aPackage.getName() + ".html";
+                    pages.add(executor.submit(new PackageOverviewPageTask(
+                            packageOverviewFileName, packageDelta,
+                            commonInfos)));
+
+                    // write class overviews
+                    for (IClassDefinitionDelta classDelta : packageDelta
+                            .getClassDeltas()) {
+                        IClassDefinition aClass = getAnElement(classDelta);
+                        String classOverviewFileName = location + DELTA_FOLDER
+                                + aPackage.getName() + "." + aClass.getName()
+                                + ".html";
+                        pages.add(executor.submit(new ClassOverviewPageTask(
+                                classOverviewFileName, classDelta,
+                                commonInfos)));
+                    }
                 }
+                for (Future<Void> page : pages) {
+                    waitFor(page);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static void waitFor(Future<Void> page) throws IOException {
+        try {
+            page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing pages");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
+            throw new RuntimeException(cause);
         }
-        // write class overview
     }
 
     private static <T> T getAnElement(IDelta<T> delta) {
@@ -116,16 +169,74 @@ public class HtmlDeltaExternalizer implements IApiDeltaExternalizer {
     }
 
     private void copyStyleSheet(String directory) throws IOException {
-        StringTemplate template = TemplateStore.getStringTemplate("Styles");
+        final StringTemplate template = TemplateStore
+                .getStringTemplate("Styles");
         template.setAttribute("version", Version.VERSION);
-        writeToFile(directory + STYLE_SHEET_NAME, template.toString());
+        writeToFile(directory + STYLE_SHEET_NAME, new IEmitter() {
+            public void writeTo(Writer writer) throws IOException {
+                template.write(new AutoIndentWriter(writer));
+            }
+        });
     }
 
-    private void writeToFile(String fileName, String content)
+    /**
+     * Streams the output of the given emitter to a buffered file writer, no
+     * intermediate copy of the page is kept in memory.
+     */
+    private static void writeToFile(String fileName, IEmitter emitter)
             throws IOException {
-        FileOutputStream fileOutputStream = new FileOutputStream(fileName);
-        fileOutputStream.write(content.getBytes());
-        fileOutputStream.flush();
-        fileOutputStream.close();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(fileName)), BUFFER_SIZE);
+        try {
+            emitter.writeTo(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Renders a package page on a worker thread. The page data is prepared in
+     * the worker as well, as sorting the deltas is part of the rendering cost.
+     */
+    private static class PackageOverviewPageTask implements Callable<Void> {
+        private final String fileName;
+        private final IPackageDelta packageDelta;
+        private final Map<String, String> commonInfos;
+
+        PackageOverviewPageTask(String fileName, IPackageDelta packageDelta,
+                Map<String, String> commonInfos) {
+            this.fileName = fileName;
+            this.packageDelta = packageDelta;
+            this.commonInfos = commonInfos;
+        }
+
+        public Void call() throws IOException {
+            writeToFile(fileName, new PackageOverviewPage(packageDelta,
+                    commonInfos));
+            return null;
+        }
+    }
+
+    /**
+     * Renders a class page on a worker thread.
+     */
+    private static class ClassOverviewPageTask implements Callable<Void> {
+        private final String fileName;
+        private final IClassDefinitionDelta classDelta;
+        private final Map<String, String> commonInfos;
+
+        ClassOverviewPageTask(String fileName,
+                IClassDefinitionDelta classDelta,
+                Map<String, String> commonInfos) {
+            this.fileName = fileName;
+            this.classDelta = classDelta;
+            this.commonInfos = commonInfos;
+        }
+
+        public Void call() throws IOException {
+            writeToFile(fileName, new ClassOverviewPage(classDelta,
+                    commonInfos));
+            return null;
+        }
     }
 }
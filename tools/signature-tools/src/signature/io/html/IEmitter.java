@@ -16,6 +16,9 @@
 
 package signature.io.html;
 
+import java.io.IOException;
+import java.io.Writer;
+
 public interface IEmitter {
-    void writeTo(StringBuilder b);
+    void writeTo(Writer writer) throws IOException;
 }
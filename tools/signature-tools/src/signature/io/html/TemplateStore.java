@@ -18,6 +18,8 @@ package signature.io.html;
 
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.antlr.stringtemplate.StringTemplate;
 import org.antlr.stringtemplate.StringTemplateGroup;
@@ -27,6 +29,13 @@ public class TemplateStore {
 
     private static StringTemplateGroup group = initialize();
 
+    /**
+     * Resolved page templates. The group lookup is synchronized and walks the
+     * super groups, so each template is resolved once and further instances
+     * are cloned from the cached prototype, sharing its compiled chunks.
+     */
+    private static final ConcurrentMap<String, StringTemplate> prototypes =
+            new ConcurrentHashMap<String, StringTemplate>();
 
     private static StringTemplateGroup initialize() {
         InputStream modelStream = TemplateStore.class.getClassLoader()
@@ -53,6 +62,14 @@ public class TemplateStore {
     }
 
     public static StringTemplate getStringTemplate(String name) {
-        return group.getInstanceOf(name);
+        StringTemplate prototype = prototypes.get(name);
+        if (prototype == null) {
+            prototype = group.getInstanceOf(name);
+            StringTemplate existing = prototypes.putIfAbsent(name, prototype);
+            if (existing != null) {
+                prototype = existing;
+            }
+        }
+        return prototype.getInstanceOf();
     }
 }
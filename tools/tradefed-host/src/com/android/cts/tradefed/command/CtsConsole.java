@@ -19,7 +19,11 @@ import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.build.CtsBuildProvider;
 import com.android.cts.tradefed.result.ITestResultRepo;
 import com.android.cts.tradefed.result.ITestSummary;
+import com.android.cts.tradefed.result.PerfMetricsStore;
+import com.android.cts.tradefed.result.PerfRegressionDetector;
+import com.android.cts.tradefed.result.PerfRegressionDetector.Regression;
 import com.android.cts.tradefed.result.PlanCreator;
+import com.android.cts.tradefed.result.ResultMerger;
 import com.android.cts.tradefed.result.TestResultRepo;
 import com.android.cts.tradefed.testtype.ITestPackageRepo;
 import com.android.cts.tradefed.testtype.TestPackageRepo;
@@ -33,6 +37,7 @@ import com.android.tradefed.util.TableFormatter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,6 +50,10 @@ import java.util.Map;
 public class CtsConsole extends Console {
 
     protected static final String ADD_PATTERN = "a(?:dd)?";
+    protected static final String EXPORT_PATTERN = "export";
+
+    /** the directory below the results directory holding the exported performance data */
+    private static final String PERF_METRICS_DIR_NAME = "perf-metrics";
 
     private CtsBuildHelper mCtsBuild = null;
 
@@ -91,6 +100,21 @@ public class CtsConsole extends Console {
                 }
             }
         }, LIST_PATTERN, "r(?:esults)?");
+        ArgRunnable<CaptureList> listPerfRegressionsCommand = new ArgRunnable<CaptureList>() {
+            @Override
+            public void run(CaptureList args) {
+                // Skip 2 tokens to get past listPattern and "perf-regressions"
+                String[] flatArgs = new String[args.size() - 2];
+                for (int i = 2; i < args.size(); i++) {
+                    flatArgs[i - 2] = args.get(i).get(0);
+                }
+                CtsBuildHelper ctsBuild = getCtsBuild();
+                if (ctsBuild != null) {
+                    listPerfRegressions(ctsBuild, flatArgs);
+                }
+            }
+        };
+        trie.put(listPerfRegressionsCommand, LIST_PATTERN, "perf-regressions", null);
 
         // find existing help for 'LIST_PATTERN' commands, and append these commands help
         String listHelp = commandHelp.get(LIST_PATTERN);
@@ -101,7 +125,9 @@ public class CtsConsole extends Console {
         String combinedHelp = listHelp +
                 "\tp[lans]\t\tList all CTS test plans" + LINE_SEPARATOR +
                 "\tpackages\tList all CTS packages" + LINE_SEPARATOR +
-                "\tr[esults]\tList all CTS results" + LINE_SEPARATOR;
+                "\tr[esults]\tList all CTS results" + LINE_SEPARATOR +
+                "\tperf-regressions\tList performance regressions across all CTS results" +
+                LINE_SEPARATOR;
         commandHelp.put(LIST_PATTERN, combinedHelp);
 
         ArgRunnable<CaptureList> addDerivedCommand = new ArgRunnable<CaptureList>() {
@@ -119,10 +145,40 @@ public class CtsConsole extends Console {
             }
         };
         trie.put(addDerivedCommand, ADD_PATTERN, "d(?:erivedplan?)", null);
+        ArgRunnable<CaptureList> addMergedCommand = new ArgRunnable<CaptureList>() {
+            @Override
+            public void run(CaptureList args) {
+                // Skip 2 tokens to get past addPattern and "mergedresult"
+                String[] flatArgs = new String[args.size() - 2];
+                for (int i = 2; i < args.size(); i++) {
+                    flatArgs[i - 2] = args.get(i).get(0);
+                }
+                CtsBuildHelper ctsBuild = getCtsBuild();
+                if (ctsBuild != null) {
+                    addMergedResult(ctsBuild, flatArgs);
+                }
+            }
+        };
+        trie.put(addMergedCommand, ADD_PATTERN, "m(?:ergedresult)?", null);
         commandHelp.put(ADD_PATTERN, String.format(
                 "%s help:" + LINE_SEPARATOR +
-                "\tderivedplan      Add a derived plan" + LINE_SEPARATOR,
+                "\tderivedplan      Add a derived plan" + LINE_SEPARATOR +
+                "\tmergedresult     Add a result merged from several sessions" + LINE_SEPARATOR,
                 ADD_PATTERN));
+
+        trie.put(new Runnable() {
+            @Override
+            public void run() {
+                CtsBuildHelper ctsBuild = getCtsBuild();
+                if (ctsBuild != null) {
+                    exportPerfMetrics(ctsBuild);
+                }
+            }
+        }, EXPORT_PATTERN, "perf-metrics");
+        commandHelp.put(EXPORT_PATTERN, String.format(
+                "%s help:" + LINE_SEPARATOR +
+                "\tperf-metrics     Export the performance data of all CTS results" +
+                LINE_SEPARATOR, EXPORT_PATTERN));
     }
 
     @Override
@@ -167,10 +223,18 @@ public class CtsConsole extends Console {
         helpBuilder.append("currently in the queue waiting to be allocated devices\n");
         helpBuilder.append("  l/list r/results: list CTS results currently present in the ");
         helpBuilder.append("repository\n");
+        helpBuilder.append("  l/list perf-regressions [options]: list performance regressions ");
+        helpBuilder.append("across all CTS results in the repository\n");
         helpBuilder.append("Add:\n");
         helpBuilder.append("  add derivedplan --plan plane_name --session/-s session_id -r ");
         helpBuilder.append("[pass/fail/notExecuted/timeout]: derive a plan from the given ");
         helpBuilder.append("session\n");
+        helpBuilder.append("  add mergedresult --session/-s session_id --session/-s session_id ");
+        helpBuilder.append("[--duplicate-policy pass-wins/fail-wins/last-wins]: merge the given ");
+        helpBuilder.append("sessions, e.g. the shards of one run, into a new result\n");
+        helpBuilder.append("Export:\n");
+        helpBuilder.append("  export perf-metrics: append the performance data of all CTS ");
+        helpBuilder.append("results not exported yet to a column oriented store\n");
         helpBuilder.append("Dump:\n");
         helpBuilder.append("  d/dump l/logs: dump the tradefed logs for all running invocations\n");
         helpBuilder.append("Options:\n");
@@ -215,6 +279,51 @@ public class CtsConsole extends Console {
         tableFormatter.displayTable(table, new PrintWriter(System.out, true));
     }
 
+    private void listPerfRegressions(CtsBuildHelper ctsBuild, String[] flatArgs) {
+        PerfRegressionDetector detector = new PerfRegressionDetector();
+        List<Regression> regressions;
+        try {
+            ArgsOptionParser optionParser = new ArgsOptionParser(detector);
+            optionParser.parse(Arrays.asList(flatArgs));
+            regressions = detector.detectRegressions(
+                    new TestResultRepo(ctsBuild.getResultsDir()));
+        } catch (ConfigurationException e) {
+            printLine("Error: " + e.getMessage());
+            printLine(ArgsOptionParser.getOptionHelp(false, detector));
+            return;
+        }
+        TableFormatter tableFormatter = new TableFormatter();
+        List<List<String>> table = new ArrayList<List<String>>();
+        table.add(Arrays.asList("Device", "Test", "Metric", "Before", "After", "Change %",
+                "Z-score", "First session", "Fingerprint before", "Fingerprint after"));
+        for (Regression r : regressions) {
+            table.add(Arrays.asList(r.getDevice(),
+                    r.getTestName(),
+                    String.format("%s (%s)", r.getMessage(), r.getUnit()),
+                    String.format("%.2f", r.getMedianBefore()),
+                    String.format("%.2f", r.getMedianAfter()),
+                    String.format("%+.1f", r.getChangePercent()),
+                    String.format("%.1f", r.getZScore()),
+                    Integer.toString(r.getFirstSessionAfter()),
+                    r.getLastFingerprintBefore(),
+                    r.getFirstFingerprintAfter()));
+        }
+        tableFormatter.displayTable(table, new PrintWriter(System.out, true));
+    }
+
+    private void exportPerfMetrics(CtsBuildHelper ctsBuild) {
+        File storeDir = new File(ctsBuild.getResultsDir(), PERF_METRICS_DIR_NAME);
+        try {
+            PerfMetricsStore store = new PerfMetricsStore(storeDir);
+            int appended = store.appendSessions(new TestResultRepo(ctsBuild.getResultsDir()));
+            printLine(String.format("Exported %d new sessions to %s", appended,
+                    storeDir.getAbsolutePath()));
+        } catch (IOException e) {
+            printLine(String.format("Failed to open %s: %s", storeDir.getAbsolutePath(),
+                    e.getMessage()));
+        }
+    }
+
     private void addDerivedPlan(CtsBuildHelper ctsBuild, String[] flatArgs) {
         PlanCreator creator = new PlanCreator();
         try {
@@ -227,6 +336,21 @@ public class CtsConsole extends Console {
         }
     }
 
+    private void addMergedResult(CtsBuildHelper ctsBuild, String[] flatArgs) {
+        ResultMerger merger = new ResultMerger();
+        try {
+            ArgsOptionParser optionParser = new ArgsOptionParser(merger);
+            optionParser.parse(Arrays.asList(flatArgs));
+            File reportDir = merger.mergeSessions(ctsBuild);
+            if (reportDir != null) {
+                printLine(String.format("Merged result generated at %s", reportDir.getName()));
+            }
+        } catch (ConfigurationException e) {
+            printLine("Error: " + e.getMessage());
+            printLine(ArgsOptionParser.getOptionHelp(false, merger));
+        }
+    }
+
     private CtsBuildHelper getCtsBuild() {
         if (mCtsBuild == null) {
             String ctsInstallPath = System.getProperty("CTS_ROOT");
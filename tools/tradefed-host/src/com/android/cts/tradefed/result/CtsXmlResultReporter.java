@@ -20,6 +20,7 @@ import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.device.DeviceInfoCollector;
 import com.android.cts.tradefed.testtype.CtsTest;
 import com.android.cts.tradefed.util.CtsHostStore;
+import com.android.cts.tradefed.util.CtsHostStore.PerfResult;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.TestIdentifier;
@@ -44,8 +45,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Writes results to an XML files in the CTS format.
@@ -59,7 +58,7 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
 
     static final String TEST_RESULT_FILE_NAME = "testResult.xml";
     private static final String CTS_RESULT_FILE_VERSION = "4.4";
-    private static final String[] CTS_RESULT_RESOURCES = {"cts_result.xsl", "cts_result.css",
+    static final String[] CTS_RESULT_RESOURCES = {"cts_result.xsl", "cts_result.css",
         "logo.gif", "newrule-green.png"};
 
     /** the XML namespace */
@@ -89,6 +88,14 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
     @Option(name = "result-server", description = "Server to publish test results.")
     private String mResultServer;
 
+    @Option(name = "html-report", description =
+            "Render a paginated static html report next to the result XML.")
+    private boolean mHtmlReport = true;
+
+    @Option(name = "html-page-size", description =
+            "The maximum number of tests listed on one page of the html report.")
+    private int mHtmlPageSize = HtmlReportRenderer.DEFAULT_PAGE_SIZE;
+
     protected IBuildInfo mBuildInfo;
     private String mStartTime;
     private String mDeviceSerial;
@@ -98,8 +105,7 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
     private ResultReporter mReporter;
     private File mLogDir;
     private String mSuiteName;
-
-    private static final Pattern mCtsLogPattern = Pattern.compile("(.*)\\+\\+\\+\\+(.*)");
+    private ResultZipWriter mZipWriter;
 
     public void setReportDir(File reportDir) {
         mReportDir = reportDir;
@@ -140,6 +146,7 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
             logResult("Created result dir %s", mReportDir.getName());
         }
         mSuiteName = ctsBuildHelper.getSuiteName();
+        CtsHostStore.startInvocation(mDeviceSerial);
         mReporter = new ResultReporter(mResultServer, mSuiteName);
 
         // TODO: allow customization of log dir
@@ -147,6 +154,17 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
         File rootLogDir = getBuildHelper(ctsBuild).getLogsDir();
         mLogDir = new File(rootLogDir, mReportDir.getName());
         mLogDir.mkdirs();
+
+        // start the result archive with everything but the result itself and its html
+        // report, which are only written at the end. A continued session may already have them.
+        copyFormattingFiles(mReportDir);
+        mZipWriter = new ResultZipWriter(mReportDir, getZipResultFile(mReportDir));
+        for (File file : mReportDir.listFiles()) {
+            if (!file.getName().equals(TEST_RESULT_FILE_NAME)
+                    && !file.getName().equals(HtmlReportRenderer.HTML_DIR_NAME)) {
+                mZipWriter.addFile(file);
+            }
+        }
     }
 
     /**
@@ -160,7 +178,7 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      * @param parentDir the parent folder to create dir in
      * @return the created directory
      */
-    private static synchronized File createUniqueReportDir(File parentDir) {
+    static synchronized File createUniqueReportDir(File parentDir) {
         // TODO: in future, consider using LogFileSaver to create build-specific directories
 
         File reportDir = new File(parentDir, TimeUtil.getResultTimestamp());
@@ -279,20 +297,22 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
      */
     private void collectCtsResults(TestIdentifier test, Map<String, String> testMetrics) {
         // device test can have performance results in testMetrics
-        String perfResult = CtsReportUtil.getCtsResultFromMetrics(testMetrics);
-        // host test should be checked in CtsHostStore.
-        if (perfResult == null) {
-            perfResult = CtsHostStore.removeCtsResult(mDeviceSerial, test.toString());
+        String metricsResult = CtsReportUtil.getCtsResultFromMetrics(testMetrics);
+        PerfResult perfResult;
+        if (metricsResult != null) {
+            perfResult = new PerfResult(metricsResult);
+        } else {
+            // host test should be checked in CtsHostStore.
+            perfResult = CtsHostStore.removePerfResult(mDeviceSerial, test.toString());
         }
         if (perfResult != null) {
             // CTS result is passed in Summary++++Details format.
             // Extract Summary and Details, and pass them.
-            Matcher m = mCtsLogPattern.matcher(perfResult);
-            if (m.find()) {
-                mCurrentPkgResult.reportPerformanceResult(test, CtsTestStatus.PASS, m.group(1),
-                        m.group(2));
+            if (perfResult.isValid()) {
+                mCurrentPkgResult.reportPerformanceResult(test, CtsTestStatus.PASS,
+                        perfResult.getSummary(), perfResult.getDetails());
             } else {
-                logResult("CTS Result unrecognizable:" + perfResult);
+                logResult("CTS Result unrecognizable:" + perfResult.getRawResult());
             }
         }
     }
@@ -318,6 +338,10 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
         if (mCurrentPkgResult != null) {
             logCompleteRun(mCurrentPkgResult);
         }
+        if (mDeviceSerial != null) {
+            // drop results of host tests that did not complete
+            CtsHostStore.endInvocation(mDeviceSerial);
+        }
         if (mReportDir == null || mStartTime == null) {
             // invocationStarted must have failed, abort
             CLog.w("Unable to create XML report");
@@ -326,8 +350,10 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
 
         File reportFile = getResultFile(mReportDir);
         createXmlResult(reportFile, mStartTime, elapsedTime);
-        copyFormattingFiles(mReportDir);
-        zipResults(mReportDir);
+        if (mHtmlReport) {
+            createHtmlReport(reportFile);
+        }
+        zipResults(mReportDir, reportFile);
 
         try {
             mReporter.reportResult(reportFile);
@@ -386,6 +412,20 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
         }
     }
 
+    /**
+     * Renders the html report from the result XML, and adds it to the zip.
+     */
+    private void createHtmlReport(File reportFile) {
+        File htmlDir = HtmlReportRenderer.renderReport(mReportDir, reportFile, mHtmlPageSize);
+        if (htmlDir != null) {
+            logResult("Created html report at file://%s", new File(htmlDir,
+                    HtmlReportRenderer.INDEX_FILE_NAME).getAbsolutePath());
+            if (mZipWriter != null) {
+                mZipWriter.addFile(htmlDir);
+            }
+        }
+    }
+
     /**
      * Output the results XML.
      *
@@ -443,21 +483,33 @@ public class CtsXmlResultReporter implements ITestInvocationListener {
     }
 
     /**
-     * Zip the contents of the given results directory.
+     * Complete the zip of the contents of the given results directory.
      *
      * @param resultsDir
+     * @param reportFile the result file, which is the last file to add
      */
-    private void zipResults(File resultsDir) {
+    private void zipResults(File resultsDir, File reportFile) {
+        if (mZipWriter != null) {
+            mZipWriter.addFile(reportFile);
+            if (mZipWriter.close()) {
+                return;
+            }
+        }
+        // fall back to zipping the whole directory
         try {
-            // create a file in parent directory, with same name as resultsDir
-            File zipResultFile = new File(resultsDir.getParent(), String.format("%s.zip",
-                    resultsDir.getName()));
-            FileUtil.createZip(resultsDir, zipResultFile);
+            FileUtil.createZip(resultsDir, getZipResultFile(resultsDir));
         } catch (IOException e) {
             Log.w(LOG_TAG, String.format("Failed to create zip for %s", resultsDir.getName()));
         }
     }
 
+    /**
+     * @return a file in parent directory, with same name as resultsDir
+     */
+    private File getZipResultFile(File resultsDir) {
+        return new File(resultsDir.getParent(), String.format("%s.zip", resultsDir.getName()));
+    }
+
     /**
      * Get a String version of the current time.
      * <p/>
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.tests.getinfo.DeviceInfoConstants;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Renders a CTS result XML into paginated static HTML pages.
+ * <p/>
+ * Unlike the XSL stylesheet, which makes the browser transform the whole result at once, the
+ * result is streamed with a pull parser and each page holds at most a fixed number of tests, so
+ * the report opens quickly however large the result is. The output directory contains:
+ * <ul>
+ * <li>index.html: the session summary and a table of all packages</li>
+ * <li>one or more pages per package, listing its tests</li>
+ * <li>failures.html and following pages: all failed tests, linking to their package page</li>
+ * <li>search.json: the packages and failed tests with the pages they are on, for tools and
+ * viewers</li>
+ * </ul>
+ */
+class HtmlReportRenderer extends AbstractXmlPullParser {
+
+    static final String HTML_DIR_NAME = "html";
+    static final String INDEX_FILE_NAME = "index.html";
+    static final String FAILURES_NAME = "failures";
+    static final String SEARCH_INDEX_FILE_NAME = "search.json";
+    static final int DEFAULT_PAGE_SIZE = 500;
+
+    private static final String CSS_FILE_NAME = "report.css";
+    private static final String CSS =
+        "body { font-family: sans-serif; font-size: 13px; }\n" +
+        "table { border-collapse: collapse; }\n" +
+        "th, td { border: 1px solid #ccc; padding: 2px 6px; text-align: left; " +
+            "vertical-align: top; }\n" +
+        "th { background: #a5c639; }\n" +
+        ".pass { color: #080; }\n" +
+        ".fail { color: #c00; font-weight: bold; }\n" +
+        ".notExecuted { color: #888; }\n" +
+        "pre { margin: 0; white-space: pre-wrap; }\n";
+
+    private static final String NAME_ATTR = "name";
+    private static final String RESULT_ATTR = "result";
+    private static final String MESSAGE_ATTR = "message";
+    private static final String APP_PACKAGE_NAME_ATTR = "appPackageName";
+    private static final String SCENE_TAG = "FailedScene";
+    private static final String STACK_TAG = "StackTrace";
+    private static final String ENDTIME_ATTR = "endtime";
+
+    /**
+     * The test counts of a rendered package.
+     */
+    private static class PackageSummary {
+        String mName;
+        String mHref;
+        int mPass = 0;
+        int mFail = 0;
+        int mNotExecuted = 0;
+    }
+
+    private final File mHtmlDir;
+    private final int mPageSize;
+
+    HtmlReportRenderer(File htmlDir, int pageSize) {
+        mHtmlDir = htmlDir;
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Renders the html report of a result into its report directory, replacing any previous
+     * report of a continued session.
+     *
+     * @param reportDir the result directory
+     * @param resultFile the result XML
+     * @param pageSize the maximum number of tests per page
+     * @return the html directory, or <code>null</code> if the report could not be rendered
+     */
+    static File renderReport(File reportDir, File resultFile, int pageSize) {
+        File htmlDir = new File(reportDir, HTML_DIR_NAME);
+        // the pages of the previous report are not all overwritten
+        FileUtil.recursiveDelete(htmlDir);
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(resultFile),
+                    "UTF-8"));
+            new HtmlReportRenderer(htmlDir, pageSize).parse(reader);
+            return htmlDir;
+        } catch (IOException e) {
+            CLog.e("Failed to read %s: %s", resultFile.getName(), e.toString());
+        } catch (ParseException e) {
+            CLog.e("Failed to render html report of %s: %s", reportDir.getName(),
+                    e.getMessage());
+        } finally {
+            StreamUtil.closeStream(reader);
+        }
+        return null;
+    }
+
+    /**
+     * Renders the result. The pull parser is expected to be at the start of the result XML.
+     */
+    @Override
+    void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+        if (!mHtmlDir.isDirectory() && !mHtmlDir.mkdirs()) {
+            throw new IOException(String.format("Could not create %s",
+                    mHtmlDir.getAbsolutePath()));
+        }
+        writeFile(new File(mHtmlDir, CSS_FILE_NAME), CSS);
+        List<String[]> sessionInfo = new ArrayList<String[]>();
+        List<PackageSummary> packages = new ArrayList<PackageSummary>();
+        PagedTable failures = new PagedTable(FAILURES_NAME, "Failed tests",
+                "<tr><th>Package</th><th>Test</th><th>Message</th></tr>");
+        PagedTable packageTable = null;
+        Writer searchIndex = openFile(new File(mHtmlDir, SEARCH_INDEX_FILE_NAME));
+        try {
+            searchIndex.write("{\"failures\":[");
+            int failureCount = 0;
+            PackageSummary pkg = null;
+            // the names of the enclosing test suites and test case
+            LinkedList<String> names = new LinkedList<String>();
+            String testName = null;
+            String result = null;
+            String message = null;
+            String stackTrace = null;
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    String tag = parser.getName();
+                    if (tag.equals(CtsXmlResultReporter.RESULT_TAG)) {
+                        addInfo(sessionInfo, "Test plan", getAttribute(parser,
+                                CtsXmlResultReporter.PLAN_ATTR));
+                        addInfo(sessionInfo, "Start time", getAttribute(parser,
+                                CtsXmlResultReporter.STARTTIME_ATTR));
+                        addInfo(sessionInfo, "End time", getAttribute(parser, ENDTIME_ATTR));
+                    } else if (tag.equals(DeviceInfoResult.BUILD_TAG)) {
+                        addInfo(sessionInfo, "Device", getAttribute(parser,
+                                DeviceInfoConstants.SERIAL_NUMBER));
+                        addInfo(sessionInfo, "Model", getAttribute(parser,
+                                DeviceInfoConstants.BUILD_MODEL));
+                        addInfo(sessionInfo, "Build fingerprint", getAttribute(parser,
+                                DeviceInfoConstants.BUILD_FINGERPRINT));
+                    } else if (tag.equals(TestPackageResult.TAG)) {
+                        pkg = new PackageSummary();
+                        pkg.mName = getAttribute(parser, APP_PACKAGE_NAME_ATTR);
+                        if (pkg.mName == null) {
+                            pkg.mName = getAttribute(parser, NAME_ATTR);
+                        }
+                        packageTable = new PagedTable(getFileName(pkg.mName), pkg.mName,
+                                "<tr><th>Test</th><th>Result</th><th>Details</th></tr>");
+                        pkg.mHref = packageTable.getFirstPageName();
+                    } else if (tag.equals(TestSuite.TAG) || tag.equals(TestCase.TAG)) {
+                        names.addLast(getAttribute(parser, NAME_ATTR));
+                    } else if (tag.equals(Test.TAG)) {
+                        testName = getAttribute(parser, NAME_ATTR);
+                        result = getAttribute(parser, RESULT_ATTR);
+                        message = null;
+                        stackTrace = null;
+                    } else if (tag.equals(SCENE_TAG)) {
+                        message = getAttribute(parser, MESSAGE_ATTR);
+                    } else if (tag.equals(STACK_TAG)) {
+                        stackTrace = parser.nextText();
+                    }
+                } else if (eventType == XmlPullParser.END_TAG) {
+                    String tag = parser.getName();
+                    if (tag.equals(TestSuite.TAG) || tag.equals(TestCase.TAG)) {
+                        names.removeLast();
+                    } else if (tag.equals(Test.TAG) && packageTable != null) {
+                        CtsTestStatus status = CtsTestStatus.getStatus(result);
+                        String fullName = getTestName(names, testName);
+                        String anchor = escape(fullName);
+                        String href = packageTable.addRow(String.format(
+                                "<tr id=\"%s\"><td>%s</td><td class=\"%s\">%s</td><td>%s</td></tr>",
+                                anchor, escape(fullName), escape(result), escape(result),
+                                getDetails(message, stackTrace)));
+                        if (CtsTestStatus.PASS.equals(status)) {
+                            pkg.mPass++;
+                        } else if (CtsTestStatus.FAIL.equals(status)) {
+                            pkg.mFail++;
+                            failures.addRow(String.format(
+                                    "<tr><td>%s</td><td><a href=\"%s#%s\">%s</a></td>" +
+                                    "<td>%s</td></tr>", escape(pkg.mName), href, anchor,
+                                    escape(fullName), escape(message)));
+                            if (failureCount++ > 0) {
+                                searchIndex.write(",");
+                            }
+                            searchIndex.write(String.format(
+                                    "\n{\"test\":%s,\"package\":%s,\"href\":%s}",
+                                    quote(fullName), quote(pkg.mName), quote(href + "#" +
+                                    fullName)));
+                        } else {
+                            pkg.mNotExecuted++;
+                        }
+                    } else if (tag.equals(TestPackageResult.TAG) && packageTable != null) {
+                        packageTable.close(String.format(
+                                "<p><a href=\"%s\">Summary</a> | Passed %d, Failed %d, " +
+                                "Not Executed %d</p>", INDEX_FILE_NAME, pkg.mPass, pkg.mFail,
+                                pkg.mNotExecuted));
+                        packages.add(pkg);
+                        packageTable = null;
+                    }
+                }
+                eventType = parser.next();
+            }
+            failures.close(String.format("<p><a href=\"%s\">Summary</a></p>", INDEX_FILE_NAME));
+
+            searchIndex.write("],\n\"packages\":[");
+            for (int i = 0; i < packages.size(); i++) {
+                PackageSummary summary = packages.get(i);
+                searchIndex.write(String.format(
+                        "%s\n{\"name\":%s,\"href\":%s,\"pass\":%d,\"fail\":%d," +
+                        "\"notExecuted\":%d}", i > 0 ? "," : "", quote(summary.mName),
+                        quote(summary.mHref), summary.mPass, summary.mFail,
+                        summary.mNotExecuted));
+            }
+            searchIndex.write("]}\n");
+        } finally {
+            if (packageTable != null) {
+                packageTable.close(null);
+            }
+            failures.close(null);
+            StreamUtil.closeStream(searchIndex);
+        }
+        writeIndex(sessionInfo, packages, failures.getFirstPageName());
+    }
+
+    private void writeIndex(List<String[]> sessionInfo, List<PackageSummary> packages,
+            String failuresHref) throws IOException {
+        int pass = 0;
+        int fail = 0;
+        int notExecuted = 0;
+        for (PackageSummary pkg : packages) {
+            pass += pkg.mPass;
+            fail += pkg.mFail;
+            notExecuted += pkg.mNotExecuted;
+        }
+        Writer index = openFile(new File(mHtmlDir, INDEX_FILE_NAME));
+        try {
+            writeHeader(index, "CTS result");
+            index.write("<table>\n");
+            for (String[] info : sessionInfo) {
+                index.write(String.format("<tr><th>%s</th><td>%s</td></tr>\n", info[0],
+                        escape(info[1])));
+            }
+            index.write(String.format("<tr><th>Tests passed</th><td>%d</td></tr>\n", pass));
+            index.write(String.format(
+                    "<tr><th>Tests failed</th><td><a href=\"%s\">%d</a></td></tr>\n",
+                    failuresHref, fail));
+            index.write(String.format("<tr><th>Tests not executed</th><td>%d</td></tr>\n",
+                    notExecuted));
+            index.write("</table>\n<h2>Packages</h2>\n<table>\n");
+            index.write("<tr><th>Package</th><th>Passed</th><th>Failed</th>" +
+                    "<th>Not Executed</th></tr>\n");
+            for (PackageSummary pkg : packages) {
+                index.write(String.format("<tr><td><a href=\"%s\">%s</a></td><td>%d</td>" +
+                        "<td>%d</td><td>%d</td></tr>\n", pkg.mHref, escape(pkg.mName),
+                        pkg.mPass, pkg.mFail, pkg.mNotExecuted));
+            }
+            index.write("</table>\n</body>\n</html>\n");
+        } finally {
+            StreamUtil.closeStream(index);
+        }
+    }
+
+    /**
+     * A table split over pages of at most {@link #mPageSize} rows, linked to each other.
+     * <p/>
+     * A page is only completed once the first row of the next page is added, so that it links
+     * to a next page only if there is one.
+     */
+    private class PagedTable {
+        private final String mBaseName;
+        private final String mTitle;
+        private final String mTableHeader;
+        private Writer mPage = null;
+        private int mPageIndex = -1;
+        private int mRowCount = 0;
+
+        PagedTable(String baseName, String title, String tableHeader) {
+            mBaseName = baseName;
+            mTitle = title;
+            mTableHeader = tableHeader;
+        }
+
+        /**
+         * Adds a row to the table.
+         *
+         * @return the name of the page file the row was added to
+         */
+        String addRow(String row) throws IOException {
+            if (mPage == null || mRowCount == mPageSize) {
+                if (mPage != null) {
+                    finishPage(true, null);
+                }
+                startPage();
+            }
+            mPage.write(row);
+            mPage.write('\n');
+            mRowCount++;
+            return getPageName(mPageIndex);
+        }
+
+        /**
+         * Completes the last page of the table. Writes an empty page if the table has no rows.
+         *
+         * @param footer the html to append to the last page, or <code>null</code> to only close
+         * its file
+         */
+        void close(String footer) throws IOException {
+            if (footer == null) {
+                StreamUtil.closeStream(mPage);
+                mPage = null;
+                return;
+            }
+            if (mPage == null && mPageIndex < 0) {
+                startPage();
+            }
+            if (mPage != null) {
+                finishPage(false, footer);
+            }
+        }
+
+        String getFirstPageName() {
+            return getPageName(0);
+        }
+
+        private void startPage() throws IOException {
+            mPageIndex++;
+            mRowCount = 0;
+            mPage = openFile(new File(mHtmlDir, getPageName(mPageIndex)));
+            writeHeader(mPage, mTitle);
+            writeNavigation(false);
+            mPage.write("<table>\n");
+            mPage.write(mTableHeader);
+            mPage.write('\n');
+        }
+
+        private void finishPage(boolean hasNext, String footer) throws IOException {
+            try {
+                mPage.write("</table>\n");
+                writeNavigation(hasNext);
+                if (footer != null) {
+                    mPage.write(footer);
+                }
+                mPage.write("\n</body>\n</html>\n");
+            } finally {
+                StreamUtil.closeStream(mPage);
+                mPage = null;
+            }
+        }
+
+        private void writeNavigation(boolean hasNext) throws IOException {
+            mPage.write(String.format("<p><a href=\"%s\">Summary</a> | Page %d", INDEX_FILE_NAME,
+                    mPageIndex + 1));
+            if (mPageIndex > 0) {
+                mPage.write(String.format(" | <a href=\"%s\">Previous</a>",
+                        getPageName(mPageIndex - 1)));
+            }
+            if (hasNext) {
+                mPage.write(String.format(" | <a href=\"%s\">Next</a>",
+                        getPageName(mPageIndex + 1)));
+            }
+            mPage.write("</p>\n");
+        }
+
+        private String getPageName(int pageIndex) {
+            if (pageIndex == 0) {
+                return String.format("%s.html", mBaseName);
+            }
+            return String.format("%s-%d.html", mBaseName, pageIndex + 1);
+        }
+    }
+
+    private static void addInfo(List<String[]> sessionInfo, String name, String value) {
+        if (value != null) {
+            sessionInfo.add(new String[] {name, value});
+        }
+    }
+
+    private static String getTestName(LinkedList<String> names, String testName) {
+        StringBuilder fullName = new StringBuilder();
+        for (String name : names) {
+            if (fullName.length() > 0) {
+                fullName.append('.');
+            }
+            fullName.append(name);
+        }
+        return fullName.append('#').append(testName).toString();
+    }
+
+    private static String getDetails(String message, String stackTrace) {
+        if (stackTrace != null) {
+            return String.format("<pre>%s</pre>", escape(stackTrace));
+        }
+        return escape(message);
+    }
+
+    private void writeHeader(Writer writer, String title) throws IOException {
+        writer.write(String.format("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n" +
+                "<title>%s</title>\n<link rel=\"stylesheet\" href=\"%s\">\n</head>\n<body>\n" +
+                "<h1>%s</h1>\n", escape(title), CSS_FILE_NAME, escape(title)));
+    }
+
+    private static Writer openFile(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        Writer writer = openFile(file);
+        try {
+            writer.write(content);
+        } finally {
+            StreamUtil.closeStream(writer);
+        }
+    }
+
+    /**
+     * @return a file name for the package, without characters that need escaping in a link
+     */
+    static String getFileName(String pkgName) {
+        return "pkg_" + pkgName.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Escapes text for html content and attribute values.
+     * <p/>
+     * Exposed for unit testing
+     */
+    static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '&': escaped.append("&amp;"); break;
+                case '"': escaped.append("&quot;"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Quotes text as a JSON string.
+     * <p/>
+     * Exposed for unit testing
+     */
+    static String quote(String text) {
+        if (text == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(text.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
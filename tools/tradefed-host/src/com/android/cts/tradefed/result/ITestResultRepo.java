@@ -29,6 +29,11 @@ public interface ITestResultRepo {
      */
     public List<ITestSummary> getSummaries();
 
+    /**
+     * @return the number of sessions, without parsing their results
+     */
+    public int getNumSessions();
+
     /**
      * Get the {@link TestResults} for given session id.
      *
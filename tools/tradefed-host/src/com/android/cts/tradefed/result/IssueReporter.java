@@ -25,24 +25,32 @@ import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.TestSummary;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Class that sends a HTTP POST multipart/form-data request containing details
  * about a test failure.
+ * <p/>
+ * Issues are uploaded by a fixed number of threads. At most a fixed number of issues wait for
+ * upload, further issues are dropped until the backlog has been worked off, so that neither the
+ * number of threads nor the memory used grow with the number of failures. Bug reports are
+ * spooled to temporary files and compressed while they are uploaded.
  */
 public class IssueReporter implements ITestInvocationListener {
 
-    private static final int BUGREPORT_SIZE = 500 * 1024;
-
     private static final String PRODUCT_NAME_KEY = "buildName";
     private static final String BUILD_TYPE_KEY = "build_type";
     private static final String BUILD_ID_KEY = "buildID";
@@ -50,13 +58,47 @@ public class IssueReporter implements ITestInvocationListener {
     @Option(name = "issue-server", description = "Server url to post test failures to.")
     private String mServerUrl;
 
-    private final ExecutorService mReporterService = Executors.newCachedThreadPool();
+    @Option(name = "issue-reporter-threads", description =
+            "The number of threads posting test failures.")
+    private int mReporterThreads = 2;
+
+    @Option(name = "issue-reporter-queue-size", description =
+            "The max number of test failures waiting to be posted. Further failures are dropped.")
+    private int mQueueSize = 20;
+
+    private ThreadPoolExecutor mReporterService;
+    private int mDroppedIssues = 0;
+
+    /**
+     * Issues of failed tests whose bug report may still follow, by the name of the bug report.
+     * Bug reports may be captured in the background, so they can arrive after the test ended.
+     */
+    private final Map<String, Issue> mPendingIssues = new LinkedHashMap<String, Issue>();
 
     private Issue mCurrentIssue;
     private String mBuildId;
     private String mBuildType;
     private String mProductName;
 
+    public IssueReporter() {
+    }
+
+    /**
+     * Exposed for unit testing
+     */
+    IssueReporter(String serverUrl, int reporterThreads, int queueSize) {
+        mServerUrl = serverUrl;
+        mReporterThreads = reporterThreads;
+        mQueueSize = queueSize;
+    }
+
+    /**
+     * @return the number of issues that were dropped because too many were waiting for upload
+     */
+    int getDroppedIssues() {
+        return mDroppedIssues;
+    }
+
     @Override
     public void testFailed(TestFailure status, TestIdentifier test, String trace) {
         mCurrentIssue = new Issue();
@@ -68,7 +110,7 @@ public class IssueReporter implements ITestInvocationListener {
     public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
         if (dataName.startsWith("bug-")) {
             try {
-                setBugReport(dataStream);
+                setBugReport(dataName, dataStream);
             } catch (IOException e) {
                 CLog.e(e);
             }
@@ -76,58 +118,75 @@ public class IssueReporter implements ITestInvocationListener {
     }
 
     /**
-     * Set the bug report for the current test failure. GZip it to save space.
+     * Set the bug report for the test failure it was captured for, and submit the failure.
      * This is only called when the --bugreport option is enabled.
      */
-    private void setBugReport(InputStreamSource dataStream) throws IOException {
-        if (mCurrentIssue != null) {
-            // Only one bug report can be stored at a time and they are gzipped to
-            // about 0.5 MB so there shoudn't be any memory leak bringing down CTS.
-            InputStream input = null;
-            try {
-                input = dataStream.createInputStream();
-                mCurrentIssue.mBugReport = getBytes(input, BUGREPORT_SIZE);
-            } finally {
-                if (input != null) {
-                    input.close();
-                }
-            }
-        } else {
+    private void setBugReport(String dataName, InputStreamSource dataStream) throws IOException {
+        Issue issue = mPendingIssues.remove(dataName);
+        if (issue == null) {
             CLog.e("setBugReport is getting called on an empty issue...");
+            return;
+        }
+        InputStream input = null;
+        try {
+            input = dataStream.createInputStream();
+            issue.mBugReport = writeToTempFile(input);
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+            submit(issue);
         }
     }
 
     /**
-     * @param input that will be gzipped and returne as a byte array
-     * @param size of the output expected
-     * @return the byte array with the input's data
+     * @param input the data to write
+     * @return a temporary file containing the input's data
      * @throws IOException
      */
-    static byte[] getBytes(InputStream input, int size) throws IOException {
-        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream(size);
-        GZIPOutputStream gzipOutput = new GZIPOutputStream(byteOutput);
-        for (byte[] buffer = new byte[1024]; ; ) {
-            int numRead = input.read(buffer);
-            if (numRead < 0) {
-                break;
+    static File writeToTempFile(InputStream input) throws IOException {
+        File file = File.createTempFile("bugreport", ".txt");
+        OutputStream output = null;
+        try {
+            output = new BufferedOutputStream(new FileOutputStream(file));
+            for (byte[] buffer = new byte[8 * 1024]; ; ) {
+                int numRead = input.read(buffer);
+                if (numRead < 0) {
+                    break;
+                }
+                output.write(buffer, 0, numRead);
+            }
+            output.close();
+            output = null;
+            return file;
+        } finally {
+            if (output != null) {
+                output.close();
+                file.delete();
             }
-            gzipOutput.write(buffer, 0, numRead);
         }
-        gzipOutput.close();
-        return byteOutput.toByteArray();
     }
 
     @Override
     public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
         if (mCurrentIssue != null) {
-            mReporterService.submit(mCurrentIssue);
+            mPendingIssues.put(String.format("bug-%s_%s", test.getClassName(),
+                    test.getTestName()), mCurrentIssue);
             mCurrentIssue = null;
+            // don't wait for bug reports of older failures forever
+            if (mPendingIssues.size() > mQueueSize) {
+                Iterator<Issue> oldest = mPendingIssues.values().iterator();
+                submit(oldest.next());
+                oldest.remove();
+            }
         }
     }
 
     @Override
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
         setDeviceMetrics(runMetrics);
+        // all bug reports of the run have been forwarded before the run ended
+        submitPendingIssues();
     }
 
     /** Set device information. Populated once when the device info app runs. */
@@ -143,8 +202,38 @@ public class IssueReporter implements ITestInvocationListener {
         }
     }
 
+    private void submitPendingIssues() {
+        for (Issue issue : mPendingIssues.values()) {
+            submit(issue);
+        }
+        mPendingIssues.clear();
+    }
+
+    /**
+     * Queues the issue for upload, or drops it if too many issues are waiting.
+     */
+    void submit(Issue issue) {
+        if (mReporterService == null) {
+            mReporterService = new ThreadPoolExecutor(mReporterThreads, mReporterThreads,
+                    0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(mQueueSize));
+        }
+        try {
+            mReporterService.submit(issue);
+        } catch (RejectedExecutionException e) {
+            issue.deleteBugReport();
+            mDroppedIssues++;
+        }
+    }
+
     @Override
     public void invocationEnded(long elapsedTime) {
+        submitPendingIssues();
+        if (mDroppedIssues > 0) {
+            CLog.w("Dropped %d issues, the issue server could not keep up", mDroppedIssues);
+        }
+        if (mReporterService == null) {
+            return;
+        }
         try {
             mReporterService.shutdown();
             if (!mReporterService.awaitTermination(1, TimeUnit.MINUTES)) {
@@ -159,29 +248,42 @@ public class IssueReporter implements ITestInvocationListener {
 
         private String mTestName;
         private String mStackTrace;
-        private byte[] mBugReport;
+        private File mBugReport;
 
         @Override
         public Void call() throws Exception {
-            if (isEmpty(mServerUrl)
-                    || isEmpty(mBuildId)
-                    || isEmpty(mBuildType)
-                    || isEmpty(mProductName)
-                    || isEmpty(mTestName)
-                    || isEmpty(mStackTrace)) {
+            try {
+                if (isEmpty(mServerUrl)
+                        || isEmpty(mBuildId)
+                        || isEmpty(mBuildType)
+                        || isEmpty(mProductName)
+                        || isEmpty(mTestName)
+                        || isEmpty(mStackTrace)) {
+                    return null;
+                }
+
+                MultipartForm form = new MultipartForm(mServerUrl)
+                        .addFormValue("productName", mProductName)
+                        .addFormValue("buildType", mBuildType)
+                        .addFormValue("buildId", mBuildId)
+                        .addFormValue("testName", mTestName)
+                        .addFormValue("stackTrace", mStackTrace);
+                if (mBugReport != null) {
+                    form.addGzippedFormFile("bugReport", "bugreport.txt.gz", mBugReport);
+                }
+                form.submit();
+
                 return null;
+            } finally {
+                deleteBugReport();
             }
+        }
 
-            new MultipartForm(mServerUrl)
-                    .addFormValue("productName", mProductName)
-                    .addFormValue("buildType", mBuildType)
-                    .addFormValue("buildId", mBuildId)
-                    .addFormValue("testName", mTestName)
-                    .addFormValue("stackTrace", mStackTrace)
-                    .addFormFile("bugReport", "bugreport.txt.gz", mBugReport)
-                    .submit();
-
-            return null;
+        private void deleteBugReport() {
+            if (mBugReport != null) {
+                mBugReport.delete();
+                mBugReport = null;
+            }
         }
 
         private boolean isEmpty(String value) {
@@ -16,7 +16,9 @@
 
 package com.android.cts.tradefed.result;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -26,12 +28,21 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
-/** MultipartForm builds a multipart form and submits it. */
+/**
+ * MultipartForm builds a multipart form and submits it.
+ * <p/>
+ * The form is streamed to the server with chunked transfer encoding, so its size is not limited
+ * by the available memory.
+ */
 class MultipartForm {
 
     private static final String FORM_DATA_BOUNDARY = "C75I55u3R3p0r73r";
 
+    /** the size of the chunks the request body is sent in */
+    private static final int CHUNK_SIZE = 32 * 1024;
+
     private final String mServerUrl;
 
     private final Map<String, String> mFormValues = new HashMap<String, String>();
@@ -39,6 +50,7 @@ class MultipartForm {
     private String mName;
     private String mFileName;
     private byte[] mData;
+    private File mFile;
 
     public MultipartForm(String serverUrl) {
         mServerUrl = serverUrl;
@@ -53,6 +65,19 @@ class MultipartForm {
         mName = name;
         mFileName = fileName;
         mData = data;
+        mFile = null;
+        return this;
+    }
+
+    /**
+     * Adds a file which is gzip compressed while the form is sent, so that neither the file nor
+     * its compressed contents are held in memory.
+     */
+    public MultipartForm addGzippedFormFile(String name, String fileName, File file) {
+        mName = name;
+        mFileName = fileName;
+        mData = null;
+        mFile = file;
         return this;
     }
 
@@ -79,12 +104,11 @@ class MultipartForm {
             connection.setRequestProperty("Content-Type",
                     "multipart/form-data; boundary=" + FORM_DATA_BOUNDARY);
 
-            byte[] body = getContentBody();
-            connection.setRequestProperty("Content-Length", Integer.toString(body.length));
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
 
             OutputStream output = connection.getOutputStream();
             try {
-                output.write(body);
+                writeContentBody(output);
             } finally {
                 output.close();
             }
@@ -105,25 +129,52 @@ class MultipartForm {
         return null;
     }
 
-    private byte[] getContentBody() throws IOException {
-        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-        PrintWriter writer = new PrintWriter(new OutputStreamWriter(byteOutput));
+    private void writeContentBody(OutputStream output) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(output));
         writer.println();
 
         for (Map.Entry<String, String> formValue : mFormValues.entrySet()) {
             writeFormField(writer, formValue.getKey(), formValue.getValue());
         }
 
-        if (mData != null) {
+        if (mData != null || mFile != null) {
             writeFormFileHeader(writer, mName, mFileName);
             writer.flush(); // Must flush here before writing to the byte stream!
-            byteOutput.write(mData);
+            if (mFile != null) {
+                writeGzipped(mFile, output);
+            } else {
+                output.write(mData);
+            }
             writer.println();
         }
         writer.append("--").append(FORM_DATA_BOUNDARY).println("--");
+        // leave closing the stream to the caller
         writer.flush();
-        writer.close();
-        return byteOutput.toByteArray();
+    }
+
+    private void writeGzipped(File file, OutputStream output) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            GZIPOutputStream gzipOutput = new GZIPOutputStream(new FilterOutputStream(output) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // the rest of the form follows, keep output open
+                    flush();
+                }
+            }, CHUNK_SIZE);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            for (int numRead; (numRead = input.read(buffer)) != -1; ) {
+                gzipOutput.write(buffer, 0, numRead);
+            }
+            gzipOutput.close();
+        } finally {
+            input.close();
+        }
     }
 
     private void writeFormField(PrintWriter writer, String name, String value) {
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.result.PerfResultParser.PerfValues;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A column oriented store of the performance data of CTS results, for analytics that would
+ * otherwise have to parse every result XML again.
+ * <p/>
+ * The store is a directory holding one chunk file per session, and a dictionary shared by all
+ * chunks. Each row of a chunk is one value of a "Summary" or "ValueArray" of the session. The
+ * names of packages, tests, metrics and units are stored as ids into the dictionary. The build
+ * fingerprint and device serial are the same for all rows of a session, and are stored once in
+ * the chunk header.
+ * <p/>
+ * Each column of a chunk is stored separately and compressed, and the chunk header holds the
+ * offset of each column, so that a query only reads the columns it needs. Sessions are appended
+ * by adding a chunk and appending new names to the dictionary, without rewriting existing
+ * files. The store supports a single writer at a time.
+ * <p/>
+ * Chunk file format, all numbers big endian:
+ * <pre>
+ * int magic, int version, int row count
+ * int session name id, int fingerprint id, int device id
+ * int column count
+ * for each column: UTF name, byte type, long offset, int compressed length
+ * compressed column data
+ * </pre>
+ */
+public class PerfMetricsStore {
+
+    /** the dictionary id of the package name */
+    public static final String PACKAGE_COLUMN = "package";
+    /** the dictionary id of the full test name, as <class name>#<method name> */
+    public static final String TEST_COLUMN = "test";
+    /** the dictionary id of the source of a "ValueArray", or -1 for the "Summary" */
+    public static final String SOURCE_COLUMN = "source";
+    /** the dictionary id of the description of the value */
+    public static final String MESSAGE_COLUMN = "message";
+    /** the dictionary id of the unit of the value */
+    public static final String UNIT_COLUMN = "unit";
+    /** the dictionary id of the score type of the value */
+    public static final String SCORE_TYPE_COLUMN = "scoreType";
+    /** the index of the value in its "ValueArray", or 0 for the "Summary" */
+    public static final String INDEX_COLUMN = "index";
+    /** the value */
+    public static final String VALUE_COLUMN = "value";
+
+    static final String DICTIONARY_FILE_NAME = "strings.dict";
+    static final String CHUNK_FILE_EXT = ".chunk";
+
+    private static final int MAGIC = 0x43545350; // "CTSP"
+    private static final int VERSION = 1;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_DOUBLE = 2;
+
+    private static final String[] INT_COLUMNS = {
+        PACKAGE_COLUMN, TEST_COLUMN, SOURCE_COLUMN, MESSAGE_COLUMN, UNIT_COLUMN,
+        SCORE_TYPE_COLUMN, INDEX_COLUMN
+    };
+
+    private final File mDir;
+    private final List<String> mStrings = new ArrayList<String>();
+    private final Map<String, Integer> mStringIds = new HashMap<String, Integer>();
+    /** the number of strings in the dictionary file */
+    private int mStoredStrings = 0;
+
+    /**
+     * A chunk of the store, holding the performance data of one session.
+     */
+    public class Chunk {
+        private final File mFile;
+        private final int mRowCount;
+        private final int mSessionId;
+        private final int mFingerprintId;
+        private final int mDeviceId;
+        private final Map<String, long[]> mColumns = new HashMap<String, long[]>();
+
+        private Chunk(File file) throws IOException {
+            mFile = file;
+            DataInputStream input = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                    throw new IOException(String.format("%s is not a chunk", file.getName()));
+                }
+                mRowCount = input.readInt();
+                mSessionId = input.readInt();
+                mFingerprintId = input.readInt();
+                mDeviceId = input.readInt();
+                int columnCount = input.readInt();
+                for (int i = 0; i < columnCount; i++) {
+                    String name = input.readUTF();
+                    long type = input.readByte();
+                    long offset = input.readLong();
+                    long length = input.readInt();
+                    mColumns.put(name, new long[] {type, offset, length});
+                }
+            } finally {
+                StreamUtil.closeStream(input);
+            }
+        }
+
+        public String getSessionName() {
+            return getString(mSessionId);
+        }
+
+        public String getFingerprint() {
+            return getString(mFingerprintId);
+        }
+
+        public String getDevice() {
+            return getString(mDeviceId);
+        }
+
+        public int getRowCount() {
+            return mRowCount;
+        }
+
+        /**
+         * Reads an integer column. Ids can be resolved with {@link PerfMetricsStore#getString}.
+         */
+        public int[] readIntColumn(String name) throws IOException {
+            ByteBuffer data = readColumn(name, TYPE_INT, 4);
+            int[] values = new int[mRowCount];
+            data.asIntBuffer().get(values);
+            return values;
+        }
+
+        /**
+         * Reads a floating point column.
+         */
+        public double[] readDoubleColumn(String name) throws IOException {
+            ByteBuffer data = readColumn(name, TYPE_DOUBLE, 8);
+            double[] values = new double[mRowCount];
+            data.asDoubleBuffer().get(values);
+            return values;
+        }
+
+        private ByteBuffer readColumn(String name, byte type, int width) throws IOException {
+            long[] column = mColumns.get(name);
+            if (column == null || column[0] != type) {
+                throw new IOException(String.format("%s has no column %s of type %d",
+                        mFile.getName(), name, type));
+            }
+            byte[] compressed = new byte[(int) column[2]];
+            RandomAccessFile file = new RandomAccessFile(mFile, "r");
+            try {
+                file.seek(column[1]);
+                file.readFully(compressed);
+            } finally {
+                file.close();
+            }
+            byte[] data = new byte[mRowCount * width];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int length = 0;
+                while (length < data.length && !inflater.finished()) {
+                    int n = inflater.inflate(data, length, data.length - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += n;
+                }
+                if (length != data.length) {
+                    throw new IOException(String.format("column %s of %s is truncated", name,
+                            mFile.getName()));
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(String.format("column %s of %s is corrupt", name,
+                        mFile.getName()));
+            } finally {
+                inflater.end();
+            }
+            return ByteBuffer.wrap(data);
+        }
+    }
+
+    /**
+     * The rows of a session being appended.
+     */
+    private class ChunkBuilder implements PerfResultParser.Listener {
+        private final int[][] mInts = new int[INT_COLUMNS.length][];
+        private double[] mValues = new double[64];
+        private int mRowCount = 0;
+        private String mFingerprint = null;
+        private String mDevice = null;
+
+        ChunkBuilder() {
+            for (int i = 0; i < mInts.length; i++) {
+                mInts[i] = new int[mValues.length];
+            }
+        }
+
+        @Override
+        public void onPerfValues(PerfValues values) {
+            mFingerprint = values.mFingerprint;
+            mDevice = values.mDevice;
+            int packageId = getOrAddStringId(values.mPackageName);
+            int testId = getOrAddStringId(values.mTestName);
+            int sourceId = getOrAddStringId(values.mSource);
+            int messageId = getOrAddStringId(values.mMessage);
+            int unitId = getOrAddStringId(values.mUnit);
+            int scoreTypeId = getOrAddStringId(values.mScoreType);
+            for (int i = 0; i < values.mValues.length; i++) {
+                if (mRowCount == mValues.length) {
+                    mValues = Arrays.copyOf(mValues, mRowCount * 2);
+                    for (int j = 0; j < mInts.length; j++) {
+                        mInts[j] = Arrays.copyOf(mInts[j], mRowCount * 2);
+                    }
+                }
+                // in the order of INT_COLUMNS
+                mInts[0][mRowCount] = packageId;
+                mInts[1][mRowCount] = testId;
+                mInts[2][mRowCount] = sourceId;
+                mInts[3][mRowCount] = messageId;
+                mInts[4][mRowCount] = unitId;
+                mInts[5][mRowCount] = scoreTypeId;
+                mInts[6][mRowCount] = i;
+                mValues[mRowCount] = values.mValues[i];
+                mRowCount++;
+            }
+        }
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     *
+     * @param dir the directory of the store
+     * @throws IOException if the dictionary could not be read
+     */
+    public PerfMetricsStore(File dir) throws IOException {
+        mDir = dir;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException(String.format("Could not create %s", mDir.getAbsolutePath()));
+        }
+        loadDictionary();
+    }
+
+    /**
+     * @return true if the performance data of the session was appended already
+     */
+    public boolean hasSession(String sessionName) {
+        return getChunkFile(sessionName).exists();
+    }
+
+    /**
+     * Appends the performance data of all sessions of the repository which are not in the
+     * store yet.
+     *
+     * @param repo the {@link ITestResultRepo} to export
+     * @return the number of sessions appended
+     */
+    public int appendSessions(ITestResultRepo repo) {
+        int appended = 0;
+        int numSessions = repo.getNumSessions();
+        for (int i = 0; i < numSessions; i++) {
+            File reportDir = repo.getReportDir(i);
+            // the values of a merged result are exported with the sessions it was merged from
+            if (hasSession(reportDir.getName()) || ResultMerger.isMergedResult(reportDir)) {
+                continue;
+            }
+            Reader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(new File(reportDir,
+                        CtsXmlResultReporter.TEST_RESULT_FILE_NAME)));
+                appendSession(reportDir.getName(), reader);
+                appended++;
+            } catch (IOException e) {
+                CLog.e("Failed to export session %d: %s", i, e.toString());
+            } catch (ParseException e) {
+                CLog.e("Failed to parse result file for session %d", i);
+            } finally {
+                StreamUtil.closeStream(reader);
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * Appends the performance data of a session.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @param sessionName the unique name of the session
+     * @param xmlReader the result XML of the session
+     */
+    void appendSession(String sessionName, Reader xmlReader) throws IOException,
+            ParseException {
+        ChunkBuilder builder = new ChunkBuilder();
+        new PerfResultParser(builder).parse(xmlReader);
+        int sessionId = getOrAddStringId(sessionName);
+        int fingerprintId = getOrAddStringId(builder.mFingerprint);
+        int deviceId = getOrAddStringId(builder.mDevice);
+        // the dictionary first, so that every chunk only refers to stored strings
+        appendToDictionary();
+
+        List<byte[]> columns = new ArrayList<byte[]>();
+        for (int[] ints : builder.mInts) {
+            ByteBuffer data = ByteBuffer.allocate(builder.mRowCount * 4);
+            data.asIntBuffer().put(ints, 0, builder.mRowCount);
+            columns.add(compress(data.array()));
+        }
+        ByteBuffer data = ByteBuffer.allocate(builder.mRowCount * 8);
+        data.asDoubleBuffer().put(builder.mValues, 0, builder.mRowCount);
+        columns.add(compress(data.array()));
+
+        String[] names = Arrays.copyOf(INT_COLUMNS, INT_COLUMNS.length + 1);
+        names[INT_COLUMNS.length] = VALUE_COLUMN;
+        // the size of the header, to compute the column offsets
+        long offset = 7 * 4;
+        for (String name : names) {
+            offset += 2 + name.length() + 1 + 8 + 4;
+        }
+
+        File chunkFile = getChunkFile(sessionName);
+        File tmpFile = new File(mDir, chunkFile.getName() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(builder.mRowCount);
+            output.writeInt(sessionId);
+            output.writeInt(fingerprintId);
+            output.writeInt(deviceId);
+            output.writeInt(names.length);
+            for (int i = 0; i < names.length; i++) {
+                output.writeUTF(names[i]);
+                output.writeByte(i < INT_COLUMNS.length ? TYPE_INT : TYPE_DOUBLE);
+                output.writeLong(offset);
+                output.writeInt(columns.get(i).length);
+                offset += columns.get(i).length;
+            }
+            for (byte[] column : columns) {
+                output.write(column);
+            }
+        } finally {
+            StreamUtil.closeStream(output);
+        }
+        if (!tmpFile.renameTo(chunkFile)) {
+            tmpFile.delete();
+            throw new IOException(String.format("Could not create %s", chunkFile.getName()));
+        }
+    }
+
+    /**
+     * @return the {@link Chunk}s of the store, in the order of their session names
+     * @throws IOException if a chunk could not be read
+     */
+    public List<Chunk> getChunks() throws IOException {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(CHUNK_FILE_EXT);
+            }
+        });
+        Arrays.sort(files);
+        List<Chunk> chunks = new ArrayList<Chunk>(files.length);
+        for (File file : files) {
+            chunks.add(new Chunk(file));
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the string with the given dictionary id, or <code>null</code> for -1
+     */
+    public String getString(int id) {
+        return id < 0 ? null : mStrings.get(id);
+    }
+
+    /**
+     * @return the dictionary id of the given string, or -1 if it is not in the store
+     */
+    public int getStringId(String string) {
+        Integer id = mStringIds.get(string);
+        return id == null ? -1 : id;
+    }
+
+    private int getOrAddStringId(String string) {
+        if (string == null) {
+            return -1;
+        }
+        Integer id = mStringIds.get(string);
+        if (id == null) {
+            id = mStrings.size();
+            mStrings.add(string);
+            mStringIds.put(string, id);
+        }
+        return id;
+    }
+
+    private void loadDictionary() throws IOException {
+        File dictFile = new File(mDir, DICTIONARY_FILE_NAME);
+        if (!dictFile.exists()) {
+            return;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(dictFile)));
+        try {
+            while (true) {
+                getOrAddStringId(input.readUTF());
+            }
+        } catch (EOFException e) {
+            // end of dictionary
+        } finally {
+            StreamUtil.closeStream(input);
+        }
+        mStoredStrings = mStrings.size();
+    }
+
+    private void appendToDictionary() throws IOException {
+        if (mStoredStrings == mStrings.size()) {
+            return;
+        }
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(mDir, DICTIONARY_FILE_NAME), true)));
+        try {
+            for (int i = mStoredStrings; i < mStrings.size(); i++) {
+                output.writeUTF(mStrings.get(i));
+            }
+        } finally {
+            StreamUtil.closeStream(output);
+        }
+        mStoredStrings = mStrings.size();
+    }
+
+    private File getChunkFile(String sessionName) {
+        return new File(mDir, sessionName + CHUNK_FILE_EXT);
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, data.length / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.result.PerfResultParser.PerfValues;
+import com.android.cts.util.ResultType;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detects performance regressions across the sessions of a {@link ITestResultRepo}.
+ * <p/>
+ * The performance summaries of all sessions are streamed into one time series per device and
+ * metric, in session order, each value labelled with the build fingerprint it was measured on.
+ * Only the most recent values of each series are kept, so memory use does not grow with the
+ * number of sessions.
+ * <p/>
+ * Each series is searched for the single split point that best separates earlier from later
+ * values, using the rank based Mann-Whitney U statistic. The split is reported as a regression
+ * if it is significant, the medians of the two segments differ by more than a minimum relative
+ * amount, and the change is in the worse direction for the metric's score type. Being based on
+ * ranks and medians, the detection is insensitive to outliers.
+ * <p/>
+ * Results created by merging other sessions are skipped, as their values are already part of
+ * the series through the merged sessions.
+ */
+public class PerfRegressionDetector {
+
+    @Option(name = "min-z-score", description =
+            "the minimum Mann-Whitney z-score of a change to be reported.")
+    private double mMinZScore = 3.5;
+
+    @Option(name = "min-change-percent", description =
+            "the minimum change in percent of the median of a metric to be reported.")
+    private double mMinChangePercent = 5.0;
+
+    @Option(name = "min-segment-sessions", description =
+            "the minimum number of sessions before and after a change.")
+    private int mMinSegment = 5;
+
+    @Option(name = "max-sessions", description =
+            "the maximum number of most recent sessions to analyze per metric and device.")
+    private int mMaxSessions = 500;
+
+    private final Map<String, Series> mSeries = new HashMap<String, Series>();
+    /** the session currently being added, or -1 */
+    private int mCurrentSession = -1;
+
+    /**
+     * A detected regression.
+     */
+    public static class Regression {
+        private final String mDevice;
+        private final String mTestName;
+        private final String mMessage;
+        private final String mUnit;
+        private final double mMedianBefore;
+        private final double mMedianAfter;
+        private final double mZScore;
+        private final String mLastFingerprintBefore;
+        private final String mFirstFingerprintAfter;
+        private final int mFirstSessionAfter;
+
+        Regression(Series series, ChangePoint change) {
+            mDevice = series.mDevice;
+            mTestName = series.mTestName;
+            mMessage = series.mMessage;
+            mUnit = series.mUnit;
+            mMedianBefore = change.mMedianBefore;
+            mMedianAfter = change.mMedianAfter;
+            mZScore = change.mZScore;
+            mLastFingerprintBefore = series.getFingerprint(change.mIndex - 1);
+            mFirstFingerprintAfter = series.getFingerprint(change.mIndex);
+            mFirstSessionAfter = series.getSession(change.mIndex);
+        }
+
+        public String getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * @return the full name of the test, as <class name>#<method name>
+         */
+        public String getTestName() {
+            return mTestName;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        public String getUnit() {
+            return mUnit;
+        }
+
+        public double getMedianBefore() {
+            return mMedianBefore;
+        }
+
+        public double getMedianAfter() {
+            return mMedianAfter;
+        }
+
+        /**
+         * @return the change of the median in percent
+         */
+        public double getChangePercent() {
+            return 100 * (mMedianAfter - mMedianBefore) / Math.abs(mMedianBefore);
+        }
+
+        public double getZScore() {
+            return mZScore;
+        }
+
+        /**
+         * @return the build fingerprint of the last session before the change
+         */
+        public String getLastFingerprintBefore() {
+            return mLastFingerprintBefore;
+        }
+
+        /**
+         * @return the build fingerprint of the first session after the change
+         */
+        public String getFirstFingerprintAfter() {
+            return mFirstFingerprintAfter;
+        }
+
+        /**
+         * @return the id of the first session after the change
+         */
+        public int getFirstSessionAfter() {
+            return mFirstSessionAfter;
+        }
+    }
+
+    /**
+     * The most significant split of a series.
+     */
+    static class ChangePoint {
+        /** the index of the first value after the change */
+        final int mIndex;
+        final double mZScore;
+        final double mMedianBefore;
+        final double mMedianAfter;
+
+        ChangePoint(int index, double zScore, double medianBefore, double medianAfter) {
+            mIndex = index;
+            mZScore = zScore;
+            mMedianBefore = medianBefore;
+            mMedianAfter = medianAfter;
+        }
+    }
+
+    /**
+     * The most recent values of a metric on a device, in a ring buffer.
+     */
+    static class Series {
+        final String mDevice;
+        final String mTestName;
+        final String mMessage;
+        final String mUnit;
+        final ResultType mType;
+        private final double[] mValues;
+        private final String[] mFingerprints;
+        private final int[] mSessions;
+        private int mStart = 0;
+        private int mSize = 0;
+
+        Series(String device, String testName, String message, String unit, ResultType type,
+                int capacity) {
+            mDevice = device;
+            mTestName = testName;
+            mMessage = message;
+            mUnit = unit;
+            mType = type;
+            mValues = new double[capacity];
+            mFingerprints = new String[capacity];
+            mSessions = new int[capacity];
+        }
+
+        void add(double value, String fingerprint, int session) {
+            int index;
+            if (mSize < mValues.length) {
+                index = (mStart + mSize++) % mValues.length;
+            } else {
+                // full, overwrite the oldest value
+                index = mStart;
+                mStart = (mStart + 1) % mValues.length;
+            }
+            mValues[index] = value;
+            mFingerprints[index] = fingerprint;
+            mSessions[index] = session;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        double[] getValues() {
+            double[] values = new double[mSize];
+            for (int i = 0; i < mSize; i++) {
+                values[i] = mValues[(mStart + i) % mValues.length];
+            }
+            return values;
+        }
+
+        String getFingerprint(int i) {
+            return mFingerprints[(mStart + i) % mValues.length];
+        }
+
+        int getSession(int i) {
+            return mSessions[(mStart + i) % mValues.length];
+        }
+    }
+
+    /**
+     * Create an empty {@link PerfRegressionDetector}.
+     * <p/>
+     * {@link Option} fields can be populated via
+     * {@link com.android.tradefed.config.ArgsOptionParser}
+     */
+    public PerfRegressionDetector() {
+    }
+
+    /**
+     * Create a {@link PerfRegressionDetector} using the specified option values.
+     * <p/>
+     * Exposed for unit testing
+     */
+    PerfRegressionDetector(double minZScore, double minChangePercent, int minSegment,
+            int maxSessions) {
+        mMinZScore = minZScore;
+        mMinChangePercent = minChangePercent;
+        mMinSegment = minSegment;
+        mMaxSessions = maxSessions;
+    }
+
+    /**
+     * Streams the performance results of all sessions of the repository, and detects the
+     * regressions among them.
+     *
+     * @param repo the {@link ITestResultRepo} to analyze
+     * @return the detected {@link Regression}s, the most significant first
+     * @throws ConfigurationException if any option has an invalid value
+     */
+    public List<Regression> detectRegressions(ITestResultRepo repo)
+            throws ConfigurationException {
+        checkFields();
+        int numSessions = repo.getNumSessions();
+        for (int i = 0; i < numSessions; i++) {
+            File reportDir = repo.getReportDir(i);
+            if (ResultMerger.isMergedResult(reportDir)) {
+                continue;
+            }
+            File resultFile = new File(reportDir, CtsXmlResultReporter.TEST_RESULT_FILE_NAME);
+            Reader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(resultFile));
+                addResult(i, reader);
+            } catch (FileNotFoundException e) {
+                CLog.e("Could not find result file for session %d", i);
+            } catch (ParseException e) {
+                CLog.e("Failed to parse result file for session %d", i);
+            } finally {
+                StreamUtil.closeStream(reader);
+            }
+        }
+        return detectRegressions();
+    }
+
+    /**
+     * Check that all {@Option}s have valid values.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @throws ConfigurationException if any option has an invalid value
+     */
+    void checkFields() throws ConfigurationException {
+        if (mMinSegment < 1) {
+            throw new ConfigurationException("min-segment-sessions must be at least 1");
+        }
+        if (mMaxSessions < 2 * mMinSegment) {
+            throw new ConfigurationException(String.format(
+                    "max-sessions must be at least twice min-segment-sessions, %d",
+                    2 * mMinSegment));
+        }
+    }
+
+    /**
+     * Adds the performance results of a session. Sessions must be added in chronological order.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void addResult(int sessionId, Reader xmlReader) throws ParseException {
+        mCurrentSession = sessionId;
+        new PerfResultParser(new PerfResultParser.Listener() {
+            @Override
+            public void onPerfValues(PerfValues values) {
+                if (values.isSummary()) {
+                    addValue(values.mFingerprint, values.mDevice, values.mTestName,
+                            values.mMessage, values.mUnit, values.mScoreType, values.mValues[0]);
+                }
+            }
+        }).parse(xmlReader);
+        mCurrentSession = -1;
+    }
+
+    private void addValue(String fingerprint, String device, String testName, String message,
+            String unit, String scoreType, double value) {
+        ResultType type = parseResultType(scoreType);
+        if (type != ResultType.HIGHER_BETTER && type != ResultType.LOWER_BETTER) {
+            return;
+        }
+        String key = String.format("%s|%s|%s", device, testName, message);
+        Series series = mSeries.get(key);
+        if (series == null) {
+            series = new Series(device, testName, message, unit, type, mMaxSessions);
+            mSeries.put(key, series);
+        }
+        series.add(value, fingerprint, mCurrentSession);
+    }
+
+    /**
+     * Detects the regressions among the results added so far.
+     * <p/>
+     * Exposed for unit testing
+     */
+    List<Regression> detectRegressions() {
+        List<Regression> regressions = new ArrayList<Regression>();
+        for (Series series : mSeries.values()) {
+            if (series.size() < 2 * mMinSegment) {
+                continue;
+            }
+            ChangePoint change = findChangePoint(series.getValues(), mMinSegment);
+            if (change != null && isRegression(series.mType, change)) {
+                regressions.add(new Regression(series, change));
+            }
+        }
+        Collections.sort(regressions, new Comparator<Regression>() {
+            @Override
+            public int compare(Regression r1, Regression r2) {
+                return Double.compare(Math.abs(r2.getZScore()), Math.abs(r1.getZScore()));
+            }
+        });
+        return regressions;
+    }
+
+    private boolean isRegression(ResultType type, ChangePoint change) {
+        if (Math.abs(change.mZScore) < mMinZScore || change.mMedianBefore == 0) {
+            return false;
+        }
+        double changePercent = 100 * (change.mMedianAfter - change.mMedianBefore) /
+                Math.abs(change.mMedianBefore);
+        if (type == ResultType.HIGHER_BETTER) {
+            return changePercent <= -mMinChangePercent;
+        }
+        return changePercent >= mMinChangePercent;
+    }
+
+    /**
+     * Finds the split of the values which maximizes the absolute Mann-Whitney z-score between
+     * the values before and after it.
+     * <p/>
+     * The values are ranked once, so that the U statistic of every split can be computed from
+     * prefix sums of the ranks.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @param values the values in chronological order
+     * @param minSegment the minimum number of values before and after the split
+     * @return the {@link ChangePoint}, or <code>null</code> if there are too few values
+     */
+    static ChangePoint findChangePoint(double[] values, int minSegment) {
+        int n = values.length;
+        minSegment = Math.max(1, minSegment);
+        if (n < 2 * minSegment) {
+            return null;
+        }
+        double[] ranks = getRanks(values);
+        double[] rankSums = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            rankSums[i + 1] = rankSums[i] + ranks[i];
+        }
+        int bestIndex = -1;
+        double bestZ = 0;
+        for (int k = minSegment; k <= n - minSegment; k++) {
+            double n1 = k;
+            double n2 = n - k;
+            double u = rankSums[k] - n1 * (n1 + 1) / 2;
+            double sd = Math.sqrt(n1 * n2 * (n + 1) / 12);
+            // positive if the values after the split are higher
+            double z = (n1 * n2 / 2 - u) / sd;
+            if (bestIndex < 0 || Math.abs(z) > Math.abs(bestZ)) {
+                bestIndex = k;
+                bestZ = z;
+            }
+        }
+        return new ChangePoint(bestIndex, bestZ, median(values, 0, bestIndex),
+                median(values, bestIndex, n));
+    }
+
+    /**
+     * @return the ranks of the values, starting at 1, with ties getting their average rank
+     */
+    private static double[] getRanks(final double[] values) {
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(values[i1], values[i2]);
+            }
+        });
+        double[] ranks = new double[values.length];
+        int i = 0;
+        while (i < order.length) {
+            int j = i;
+            while (j + 1 < order.length && values[order[j + 1]] == values[order[i]]) {
+                j++;
+            }
+            double rank = (i + j) / 2.0 + 1;
+            for (int k = i; k <= j; k++) {
+                ranks[order[k]] = rank;
+            }
+            i = j + 1;
+        }
+        return ranks;
+    }
+
+    private static double median(double[] values, int from, int to) {
+        double[] sorted = Arrays.copyOfRange(values, from, to);
+        Arrays.sort(sorted);
+        int mid = sorted.length / 2;
+        if (sorted.length % 2 == 0) {
+            return (sorted[mid - 1] + sorted[mid]) / 2;
+        }
+        return sorted[mid];
+    }
+
+    private static ResultType parseResultType(String scoreType) {
+        if (scoreType == null) {
+            return null;
+        }
+        try {
+            return ResultType.valueOf(scoreType.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
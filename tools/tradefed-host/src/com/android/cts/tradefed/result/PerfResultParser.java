@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.tests.getinfo.DeviceInfoConstants;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Streams the performance data out of a CTS result XML, without building the result tree.
+ * <p/>
+ * The "Summary" and each "ValueArray" of the "Details" of a "Test" element are reported to a
+ * {@link Listener} together with the build fingerprint and device serial of the session.
+ */
+class PerfResultParser extends AbstractXmlPullParser {
+
+    private static final String NAME_ATTR = "name";
+    private static final String APP_PACKAGE_NAME_ATTR = "appPackageName";
+    private static final String MESSAGE_ATTR = "message";
+    private static final String SCORETYPE_ATTR = "scoreType";
+    private static final String UNIT_ATTR = "unit";
+    private static final String SOURCE_ATTR = "source";
+    private static final String VALUEARRAY_TAG = "ValueArray";
+    private static final String VALUE_TAG = "Value";
+
+    /**
+     * The values of a "Summary" or "ValueArray" element, and where they were measured.
+     */
+    static class PerfValues {
+        String mFingerprint;
+        String mDevice;
+        String mPackageName;
+        /** the full name of the test, as <class name>#<method name> */
+        String mTestName;
+        /** the source of a "ValueArray", or <code>null</code> for the "Summary" */
+        String mSource;
+        String mMessage;
+        String mUnit;
+        /** the score type, as in {@link com.android.cts.util.ResultType} */
+        String mScoreType;
+        double[] mValues;
+
+        boolean isSummary() {
+            return mSource == null;
+        }
+    }
+
+    /**
+     * Receives the performance data of a result.
+     */
+    interface Listener {
+        void onPerfValues(PerfValues values);
+    }
+
+    private final Listener mListener;
+
+    PerfResultParser(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    void parse(XmlPullParser parser) throws XmlPullParserException, IOException {
+        String fingerprint = "unknown";
+        String device = "unknown";
+        String packageName = null;
+        // the names of the enclosing test suites, test case and test
+        LinkedList<String> names = new LinkedList<String>();
+        boolean inTest = false;
+        PerfValues valueArray = null;
+        List<Double> values = new ArrayList<Double>();
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                String tag = parser.getName();
+                if (tag.equals(DeviceInfoResult.BUILD_TAG)) {
+                    fingerprint = getAttribute(parser, DeviceInfoConstants.BUILD_FINGERPRINT,
+                            fingerprint);
+                    device = getAttribute(parser, DeviceInfoConstants.SERIAL_NUMBER, device);
+                } else if (tag.equals(TestPackageResult.TAG)) {
+                    packageName = getAttribute(parser, APP_PACKAGE_NAME_ATTR);
+                } else if (tag.equals(TestSuite.TAG) || tag.equals(TestCase.TAG)) {
+                    names.addLast(getAttribute(parser, NAME_ATTR));
+                } else if (tag.equals(Test.TAG)) {
+                    names.addLast(getAttribute(parser, NAME_ATTR));
+                    inTest = true;
+                } else if (inTest && tag.equals(TestResults.SUMMARY_TAG)) {
+                    PerfValues summary = createValues(parser, fingerprint, device, packageName,
+                            names);
+                    try {
+                        summary.mValues = new double[] {
+                            Double.parseDouble(parser.nextText().trim())
+                        };
+                        mListener.onPerfValues(summary);
+                    } catch (NumberFormatException e) {
+                        // not a number, ignore
+                    }
+                } else if (inTest && tag.equals(VALUEARRAY_TAG)) {
+                    valueArray = createValues(parser, fingerprint, device, packageName, names);
+                    valueArray.mSource = getAttribute(parser, SOURCE_ATTR, "");
+                    values.clear();
+                } else if (valueArray != null && tag.equals(VALUE_TAG)) {
+                    try {
+                        values.add(Double.parseDouble(parser.nextText().trim()));
+                    } catch (NumberFormatException e) {
+                        // not a number, ignore
+                    }
+                }
+            } else if (eventType == XmlPullParser.END_TAG) {
+                String tag = parser.getName();
+                if (tag.equals(TestSuite.TAG) || tag.equals(TestCase.TAG)) {
+                    names.removeLast();
+                } else if (tag.equals(Test.TAG)) {
+                    names.removeLast();
+                    inTest = false;
+                } else if (valueArray != null && tag.equals(VALUEARRAY_TAG)) {
+                    valueArray.mValues = new double[values.size()];
+                    for (int i = 0; i < values.size(); i++) {
+                        valueArray.mValues[i] = values.get(i);
+                    }
+                    mListener.onPerfValues(valueArray);
+                    valueArray = null;
+                }
+            }
+            eventType = parser.next();
+        }
+    }
+
+    private PerfValues createValues(XmlPullParser parser, String fingerprint, String device,
+            String packageName, LinkedList<String> names) {
+        PerfValues values = new PerfValues();
+        values.mFingerprint = fingerprint;
+        values.mDevice = device;
+        values.mPackageName = packageName;
+        values.mTestName = getTestName(names);
+        values.mMessage = getAttribute(parser, MESSAGE_ATTR);
+        values.mUnit = getAttribute(parser, UNIT_ATTR);
+        values.mScoreType = getAttribute(parser, SCORETYPE_ATTR);
+        return values;
+    }
+
+    private String getAttribute(XmlPullParser parser, String name, String defaultValue) {
+        String value = getAttribute(parser, name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static String getTestName(LinkedList<String> names) {
+        StringBuilder testName = new StringBuilder();
+        for (int i = 0; i < names.size() - 1; i++) {
+            if (i > 0) {
+                testName.append('.');
+            }
+            testName.append(names.get(i));
+        }
+        return testName.append('#').append(names.getLast()).toString();
+    }
+}
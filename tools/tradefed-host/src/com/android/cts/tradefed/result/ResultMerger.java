@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.Option.Importance;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import org.kxml2.io.KXmlSerializer;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the results of several sessions, e.g. the shards of one run, into a single result.
+ * <p/>
+ * The result XMLs are streamed with one pull parser each. Since the test packages of a result
+ * are sorted by app package name, they are merged like sorted runs: only the packages with the
+ * current smallest name are parsed, merged and written out, so memory use is bounded by one
+ * package per input rather than by the size of the results.
+ * <p/>
+ * The device and host info of the merged result are copied from the first session. A test
+ * reported by several sessions is resolved according to the {@link DuplicatePolicy}.
+ */
+public class ResultMerger {
+
+    /**
+     * The file marking a merged result, listing the report dirs of the sessions it was merged
+     * from. The tests of a merged result are counted already in those sessions.
+     */
+    static final String MERGED_SESSIONS_FILE_NAME = "merged_sessions.txt";
+
+    private static final String ENDTIME_ATTR = "endtime";
+    private static final String DEVICE_INFO_TAG = "DeviceInfo";
+    private static final String HOST_INFO_TAG = "HostInfo";
+    private static final String APP_PACKAGE_NAME_ATTR = "appPackageName";
+    private static final String ns = CtsXmlResultReporter.ns;
+
+    /**
+     * How to resolve a test that is reported by more than one session. An executed result
+     * always takes precedence over a not executed one.
+     */
+    public enum DuplicatePolicy {
+        /** a passing result wins over a failing one */
+        PASS_WINS,
+        /** a failing result wins over a passing one */
+        FAIL_WINS,
+        /** the result of the last session wins */
+        LAST_WINS;
+
+        /**
+         * @return <code>true</code> if the <var>candidate</var> result should replace the
+         * <var>existing</var> result of the same test
+         */
+        boolean prefers(Test candidate, Test existing) {
+            boolean candidateExecuted = !CtsTestStatus.NOT_EXECUTED.equals(candidate.getResult());
+            boolean existingExecuted = !CtsTestStatus.NOT_EXECUTED.equals(existing.getResult());
+            if (candidateExecuted != existingExecuted) {
+                return candidateExecuted;
+            }
+            switch (this) {
+                case PASS_WINS:
+                    return CtsTestStatus.PASS.equals(candidate.getResult()) &&
+                            !CtsTestStatus.PASS.equals(existing.getResult());
+                case FAIL_WINS:
+                    return CtsTestStatus.FAIL.equals(candidate.getResult()) &&
+                            !CtsTestStatus.FAIL.equals(existing.getResult());
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * @return the {@link DuplicatePolicy} with the given name, like "pass-wins", or
+         * <code>null</code>
+         */
+        static DuplicatePolicy getPolicy(String name) {
+            for (DuplicatePolicy policy : values()) {
+                if (policy.name().replace('_', '-').equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+
+    @Option(name = "session", shortName = 's', description =
+            "the session id of a result to merge. May be repeated, later sessions are merged last.",
+            importance = Importance.IF_UNSET)
+    private List<Integer> mSessionIds = new ArrayList<Integer>();
+
+    @Option(name = "duplicate-policy", description = "how to resolve a test reported by more " +
+            "than one session. One of pass-wins, fail-wins, last-wins.")
+    private String mPolicyString = "pass-wins";
+
+    private DuplicatePolicy mPolicy = null;
+
+    /**
+     * Create an empty {@link ResultMerger}.
+     * <p/>
+     * All {@link Option} fields must be populated via
+     * {@link com.android.tradefed.config.ArgsOptionParser}
+     */
+    public ResultMerger() {
+    }
+
+    /**
+     * Create a {@link ResultMerger} using the specified policy.
+     */
+    ResultMerger(DuplicatePolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Merge the results of the sessions into a new result in the results directory.
+     * <p/>
+     * {@link Option} values must all be set before this is called.
+     *
+     * @return the report directory of the merged result, or <code>null</code> if the merge
+     * failed
+     * @throws ConfigurationException if any option has an invalid value
+     */
+    public File mergeSessions(CtsBuildHelper build) throws ConfigurationException {
+        ITestResultRepo repo = new TestResultRepo(build.getResultsDir());
+        List<File> resultFiles = checkFields(repo);
+        // shares the lock of the reporter, so that concurrent sessions get distinct dirs
+        File reportDir = CtsXmlResultReporter.createUniqueReportDir(build.getResultsDir());
+        String[] existingFiles = reportDir.list();
+        if (existingFiles == null || existingFiles.length > 0) {
+            // the dir could not be created, and must not be deleted if it belongs to a session
+            Log.logAndDisplay(LogLevel.ERROR, "", String.format(
+                    "Failed to merge sessions %s, could not create a new result directory",
+                    mSessionIds));
+            return null;
+        }
+        List<Reader> inputs = new ArrayList<Reader>(resultFiles.size());
+        OutputStream output = null;
+        try {
+            // marks the dir first, so that even a partial merge is never taken for a session
+            StringBuilder mergedSessions = new StringBuilder();
+            for (File resultFile : resultFiles) {
+                mergedSessions.append(resultFile.getParentFile().getName()).append('\n');
+            }
+            FileUtil.writeToFile(mergedSessions.toString(),
+                    new File(reportDir, MERGED_SESSIONS_FILE_NAME));
+            for (File resultFile : resultFiles) {
+                inputs.add(new BufferedReader(new FileReader(resultFile)));
+            }
+            output = new BufferedOutputStream(new FileOutputStream(new File(reportDir,
+                    CtsXmlResultReporter.TEST_RESULT_FILE_NAME)));
+            merge(inputs, output);
+            output.close();
+            copyFormattingFiles(resultFiles.get(0).getParentFile(), reportDir);
+            HtmlReportRenderer.renderReport(reportDir, new File(reportDir,
+                    CtsXmlResultReporter.TEST_RESULT_FILE_NAME),
+                    HtmlReportRenderer.DEFAULT_PAGE_SIZE);
+            return reportDir;
+        } catch (IOException e) {
+            Log.logAndDisplay(LogLevel.ERROR, "", String.format("Failed to merge sessions %s",
+                    mSessionIds));
+            CLog.e(e);
+        } catch (XmlPullParserException e) {
+            Log.logAndDisplay(LogLevel.ERROR, "", String.format("Failed to merge sessions %s",
+                    mSessionIds));
+            CLog.e(e);
+        } finally {
+            for (Reader input : inputs) {
+                StreamUtil.closeStream(input);
+            }
+            StreamUtil.closeStream(output);
+        }
+        FileUtil.recursiveDelete(reportDir);
+        return null;
+    }
+
+    /**
+     * @return <code>true</code> if the given report dir holds a result created by merging other
+     * sessions
+     */
+    static boolean isMergedResult(File reportDir) {
+        return new File(reportDir, MERGED_SESSIONS_FILE_NAME).exists();
+    }
+
+    /**
+     * Check that all {@Option}s have been populated with valid values.
+     *
+     * @return the result files of the sessions to merge
+     * @throws ConfigurationException if any option has an invalid value
+     */
+    private List<File> checkFields(ITestResultRepo repo) throws ConfigurationException {
+        if (mSessionIds.size() < 2) {
+            throw new ConfigurationException("At least two --session arguments are required");
+        }
+        mPolicy = DuplicatePolicy.getPolicy(mPolicyString);
+        if (mPolicy == null) {
+            throw new ConfigurationException(
+                    "Invalid duplicate-policy argument. Expected one of pass-wins,fail-wins," +
+                    "last-wins");
+        }
+        List<File> resultFiles = new ArrayList<File>(mSessionIds.size());
+        for (Integer sessionId : mSessionIds) {
+            try {
+                resultFiles.add(new File(repo.getReportDir(sessionId),
+                        CtsXmlResultReporter.TEST_RESULT_FILE_NAME));
+            } catch (IndexOutOfBoundsException e) {
+                throw new ConfigurationException(String.format(
+                        "Could not find session with id %d", sessionId));
+            }
+        }
+        return resultFiles;
+    }
+
+    /**
+     * Merge the given result XMLs into one.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @param inputs the result XMLs, in merge order
+     * @param output the stream to write the merged result XML to
+     */
+    void merge(List<Reader> inputs, OutputStream output) throws IOException,
+            XmlPullParserException {
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        List<ResultCursor> cursors = new ArrayList<ResultCursor>(inputs.size());
+        for (Reader input : inputs) {
+            XmlPullParser parser = factory.newPullParser();
+            parser.setInput(input);
+            ResultCursor cursor = new ResultCursor(cursors.size(), parser);
+            cursor.readResultAttributes();
+            cursors.add(cursor);
+        }
+
+        KXmlSerializer serializer = new KXmlSerializer();
+        serializer.setOutput(output, "UTF-8");
+        serializer.startDocument("UTF-8", false);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        serializer.processingInstruction("xml-stylesheet type=\"text/xsl\"  " +
+                "href=\"cts_result.xsl\"");
+        serializer.startTag(ns, CtsXmlResultReporter.RESULT_TAG);
+        Map<String, String> attributes = cursors.get(0).mResultAttributes;
+        String endTime = cursors.get(cursors.size() - 1).mResultAttributes.get(ENDTIME_ATTR);
+        if (endTime != null) {
+            attributes.put(ENDTIME_ATTR, endTime);
+        }
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            serializer.attribute(ns, attribute.getKey(), attribute.getValue());
+        }
+
+        PriorityQueue<ResultCursor> queue = new PriorityQueue<ResultCursor>(cursors.size(),
+                new CursorComparator());
+        for (ResultCursor cursor : cursors) {
+            // device and host info are taken from the first session only
+            cursor.advance(cursor.mIndex == 0 ? serializer : null);
+            if (cursor.mPackageName != null) {
+                queue.add(cursor);
+            }
+        }
+
+        // the summary precedes the packages, so the merged packages are buffered on disk
+        File packagesFile = FileUtil.createTempFile("merged-packages", ".xml");
+        try {
+            int[] counts = mergePackages(queue, packagesFile);
+            serializer.startTag(ns, TestResults.SUMMARY_TAG);
+            serializer.attribute(ns, TestResults.FAILED_ATTR, Integer.toString(counts[1]));
+            serializer.attribute(ns, TestResults.NOT_EXECUTED_ATTR, Integer.toString(counts[2]));
+            // ignore timeouts - these are reported as errors
+            serializer.attribute(ns, TestResults.TIMEOUT_ATTR, "0");
+            serializer.attribute(ns, TestResults.PASS_ATTR, Integer.toString(counts[0]));
+            serializer.endTag(ns, TestResults.SUMMARY_TAG);
+            serializer.flush();
+            copyFile(packagesFile, output);
+        } finally {
+            packagesFile.delete();
+        }
+        serializer.endDocument();
+    }
+
+    /**
+     * Merge the packages of all cursors in order, and write them to the given file.
+     *
+     * @return the number of passed, failed and not executed tests
+     */
+    private int[] mergePackages(PriorityQueue<ResultCursor> queue, File packagesFile)
+            throws IOException, XmlPullParserException {
+        int[] counts = new int[3];
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(packagesFile));
+        try {
+            KXmlSerializer serializer = new KXmlSerializer();
+            serializer.setOutput(stream, "UTF-8");
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            while (!queue.isEmpty()) {
+                String packageName = queue.peek().mPackageName;
+                TestPackageResult merged = null;
+                while (!queue.isEmpty() && queue.peek().mPackageName.equals(packageName)) {
+                    ResultCursor cursor = queue.poll();
+                    TestPackageResult pkg = cursor.readPackage();
+                    if (merged == null) {
+                        merged = pkg;
+                    } else {
+                        merged.mergeFrom(pkg, mPolicy);
+                    }
+                    if (cursor.mPackageName != null) {
+                        if (cursor.mPackageName.compareTo(packageName) < 0) {
+                            CLog.w("Packages of session %d are not sorted, %s may not be merged",
+                                    cursor.mIndex, cursor.mPackageName);
+                        }
+                        queue.add(cursor);
+                    }
+                }
+                merged.serialize(serializer);
+                counts[0] += merged.countTests(CtsTestStatus.PASS);
+                counts[1] += merged.countTests(CtsTestStatus.FAIL);
+                counts[2] += merged.countTests(CtsTestStatus.NOT_EXECUTED);
+            }
+            serializer.flush();
+        } finally {
+            StreamUtil.closeStream(stream);
+        }
+        return counts;
+    }
+
+    /**
+     * A pull parser over one result XML, positioned at the start of its next test package.
+     */
+    private static class ResultCursor {
+        final int mIndex;
+        final XmlPullParser mParser;
+        final Map<String, String> mResultAttributes = new LinkedHashMap<String, String>();
+        /** the app package name of the current package, or <code>null</code> at the end */
+        String mPackageName = null;
+
+        ResultCursor(int index, XmlPullParser parser) {
+            mIndex = index;
+            mParser = parser;
+        }
+
+        /**
+         * Reads the attributes of the result tag.
+         */
+        void readResultAttributes() throws XmlPullParserException, IOException {
+            int eventType = mParser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    if (!mParser.getName().equals(CtsXmlResultReporter.RESULT_TAG)) {
+                        throw new XmlPullParserException(String.format(
+                                "invalid XML: Expected %s tag but received %s",
+                                CtsXmlResultReporter.RESULT_TAG, mParser.getName()));
+                    }
+                    for (int i = 0; i < mParser.getAttributeCount(); i++) {
+                        mResultAttributes.put(mParser.getAttributeName(i),
+                                mParser.getAttributeValue(i));
+                    }
+                    return;
+                }
+                eventType = mParser.next();
+            }
+        }
+
+        /**
+         * Advances to the next package.
+         *
+         * @param serializer if not <code>null</code>, the device and host info passed on the
+         * way are copied to it
+         */
+        void advance(KXmlSerializer serializer) throws XmlPullParserException, IOException {
+            mPackageName = null;
+            int eventType = mParser.next();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    String tag = mParser.getName();
+                    if (tag.equals(TestPackageResult.TAG)) {
+                        String packageName = mParser.getAttributeValue(ns, APP_PACKAGE_NAME_ATTR);
+                        mPackageName = packageName != null ? packageName : "";
+                        return;
+                    } else if (serializer != null && (tag.equals(DEVICE_INFO_TAG) ||
+                            tag.equals(HOST_INFO_TAG))) {
+                        copyElement(mParser, serializer);
+                    }
+                }
+                eventType = mParser.next();
+            }
+        }
+
+        /**
+         * Parses the current package, and advances to the next one.
+         */
+        TestPackageResult readPackage() throws XmlPullParserException, IOException {
+            TestPackageResult pkg = new TestPackageResult();
+            pkg.parse(mParser);
+            advance(null);
+            return pkg;
+        }
+    }
+
+    /**
+     * Orders cursors by package name, and cursors at the same package by session order.
+     */
+    private static class CursorComparator implements Comparator<ResultCursor> {
+        @Override
+        public int compare(ResultCursor o1, ResultCursor o2) {
+            int result = o1.mPackageName.compareTo(o2.mPackageName);
+            return result != 0 ? result : o1.mIndex - o2.mIndex;
+        }
+    }
+
+    /**
+     * Copies the element the parser is positioned at, including its contents, to the
+     * serializer.
+     */
+    private static void copyElement(XmlPullParser parser, KXmlSerializer serializer)
+            throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                serializer.startTag(ns, parser.getName());
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    serializer.attribute(ns, parser.getAttributeName(i),
+                            parser.getAttributeValue(i));
+                }
+            } else if (eventType == XmlPullParser.TEXT && !parser.isWhitespace()) {
+                serializer.text(parser.getText());
+            } else if (eventType == XmlPullParser.END_TAG) {
+                serializer.endTag(ns, parser.getName());
+                if (parser.getDepth() == depth) {
+                    return;
+                }
+            }
+            eventType = parser.next();
+        }
+    }
+
+    private static void copyFile(File file, OutputStream output) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[8192];
+            for (int numRead; (numRead = input.read(buffer)) != -1; ) {
+                output.write(buffer, 0, numRead);
+            }
+        } finally {
+            StreamUtil.closeStream(input);
+        }
+    }
+
+    /**
+     * Copy the xml formatting files of a result to the merged result.
+     */
+    private static void copyFormattingFiles(File sourceDir, File reportDir) {
+        for (String resourceName : CtsXmlResultReporter.CTS_RESULT_RESOURCES) {
+            File resourceFile = new File(sourceDir, resourceName);
+            if (!resourceFile.isFile()) {
+                continue;
+            }
+            InputStream input = null;
+            try {
+                input = new FileInputStream(resourceFile);
+                FileUtil.writeToFile(input, new File(reportDir, resourceName));
+            } catch (IOException e) {
+                CLog.w("Failed to copy %s: %s", resourceName, e.toString());
+            } finally {
+                StreamUtil.closeStream(input);
+            }
+        }
+    }
+}
@@ -17,9 +17,7 @@
 package com.android.cts.tradefed.result;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * Class that sends a HTTP POST multipart/form-data request containing
@@ -27,8 +25,6 @@ import java.io.InputStream;
  */
 class ResultReporter {
 
-    private static final int RESULT_XML_BYTES = 500 * 1024;
-
     private final String mServerUrl;
     private final String mSuiteName;
 
@@ -42,16 +38,10 @@ class ResultReporter {
             return;
         }
 
-        InputStream input = new FileInputStream(reportFile);
-        try {
-            byte[] data = IssueReporter.getBytes(input, RESULT_XML_BYTES);
-            new MultipartForm(mServerUrl)
-                    .addFormValue("suite", mSuiteName)
-                    .addFormFile("resultXml", "testResult.xml.gz", data)
-                    .submit();
-        } finally {
-            input.close();
-        }
+        new MultipartForm(mServerUrl)
+                .addFormValue("suite", mSuiteName)
+                .addGzippedFormFile("resultXml", "testResult.xml.gz", reportFile)
+                .submit();
     }
 
     private boolean isEmpty(String value) {
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds the zip archive of a result directory while the invocation is running.
+ * <p/>
+ * Files are compressed on a background thread as soon as they are complete, so that only the
+ * files written at the very end of the invocation remain to be compressed once it ends. Files
+ * which are compressed already are stored as they are.
+ * <p/>
+ * The archive has the same layout as one created by {@link FileUtil#createZip(File, File)}: all
+ * entries are below a directory named like the result directory. It is written to a temporary
+ * file, which is renamed once the archive is complete.
+ */
+class ResultZipWriter {
+
+    private static final String[] COMPRESSED_EXTENSIONS = {
+        ".png", ".gif", ".jpg", ".zip", ".gz", ".jar", ".apk"
+    };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mResultsDir;
+    private final File mZipFile;
+    private final File mTmpZipFile;
+    private final ExecutorService mExecutor;
+
+    /** only accessed on the background thread */
+    private ZipOutputStream mZipOutput = null;
+    private final Set<String> mEntryNames = new HashSet<String>();
+    private IOException mError = null;
+
+    /**
+     * @param resultsDir the result directory to archive
+     * @param zipFile the archive to create
+     */
+    ResultZipWriter(File resultsDir, File zipFile) {
+        mResultsDir = resultsDir;
+        mZipFile = zipFile;
+        mTmpZipFile = new File(zipFile.getPath() + ".tmp");
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ResultZipWriter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mZipOutput = new ZipOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(mTmpZipFile), BUFFER_SIZE));
+                    addDirectoryEntry(mResultsDir);
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules adding a complete file or directory of the result directory to the archive.
+     * Each file can only be added once.
+     */
+    void addFile(final File file) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mError != null) {
+                    return;
+                }
+                try {
+                    addToZip(file);
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Completes the archive. Waits for all scheduled files to be added.
+     *
+     * @return true if the archive was created successfully
+     */
+    boolean close() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mZipOutput != null) {
+                        mZipOutput.close();
+                    }
+                } catch (IOException e) {
+                    if (mError == null) {
+                        mError = e;
+                    }
+                }
+            }
+        });
+        mExecutor.shutdown();
+        try {
+            while (!mExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                CLog.d("Still compressing results into %s", mTmpZipFile.getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mExecutor.shutdownNow();
+            return false;
+        }
+        if (mError != null) {
+            CLog.e("Failed to create %s: %s", mZipFile.getName(), mError.toString());
+            mTmpZipFile.delete();
+            return false;
+        }
+        mZipFile.delete();
+        if (!mTmpZipFile.renameTo(mZipFile)) {
+            CLog.e("Failed to rename %s to %s", mTmpZipFile.getName(), mZipFile.getName());
+            mTmpZipFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private void addToZip(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        if (file.isDirectory()) {
+            addDirectoryEntry(file);
+            for (File child : file.listFiles()) {
+                addToZip(child);
+            }
+            return;
+        }
+        String name = getEntryName(file);
+        if (!mEntryNames.add(name)) {
+            return;
+        }
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(file.lastModified());
+        if (isCompressed(file)) {
+            // stored entries need their size and checksum up front
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCompressedSize(file.length());
+            entry.setCrc(computeCrc(file));
+        }
+        mZipOutput.putNextEntry(entry);
+        InputStream input = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int numRead; (numRead = input.read(buffer)) != -1; ) {
+                mZipOutput.write(buffer, 0, numRead);
+            }
+        } finally {
+            StreamUtil.closeStream(input);
+        }
+        mZipOutput.closeEntry();
+    }
+
+    private void addDirectoryEntry(File dir) throws IOException {
+        String name = getEntryName(dir) + "/";
+        if (mEntryNames.add(name)) {
+            mZipOutput.putNextEntry(new ZipEntry(name));
+            mZipOutput.closeEntry();
+        }
+    }
+
+    /**
+     * @return the path of the file relative to the parent of the result directory
+     */
+    private String getEntryName(File file) {
+        String rootPath = mResultsDir.getAbsoluteFile().getParent();
+        return file.getAbsolutePath().substring(rootPath.length() + 1).replace(
+                File.separatorChar, '/');
+    }
+
+    private static boolean isCompressed(File file) {
+        String name = file.getName().toLowerCase();
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long computeCrc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int numRead; (numRead = input.read(buffer)) != -1; ) {
+                crc.update(buffer, 0, numRead);
+            }
+        } finally {
+            StreamUtil.closeStream(input);
+        }
+        return crc.getValue();
+    }
+}
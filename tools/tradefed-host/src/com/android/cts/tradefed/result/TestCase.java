@@ -122,6 +122,21 @@ class TestCase extends AbstractXmlPullParser {
         }
     }
 
+    /**
+     * Merges the tests of another test case into this one.
+     *
+     * @param other the {@link TestCase} to merge
+     * @param policy how to resolve tests contained in both test cases
+     */
+    void mergeFrom(TestCase other, ResultMerger.DuplicatePolicy policy) {
+        for (Test otherTest : other.getTests()) {
+            Test test = mChildTestMap.get(otherTest.getName());
+            if (test == null || policy.prefers(otherTest, test)) {
+                mChildTestMap.put(otherTest.getName(), otherTest);
+            }
+        }
+    }
+
     /**
      * Adds tests contained in this result that have the given <var>resultFilter</var>.
      *
@@ -185,6 +185,22 @@ class TestPackageResult  extends AbstractXmlPullParser {
         }
     }
 
+    /**
+     * Merges the test results of another result of the same package into this one.
+     *
+     * @param other the {@link TestPackageResult} to merge
+     * @param policy how to resolve tests contained in both results
+     */
+    void mergeFrom(TestPackageResult other, ResultMerger.DuplicatePolicy policy) {
+        if (mName == null) {
+            setName(other.getName());
+        }
+        if (mDigest == null) {
+            setDigest(other.getDigest());
+        }
+        mSuiteRoot.mergeFrom(other.mSuiteRoot, policy);
+    }
+
     /**
      * Return a list of {@link TestIdentifer}s contained in this result with the given status
      *
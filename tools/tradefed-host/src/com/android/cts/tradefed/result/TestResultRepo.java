@@ -60,6 +60,14 @@ public class TestResultRepo implements ITestResultRepo {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumSessions() {
+        return mResultDirs.size();
+    }
+
     @Override
     public File getReportDir(int sessionId) {
         return mResultDirs.get(sessionId);
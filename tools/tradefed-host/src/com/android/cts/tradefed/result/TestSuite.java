@@ -197,6 +197,30 @@ class TestSuite extends AbstractXmlPullParser {
         mChildSuiteMap.put(suite.getName(), suite);
     }
 
+    /**
+     * Merges the child suites and test cases of another suite into this one.
+     *
+     * @param other the {@link TestSuite} to merge
+     * @param policy how to resolve tests contained in both suites
+     */
+    void mergeFrom(TestSuite other, ResultMerger.DuplicatePolicy policy) {
+        for (TestSuite otherSuite : other.getTestSuites()) {
+            TestSuite suite = mChildSuiteMap.get(otherSuite.getName());
+            if (suite == null) {
+                insertSuite(otherSuite);
+            } else {
+                suite.mergeFrom(otherSuite, policy);
+            }
+        }
+        for (TestCase otherCase : other.getTestCases()) {
+            TestCase testCase = mChildTestCaseMap.get(otherCase.getName());
+            if (testCase == null) {
+                insertTestCase(otherCase);
+            } else {
+                testCase.mergeFrom(otherCase, policy);
+            }
+        }
+    }
 
     /**
      * Adds tests contained in this result that have the given <var>resultFilter</var>
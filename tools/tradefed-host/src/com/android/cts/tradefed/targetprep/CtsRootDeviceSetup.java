@@ -16,6 +16,7 @@
 package com.android.cts.tradefed.targetprep;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.util.ShellCommandBatch;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.build.IFolderBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
@@ -64,12 +65,13 @@ public class CtsRootDeviceSetup implements ITargetPreparer {
             }
 
             // perform CTS setup steps that only work if adb is root
-            SettingsToggler.setSecureInt(device, "mock_location", 1);
-            enableDeviceAdmin(device, buildHelper);
+            ShellCommandBatch batch = new ShellCommandBatch(device);
+            SettingsToggler.setSecureInt(batch, "mock_location", 1);
             // This is chrome specific setting to disable the first screen.
             // For other browser, it will not do anything.
-            device.executeShellCommand(
-                    "echo \"chrome --disable-fre\" > /data/local/chrome-command-line");
+            batch.add("echo \"chrome --disable-fre\" > /data/local/chrome-command-line");
+            batch.execute();
+            enableDeviceAdmin(device, buildHelper);
             // end root setup steps
         } catch (FileNotFoundException e) {
             throw new TargetSetupError("Invalid CTS installation", e);
@@ -15,11 +15,15 @@
  */
 package com.android.cts.tradefed.targetprep;
 
+import com.android.cts.tradefed.util.ShellCommandBatch;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 
 /**
  * {@link SettingsToggler} sets settings by using the "adb shell content" command.
+ * <p/>
+ * Every method taking a {@link ShellCommandBatch} only adds its commands to the batch, so that
+ * several settings can be changed in a single shell invocation.
  */
 public class SettingsToggler {
     private static final String GROUP_SECURE = "secure";
@@ -28,8 +32,18 @@ public class SettingsToggler {
     /** Sets a setting by deleting and then inserting the string value. */
     public static void setString(ITestDevice device, String group, String name, String value)
             throws DeviceNotAvailableException {
-        deleteSetting(device, group, name);
-        device.executeShellCommand(
+        setString(new ShellCommandBatch(device), group, name, value).execute();
+    }
+
+    /**
+     * Adds the commands setting a setting by deleting and then inserting the string value to
+     * the given batch.
+     *
+     * @return the batch
+     */
+    public static ShellCommandBatch setString(ShellCommandBatch batch, String group, String name,
+            String value) {
+        return deleteSetting(batch, group, name).add(
                 "content insert"
                 + " --uri content://settings/" + group
                 + " --bind name:s:" + name
@@ -42,6 +56,12 @@ public class SettingsToggler {
         setString(device, GROUP_SECURE, name, value);
     }
 
+    /** Adds the commands setting a secure string setting to the given batch. */
+    public static ShellCommandBatch setSecureString(ShellCommandBatch batch, String name,
+            String value) {
+        return setString(batch, GROUP_SECURE, name, value);
+    }
+
     /** Sets a global setting by deleting and then inserting the string value. */
     public static void setGlobalString(ITestDevice device, String name, String value)
             throws DeviceNotAvailableException {
@@ -51,8 +71,18 @@ public class SettingsToggler {
     /** Sets a setting by deleting and then inserting the int value. */
     public static void setInt(ITestDevice device, String group, String name, int value)
             throws DeviceNotAvailableException {
-        deleteSetting(device, group, name);
-        device.executeShellCommand(
+        setInt(new ShellCommandBatch(device), group, name, value).execute();
+    }
+
+    /**
+     * Adds the commands setting a setting by deleting and then inserting the int value to the
+     * given batch.
+     *
+     * @return the batch
+     */
+    public static ShellCommandBatch setInt(ShellCommandBatch batch, String group, String name,
+            int value) {
+        return deleteSetting(batch, group, name).add(
                 "content insert"
                 + " --uri content://settings/" + group
                 + " --bind name:s:" + name
@@ -65,6 +95,12 @@ public class SettingsToggler {
         setInt(device, GROUP_SECURE, name, value);
     }
 
+    /** Adds the commands setting a secure int setting to the given batch. */
+    public static ShellCommandBatch setSecureInt(ShellCommandBatch batch, String name,
+            int value) {
+        return setInt(batch, GROUP_SECURE, name, value);
+    }
+
     /** Sets a global setting by deleting and then inserting the int value. */
     public static void setGlobalInt(ITestDevice device, String name, int value)
             throws DeviceNotAvailableException {
@@ -73,7 +109,12 @@ public class SettingsToggler {
 
     public static void updateString(ITestDevice device, String group, String name, String value)
             throws DeviceNotAvailableException {
-        device.executeShellCommand(
+        updateString(new ShellCommandBatch(device), group, name, value).execute();
+    }
+
+    public static ShellCommandBatch updateString(ShellCommandBatch batch, String group,
+            String name, String value) {
+        return batch.add(
                 "content update"
                 + " --uri content://settings/" + group
                 + " --bind value:s:" + value
@@ -85,6 +126,11 @@ public class SettingsToggler {
         updateString(device, GROUP_SECURE, name, value);
     }
 
+    public static ShellCommandBatch updateSecureString(ShellCommandBatch batch, String name,
+            String value) {
+        return updateString(batch, GROUP_SECURE, name, value);
+    }
+
     public static void updateGlobalString(ITestDevice device, String name, String value)
             throws DeviceNotAvailableException {
         updateString(device, GROUP_GLOBAL, name, value);
@@ -92,7 +138,12 @@ public class SettingsToggler {
 
     public static void updateInt(ITestDevice device, String group, String name, int value)
             throws DeviceNotAvailableException {
-        device.executeShellCommand(
+        updateInt(new ShellCommandBatch(device), group, name, value).execute();
+    }
+
+    public static ShellCommandBatch updateInt(ShellCommandBatch batch, String group, String name,
+            int value) {
+        return batch.add(
                 "content update"
                 + " --uri content://settings/" + group
                 + " --bind value:i:" + value
@@ -104,14 +155,19 @@ public class SettingsToggler {
         updateInt(device, GROUP_SECURE, name, value);
     }
 
+    public static ShellCommandBatch updateSecureInt(ShellCommandBatch batch, String name,
+            int value) {
+        return updateInt(batch, GROUP_SECURE, name, value);
+    }
+
     public static void updateGlobalInt(ITestDevice device, String name, int value)
             throws DeviceNotAvailableException {
         updateInt(device, GROUP_GLOBAL, name, value);
     }
 
-    private static void deleteSetting(ITestDevice device, String group, String name)
-            throws DeviceNotAvailableException {
-        device.executeShellCommand(
+    private static ShellCommandBatch deleteSetting(ShellCommandBatch batch, String group,
+            String name) {
+        return batch.add(
                 "content delete"
                 + " --uri content://settings/" + group
                 + " --where \"name='" + name + "'\"");
@@ -18,6 +18,7 @@ package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.targetprep.SettingsToggler;
+import com.android.cts.tradefed.util.ShellCommandBatch;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
@@ -97,17 +98,21 @@ public class AccessibilityTestRunner extends InstrumentationApkTest {
 
     static void enableAccessibilityAndServices(ITestDevice device, String value)
             throws DeviceNotAvailableException {
-        SettingsToggler.setSecureString(device, "enabled_accessibility_services", value);
-        SettingsToggler.setSecureString(device,
+        ShellCommandBatch batch = new ShellCommandBatch(device);
+        SettingsToggler.setSecureString(batch, "enabled_accessibility_services", value);
+        SettingsToggler.setSecureString(batch,
                 "touch_exploration_granted_accessibility_services", value);
-        SettingsToggler.setSecureInt(device, "accessibility_enabled", 1);
+        SettingsToggler.setSecureInt(batch, "accessibility_enabled", 1);
+        batch.execute();
     }
 
     static void disableAccessibilityAndServices(ITestDevice device)
             throws DeviceNotAvailableException {
-        SettingsToggler.updateSecureString(device, "enabled_accessibility_services", "");
-        SettingsToggler.updateSecureString(device,
+        ShellCommandBatch batch = new ShellCommandBatch(device);
+        SettingsToggler.updateSecureString(batch, "enabled_accessibility_services", "");
+        SettingsToggler.updateSecureString(batch,
                 "touch_exploration_granted_accessibility_services", "");
-        SettingsToggler.updateSecureInt(device, "accessibility_enabled", 0);
+        SettingsToggler.updateSecureInt(batch, "accessibility_enabled", 0);
+        batch.execute();
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The properties of an apk on the host which identify it once installed on a device: the digest
+ * of the apk file, the versionCode of its manifest and the hashes of its signing certificates.
+ */
+class ApkInfo {
+
+    private static final String MANIFEST_NAME = "AndroidManifest.xml";
+
+    // binary xml chunk types, see frameworks/base/include/androidfw/ResourceTypes.h
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    private static final int TYPE_FIRST_INT = 0x10;
+    private static final int TYPE_LAST_INT = 0x1f;
+    /** the resource id of the android:versionCode attribute */
+    private static final int VERSION_CODE_ATTR = 0x0101021b;
+
+    private final String mDigest;
+    private final int mVersionCode;
+    private final Set<String> mSignatureHashes;
+
+    ApkInfo(String digest, int versionCode, Set<String> signatureHashes) {
+        mDigest = digest;
+        mVersionCode = versionCode;
+        mSignatureHashes = signatureHashes;
+    }
+
+    /**
+     * @return the SHA-1 digest of the apk file
+     */
+    String getDigest() {
+        return mDigest;
+    }
+
+    /**
+     * @return the versionCode of the apk's manifest
+     */
+    int getVersionCode() {
+        return mVersionCode;
+    }
+
+    /**
+     * @return the hashes of the apk's signing certificates, as listed by
+     *         <code>dumpsys package</code>, or an empty set if the apk has no jar signature
+     */
+    Set<String> getSignatureHashes() {
+        return mSignatureHashes;
+    }
+
+    /**
+     * Reads the info of the given apk.
+     *
+     * @throws IOException if the apk could not be read or its signature is invalid
+     */
+    static ApkInfo read(File apkFile) throws IOException {
+        String digest = computeDigest(apkFile);
+        JarFile jar = new JarFile(apkFile, true);
+        try {
+            JarEntry manifestEntry = jar.getJarEntry(MANIFEST_NAME);
+            if (manifestEntry == null) {
+                throw new IOException("no " + MANIFEST_NAME + " in " + apkFile.getName());
+            }
+            // the certificates of an entry are only known after it has been read completely
+            byte[] manifest = readFully(jar.getInputStream(manifestEntry));
+            return new ApkInfo(digest, parseVersionCode(manifest),
+                    getSignatureHashes(manifestEntry.getCertificates()));
+        } catch (SecurityException e) {
+            throw new IOException("invalid signature of " + apkFile.getName() + ": " + e);
+        } finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Returns the versionCode of a binary AndroidManifest.xml, which is an attribute of its first
+     * element.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @throws IOException if the manifest is malformed
+     */
+    static int parseVersionCode(byte[] manifest) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(manifest).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buf.getShort(0) != RES_XML_TYPE) {
+                throw new IOException("not a binary xml file");
+            }
+            int[] resourceIds = new int[0];
+            int offset = buf.getShort(2) & 0xffff;
+            while (offset < manifest.length) {
+                int type = buf.getShort(offset) & 0xffff;
+                int headerSize = buf.getShort(offset + 2) & 0xffff;
+                int size = buf.getInt(offset + 4);
+                if (headerSize < 8 || size < headerSize) {
+                    throw new IOException("malformed chunk at " + offset);
+                }
+                if (type == RES_XML_RESOURCE_MAP_TYPE) {
+                    // the resource ids of the attribute names, by string pool index
+                    resourceIds = new int[(size - headerSize) / 4];
+                    for (int i = 0; i < resourceIds.length; i++) {
+                        resourceIds[i] = buf.getInt(offset + headerSize + i * 4);
+                    }
+                } else if (type == RES_XML_START_ELEMENT_TYPE) {
+                    return getVersionCodeAttribute(buf, offset + headerSize, resourceIds);
+                }
+                offset += size;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated binary xml file");
+        }
+        throw new IOException("no manifest element");
+    }
+
+    private static int getVersionCodeAttribute(ByteBuffer buf, int element, int[] resourceIds)
+            throws IOException {
+        int attributeStart = buf.getShort(element + 8) & 0xffff;
+        int attributeSize = buf.getShort(element + 10) & 0xffff;
+        int attributeCount = buf.getShort(element + 12) & 0xffff;
+        for (int i = 0; i < attributeCount; i++) {
+            int attribute = element + attributeStart + i * attributeSize;
+            int name = buf.getInt(attribute + 4);
+            if (name >= 0 && name < resourceIds.length
+                    && resourceIds[name] == VERSION_CODE_ATTR) {
+                int dataType = buf.get(attribute + 15) & 0xff;
+                if (dataType < TYPE_FIRST_INT || dataType > TYPE_LAST_INT) {
+                    throw new IOException("versionCode is not an integer");
+                }
+                return buf.getInt(attribute + 16);
+            }
+        }
+        // the package manager's default
+        return 0;
+    }
+
+    /**
+     * Returns the hashes of the given certificates in the form <code>dumpsys package</code> lists
+     * them, which is the hex string of {@link Arrays#hashCode(byte[])} of the encoded certificate.
+     * <p/>
+     * Exposed for unit testing
+     */
+    static Set<String> getSignatureHashes(Certificate[] certificates) throws IOException {
+        if (certificates == null) {
+            return Collections.emptySet();
+        }
+        Set<String> hashes = new HashSet<String>();
+        for (Certificate certificate : certificates) {
+            try {
+                hashes.add(Integer.toHexString(Arrays.hashCode(certificate.getEncoded())));
+            } catch (CertificateEncodingException e) {
+                throw new IOException(e.toString());
+            }
+        }
+        return hashes;
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8196];
+            for (int numRead; (numRead = input.read(buffer)) != -1; ) {
+                out.write(buffer, 0, numRead);
+            }
+            return out.toByteArray();
+        } finally {
+            StreamUtil.closeStream(input);
+        }
+    }
+
+    private static String computeDigest(File apkFile) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        InputStream input = new BufferedInputStream(new FileInputStream(apkFile));
+        try {
+            byte[] buffer = new byte[8196];
+            for (int numRead; (numRead = input.read(buffer)) != -1; ) {
+                md.update(buffer, 0, numRead);
+            }
+        } finally {
+            StreamUtil.closeStream(input);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.util.ShellCommandBatch;
+import com.android.cts.tradefed.util.ShellCommandBatch.Result;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pushes the apks of the next test package to the device while the current package is running,
+ * so that only the package manager install remains to be done at the package boundary.
+ * <p/>
+ * Apks are pushed to {@link #STAGING_DIR} on a background thread, one at a time. Installing an
+ * apk which was not staged, or whose push failed, falls back to
+ * {@link ITestDevice#installPackage(File, boolean)}.
+ */
+class ApkPreStager {
+
+    static final String STAGING_DIR = "/data/local/tmp/cts-staged";
+
+    /** how long to wait for a push in progress to stop before removing the staged apks */
+    static final long CLOSE_TIMEOUT_MS = 10 * 1000;
+
+    private static final Pattern FAILURE_PATTERN = Pattern.compile("Failure \\[(.*)\\]");
+
+    private final ITestDevice mDevice;
+    private final Map<File, Future<Boolean>> mStagedApks = new HashMap<File, Future<Boolean>>();
+    private ExecutorService mExecutor = null;
+    /** only accessed on the background thread */
+    private boolean mDirCreated = false;
+
+    ApkPreStager(ITestDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Starts pushing the given apks to the device in the background.
+     */
+    void stage(Collection<File> apks) {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ApkPreStager-" + mDevice.getSerialNumber());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        for (final File apk : apks) {
+            if (mStagedApks.containsKey(apk)) {
+                continue;
+            }
+            mStagedApks.put(apk, mExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws DeviceNotAvailableException {
+                    if (!mDirCreated) {
+                        List<Result> results = new ShellCommandBatch(mDevice)
+                                .addMkdirs(STAGING_DIR)
+                                .execute();
+                        mDirCreated = results.get(results.size() - 1).isSuccess();
+                    }
+                    return mDirCreated && mDevice.pushFile(apk, getRemotePath(apk));
+                }
+            }));
+        }
+    }
+
+    /**
+     * Installs an apk from its staged copy if there is one, or from the host otherwise. The
+     * staged copy is removed afterwards.
+     *
+     * @return <code>null</code> on success, or the failure reason otherwise, like
+     * {@link ITestDevice#installPackage(File, boolean)}
+     * @throws DeviceNotAvailableException
+     */
+    String install(File apk) throws DeviceNotAvailableException {
+        Future<Boolean> staged = mStagedApks.remove(apk);
+        if (staged != null && waitForStaging(apk, staged)) {
+            String remotePath = getRemotePath(apk);
+            List<Result> results = new ShellCommandBatch(mDevice)
+                    .add(String.format("pm install -r %s", remotePath))
+                    .add(String.format("rm %s", remotePath))
+                    .execute();
+            String errorCode = parseInstallOutput(results.get(0).getOutput());
+            if (errorCode == null) {
+                return null;
+            }
+            CLog.w("Failed to install staged %s on %s: %s. Installing from host",
+                    apk.getName(), mDevice.getSerialNumber(), errorCode);
+        }
+        return mDevice.installPackage(apk, true);
+    }
+
+    /**
+     * Stops staging and removes all staged apks from the device.
+     */
+    void close() {
+        if (mExecutor == null) {
+            return;
+        }
+        mExecutor.shutdownNow();
+        try {
+            // a push in progress could recreate the staging dir after it was removed
+            if (!mExecutor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                CLog.w("Staging of apks on %s did not stop within %d ms", mDevice.getSerialNumber(),
+                        CLOSE_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mExecutor = null;
+        mStagedApks.clear();
+        try {
+            mDevice.executeShellCommand(String.format("rm -r %s", STAGING_DIR));
+        } catch (DeviceNotAvailableException e) {
+            CLog.w("Failed to remove staged apks from %s: %s", mDevice.getSerialNumber(),
+                    e.toString());
+        }
+    }
+
+    private boolean waitForStaging(File apk, Future<Boolean> staged) {
+        try {
+            return staged.get();
+        } catch (ExecutionException e) {
+            CLog.w("Failed to stage %s on %s: %s", apk.getName(), mDevice.getSerialNumber(),
+                    e.getCause().toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Parses the output of a pm install command.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @return <code>null</code> if the install succeeded, or the failure reason otherwise
+     */
+    static String parseInstallOutput(String output) {
+        if (output.contains("Success")) {
+            return null;
+        }
+        Matcher m = FAILURE_PATTERN.matcher(output);
+        if (m.find()) {
+            return m.group(1);
+        }
+        return output.trim();
+    }
+
+    private static String getRemotePath(File apk) {
+        return String.format("%s/%s", STAGING_DIR, apk.getName());
+    }
+}
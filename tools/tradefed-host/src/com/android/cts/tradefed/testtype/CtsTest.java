@@ -20,6 +20,8 @@ import com.android.cts.tradefed.build.CtsBuildHelper;
 import com.android.cts.tradefed.device.DeviceInfoCollector;
 import com.android.cts.tradefed.result.CtsTestStatus;
 import com.android.cts.tradefed.result.PlanCreator;
+import com.android.cts.tradefed.util.DeviceReadinessProbe;
+import com.android.cts.tradefed.util.ShellCommandBatch;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.TestIdentifier;
@@ -34,13 +36,11 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
-import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IShardableTest;
-import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import java.io.BufferedInputStream;
@@ -48,14 +48,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
-import java.lang.InterruptedException;
 import java.lang.System;
-import java.lang.Thread;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -83,6 +81,9 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     public static final String PACKAGE_NAME_METRIC = "packageName";
     public static final String PACKAGE_DIGEST_METRIC = "packageDigest";
 
+    /** native packages are only split across shards if each shard gets this many tests */
+    private static final int MIN_NATIVE_TESTS_PER_SHARD = 50;
+
     private ITestDevice mDevice;
 
     @Option(name = PLAN_OPTION, description = "the test plan to run.",
@@ -143,9 +144,31 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     private boolean mDisableReboot = false;
 
     @Option(name = "reboot-wait-time", description =
-            "Additional wait time in ms after boot complete.")
+            "Maximum additional wait time in ms after boot complete for the device to become " +
+            "idle.")
     private int mRebootWaitTimeMSec = 2 * 60 * 1000;
 
+    @Option(name = "reboot-idle-cpu-percent", description =
+            "CPU load in percent below which a rebooted device is considered idle.")
+    private int mRebootIdleCpuPercent = 30;
+
+    // If there comes spurious failure like INJECT_EVENTS for a package,
+    // reboot it before running it.
+    @Option(name = "reboot-before-package", description =
+            "the test package name(s) or uri(s) to reboot the device before.")
+    private Collection<String> mRebootBeforePackages = new ArrayList<String>(Arrays.asList(
+            "CtsAnimationTestCases",
+            "CtsGraphicsTestCases",
+            "CtsViewTestCases",
+            "CtsWidgetTestCases"));
+
+    // Also reboot after package which is know to leave pop-up behind
+    @Option(name = "reboot-after-package", description =
+            "the test package name(s) or uri(s) to reboot the device after.")
+    private Collection<String> mRebootAfterPackages = new ArrayList<String>(Arrays.asList(
+            "CtsMediaTestCases",
+            "CtsAccessibilityTestCases"));
+
     @Option(name = "reboot-interval", description =
             "Interval between each reboot in min.")
     private int mRebootIntervalMin = 30;
@@ -165,6 +188,26 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             "Should be an amount that can comfortably fit in memory.")
     private int mMaxLogcatBytes = 500 * 1024; // 500K
 
+    @Option(name = "failure-capture-time-budget", description =
+            "The max time in ms to spend capturing bugreports, logcats and screenshots of " +
+            "failed tests per test package.")
+    private long mFailureCaptureTimeBudgetMSec = 5 * 60 * 1000;
+
+    @Option(name = "failure-capture-bytes-budget", description =
+            "The max number of bytes of bugreports, logcats and screenshots of failed tests to " +
+            "capture per test package.")
+    private long mFailureCaptureBytesBudget = 50 * 1024 * 1024; // 50M
+
+    @Option(name = "skip-prerequisite-uninstall", description =
+            "Leave the prerequisite apks installed after the run, so that later runs on the " +
+            "same device do not need to install them again.")
+    private boolean mSkipPrerequisiteUninstall = false;
+
+    @Option(name = "prestage-apks", description =
+            "Push the apks of the next test package to the device while the current package " +
+            "is running, so that only the install is left at the package boundary.")
+    private boolean mPrestageApks = false;
+
     private long mPrevRebootTime; // last reboot time
 
     /** data structure for a {@link IRemoteTest} and its known tests */
@@ -172,12 +215,22 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         private final IRemoteTest mTestForPackage;
         private final Collection<TestIdentifier> mKnownTests;
         private final ITestPackageDef mPackageDef;
+        private final ShardedPackageProgress mShardProgress;
+        private final int mShardIndex;
 
         TestPackage(ITestPackageDef packageDef, IRemoteTest testForPackage,
                 Collection<TestIdentifier> knownTests) {
+            this(packageDef, testForPackage, knownTests, null, 0);
+        }
+
+        TestPackage(ITestPackageDef packageDef, IRemoteTest testForPackage,
+                Collection<TestIdentifier> knownTests, ShardedPackageProgress shardProgress,
+                int shardIndex) {
             mPackageDef = packageDef;
             mTestForPackage = testForPackage;
             mKnownTests = knownTests;
+            mShardProgress = shardProgress;
+            mShardIndex = shardIndex;
         }
 
         IRemoteTest getTestForPackage() {
@@ -193,87 +246,25 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         }
 
         /**
-         * Return the test run name that should be used for the TestPackage
+         * Return the progress shared with the other shards of this package, or
+         * <code>null</code> if this package runs all of its tests.
          */
-        String getTestRunName() {
-            return mPackageDef.getUri();
+        ShardedPackageProgress getShardProgress() {
+            return mShardProgress;
         }
-    }
-
-    /**
-     * A {@link ResultForwarder} that will forward a bugreport on each failed test.
-     */
-    private static class FailedTestBugreportGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-
-        public FailedTestBugreportGenerator(ITestInvocationListener listener, ITestDevice device) {
-            super(listener);
-            mDevice = device;
-        }
-
-        @Override
-        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-            super.testFailed(status, test, trace);
-            InputStreamSource bugSource = mDevice.getBugreport();
-            super.testLog(String.format("bug-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, bugSource);
-            bugSource.cancel();
-        }
-    }
-
-    /**
-     * A {@link ResultForwarder} that will forward a logcat snapshot on each failed test.
-     */
-    private static class FailedTestLogcatGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-        private int mNumLogcatBytes;
 
-        public FailedTestLogcatGenerator(ITestInvocationListener listener, ITestDevice device,
-                int maxLogcatBytes) {
-            super(listener);
-            mDevice = device;
-            mNumLogcatBytes = maxLogcatBytes;
-        }
-
-        @Override
-        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-            super.testFailed(status, test, trace);
-            // sleep a small amount of time to ensure test failure stack trace makes it into logcat
-            // capture
-            RunUtil.getDefault().sleep(10);
-            InputStreamSource logSource = mDevice.getLogcat(mNumLogcatBytes);
-            super.testLog(String.format("logcat-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, logSource);
-            logSource.cancel();
-        }
-    }
-
-    /**
-     * A {@link ResultForwarder} that will forward a screenshot on test failures.
-     */
-    private static class FailedTestScreenshotGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-
-        public FailedTestScreenshotGenerator(ITestInvocationListener listener,
-                ITestDevice device) {
-            super(listener);
-            mDevice = device;
+        /**
+         * Return the index of the shard of this package, see {@link #getShardProgress()}.
+         */
+        int getShardIndex() {
+            return mShardIndex;
         }
 
-        @Override
-        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-            super.testFailed(status, test, trace);
-
-            try {
-                InputStreamSource screenSource = mDevice.getScreenshot();
-                super.testLog(String.format("screenshot-%s_%s", test.getClassName(),
-                        test.getTestName()), LogDataType.PNG, screenSource);
-                screenSource.cancel();
-            } catch (DeviceNotAvailableException e) {
-                // TODO: rethrow this somehow
-                CLog.e("Device %s became unavailable while capturing screenshot, %s",
-                        mDevice.getSerialNumber(), e.toString());
-            }
+        /**
+         * Return the test run name that should be used for the TestPackage
+         */
+        String getTestRunName() {
+            return mPackageDef.getUri();
         }
     }
 
@@ -403,30 +394,32 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             checkFields();
             mRemainingTestPkgs = buildTestsToRun();
         }
+        FailureArtifactCollector artifactCollector = new FailureArtifactCollector(listener,
+                getDevice(), mFailureCaptureTimeBudgetMSec, mFailureCaptureBytesBudget);
         if (mBugreport) {
-            FailedTestBugreportGenerator bugListener = new FailedTestBugreportGenerator(listener,
-                    getDevice());
-            listener = bugListener;
+            artifactCollector.enableBugreport();
         }
         if (mScreenshotOnFailures) {
-            FailedTestScreenshotGenerator screenListener = new FailedTestScreenshotGenerator(
-                    listener, getDevice());
-            listener = screenListener;
+            artifactCollector.enableScreenshot();
         }
         if (mLogcatOnFailures) {
-            FailedTestLogcatGenerator logcatListener = new FailedTestLogcatGenerator(
-                    listener, getDevice(), mMaxLogcatBytes);
-            listener = logcatListener;
+            artifactCollector.enableLogcat(mMaxLogcatBytes);
+        }
+        if (artifactCollector.isEnabled()) {
+            listener = artifactCollector;
         }
 
-        // collect and install the prerequisiteApks first, to save time when multiple test
-        // packages are using the same prerequisite apk (I'm looking at you, CtsTestStubs!)
-        Collection<String> prerequisiteApks = getPrerequisiteApks(mRemainingTestPkgs);
-        Collection<String> uninstallPackages = getPrerequisitePackageNames(mRemainingTestPkgs);
+        // create the filter first, so that the unexecuted tests are reported whatever fails
         ResultFilter filter = new ResultFilter(listener, mRemainingTestPkgs);
+        ApkPreStager apkStager = null;
 
         try {
-            installPrerequisiteApks(prerequisiteApks);
+            // collect and install the prerequisiteApks first, to save time when multiple test
+            // packages are using the same prerequisite apk (I'm looking at you, CtsTestStubs!)
+            Map<String, String> prerequisiteApks = getPrerequisiteApks(mRemainingTestPkgs);
+            PrerequisiteApkInstaller installer = createPrerequisiteApkInstaller();
+            apkStager = mPrestageApks ? new ApkPreStager(getDevice()) : null;
+            installPrerequisiteApks(installer, prerequisiteApks);
 
             // always collect the device info, even for resumed runs, since test will likely be
             // running on a different device
@@ -448,6 +441,15 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
                     ((IBuildReceiver)test).setBuild(mBuildInfo);
                 }
 
+                if (apkStager != null) {
+                    if (test instanceof InstrumentationApkTest) {
+                        ((InstrumentationApkTest)test).setApkStager(apkStager);
+                    }
+                    if (mRemainingTestPkgs.size() > 1) {
+                        stageApks(apkStager, mRemainingTestPkgs.get(1));
+                    }
+                }
+
                 forwardPackageDetails(knownTests.getPackageDef(), listener);
                 test.run(filter);
                 mRemainingTestPkgs.remove(0);
@@ -468,26 +470,21 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
                 }
             }
 
-            uninstallPrequisiteApks(uninstallPackages);
+            if (!mSkipPrerequisiteUninstall) {
+                uninstallPrequisiteApks(installer, prerequisiteApks);
+            }
 
         } finally {
+            if (apkStager != null) {
+                apkStager.close();
+            }
+            artifactCollector.close();
             filter.reportUnexecutedTests();
         }
     }
 
     private void rebootIfNecessary(TestPackage testFinished, TestPackage testToRun)
             throws DeviceNotAvailableException {
-        // If there comes spurious failure like INJECT_EVENTS for a package,
-        // reboot it before running it.
-        // Also reboot after package which is know to leave pop-up behind
-        final List<String> rebootAfterList = Arrays.asList(
-                "CtsMediaTestCases",
-                "CtsAccessibilityTestCases");
-        final List<String> rebootBeforeList = Arrays.asList(
-                "CtsAnimationTestCases",
-                "CtsGraphicsTestCases",
-                "CtsViewTestCases",
-                "CtsWidgetTestCases" );
         long intervalInMSec = mRebootIntervalMin * 60 * 1000;
         if (mDevice.getSerialNumber().startsWith("emulator-")) {
             return;
@@ -495,8 +492,8 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         if (!mDisableReboot) {
             long currentTime = System.currentTimeMillis();
             if (((currentTime - mPrevRebootTime) > intervalInMSec) ||
-                    rebootAfterList.contains(testFinished.getPackageDef().getName()) ||
-                    rebootBeforeList.contains(testToRun.getPackageDef().getName()) ) {
+                    isListed(mRebootAfterPackages, testFinished.getPackageDef()) ||
+                    isListed(mRebootBeforePackages, testToRun.getPackageDef())) {
                 Log.i(LOG_TAG,
                         String.format("Rebooting after running package %s, before package %s",
                                 testFinished.getPackageDef().getName(),
@@ -524,23 +521,34 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         options.setOnlineTimeout(onlineTimeout);
         mDevice.setOptions(options);
         Log.i(LOG_TAG, "Rebooting done");
-        try {
-            Thread.sleep(mRebootWaitTimeMSec);
-        } catch (InterruptedException e) {
-            Log.i(LOG_TAG, "Boot wait interrupted");
-        }
+        createReadinessProbe().waitForReady(mRebootWaitTimeMSec);
+    }
+
+    /**
+     * @return true if the given package is listed by name or uri
+     */
+    private boolean isListed(Collection<String> packages, ITestPackageDef packageDef) {
+        return packages.contains(packageDef.getName()) || packages.contains(packageDef.getUri());
+    }
+
+    /**
+     * Factory method for creating a {@link DeviceReadinessProbe}.
+     * <p/>
+     * Exposed for unit testing
+     */
+    DeviceReadinessProbe createReadinessProbe() {
+        return new DeviceReadinessProbe(mDevice, mRebootIdleCpuPercent);
     }
 
     private void changeToHomeScreen() throws DeviceNotAvailableException {
         final String homeCmd = "input keyevent 3";
+        // returns once the launcher is displayed
+        final String waitForHomeCmd =
+                "am start -W -a android.intent.action.MAIN -c android.intent.category.HOME";
 
-        mDevice.executeShellCommand(homeCmd);
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            //ignore
-        }
+        new ShellCommandBatch(mDevice).add(homeCmd).add(waitForHomeCmd).execute();
     }
+
     /**
      * Build the list of test packages to run
      */
@@ -597,6 +605,8 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             File ctsPlanFile = mCtsBuild.getTestPlanFile(mPlanName);
             ITestPlan plan = createPlan(mPlanName);
             plan.parse(createXmlStream(ctsPlanFile));
+            mRebootBeforePackages.addAll(plan.getRebootBeforeUris());
+            mRebootAfterPackages.addAll(plan.getRebootAfterUris());
             for (String uri : plan.getTestUris()) {
                 if (!mExcludedPackageNames.contains(uri)) {
                     ITestPackageDef testPackage = testRepo.getTestPackage(uri);
@@ -651,66 +661,80 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
     }
 
     /**
-     * Return the list of unique prerequisite Android package names
+     * Return the unique prerequisite apks to install, mapped to their Android package names
      * @param testPackages
      */
-    private Collection<String> getPrerequisitePackageNames(List<TestPackage> testPackages) {
-        Set<String> pkgNames = new HashSet<String>();
+    private Map<String, String> getPrerequisiteApks(List<TestPackage> testPackages) {
+        Map<String, String> apks = new LinkedHashMap<String, String>();
         for (TestPackage testPkg : testPackages) {
-            String pkgName = testPkg.mPackageDef.getTargetPackageName();
-            if (pkgName != null) {
-                pkgNames.add(pkgName);
+            String apkName = testPkg.mPackageDef.getTargetApkName();
+            if (apkName != null && apks.get(apkName) == null) {
+                apks.put(apkName, testPkg.mPackageDef.getTargetPackageName());
             }
         }
-        return pkgNames;
+        return apks;
     }
 
     /**
-     * Return the list of unique prerequisite apks to install
-     * @param testPackages
+     * Install the test apk file names that are not installed already
+     *
+     * @param installer
+     * @param prerequisiteApks the apk file names, mapped to their Android package names
+     * @throws DeviceNotAvailableException
      */
-    private Collection<String> getPrerequisiteApks(List<TestPackage> testPackages) {
-        Set<String> apkNames = new HashSet<String>();
-        for (TestPackage testPkg : testPackages) {
-            String apkName = testPkg.mPackageDef.getTargetApkName();
-            if (apkName != null) {
-                apkNames.add(apkName);
+    private void installPrerequisiteApks(PrerequisiteApkInstaller installer,
+            Map<String, String> prerequisiteApks) throws DeviceNotAvailableException {
+        Map<File, String> apkFiles = new LinkedHashMap<File, String>();
+        for (Map.Entry<String, String> apk : prerequisiteApks.entrySet()) {
+            try {
+                apkFiles.put(mCtsBuild.getTestApp(apk.getKey()), apk.getValue());
+            } catch (FileNotFoundException e) {
+                CLog.e("Could not find test apk %s", apk.getKey());
             }
         }
-        return apkNames;
+        installer.install(apkFiles);
     }
 
     /**
-     * Install the collection of test apk file names
+     * Uninstalls the android packages of the prerequisite apks from device.
      *
-     * @param prerequisiteApks
-     * @throws DeviceNotAvailableException
+     * @param installer
+     * @param prerequisiteApks the apk file names, mapped to their Android package names
      */
-    private void installPrerequisiteApks(Collection<String> prerequisiteApks)
-            throws DeviceNotAvailableException {
-        for (String apkName : prerequisiteApks) {
+    private void uninstallPrequisiteApks(PrerequisiteApkInstaller installer,
+            Map<String, String> prerequisiteApks) throws DeviceNotAvailableException {
+        Set<String> pkgNames = new LinkedHashSet<String>(prerequisiteApks.values());
+        pkgNames.remove(null);
+        installer.uninstall(pkgNames);
+    }
+
+    /**
+     * Starts pushing the apks of the given test package to the device in the background.
+     *
+     * @param apkStager
+     * @param testPkg
+     */
+    private void stageApks(ApkPreStager apkStager, TestPackage testPkg) {
+        IRemoteTest test = testPkg.getTestForPackage();
+        if (!(test instanceof InstrumentationApkTest)) {
+            return;
+        }
+        List<File> apkFiles = new ArrayList<File>();
+        for (String apkName : ((InstrumentationApkTest)test).getInstallFileNames()) {
             try {
-                File apkFile = mCtsBuild.getTestApp(apkName);
-                String errorCode = getDevice().installPackage(apkFile, true);
-                if (errorCode != null) {
-                    CLog.e("Failed to install %s. Reason: %s", apkName, errorCode);
-                }
+                apkFiles.add(mCtsBuild.getTestApp(apkName));
             } catch (FileNotFoundException e) {
                 CLog.e("Could not find test apk %s", apkName);
             }
         }
+        apkStager.stage(apkFiles);
     }
 
     /**
-     * Uninstalls the collection of android package names from device.
-     *
-     * @param uninstallPackages
+     * Exposed for unit testing
      */
-    private void uninstallPrequisiteApks(Collection<String> uninstallPackages)
-            throws DeviceNotAvailableException {
-        for (String pkgName : uninstallPackages) {
-            getDevice().uninstallPackage(pkgName);
-        }
+    PrerequisiteApkInstaller createPrerequisiteApkInstaller() {
+        return new PrerequisiteApkInstaller(getDevice());
     }
 
     /**
@@ -722,7 +746,7 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
             return null;
         }
         checkFields();
-        List<TestPackage> allTests = buildTestsToRun();
+        List<TestPackage> allTests = splitNativePackages(buildTestsToRun());
 
         if (allTests.size() <= 1) {
             Log.w(LOG_TAG, "no tests to shard!");
@@ -735,6 +759,9 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         for (int i = 0; i < mShards && i < allTests.size(); i++) {
             CtsTest shard = new CtsTest();
             shard.mRemainingTestPkgs = new LinkedList<TestPackage>();
+            // may include the reboot policy of the plan
+            shard.mRebootBeforePackages = mRebootBeforePackages;
+            shard.mRebootAfterPackages = mRebootAfterPackages;
             shardQueue.add(shard);
         }
         while (!allTests.isEmpty()) {
@@ -746,6 +773,36 @@ public class CtsTest implements IDeviceTest, IResumableTest, IShardableTest, IBu
         return shardQueue;
     }
 
+    /**
+     * Splits native test packages that are large enough into one package per shard, so that a
+     * single big native package can run on several devices. The tests of a package are assigned
+     * to shards by the test binary itself, see {@link GeeTest#setShard(int, int)}.
+     * <p/>
+     * The pieces of a package are consecutive in the returned list, so that the round robin
+     * distribution in {@link #split()} places them on different shards.
+     */
+    private List<TestPackage> splitNativePackages(List<TestPackage> testPackages) {
+        List<TestPackage> result = new LinkedList<TestPackage>();
+        for (TestPackage testPkg : testPackages) {
+            int shardCount = Math.min(mShards,
+                    testPkg.getKnownTests().size() / MIN_NATIVE_TESTS_PER_SHARD);
+            if (!(testPkg.getTestForPackage() instanceof GeeTest) || shardCount <= 1) {
+                result.add(testPkg);
+                continue;
+            }
+            Log.i(LOG_TAG, String.format("Splitting native package %s into %d shards",
+                    testPkg.getTestRunName(), shardCount));
+            GeeTest test = (GeeTest)testPkg.getTestForPackage();
+            ShardedPackageProgress progress = new ShardedPackageProgress(
+                    testPkg.getKnownTests(), shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                result.add(new TestPackage(testPkg.getPackageDef(),
+                        test.createShard(i, shardCount), testPkg.getKnownTests(), progress, i));
+            }
+        }
+        return result;
+    }
+
     /**
      * Runs the device info collector instrumentation on device, and forwards it to test listeners
      * as run metrics.
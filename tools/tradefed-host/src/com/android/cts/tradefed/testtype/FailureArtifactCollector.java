@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link ResultForwarder} that forwards a bugreport, a logcat snapshot and/or a screenshot on
+ * each failed test, without holding up the next test longer than necessary.
+ * <p/>
+ * The logcat snapshot is taken from the host side buffer and the screenshot shows transient
+ * state, so both are captured right away. Bugreports take long to generate and describe the
+ * whole device, so they are captured on a background thread while the tests continue. Only one
+ * bugreport is captured at a time: failures that arrive while one is in progress share it, and
+ * failures that arrive within {@link #BURST_WINDOW_MS} of the previous screenshot share that.
+ * <p/>
+ * Captured artifacts are forwarded from the thread reporting the test results, at the start of
+ * the next test or at the end of the test run, so listeners are never called concurrently.
+ * <p/>
+ * The time spent and the bytes captured are limited per test run. Only the time the test thread
+ * spends capturing or waiting for artifacts counts. An artifact larger than the remaining bytes
+ * budget is skipped rather than truncated, as a partial screenshot or bugreport is of no use.
+ * Once a budget is used up, no more artifacts are captured until the next run.
+ */
+class FailureArtifactCollector extends ResultForwarder {
+
+    /** failures this close to the previous screenshot share it */
+    static final long BURST_WINDOW_MS = 2 * 1000;
+
+    private final ITestDevice mDevice;
+    private final long mTimeBudgetMs;
+    private final long mBytesBudget;
+
+    private boolean mBugreport = false;
+    private boolean mScreenshot = false;
+    private int mMaxLogcatBytes = 0;
+
+    private ExecutorService mExecutor = null;
+    /** the bugreport being captured in the background, or null */
+    private PendingCapture mPendingBugreport = null;
+    private long mLastScreenshotTime = 0;
+
+    private long mUsedTimeMs = 0;
+    private long mUsedBytes = 0;
+    private boolean mBudgetExceeded = false;
+
+    /**
+     * A bugreport being captured in the background.
+     */
+    private static class PendingCapture {
+        final String mName;
+        final Future<byte[]> mData;
+        final long mStartTime;
+        int mSharedFailures = 0;
+
+        PendingCapture(String name, Future<byte[]> data, long startTime) {
+            mName = name;
+            mData = data;
+            mStartTime = startTime;
+        }
+    }
+
+    /**
+     * @param listener the {@link ITestInvocationListener} to forward results and artifacts to
+     * @param device the {@link ITestDevice} to capture artifacts from
+     * @param timeBudgetMs the maximum time in ms to spend capturing artifacts per test run
+     * @param bytesBudget the maximum number of bytes to capture per test run
+     */
+    FailureArtifactCollector(ITestInvocationListener listener, ITestDevice device,
+            long timeBudgetMs, long bytesBudget) {
+        super(listener);
+        mDevice = device;
+        mTimeBudgetMs = timeBudgetMs;
+        mBytesBudget = bytesBudget;
+    }
+
+    /**
+     * Capture a bugreport on test failures.
+     */
+    void enableBugreport() {
+        mBugreport = true;
+    }
+
+    /**
+     * Capture a screenshot on test failures.
+     */
+    void enableScreenshot() {
+        mScreenshot = true;
+    }
+
+    /**
+     * Capture a logcat snapshot of at most the given size on test failures.
+     */
+    void enableLogcat(int maxLogcatBytes) {
+        mMaxLogcatBytes = maxLogcatBytes;
+    }
+
+    /**
+     * @return true if any kind of artifact is captured
+     */
+    boolean isEnabled() {
+        return mBugreport || mScreenshot || mMaxLogcatBytes > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        mUsedTimeMs = 0;
+        mUsedBytes = 0;
+        mBudgetExceeded = false;
+        super.testRunStarted(runName, testCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        forwardBugreport(false);
+        super.testStarted(test);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+        super.testFailed(status, test, trace);
+        String testName = String.format("%s_%s", test.getClassName(), test.getTestName());
+        if (mMaxLogcatBytes > 0 && hasBudget()) {
+            // sleep a small amount of time to ensure test failure stack trace makes it into
+            // logcat capture
+            RunUtil.getDefault().sleep(10);
+            long startTime = getCurrentTime();
+            forward("logcat-" + testName, LogDataType.TEXT, mDevice.getLogcat(mMaxLogcatBytes),
+                    startTime);
+        }
+        if (mScreenshot && hasBudget()) {
+            captureScreenshot(testName);
+        }
+        if (mBugreport) {
+            forwardBugreport(false);
+            if (mPendingBugreport != null) {
+                mPendingBugreport.mSharedFailures++;
+            } else if (hasBudget()) {
+                captureBugreport("bug-" + testName);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        forwardBugreport(true);
+        super.testRunEnded(elapsedTime, runMetrics);
+    }
+
+    /**
+     * Forwards a bugreport still being captured, and releases the background thread.
+     */
+    void close() {
+        forwardBugreport(true);
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void captureScreenshot(String testName) {
+        long startTime = getCurrentTime();
+        if (mLastScreenshotTime > 0 && startTime - mLastScreenshotTime < BURST_WINDOW_MS) {
+            CLog.d("Skipping screenshot for %s, previous one was taken %d ms ago", testName,
+                    startTime - mLastScreenshotTime);
+            return;
+        }
+        try {
+            forward("screenshot-" + testName, LogDataType.PNG, mDevice.getScreenshot(),
+                    startTime);
+            mLastScreenshotTime = getCurrentTime();
+        } catch (DeviceNotAvailableException e) {
+            // TODO: rethrow this somehow
+            CLog.e("Device %s became unavailable while capturing screenshot, %s",
+                    mDevice.getSerialNumber(), e.toString());
+        }
+    }
+
+    private void captureBugreport(String name) {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FailureArtifactCollector-" +
+                            mDevice.getSerialNumber());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        Future<byte[]> data = mExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                InputStreamSource source = mDevice.getBugreport();
+                try {
+                    // null if the bugreport exceeds the whole budget, see forward()
+                    return readFully(source, mBytesBudget);
+                } finally {
+                    source.cancel();
+                }
+            }
+        });
+        mPendingBugreport = new PendingCapture(name, data, getCurrentTime());
+    }
+
+    /**
+     * Forwards the pending bugreport if it is complete.
+     *
+     * @param wait if true, wait for the bugreport for the rest of the time budget
+     */
+    private void forwardBugreport(boolean wait) {
+        PendingCapture pending = mPendingBugreport;
+        if (pending == null || (!wait && !pending.mData.isDone())) {
+            return;
+        }
+        mPendingBugreport = null;
+        // the capture runs alongside the tests, only the time spent waiting for it is charged
+        long waitStartTime = getCurrentTime();
+        try {
+            long remainingMs = Math.max(0, mTimeBudgetMs - mUsedTimeMs);
+            byte[] data = pending.mData.get(remainingMs, TimeUnit.MILLISECONDS);
+            if (pending.mSharedFailures > 0) {
+                CLog.d("%s is shared with %d later failures", pending.mName,
+                        pending.mSharedFailures);
+            }
+            forward(pending.mName, LogDataType.TEXT, data, waitStartTime);
+        } catch (TimeoutException e) {
+            CLog.w("Capture time budget exceeded, dropping %s", pending.mName);
+            pending.mData.cancel(true);
+            mUsedTimeMs = mTimeBudgetMs;
+        } catch (ExecutionException e) {
+            CLog.e("Failed to capture %s: %s", pending.mName, e.getCause().toString());
+            mUsedTimeMs += getCurrentTime() - waitStartTime;
+        } catch (InterruptedException e) {
+            pending.mData.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forwards a captured artifact, and charges its size and capture time to the budget.
+     */
+    private void forward(String name, LogDataType type, InputStreamSource source,
+            long startTime) {
+        byte[] data;
+        try {
+            data = readFully(source, mBytesBudget - mUsedBytes);
+        } catch (IOException e) {
+            CLog.e("Failed to capture %s: %s", name, e.toString());
+            mUsedTimeMs += getCurrentTime() - startTime;
+            return;
+        } finally {
+            source.cancel();
+        }
+        forward(name, type, data, startTime);
+    }
+
+    /**
+     * Forwards the data of an artifact if it fits into the bytes budget, and charges its size and
+     * the time since the given start time to the budget.
+     *
+     * @param data the artifact data, or null if it was too large to be read
+     */
+    private void forward(String name, LogDataType type, byte[] data, long startTime) {
+        try {
+            long remainingBytes = mBytesBudget - mUsedBytes;
+            if (data == null || data.length > remainingBytes) {
+                CLog.w("Skipping %s, it is larger than the remaining capture budget of %d bytes",
+                        name, remainingBytes);
+                return;
+            }
+            mUsedBytes += data.length;
+            super.testLog(name, type, new ByteArrayInputStreamSource(data));
+        } finally {
+            mUsedTimeMs += getCurrentTime() - startTime;
+        }
+    }
+
+    private boolean hasBudget() {
+        if (mUsedTimeMs < mTimeBudgetMs && mUsedBytes < mBytesBudget) {
+            return true;
+        }
+        if (!mBudgetExceeded) {
+            CLog.w("Failure capture budget of %d ms and %d bytes used up, not capturing more " +
+                    "artifacts for this run", mTimeBudgetMs, mBytesBudget);
+            mBudgetExceeded = true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the whole source, unless it is larger than the given number of bytes.
+     *
+     * @return the data of the source, or null if it has more than maxBytes bytes
+     */
+    private static byte[] readFully(InputStreamSource source, long maxBytes) throws IOException {
+        InputStream in = source.createInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8 * 1024];
+            int n;
+            // read one byte more than allowed to detect a source which is too large
+            while (out.size() <= maxBytes && (n = in.read(buf, 0,
+                    (int) Math.min(buf.length, maxBytes + 1 - out.size()))) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.size() > maxBytes ? null : out.toByteArray();
+        } finally {
+            StreamUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * Exposed for unit testing
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+}
@@ -17,6 +17,9 @@
 package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.util.DevicePushCache;
+import com.android.cts.tradefed.util.ShellCommandBatch;
+import com.android.cts.tradefed.util.ShellCommandBatch.Result;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
@@ -28,6 +31,7 @@ import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * Test runner for native gTests.
@@ -49,11 +53,57 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
     private final String mPackageName;
     private final String mExeName;
 
+    /** the --gtest_filter expression, or null to run all tests */
+    private String mGTestFilter = null;
+
+    /** the shard of the tests to run, see {@link #setShard(int, int)} */
+    private int mShardIndex = 0;
+    private int mTotalShards = 1;
+
     public GeeTest(String packageName, String exeName) {
         mPackageName = packageName;
         mExeName = exeName;
     }
 
+    /**
+     * Restricts the tests to run to the ones passing the given filter.
+     */
+    public void setTestFilter(TestFilter filter) {
+        mGTestFilter = filter.getGTestFilter(getClassPrefix());
+    }
+
+    /**
+     * Only runs one shard of the tests of the binary, using gtest's own sharding.
+     *
+     * @param shardIndex the index of the shard to run, starting at 0
+     * @param totalShards the number of shards the tests are split into
+     */
+    public void setShard(int shardIndex, int totalShards) {
+        if (shardIndex < 0 || shardIndex >= totalShards) {
+            throw new IllegalArgumentException(String.format("invalid shard %d of %d",
+                    shardIndex, totalShards));
+        }
+        mShardIndex = shardIndex;
+        mTotalShards = totalShards;
+    }
+
+    /**
+     * Creates a copy of this test which only runs the given shard of its tests.
+     *
+     * @see #setShard(int, int)
+     */
+    public GeeTest createShard(int shardIndex, int totalShards) {
+        GeeTest shard = new GeeTest(mPackageName, mExeName);
+        shard.mMaxTestTimeMs = mMaxTestTimeMs;
+        shard.mGTestFilter = mGTestFilter;
+        shard.setShard(shardIndex, totalShards);
+        return shard;
+    }
+
+    private String getClassPrefix() {
+        return mPackageName + ".";
+    }
+
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
         if (installTest()) {
@@ -75,8 +125,8 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
             return false;
         }
 
-        File devicePath = new File(NATIVE_TESTS_DIRECTORY, mExeName);
-        if (!mDevice.pushFile(nativeExe, devicePath.toString())) {
+        // only pushes the executable if the device does not have it yet
+        if (!DevicePushCache.pushFile(mDevice, nativeExe, NATIVE_TESTS_DIRECTORY)) {
             CLog.e("Failed to push native test to device");
             return false;
         }
@@ -84,32 +134,25 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
     }
 
     private boolean createRemoteDir(String remoteFilePath) throws DeviceNotAvailableException {
-        if (mDevice.doesFileExist(remoteFilePath)) {
-            return true;
-        }
-        File remoteFile = new File(remoteFilePath);
-        String parentPath = remoteFile.getParent();
-        if (parentPath != null) {
-            if (!createRemoteDir(parentPath)) {
-                return false;
-            }
-        }
-        mDevice.executeShellCommand(String.format("mkdir %s", remoteFilePath));
-        return mDevice.doesFileExist(remoteFilePath);
+        List<Result> results = new ShellCommandBatch(mDevice).addMkdirs(remoteFilePath)
+                .execute();
+        return results.get(results.size() - 1).isSuccess();
     }
 
     void runTest(ITestRunListener listener) throws DeviceNotAvailableException {
         GeeTestResultParser resultParser = new GeeTestResultParser(mPackageName, listener);
-        resultParser.setFakePackagePrefix(mPackageName + ".");
+        resultParser.setFakePackagePrefix(getClassPrefix());
 
         String fullPath = NATIVE_TESTS_DIRECTORY + File.separator + mExeName;
-        String flags = "";
-        CLog.v("Running gtest %s %s on %s", fullPath, flags, mDevice.getSerialNumber());
+        String flags = getFlags();
+        String env = getEnvironment();
+        CLog.v("Running gtest %s%s %s on %s", env, fullPath, flags, mDevice.getSerialNumber());
         // force file to be executable
         CLog.v("%s", mDevice.executeShellCommand(String.format("chmod 755 %s", fullPath)));
 
         try {
-            mDevice.executeShellCommand(String.format("%s %s", fullPath, flags), resultParser,
+            mDevice.executeShellCommand(String.format("%s%s %s", env, fullPath, flags),
+                    resultParser,
                     mMaxTestTimeMs /* maxTimeToShellOutputResponse */,
                     0 /* retryAttempts */);
         } catch (DeviceNotAvailableException e) {
@@ -121,6 +164,33 @@ public class GeeTest implements IBuildReceiver, IDeviceTest, IRemoteTest {
         }
     }
 
+    /**
+     * Returns the command line flags for the test binary.
+     * <p/>
+     * Exposed for unit testing
+     */
+    String getFlags() {
+        if (mGTestFilter == null) {
+            return "";
+        }
+        // quote the expression, so that the device shell does not expand its wildcards
+        return String.format("--gtest_filter='%s'", mGTestFilter);
+    }
+
+    /**
+     * Returns the environment variable assignments to prefix the command with, including a
+     * trailing space if not empty.
+     * <p/>
+     * Exposed for unit testing
+     */
+    String getEnvironment() {
+        if (mTotalShards <= 1) {
+            return "";
+        }
+        return String.format("GTEST_TOTAL_SHARDS=%d GTEST_SHARD_INDEX=%d ", mTotalShards,
+                mShardIndex);
+    }
+
 
     @Override
     public void setBuild(IBuildInfo buildInfo) {
@@ -46,6 +46,16 @@ public interface ITestPlan {
      */
     public TestFilter getExcludedTestFilter(String uri);
 
+    /**
+     * Gets the uris of the packages before which the device should be rebooted.
+     */
+    public Collection<String> getRebootBeforeUris();
+
+    /**
+     * Gets the uris of the packages after which the device should be rebooted.
+     */
+    public Collection<String> getRebootAfterUris();
+
     /**
      * Add a package to this test plan
      * @param uri
@@ -23,6 +23,7 @@ import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.InstrumentationTest;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -43,6 +44,8 @@ public class InstrumentationApkTest extends InstrumentationTest implements IBuil
 
     private CtsBuildHelper mCtsBuild = null;
 
+    private ApkPreStager mApkStager = null;
+
     /**
      * {@inheritDoc}
      */
@@ -62,6 +65,21 @@ public class InstrumentationApkTest extends InstrumentationTest implements IBuil
         mUninstallPackages.add(packageName);
     }
 
+    /**
+     * @return the file names of the apks to install
+     */
+    Collection<String> getInstallFileNames() {
+        return mInstallFileNames;
+    }
+
+    /**
+     * Install apks through the given {@link ApkPreStager}, so that apks it has pushed to the
+     * device already are installed from there.
+     */
+    void setApkStager(ApkPreStager apkStager) {
+        mApkStager = apkStager;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -75,8 +93,9 @@ public class InstrumentationApkTest extends InstrumentationTest implements IBuil
             Log.d(LOG_TAG, String.format("Installing %s on %s", apkFileName,
                     getDevice().getSerialNumber()));
             try {
-                String installCode = getDevice().installPackage(mCtsBuild.getTestApp(apkFileName),
-                        true);
+                File apkFile = mCtsBuild.getTestApp(apkFileName);
+                String installCode = mApkStager != null ? mApkStager.install(apkFile) :
+                        getDevice().installPackage(apkFile, true);
                 Assert.assertNull(String.format("Failed to install %s on %s. Reason: %s",
                         apkFileName, getDevice().getSerialNumber(), installCode), installCode);
 
@@ -137,6 +137,15 @@ public class JarHostTest implements IDeviceTest, IRemoteTest, IBuildReceiver, Te
         mTimeoutMs = testTimeoutMs;
     }
 
+    /**
+     * Gets the maximum time in ms each test should run.
+     *
+     * @return the test timeout in ms
+     */
+    long getTimeout() {
+        return mTimeoutMs;
+    }
+
     /**
      * Set the run name to report to {@link ITestInvocationListener#testRunStarted(String, int)}
      *
@@ -146,6 +155,16 @@ public class JarHostTest implements IDeviceTest, IRemoteTest, IBuildReceiver, Te
         mRunName = runName;
     }
 
+    /**
+     * Gets the run name to report to
+     * {@link ITestInvocationListener#testRunStarted(String, int)}
+     *
+     * @return the run name
+     */
+    String getRunName() {
+        return mRunName;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.util.ShellCommandBatch;
+import com.android.cts.tradefed.util.ShellCommandBatch.Result;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Installs prerequisite apks on a device, skipping the ones that are installed already.
+ * <p/>
+ * An apk counts as installed if the package on the device has the versionCode and, where the
+ * device lists them comparably, the signing certificates of the apk. As a rebuilt apk may keep
+ * both, a marker file in {@link #MARKER_DIR} additionally records the SHA-1 digest of the apk
+ * installed last, together with the lastUpdateTime the package manager reported right after
+ * installing it. Any later install of the package changes its lastUpdateTime and so invalidates
+ * the marker.
+ * <p/>
+ * The apks are read on a shared background pool, in parallel with querying the device, and the
+ * results are cached for all shards of the invocation.
+ */
+class PrerequisiteApkInstaller {
+
+    static final String MARKER_DIR = "/data/local/tmp/cts-prereq";
+
+    /** the infos of the apks, by path, length and modification time */
+    private static final ConcurrentMap<String, Future<ApkInfo>> sApkInfos =
+            new ConcurrentHashMap<String, Future<ApkInfo>>();
+
+    private static final ExecutorService sApkInfoExecutor = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PrerequisiteApkInfo");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final ITestDevice mDevice;
+
+    PrerequisiteApkInstaller(ITestDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Installs the given apks, unless the same apk is installed already.
+     *
+     * @param apks the apk files to install, mapped to their Android package names. The package
+     * name may be null if it is not known, in which case the apk is always installed.
+     * @throws DeviceNotAvailableException
+     */
+    void install(Map<File, String> apks) throws DeviceNotAvailableException {
+        if (apks.isEmpty()) {
+            return;
+        }
+        Map<File, Future<ApkInfo>> apkInfos = new LinkedHashMap<File, Future<ApkInfo>>();
+        ShellCommandBatch query = new ShellCommandBatch(mDevice);
+        for (Map.Entry<File, String> apk : apks.entrySet()) {
+            apkInfos.put(apk.getKey(), getApkInfo(apk.getKey()));
+            if (apk.getValue() != null) {
+                query.add(getDumpCommand(apk.getValue()));
+                query.add(String.format("cat %s 2>/dev/null", getMarkerPath(apk.getValue())));
+            }
+        }
+        List<Result> results = query.execute();
+
+        ShellCommandBatch markers = new ShellCommandBatch(mDevice).addMkdirs(MARKER_DIR);
+        int markerCount = markers.size();
+        Map<String, ApkInfo> installed = new LinkedHashMap<String, ApkInfo>();
+        int resultIndex = 0;
+        for (Map.Entry<File, String> apk : apks.entrySet()) {
+            File apkFile = apk.getKey();
+            String pkgName = apk.getValue();
+            ApkInfo apkInfo = waitForApkInfo(apkFile, apkInfos.get(apkFile));
+            if (pkgName != null) {
+                String packageDump = results.get(resultIndex++).getOutput();
+                String marker = results.get(resultIndex++).getOutput();
+                if (apkInfo != null && isInstalled(apkInfo, packageDump, marker)) {
+                    CLog.d("%s is installed already on %s", apkFile.getName(),
+                            mDevice.getSerialNumber());
+                    continue;
+                }
+            }
+            String errorCode = mDevice.installPackage(apkFile, true);
+            if (errorCode != null) {
+                CLog.e("Failed to install %s. Reason: %s", apkFile.getName(), errorCode);
+                if (pkgName != null) {
+                    markers.add(String.format("rm %s 2>/dev/null", getMarkerPath(pkgName)));
+                }
+            } else if (pkgName != null && apkInfo != null) {
+                installed.put(pkgName, apkInfo);
+            }
+        }
+        if (!installed.isEmpty()) {
+            addMarkers(markers, installed);
+        }
+        if (markers.size() > markerCount) {
+            markers.execute();
+        }
+    }
+
+    /**
+     * Adds the commands writing the markers of the freshly installed packages, which record the
+     * lastUpdateTime the package manager reports for them now.
+     */
+    private void addMarkers(ShellCommandBatch markers, Map<String, ApkInfo> installed)
+            throws DeviceNotAvailableException {
+        ShellCommandBatch query = new ShellCommandBatch(mDevice);
+        for (String pkgName : installed.keySet()) {
+            query.add(getDumpCommand(pkgName));
+        }
+        List<Result> results = query.execute();
+        int resultIndex = 0;
+        for (Map.Entry<String, ApkInfo> entry : installed.entrySet()) {
+            String pkgName = entry.getKey();
+            String lastUpdateTime = getDumpValue(results.get(resultIndex++).getOutput(),
+                    "lastUpdateTime");
+            if (lastUpdateTime != null) {
+                markers.add(String.format("echo \"%s\" > %s",
+                        getMarker(entry.getValue(), lastUpdateTime), getMarkerPath(pkgName)));
+            } else {
+                markers.add(String.format("rm %s 2>/dev/null", getMarkerPath(pkgName)));
+            }
+        }
+    }
+
+    /**
+     * Uninstalls the given packages, and removes their markers.
+     *
+     * @param pkgNames the Android package names to uninstall
+     * @throws DeviceNotAvailableException
+     */
+    void uninstall(Collection<String> pkgNames) throws DeviceNotAvailableException {
+        if (pkgNames.isEmpty()) {
+            return;
+        }
+        ShellCommandBatch markers = new ShellCommandBatch(mDevice);
+        for (String pkgName : pkgNames) {
+            mDevice.uninstallPackage(pkgName);
+            markers.add(String.format("rm %s 2>/dev/null", getMarkerPath(pkgName)));
+        }
+        markers.execute();
+    }
+
+    /**
+     * Checks whether the package on the device is the given apk, installed by this class.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @param apkInfo the info of the apk on the host
+     * @param packageDump the output of <code>dumpsys package</code> for the package
+     * @param markerOutput the content of the marker file
+     */
+    static boolean isInstalled(ApkInfo apkInfo, String packageDump, String markerOutput) {
+        String versionCode = getDumpValue(packageDump, "versionCode");
+        String lastUpdateTime = getDumpValue(packageDump, "lastUpdateTime");
+        if (versionCode == null || lastUpdateTime == null) {
+            // the package is not installed
+            return false;
+        }
+        if (!versionCode.split("\\s+")[0].equals(Integer.toString(apkInfo.getVersionCode()))) {
+            return false;
+        }
+        Set<String> signatures = parseSignatures(getDumpValue(packageDump, "signatures"));
+        if (signatures != null && !apkInfo.getSignatureHashes().isEmpty()
+                && !signatures.equals(apkInfo.getSignatureHashes())) {
+            return false;
+        }
+        return markerOutput.trim().equals(getMarker(apkInfo, lastUpdateTime));
+    }
+
+    /**
+     * Returns the rest of the first line of a <code>dumpsys package</code> output that starts
+     * with the given key and '=', or null if there is none. The first match belongs to the
+     * installed package, later ones e.g. to the hidden system package it updates.
+     */
+    private static String getDumpValue(String packageDump, String key) {
+        String prefix = key + "=";
+        for (String line : packageDump.split("\r?\n")) {
+            line = line.trim();
+            if (line.startsWith(prefix)) {
+                return line.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the certificate hashes of a "signatures=" value, or returns null if the device only
+     * lists the identity hashes of the signature objects, which can't be compared to the apk.
+     */
+    private static Set<String> parseSignatures(String signatures) {
+        final String listStart = "signatures:[";
+        int start = signatures == null ? -1 : signatures.indexOf(listStart);
+        int end = start < 0 ? -1 : signatures.indexOf(']', start);
+        if (end < 0) {
+            return null;
+        }
+        Set<String> hashes = new HashSet<String>();
+        for (String hash : signatures.substring(start + listStart.length(), end).split(",")) {
+            if (hash.trim().length() > 0) {
+                hashes.add(hash.trim());
+            }
+        }
+        return hashes;
+    }
+
+    private static String getMarker(ApkInfo apkInfo, String lastUpdateTime) {
+        return apkInfo.getDigest() + " " + lastUpdateTime.trim();
+    }
+
+    /**
+     * Reads the info of an apk in the background, unless it was read already. A failed read is
+     * not cached, so that it is retried on the next call.
+     * <p/>
+     * Exposed for unit testing
+     */
+    static Future<ApkInfo> getApkInfo(final File apkFile) {
+        String key = String.format("%s:%d:%d", apkFile.getAbsolutePath(), apkFile.length(),
+                apkFile.lastModified());
+        Future<ApkInfo> apkInfo = sApkInfos.get(key);
+        if (apkInfo != null && hasFailed(apkInfo)) {
+            sApkInfos.remove(key, apkInfo);
+        }
+        FutureTask<ApkInfo> task = new FutureTask<ApkInfo>(new Callable<ApkInfo>() {
+            @Override
+            public ApkInfo call() throws IOException {
+                return ApkInfo.read(apkFile);
+            }
+        });
+        apkInfo = sApkInfos.putIfAbsent(key, task);
+        if (apkInfo == null) {
+            sApkInfoExecutor.execute(task);
+            apkInfo = task;
+        }
+        return apkInfo;
+    }
+
+    private static boolean hasFailed(Future<ApkInfo> apkInfo) {
+        if (!apkInfo.isDone()) {
+            return false;
+        }
+        try {
+            apkInfo.get();
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (RuntimeException e) {
+            // cancelled
+            return true;
+        }
+    }
+
+    private ApkInfo waitForApkInfo(File apkFile, Future<ApkInfo> apkInfo) {
+        try {
+            return apkInfo.get();
+        } catch (ExecutionException e) {
+            CLog.e("Failed to read %s: %s", apkFile.getName(), e.getCause().toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private static String getDumpCommand(String pkgName) {
+        return String.format("dumpsys package %s", pkgName);
+    }
+
+    private static String getMarkerPath(String pkgName) {
+        return String.format("%s/%s", MARKER_DIR, pkgName);
+    }
+}
@@ -40,6 +40,7 @@ class ResultFilter extends ResultForwarder {
 
     private final Map<String, Collection<TestIdentifier>> mKnownTestsMap;
     private final Map<String, Collection<TestIdentifier>> mRemainingTestsMap;
+    private final Map<String, TestPackage> mShardedPackageMap;
     private String mCurrentTestRun = null;
 
     /**
@@ -53,12 +54,18 @@ class ResultFilter extends ResultForwarder {
         mKnownTestsMap = new HashMap<String, Collection<TestIdentifier>>();
         // use LinkedHashMap for predictable test order
         mRemainingTestsMap = new LinkedHashMap<String, Collection<TestIdentifier>>();
+        mShardedPackageMap = new LinkedHashMap<String, TestPackage>();
 
         for (TestPackage testPkg : testPackages) {
             mKnownTestsMap.put(testPkg.getTestRunName(), new HashSet<TestIdentifier>(
                     testPkg.getKnownTests()));
-            mRemainingTestsMap.put(testPkg.getTestRunName(), new LinkedHashSet<TestIdentifier>(
-                    testPkg.getKnownTests()));
+            if (testPkg.getShardProgress() != null) {
+                // the tests of this package are shared with other shards
+                mShardedPackageMap.put(testPkg.getTestRunName(), testPkg);
+            } else {
+                mRemainingTestsMap.put(testPkg.getTestRunName(),
+                        new LinkedHashSet<TestIdentifier>(testPkg.getKnownTests()));
+            }
         }
     }
 
@@ -123,23 +130,39 @@ class ResultFilter extends ResultForwarder {
         if (mCurrentTestRun != null && mRemainingTestsMap.containsKey(mCurrentTestRun)) {
              mRemainingTestsMap.get(mCurrentTestRun).remove(test);
         }
+        if (mCurrentTestRun != null && mShardedPackageMap.containsKey(mCurrentTestRun)) {
+            mShardedPackageMap.get(mCurrentTestRun).getShardProgress().testExecuted(test);
+        }
     }
 
     /**
      * Report the set of expected tests that were not executed
+     * <p/>
+     * The unexecuted tests of a package that is split across shards are only reported by the
+     * last shard of the package to complete. Also called when the run failed or was aborted, in
+     * which case this shard counts as completed as well.
      */
     public void reportUnexecutedTests() {
         for (Map.Entry<String, Collection<TestIdentifier>> entry : mRemainingTestsMap.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                super.testRunStarted(entry.getKey(), entry.getValue().size());
-                for (TestIdentifier test : entry.getValue()) {
-                    // an unexecuted test is currently reported as a 'testStarted' event without a
-                    // 'testEnded'. TODO: consider adding an explict API for reporting an unexecuted
-                    // test
-                    super.testStarted(test);
-                }
-                super.testRunEnded(0, new HashMap<String,String>());
+            reportUnexecutedTests(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, TestPackage> entry : mShardedPackageMap.entrySet()) {
+            TestPackage testPkg = entry.getValue();
+            reportUnexecutedTests(entry.getKey(),
+                    testPkg.getShardProgress().shardCompleted(testPkg.getShardIndex()));
+        }
+    }
+
+    private void reportUnexecutedTests(String runName, Collection<TestIdentifier> tests) {
+        if (!tests.isEmpty()) {
+            super.testRunStarted(runName, tests.size());
+            for (TestIdentifier test : tests) {
+                // an unexecuted test is currently reported as a 'testStarted' event without a
+                // 'testEnded'. TODO: consider adding an explict API for reporting an unexecuted
+                // test
+                super.testStarted(test);
             }
+            super.testRunEnded(0, new HashMap<String,String>());
         }
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Tracks the tests of a single test package whose tests are split across several shards.
+ * <p/>
+ * The shards run concurrently on different devices and do not know in advance which of the
+ * package's tests they will execute. Each shard records its executed tests here, and the last
+ * shard to complete reports the tests no shard has executed.
+ * <p/>
+ * A shard whose run failed or was aborted counts as completed too, otherwise the tests it did not
+ * execute would never be reported. Should such a shard be resumed, the tests it executes later
+ * are still recorded, but the shard does not complete a second time.
+ */
+class ShardedPackageProgress {
+
+    private final Set<TestIdentifier> mRemainingTests;
+    private final Set<Integer> mCompletedShards;
+    private final int mShardCount;
+
+    /**
+     * @param knownTests all tests of the package
+     * @param shardCount the number of shards the package is split into
+     */
+    ShardedPackageProgress(Collection<TestIdentifier> knownTests, int shardCount) {
+        // use LinkedHashSet for predictable test order
+        mRemainingTests = new LinkedHashSet<TestIdentifier>(knownTests);
+        mCompletedShards = new HashSet<Integer>();
+        mShardCount = shardCount;
+    }
+
+    /**
+     * Records that a shard has executed the given test.
+     */
+    synchronized void testExecuted(TestIdentifier test) {
+        mRemainingTests.remove(test);
+    }
+
+    /**
+     * Records that a shard has completed, successfully or not.
+     *
+     * @param shardIndex the index of the completed shard
+     * @return the tests no shard has executed if this was the last running shard, otherwise an
+     *         empty collection
+     */
+    synchronized Collection<TestIdentifier> shardCompleted(int shardIndex) {
+        if (shardIndex < 0 || shardIndex >= mShardCount) {
+            throw new IllegalArgumentException(String.format("invalid shard %d of %d",
+                    shardIndex, mShardCount));
+        }
+        if (!mCompletedShards.add(shardIndex) || mCompletedShards.size() < mShardCount) {
+            return Collections.emptyList();
+        }
+        return new LinkedHashSet<TestIdentifier>(mRemainingTests);
+    }
+}
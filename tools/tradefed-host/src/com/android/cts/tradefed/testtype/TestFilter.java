@@ -25,6 +25,7 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Filter for {@link TestIdentifier}s.
@@ -128,6 +129,58 @@ public class TestFilter {
         return !mExcludedClasses.isEmpty() || !mExcludedTests.isEmpty();
     }
 
+    /**
+     * Translates the rules of this filter into a gtest filter expression, as accepted by a native
+     * test binary's --gtest_filter flag.
+     * <p/>
+     * Native test class names are reported with a fake package prefix, which is stripped from
+     * the gtest test case names. Exclusions for classes without the prefix cannot match any
+     * native test, and are ignored.
+     *
+     * @param classPrefix the fake package prefix of the native test class names
+     * @return the gtest filter expression, or <code>null</code> if all tests pass this filter
+     */
+    public String getGTestFilter(String classPrefix) {
+        // use a TreeSet for a stable expression
+        Set<String> excluded = new TreeSet<String>();
+        for (String className : mExcludedClasses) {
+            if (className.startsWith(classPrefix)) {
+                excluded.add(className.substring(classPrefix.length()) + ".*");
+            }
+        }
+        for (TestIdentifier test : mExcludedTests) {
+            if (test.getClassName().startsWith(classPrefix)) {
+                excluded.add(test.getClassName().substring(classPrefix.length()) + "." +
+                        test.getTestName());
+            }
+        }
+        if (mIncludedClass == null && excluded.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder filter = new StringBuilder();
+        if (mIncludedClass == null) {
+            filter.append("*");
+        } else {
+            String testCase = mIncludedClass.startsWith(classPrefix) ?
+                    mIncludedClass.substring(classPrefix.length()) : mIncludedClass;
+            filter.append(testCase).append(".");
+            filter.append(mIncludedMethod == null ? "*" : mIncludedMethod);
+        }
+        if (!excluded.isEmpty()) {
+            filter.append("-");
+            boolean first = true;
+            for (String pattern : excluded) {
+                if (!first) {
+                    filter.append(":");
+                }
+                filter.append(pattern);
+                first = false;
+            }
+        }
+        return filter.toString();
+    }
+
     /**
      * A {@link Comparator} for {@link TestIdentifier} that compares using
      * {@link TestIdentifier#toString()}
@@ -15,7 +15,9 @@
  */
 package com.android.cts.tradefed.testtype;
 
+import com.android.cts.util.TestPackageDescriptor;
 import com.android.ddmlib.Log;
+import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import java.io.BufferedInputStream;
@@ -23,6 +25,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -70,7 +73,9 @@ public class TestPackageRepo implements ITestPackageRepo {
     private void parseTestFromXml(File xmlFile)  {
         TestPackageXmlParser parser = new TestPackageXmlParser(mIncludeKnownFailures);
         try {
-            parser.parse(createStreamFromFile(xmlFile));
+            if (!parseDescriptor(parser, xmlFile)) {
+                parser.parse(createStreamFromFile(xmlFile));
+            }
             TestPackageDef def = parser.getTestPackageDef();
             if (def != null) {
                 mTestMap.put(def.getUri(), def);
@@ -89,6 +94,32 @@ public class TestPackageRepo implements ITestPackageRepo {
         }
     }
 
+    /**
+     * Loads the {@link TestPackageDescriptor} of the given xml file, which is much faster than
+     * parsing the xml. The descriptor is only used if it is at least as recent as the xml.
+     *
+     * @return <code>true</code> if the descriptor was loaded, <code>false</code> if the xml
+     *         must be parsed instead
+     */
+    private boolean parseDescriptor(TestPackageXmlParser parser, File xmlFile) {
+        File descriptorFile = TestPackageDescriptor.getDescriptorFile(xmlFile);
+        if (!descriptorFile.isFile() || descriptorFile.lastModified() < xmlFile.lastModified()) {
+            return false;
+        }
+        InputStream input = null;
+        try {
+            input = createStreamFromFile(descriptorFile);
+            parser.parseDescriptor(input);
+            return parser.getTestPackageDef() != null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, String.format("Failed to read %s, parsing %s instead: %s",
+                    descriptorFile.getName(), xmlFile.getName(), e));
+            return false;
+        } finally {
+            StreamUtil.closeStream(input);
+        }
+    }
+
     /**
      * Helper method to create a stream to read data from given file
      * <p/>
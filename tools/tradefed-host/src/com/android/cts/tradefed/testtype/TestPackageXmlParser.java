@@ -15,6 +15,7 @@
  */
 package com.android.cts.tradefed.testtype;
 
+import com.android.cts.util.TestPackageDescriptor;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.util.xml.AbstractXmlParser;
@@ -22,7 +23,11 @@ import com.android.tradefed.util.xml.AbstractXmlParser;
 import org.xml.sax.Attributes;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Stack;
 
 /**
@@ -30,6 +35,8 @@ import java.util.Stack;
  * <p/>
  * Dumb parser that just retrieves data from in the test case xml and stuff it into a
  * {@link TestPackageDef}. Currently performs limited error checking.
+ * <p/>
+ * Also reads the same data from the compact {@link TestPackageDescriptor} of the xml.
  */
 public class TestPackageXmlParser extends AbstractXmlParser {
 
@@ -62,38 +69,27 @@ public class TestPackageXmlParser extends AbstractXmlParser {
         // holds current class name segments
         private Stack<String> mClassNameStack = new Stack<String>();
 
+        // the class name built from mClassNameStack, shared by all tests of the class. null
+        // when the stack changed since it was built
+        private String mClassName = null;
+
         @Override
         public void startElement(String uri, String localName, String name, Attributes attributes) {
             if (TEST_PACKAGE_TAG.equals(localName)) {
-                // appPackageName is used as the uri
-                final String entryUriValue = attributes.getValue("appPackageName");
-                final String testPackageNameSpace = attributes.getValue("appNameSpace");
-                final String packageName = attributes.getValue("name");
-                final String runnerName = attributes.getValue("runner");
-                final String jarPath = attributes.getValue("jarPath");
-                final String signatureCheck = attributes.getValue("signatureCheck");
-                final String javaPackageFilter = attributes.getValue("javaPackageFilter");
-                final String targetBinaryName = attributes.getValue("targetBinaryName");
-                final String targetNameSpace = attributes.getValue("targetNameSpace");
-
-                mPackageDef = new TestPackageDef();
-                mPackageDef.setUri(entryUriValue);
-                mPackageDef.setAppNameSpace(testPackageNameSpace);
-                mPackageDef.setName(packageName);
-                mPackageDef.setRunner(runnerName);
-                mPackageDef.setTestType(getTestType(attributes));
-                mPackageDef.setJarPath(jarPath);
-                mPackageDef.setIsSignatureCheck(parseBoolean(signatureCheck));
-                mPackageDef.setTestPackageName(javaPackageFilter);
-                mPackageDef.setTargetBinaryName(targetBinaryName);
-                mPackageDef.setTargetNameSpace(targetNameSpace);
+                Map<String, String> packageAttributes = new HashMap<String, String>();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    packageAttributes.put(attributes.getQName(i), attributes.getValue(i));
+                }
+                mPackageDef = createPackageDef(packageAttributes);
 
                 // reset the class name
                 mClassNameStack = new Stack<String>();
+                mClassName = null;
             } else if (TEST_SUITE_TAG.equals(localName)) {
                 String packageSegment = attributes.getValue("name");
                 if (packageSegment != null) {
                     mClassNameStack.push(packageSegment);
+                    mClassName = null;
                 } else {
                     Log.e(LOG_TAG, String.format("Invalid XML: missing 'name' attribute for '%s'",
                             TEST_SUITE_TAG));
@@ -102,6 +98,7 @@ public class TestPackageXmlParser extends AbstractXmlParser {
                 String classSegment = attributes.getValue("name");
                 if (classSegment != null) {
                     mClassNameStack.push(classSegment);
+                    mClassName = null;
                 } else {
                     Log.e(LOG_TAG, String.format("Invalid XML: missing 'name' attribute for '%s'",
                             TEST_CASE_TAG));
@@ -116,56 +113,111 @@ public class TestPackageXmlParser extends AbstractXmlParser {
                     Log.e(LOG_TAG, String.format("Invalid XML: missing 'name' attribute for '%s'",
                             TEST_TAG));
                 } else {
-                    // build class name from package segments
-                    StringBuilder classNameBuilder = new StringBuilder();
-                    for (Iterator<String> iter = mClassNameStack.iterator(); iter.hasNext(); ) {
-                        classNameBuilder.append(iter.next());
-                        if (iter.hasNext()) {
-                            classNameBuilder.append(".");
-                        }
-                    }
                     int timeout = -1;
                     String timeoutStr = attributes.getValue("timeout");
                     if (timeoutStr != null) {
                         timeout = Integer.parseInt(timeoutStr);
                     }
-                    TestIdentifier testId = new TestIdentifier(classNameBuilder.toString(),
-                            methodName);
                     boolean isKnownFailure = "failure".equals(attributes.getValue("expectation"));
-                    if (!isKnownFailure || mIncludeKnownFailures) {
-                        mPackageDef.addTest(testId, timeout);
-                    }
+                    addTest(getClassName(), methodName, isKnownFailure, timeout);
                 }
             }
 
         }
 
-        private String getTestType(Attributes attributes) {
-            if (parseBoolean(attributes.getValue("hostSideOnly"))) {
-                return TestPackageDef.HOST_SIDE_ONLY_TEST;
-            } else if (parseBoolean(attributes.getValue("vmHostTest"))) {
-                return TestPackageDef.VM_HOST_TEST;
-            } else {
-                return attributes.getValue("testType");
+        /**
+         * Returns the class name built from the package segments, building it only once
+         * for all the tests of a class.
+         */
+        private String getClassName() {
+            if (mClassName == null) {
+                StringBuilder classNameBuilder = new StringBuilder();
+                for (Iterator<String> iter = mClassNameStack.iterator(); iter.hasNext(); ) {
+                    classNameBuilder.append(iter.next());
+                    if (iter.hasNext()) {
+                        classNameBuilder.append(".");
+                    }
+                }
+                mClassName = classNameBuilder.toString();
             }
+            return mClassName;
         }
 
         @Override
         public void endElement (String uri, String localName, String qName) {
             if (TEST_SUITE_TAG.equals(localName) || TEST_CASE_TAG.equals(localName)) {
                 mClassNameStack.pop();
+                mClassName = null;
             }
         }
+    }
 
-        /**
-         * Parse a boolean attribute value
-         */
-        private boolean parseBoolean(final String stringValue) {
-            return stringValue != null &&
-                    Boolean.parseBoolean(stringValue);
+    /**
+     * Creates the {@link TestPackageDef} from the attributes of the TestPackage element.
+     */
+    private static TestPackageDef createPackageDef(Map<String, String> attributes) {
+        TestPackageDef packageDef = new TestPackageDef();
+        // appPackageName is used as the uri
+        packageDef.setUri(attributes.get("appPackageName"));
+        packageDef.setAppNameSpace(attributes.get("appNameSpace"));
+        packageDef.setName(attributes.get("name"));
+        packageDef.setRunner(attributes.get("runner"));
+        packageDef.setTestType(getTestType(attributes));
+        packageDef.setJarPath(attributes.get("jarPath"));
+        packageDef.setIsSignatureCheck(parseBoolean(attributes.get("signatureCheck")));
+        packageDef.setTestPackageName(attributes.get("javaPackageFilter"));
+        packageDef.setTargetBinaryName(attributes.get("targetBinaryName"));
+        packageDef.setTargetNameSpace(attributes.get("targetNameSpace"));
+        return packageDef;
+    }
+
+    private static String getTestType(Map<String, String> attributes) {
+        if (parseBoolean(attributes.get("hostSideOnly"))) {
+            return TestPackageDef.HOST_SIDE_ONLY_TEST;
+        } else if (parseBoolean(attributes.get("vmHostTest"))) {
+            return TestPackageDef.VM_HOST_TEST;
+        } else {
+            return attributes.get("testType");
+        }
+    }
+
+    /**
+     * Parse a boolean attribute value
+     */
+    private static boolean parseBoolean(final String stringValue) {
+        return stringValue != null &&
+                Boolean.parseBoolean(stringValue);
+    }
+
+    private void addTest(String className, String methodName, boolean isKnownFailure,
+            int timeout) {
+        if (!isKnownFailure || mIncludeKnownFailures) {
+            mPackageDef.addTest(new TestIdentifier(className, methodName), timeout);
         }
     }
 
+    /**
+     * Reads the data of a {@link TestPackageDescriptor} instead of the xml.
+     *
+     * @param input the stream of the descriptor
+     * @throws IOException if the descriptor could not be read
+     */
+    public void parseDescriptor(InputStream input) throws IOException {
+        mPackageDef = null;
+        TestPackageDescriptor.read(input, new TestPackageDescriptor.Listener() {
+            @Override
+            public void onPackage(Map<String, String> attributes) {
+                mPackageDef = createPackageDef(attributes);
+            }
+
+            @Override
+            public void onTest(String className, String methodName, boolean knownFailure,
+                    int timeout) {
+                addTest(className, methodName, knownFailure, timeout);
+            }
+        });
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -30,8 +30,10 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Implementation of {@link TestPlan}.
@@ -43,11 +45,21 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
      */
     private Map<String, TestFilter> mUriExcludedTestsMap;
 
+    /**
+     * Uris of the packages to reboot the device around
+     */
+    private final Set<String> mRebootBeforeUris;
+    private final Set<String> mRebootAfterUris;
+
     private static final String ENTRY_TAG = "Entry";
     private static final String TEST_DELIM = ";";
     private static final String METHOD_DELIM = "#";
     private static final String EXCLUDE_ATTR = "exclude";
     private static final String URI_ATTR = "uri";
+    private static final String REBOOT_ATTR = "reboot";
+    private static final String REBOOT_BEFORE = "before";
+    private static final String REBOOT_AFTER = "after";
+    private static final String REBOOT_BOTH = "both";
 
     private final String mName;
 
@@ -63,6 +75,29 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
                 final String entryUriValue = attributes.getValue(URI_ATTR);
                 TestFilter filter = parseExcludedTests(attributes.getValue(EXCLUDE_ATTR));
                 mUriExcludedTestsMap.put(entryUriValue, filter);
+                parseReboot(entryUriValue, attributes.getValue(REBOOT_ATTR));
+            }
+        }
+
+        /**
+         * Parse the reboot policy of a package.
+         * <p/>
+         * Expected format: before|after|both
+         */
+        private void parseReboot(String entryUriValue, String rebootString) throws SAXException {
+            if (rebootString == null) {
+                return;
+            }
+            if (REBOOT_BEFORE.equals(rebootString) || REBOOT_BOTH.equals(rebootString)) {
+                mRebootBeforeUris.add(entryUriValue);
+            }
+            if (REBOOT_AFTER.equals(rebootString) || REBOOT_BOTH.equals(rebootString)) {
+                mRebootAfterUris.add(entryUriValue);
+            }
+            if (!mRebootBeforeUris.contains(entryUriValue) &&
+                    !mRebootAfterUris.contains(entryUriValue)) {
+                throw new SAXException(String.format("Invalid %s value '%s' for package %s",
+                        REBOOT_ATTR, rebootString, entryUriValue));
             }
         }
 
@@ -97,6 +132,8 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
         mName = name;
         // Uses a LinkedHashMap to have predictable iteration order
         mUriExcludedTestsMap = new LinkedHashMap<String, TestFilter>();
+        mRebootBeforeUris = new LinkedHashSet<String>();
+        mRebootAfterUris = new LinkedHashSet<String>();
     }
 
     /**
@@ -123,6 +160,22 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
         return mUriExcludedTestsMap.get(uri);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> getRebootBeforeUris() {
+        return mRebootBeforeUris;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> getRebootAfterUris() {
+        return mRebootAfterUris;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -181,12 +234,28 @@ public class TestPlan extends AbstractXmlParser implements ITestPlan {
             serializer.startTag(null, ENTRY_TAG);
             serializer.attribute(null, "uri", packageEntry.getKey());
             serializeFilter(serializer, packageEntry.getValue());
+            serializeReboot(serializer, packageEntry.getKey());
             serializer.endTag(null, ENTRY_TAG);
         }
         serializer.endTag(null, "TestPlan");
         serializer.endDocument();
     }
 
+    /**
+     * Adds an xml attribute containing the reboot policy of given package, if it has one.
+     */
+    private void serializeReboot(KXmlSerializer serializer, String uri) throws IOException {
+        boolean before = mRebootBeforeUris.contains(uri);
+        boolean after = mRebootAfterUris.contains(uri);
+        if (before && after) {
+            serializer.attribute(null, REBOOT_ATTR, REBOOT_BOTH);
+        } else if (before) {
+            serializer.attribute(null, REBOOT_ATTR, REBOOT_BEFORE);
+        } else if (after) {
+            serializer.attribute(null, REBOOT_ATTR, REBOOT_AFTER);
+        }
+    }
+
     /**
      * Adds an xml attribute containing {@link TestFilter} contents.
      * <p/>
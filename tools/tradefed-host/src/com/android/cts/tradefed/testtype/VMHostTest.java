@@ -16,23 +16,42 @@
 package com.android.cts.tradefed.testtype;
 
 import com.android.cts.tradefed.build.CtsBuildHelper;
+import com.android.cts.tradefed.util.DevicePushCache;
+import com.android.cts.tradefed.util.ShellCommandBatch;
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
-import com.android.tradefed.util.FileUtil;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.zip.ZipFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A wrapper around {@link JarHostTest} that includes additional device setup and clean up.
- *
+ * <p/>
+ * If the vm-tests jar contains a batch manifest, all tests of a test class are run inside a
+ * single dalvikvm invocation by dot.junit.DxBatchMain instead of starting one vm per test
+ * through the generated host JUnit methods.
  */
 public class VMHostTest extends JarHostTest {
 
     private static final String VM_TEST_TEMP_DIR = "/data/local/tmp/vm-tests";
+    /** the batch manifest generated by BuildDalvikSuite, relative to the tests dir */
+    static final String BATCH_MANIFEST = "vm-tests-batch.txt";
+    private static final String BATCH_MAIN_CLASS = "dot.junit.DxBatchMain";
+    private static final String BATCH_COMMAND = "ANDROID_DATA=%1$s dalvikvm -Xint:portable " +
+            "-Xmx512M -Xss32K -Djava.io.tmpdir=%1$s -classpath %1$s/dot/junit/dexcore.jar " +
+            "%2$s %1$s/%3$s %4$s";
+
+    private boolean mBatchMode = false;
 
     /**
      * {@inheritDoc}
@@ -45,12 +64,108 @@ public class VMHostTest extends JarHostTest {
                     "Failed to install vm-tests prereqs on device %s",
                     getDevice().getSerialNumber()));
         }
-        super.run(listener);
-        cleanupDeviceFiles(getDevice());
+        if (mBatchMode) {
+            runBatched(listener);
+        } else {
+            super.run(listener);
+        }
+        // the test files are kept on the device, so the next run only pushes changed files
+    }
+
+    /**
+     * Runs the tests grouped by test class, each group in a single vm invocation.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param listener the {@link ITestInvocationListener} to report results to
+     * @throws DeviceNotAvailableException
+     */
+    @SuppressWarnings("unchecked")
+    void runBatched(ITestInvocationListener listener) throws DeviceNotAvailableException {
+        checkFields();
+        // keep the order of the tests as given, grouped by class
+        Map<String, List<String>> testsByClass = new LinkedHashMap<String, List<String>>();
+        for (TestIdentifier test : getTests()) {
+            List<String> methods = testsByClass.get(test.getClassName());
+            if (methods == null) {
+                methods = new ArrayList<String>();
+                testsByClass.put(test.getClassName(), methods);
+            }
+            methods.add(test.getTestName());
+        }
+        CLog.i("Running %s test package in batch mode, contains %d tests in %d classes.",
+                getRunName(), getTests().size(), testsByClass.size());
+        long startTime = System.currentTimeMillis();
+        listener.testRunStarted(getRunName(), getTests().size());
+        for (Map.Entry<String, List<String>> entry : testsByClass.entrySet()) {
+            runBatch(listener, entry.getKey(), entry.getValue());
+        }
+        listener.testRunEnded(System.currentTimeMillis() - startTime, Collections.EMPTY_MAP);
+    }
+
+    /**
+     * Runs the given test methods of a class in one vm. If the vm dies during a test, the
+     * remaining tests are run in a new vm.
+     */
+    @SuppressWarnings("unchecked")
+    private void runBatch(ITestInvocationListener listener, String className,
+            List<String> methods) throws DeviceNotAvailableException {
+        List<String> remaining = new ArrayList<String>(methods);
+        while (!remaining.isEmpty()) {
+            VMTestBatchResultParser parser = new VMTestBatchResultParser(listener);
+            String command = getBatchCommand(className, remaining);
+            CLog.d("Running vm-tests batch: %s", command);
+            try {
+                getDevice().executeShellCommand(command, parser, (int) getTimeout(),
+                        0 /* retryAttempts */);
+            } finally {
+                parser.flush();
+            }
+            int remainingBefore = remaining.size();
+            Iterator<String> iter = remaining.iterator();
+            while (iter.hasNext()) {
+                if (parser.getCompletedTests().contains(new TestIdentifier(className,
+                        iter.next()))) {
+                    iter.remove();
+                }
+            }
+            if (remaining.size() == remainingBefore) {
+                // no progress, don't retry forever
+                for (String method : remaining) {
+                    TestIdentifier test = new TestIdentifier(className, method);
+                    listener.testStarted(test);
+                    listener.testFailed(TestFailure.ERROR, test,
+                            "vm-tests batch did not run the test");
+                    listener.testEnded(test, Collections.EMPTY_MAP);
+                }
+                return;
+            }
+        }
+    }
+
+    private String getBatchCommand(String className, List<String> methods) {
+        StringBuilder methodArgs = new StringBuilder(className);
+        for (String method : methods) {
+            methodArgs.append(' ').append(method);
+        }
+        return String.format(BATCH_COMMAND, VM_TEST_TEMP_DIR, BATCH_MAIN_CLASS, BATCH_MANIFEST,
+                methodArgs.toString());
+    }
+
+    /**
+     * Sets whether to run the tests through the batch driver.
+     * <p/>
+     * Exposed for unit testing, normally determined from the contents of the test jar.
+     */
+    void setBatchMode(boolean batchMode) {
+        mBatchMode = batchMode;
     }
 
     /**
      * Install pre-requisite jars for running vm-tests, creates temp directories for test.
+     * <p/>
+     * The extracted jar is cached on the host, and only the files which changed since the last
+     * run on the device are pushed, see {@link DevicePushCache}.
      *
      * @param device the {@link ITestDevice}
      * @param ctsBuild the {@link CtsBuildHelper}
@@ -59,33 +174,33 @@ public class VMHostTest extends JarHostTest {
      */
     private boolean installVmPrereqs(ITestDevice device, CtsBuildHelper ctsBuild)
             throws DeviceNotAvailableException {
-        cleanupDeviceFiles(device);
         // Creates temp directory recursively. We also need to create the dalvik-cache directory
         // which is used by the dalvikvm to optimize things. Without the dalvik-cache, there will be
         // a sigsev thrown by the vm.
         CLog.d("Creating device temp directory, including dalvik-cache.");
         createRemoteDir(device, VM_TEST_TEMP_DIR + "/dalvik-cache" );
         try {
-            File localTmpDir = FileUtil.createTempDir("cts-vm", new File("/tmp/"));
-            CLog.d("Creating host temp dir %s", localTmpDir.getPath());
             File jarFile = new File(ctsBuild.getTestCasesDir(), getJarFileName());
             if (!jarFile.exists()) {
                 CLog.e("Missing jar file %s", jarFile.getPath());
                 return false;
             }
-            CLog.d("Extracting jar file %s to host temp directory %s.",
-                    jarFile.getPath(), localTmpDir.getPath());
-            ZipFile zipFile = new ZipFile(jarFile);
-            FileUtil.extractZip(zipFile, localTmpDir);
-            File localTestTmpDir = new File(localTmpDir, "tests");
-            CLog.d("Syncing host dir %s to device dir %s",
-                    localTestTmpDir.getPath(), VM_TEST_TEMP_DIR);
-            if (!device.pushDir(localTestTmpDir, VM_TEST_TEMP_DIR)) {
-                CLog.e("Failed to push vm test files");
-                return false;
+            File localTmpDir = DevicePushCache.extractJar(jarFile);
+            try {
+                CLog.d("Extracted jar file %s to host dir %s.", jarFile.getPath(),
+                        localTmpDir.getPath());
+                File localTestTmpDir = new File(localTmpDir, "tests");
+                // jars built before the batch driver existed have no manifest
+                mBatchMode = new File(localTestTmpDir, BATCH_MANIFEST).exists();
+                CLog.d("Syncing host dir %s to device dir %s",
+                        localTestTmpDir.getPath(), VM_TEST_TEMP_DIR);
+                if (!DevicePushCache.syncDir(device, localTestTmpDir, VM_TEST_TEMP_DIR)) {
+                    CLog.e("Failed to push vm test files");
+                    return false;
+                }
+            } finally {
+                DevicePushCache.releaseJar(localTmpDir);
             }
-            CLog.d("Cleaning up host temp dir %s", localTmpDir.getPath());
-            FileUtil.recursiveDelete(localTmpDir);
         } catch (IOException e) {
             CLog.e("Failed to extract jar file %s and sync it to device %s.",
                     getJarFileName(), device.getSerialNumber());
@@ -94,19 +209,6 @@ public class VMHostTest extends JarHostTest {
         return true;
     }
 
-    /**
-     * Removes temporary file directory from device
-     *
-     * @param device
-     * @throws DeviceNotAvailableException
-     */
-    private void cleanupDeviceFiles(ITestDevice device) throws DeviceNotAvailableException {
-        if (device.doesFileExist(VM_TEST_TEMP_DIR)) {
-            CLog.d("Removing device's temp dir %s from previous runs.", VM_TEST_TEMP_DIR);
-            device.executeShellCommand(String.format("rm -r %s", VM_TEST_TEMP_DIR));
-        }
-    }
-
     /**
      * Creates the file directory recursively in the device.
      *
@@ -116,14 +218,6 @@ public class VMHostTest extends JarHostTest {
      */
     private void createRemoteDir(ITestDevice device, String remoteFilePath)
             throws DeviceNotAvailableException {
-        if (device.doesFileExist(remoteFilePath)) {
-            return;
-        }
-        File f = new File(remoteFilePath);
-        String parentPath = f.getParent();
-        if (parentPath != null) {
-            createRemoteDir(device, parentPath);
-        }
-        device.executeShellCommand(String.format("mkdir %s", remoteFilePath));
+        new ShellCommandBatch(device).addMkdirs(remoteFilePath).execute();
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Parses the output of a vm-tests batch run by dot.junit.DxBatchMain, and informs a
+ * {@link ITestRunListener} of the results.
+ * <p/>
+ * Sample format of output expected:
+ * <pre>
+ * ##vmtest-start dot.junit.opcodes.aaload.JUnit_Test_aaload#testN1
+ * ##vmtest-end dot.junit.opcodes.aaload.JUnit_Test_aaload#testN1 pass
+ * ##vmtest-start dot.junit.opcodes.aaload.JUnit_Test_aaload#testN2
+ * java.lang.RuntimeException: AssertionFailedError: not equals. Expected 1 actual 2
+ *         at dot.junit.opcodes.aaload.Main_testN2.main(Main_testN2.java:7)
+ * ##vmtest-end dot.junit.opcodes.aaload.JUnit_Test_aaload#testN2 fail
+ * ##vmtest-batch-end
+ * </pre>
+ * All lines between the start and the end marker of a test are the output of that test, and are
+ * reported as the failure trace if the test fails. If the vm dies while a test is in progress,
+ * that test is reported as failed when the shell command completes.
+ * <p/>
+ * Does not report test run events, as a single run is made up of several batches.
+ */
+public class VMTestBatchResultParser extends MultiLineReceiver {
+
+    static final String START_MARKER = "##vmtest-start ";
+    static final String END_MARKER = "##vmtest-end ";
+    static final String BATCH_END_MARKER = "##vmtest-batch-end";
+    static final String PASS = "pass";
+
+    private final ITestRunListener mListener;
+    private final Set<TestIdentifier> mCompletedTests = new HashSet<TestIdentifier>();
+    private TestIdentifier mCurrentTest = null;
+    private StringBuilder mCurrentOutput = null;
+    private boolean mBatchCompleted = false;
+
+    /**
+     * Creates the VMTestBatchResultParser.
+     *
+     * @param listener informed of test results as the tests are executing
+     */
+    public VMTestBatchResultParser(ITestRunListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void processNewLines(String[] lines) {
+        for (String line : lines) {
+            parse(line);
+        }
+    }
+
+    private void parse(String line) {
+        if (line.startsWith(START_MARKER)) {
+            // a previous test was not ended, the batch driver should never do that
+            reportVmFailure("test was not completed");
+            mCurrentTest = parseTestId(line.substring(START_MARKER.length()).trim());
+            if (mCurrentTest != null) {
+                mCurrentOutput = new StringBuilder();
+                mListener.testStarted(mCurrentTest);
+            }
+        } else if (line.startsWith(END_MARKER)) {
+            String[] parts = line.substring(END_MARKER.length()).trim().split(" ");
+            TestIdentifier test = parseTestId(parts[0]);
+            if (mCurrentTest == null || !mCurrentTest.equals(test)) {
+                return;
+            }
+            if (parts.length < 2 || !PASS.equals(parts[1])) {
+                String trace = mCurrentOutput.toString();
+                if (trace.length() == 0) {
+                    trace = "test failed without output";
+                }
+                mListener.testFailed(TestFailure.FAILURE, mCurrentTest, trace);
+            }
+            endCurrentTest();
+        } else if (line.startsWith(BATCH_END_MARKER)) {
+            mBatchCompleted = true;
+        } else if (mCurrentTest != null) {
+            mCurrentOutput.append(line).append('\n');
+        }
+    }
+
+    private void endCurrentTest() {
+        mListener.testEnded(mCurrentTest, Collections.<String, String>emptyMap());
+        mCompletedTests.add(mCurrentTest);
+        mCurrentTest = null;
+        mCurrentOutput = null;
+    }
+
+    private void reportVmFailure(String reason) {
+        if (mCurrentTest != null) {
+            mCurrentOutput.append(reason).append('\n');
+            mListener.testFailed(TestFailure.ERROR, mCurrentTest, mCurrentOutput.toString());
+            endCurrentTest();
+        }
+    }
+
+    private static TestIdentifier parseTestId(String testId) {
+        int hashPos = testId.indexOf('#');
+        if (hashPos <= 0 || hashPos == testId.length() - 1) {
+            return null;
+        }
+        return new TestIdentifier(testId.substring(0, hashPos), testId.substring(hashPos + 1));
+    }
+
+    /**
+     * Reports a test that was started but never ended as failed.
+     */
+    @Override
+    public void done() {
+        super.done();
+        reportVmFailure("vm terminated before test completed");
+    }
+
+    /**
+     * @return the tests which have been reported as ended by this parser
+     */
+    public Set<TestIdentifier> getCompletedTests() {
+        return mCompletedTests;
+    }
+
+    /**
+     * @return <code>true</code> if the batch driver ran to completion
+     */
+    public boolean isBatchCompleted() {
+        return mBatchCompleted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+}
@@ -15,29 +15,115 @@
  */
 package com.android.cts.tradefed.util;
 
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Utility class for storing Cts Results.
  * This is necessary for host tests where test metrics cannot be passed.
+ * <p/>
+ * Results are kept per device, and the results of a device are discarded when the invocation
+ * running on it ends, see {@link #startInvocation(String)} and {@link #endInvocation(String)}.
  */
 public class CtsHostStore {
 
+    /**
+     * A performance result reported by a host test, in the format produced by ReportLog:
+     * summary++++details.
+     */
+    public static class PerfResult {
+        private static final Pattern CTS_LOG_PATTERN =
+                Pattern.compile("(.*)\\+\\+\\+\\+(.*)");
+
+        private final String mRawResult;
+        private final String mSummary;
+        private final String mDetails;
+
+        public PerfResult(String rawResult) {
+            mRawResult = rawResult;
+            Matcher m = CTS_LOG_PATTERN.matcher(rawResult);
+            if (m.find()) {
+                mSummary = m.group(1);
+                mDetails = m.group(2);
+            } else {
+                mSummary = null;
+                mDetails = null;
+            }
+        }
+
+        /**
+         * @return the result as reported by the test
+         */
+        public String getRawResult() {
+            return mRawResult;
+        }
+
+        /**
+         * @return true if the result could be split into summary and details
+         */
+        public boolean isValid() {
+            return mSummary != null;
+        }
+
+        /**
+         * @return the summary in message|target|type|unit|value format, or null if the result
+         *         is not valid
+         */
+        public String getSummary() {
+            return mSummary;
+        }
+
+        /**
+         * @return the details, or null if the result is not valid
+         */
+        public String getDetails() {
+            return mDetails;
+        }
+    }
+
     // needs concurrent verion as there can be multiple client accessing this.
-    // But there is no additional protection for the same key as that should not happen.
-    private static final ConcurrentHashMap<String, String> mMap =
-            new ConcurrentHashMap<String, String>();
+    // But there is no additional protection for the same test as that should not happen.
+    // device serial -> class#method name -> result
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, PerfResult>>
+            sResults = new ConcurrentHashMap<String, ConcurrentHashMap<String, PerfResult>>();
 
     /**
-     * Stores CTS result. Existing result with the same key will be replaced.
-     * Note that key is generated in the form of device_serial#class#method name.
+     * Starts collecting results for an invocation on the given device. Results left over from
+     * an earlier invocation on the device are discarded.
+     */
+    public static void startInvocation(String deviceSerial) {
+        sResults.put(deviceSerial, new ConcurrentHashMap<String, PerfResult>());
+    }
+
+    /**
+     * Discards all results of the invocation on the given device, including those of tests
+     * that never completed.
+     */
+    public static void endInvocation(String deviceSerial) {
+        sResults.remove(deviceSerial);
+    }
+
+    /**
+     * Stores CTS result. Existing result for the same test will be replaced.
      * So there should be no concurrent test for the same (serial, class, method).
      * @param deviceSerial
      * @param classMethodName
      * @param result CTS result string
      */
     public static void storeCtsResult(String deviceSerial, String classMethodName, String result) {
-        mMap.put(generateTestKey(deviceSerial, classMethodName), result);
+        ConcurrentHashMap<String, PerfResult> deviceResults = sResults.get(deviceSerial);
+        if (deviceResults == null) {
+            // no invocation was started for this device, e.g. when running outside of CTS
+            ConcurrentHashMap<String, PerfResult> newResults =
+                    new ConcurrentHashMap<String, PerfResult>();
+            deviceResults = sResults.putIfAbsent(deviceSerial, newResults);
+            if (deviceResults == null) {
+                deviceResults = newResults;
+            }
+        }
+        deviceResults.put(classMethodName, new PerfResult(result));
     }
 
     /**
@@ -45,14 +131,17 @@ public class CtsHostStore {
      * storage. If there is no result for the given condition, it will return null.
      */
     public static String removeCtsResult(String deviceSerial, String classMethodName) {
-        return mMap.remove(generateTestKey(deviceSerial, classMethodName));
+        PerfResult result = removePerfResult(deviceSerial, classMethodName);
+        return result == null ? null : result.getRawResult();
     }
 
     /**
-     * return test key in the form of device_serial#class_name#method_name
+     * Retrieves the result of the given test and removes it from the internal storage.
+     *
+     * @return the {@link PerfResult}, or null if there is none
      */
-    private static String generateTestKey(String deviceSerial, String classMethodName) {
-        return String.format("%s#%s", deviceSerial, classMethodName);
-
+    public static PerfResult removePerfResult(String deviceSerial, String classMethodName) {
+        Map<String, PerfResult> deviceResults = sResults.get(deviceSerial);
+        return deviceResults == null ? null : deviceResults.remove(classMethodName);
     }
 }
@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipFile;
+
+/**
+ * Pushes test artifacts to a device, skipping the files the device already has.
+ * <p/>
+ * Every device directory synced through this class holds a manifest of the SHA-1 digests of the
+ * files pushed into it. Before pushing, the manifest is compared with the digests of the local
+ * files, and only new or changed files are transferred. The manifest is removed while a sync is
+ * in progress, so an interrupted sync results in a full push the next time.
+ * <p/>
+ * Digests of host files are cached for the lifetime of the process. Extracted jars are cached on
+ * the host across processes, and the least recently used ones are evicted once the cache grows
+ * beyond {@link #MAX_JAR_CACHE_BYTES}.
+ */
+public class DevicePushCache {
+
+    /** the name of the manifest file in a synced device directory */
+    static final String MANIFEST_NAME = ".cts-push-manifest";
+
+    /** if more than 1/FULL_PUSH_RATIO of the files changed, the whole directory is pushed */
+    private static final int FULL_PUSH_RATIO = 10;
+
+    private static final String JAR_CACHE_DIR = "cts-jar-cache";
+    private static final String EXTRACT_COMPLETE_MARKER = ".extracted";
+
+    /** the size of the jar cache beyond which the least recently used jars are evicted */
+    static final long MAX_JAR_CACHE_BYTES = 1024L * 1024 * 1024;
+
+    /** unfinished extractions older than this were abandoned by a crashed process */
+    private static final long ABANDONED_EXTRACT_MS = 24 * 60 * 60 * 1000;
+
+    /** the number of users of each extracted jar directory in use, guarded by the class lock */
+    private static final Map<File, Integer> sJarUsers = new HashMap<File, Integer>();
+
+    private static final ConcurrentHashMap<String, FileDigest> sDigests =
+            new ConcurrentHashMap<String, FileDigest>();
+
+    private DevicePushCache() {
+    }
+
+    /**
+     * The digest of a host file, valid as long as the file's size and timestamp don't change.
+     */
+    private static class FileDigest {
+        final long mLength;
+        final long mLastModified;
+        final String mDigest;
+
+        FileDigest(long length, long lastModified, String digest) {
+            mLength = length;
+            mLastModified = lastModified;
+            mDigest = digest;
+        }
+    }
+
+    /**
+     * Makes the given device directory contain the files of a host directory. Files which were
+     * pushed by an earlier sync but no longer exist on the host are removed from the device,
+     * other device files are left alone.
+     *
+     * @param device the {@link ITestDevice}
+     * @param localDir the host directory to push
+     * @param remoteDir the absolute path of an existing device directory
+     * @return <code>true</code> if the files were pushed successfully
+     * @throws DeviceNotAvailableException
+     */
+    public static boolean syncDir(ITestDevice device, File localDir, String remoteDir)
+            throws DeviceNotAvailableException {
+        Map<String, File> localFiles = new TreeMap<String, File>();
+        collectFiles(localDir, "", localFiles);
+        return sync(device, localFiles, remoteDir, localDir);
+    }
+
+    /**
+     * Pushes a single file into the given device directory, unless the device already has it.
+     * Other files in the directory are left alone.
+     *
+     * @param device the {@link ITestDevice}
+     * @param localFile the host file to push
+     * @param remoteDir the absolute path of an existing device directory
+     * @return <code>true</code> if the file was pushed successfully
+     * @throws DeviceNotAvailableException
+     */
+    public static boolean pushFile(ITestDevice device, File localFile, String remoteDir)
+            throws DeviceNotAvailableException {
+        return sync(device, Collections.singletonMap(localFile.getName(), localFile), remoteDir,
+                null);
+    }
+
+    /**
+     * Extracts the given jar to a host directory which is shared by all users of the same jar
+     * contents. The directory is reused by later calls, and must not be modified or deleted.
+     * Callers must pass it to {@link #releaseJar(File)} once they no longer need it, until then
+     * it is not evicted from the cache.
+     *
+     * @param jarFile the jar to extract
+     * @return the directory containing the extracted jar
+     * @throws IOException if the jar could not be extracted
+     */
+    public static File extractJar(File jarFile) throws IOException {
+        File cacheDir = new File(System.getProperty("java.io.tmpdir"), JAR_CACHE_DIR);
+        File extractDir = new File(cacheDir, getDigest(jarFile));
+        File marker = new File(extractDir, EXTRACT_COMPLETE_MARKER);
+        // extractions of the same jar are rare, serialize them so that only one happens
+        synchronized (DevicePushCache.class) {
+            if (marker.exists()) {
+                CLog.d("Reusing extracted jar %s in %s", jarFile.getPath(), extractDir.getPath());
+                // the timestamp of the marker records the last use for the eviction
+                marker.setLastModified(System.currentTimeMillis());
+                acquireJar(extractDir);
+                return extractDir;
+            }
+            FileUtil.recursiveDelete(extractDir);
+            cacheDir.mkdirs();
+            File tmpDir = FileUtil.createTempDir("cts-jar", cacheDir);
+            ZipFile zipFile = new ZipFile(jarFile);
+            try {
+                FileUtil.extractZip(zipFile, tmpDir);
+            } finally {
+                zipFile.close();
+            }
+            if (!new File(tmpDir, EXTRACT_COMPLETE_MARKER).createNewFile()
+                    || !tmpDir.renameTo(extractDir)) {
+                FileUtil.recursiveDelete(tmpDir);
+                throw new IOException("Failed to populate jar cache dir " + extractDir);
+            }
+            acquireJar(extractDir);
+            evictJars(cacheDir, MAX_JAR_CACHE_BYTES);
+            return extractDir;
+        }
+    }
+
+    /**
+     * Releases a directory returned by {@link #extractJar(File)}, allowing its eviction.
+     *
+     * @param extractDir the directory containing the extracted jar
+     */
+    public static synchronized void releaseJar(File extractDir) {
+        File key = extractDir.getAbsoluteFile();
+        Integer users = sJarUsers.remove(key);
+        if (users != null && users > 1) {
+            sJarUsers.put(key, users - 1);
+        }
+    }
+
+    private static void acquireJar(File extractDir) {
+        File key = extractDir.getAbsoluteFile();
+        Integer users = sJarUsers.get(key);
+        sJarUsers.put(key, users == null ? 1 : users + 1);
+    }
+
+    /**
+     * Deletes the least recently used extracted jars until the cache is no larger than the given
+     * size. Jars in use by this process are kept, as are extractions in progress.
+     * <p/>
+     * Must be called with the class lock held. Exposed for unit testing
+     *
+     * @param cacheDir the jar cache directory
+     * @param maxBytes the size the cache should not exceed
+     */
+    static void evictJars(File cacheDir, long maxBytes) {
+        File[] dirs = cacheDir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        List<File> extracted = new ArrayList<File>();
+        for (File dir : dirs) {
+            File marker = new File(dir, EXTRACT_COMPLETE_MARKER);
+            if (marker.exists()) {
+                lastUsed.put(dir, marker.lastModified());
+                extracted.add(dir);
+            } else if (dir.lastModified() < System.currentTimeMillis() - ABANDONED_EXTRACT_MS) {
+                CLog.d("Deleting abandoned jar extraction %s", dir.getPath());
+                FileUtil.recursiveDelete(dir);
+            }
+        }
+        Collections.sort(extracted, new Comparator<File>() {
+            public int compare(File dir1, File dir2) {
+                return lastUsed.get(dir1).compareTo(lastUsed.get(dir2));
+            }
+        });
+        Map<File, Long> sizes = new HashMap<File, Long>();
+        long totalBytes = 0;
+        for (File dir : extracted) {
+            long size = getSize(dir);
+            sizes.put(dir, size);
+            totalBytes += size;
+        }
+        for (File dir : extracted) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            if (sJarUsers.containsKey(dir.getAbsoluteFile())) {
+                continue;
+            }
+            CLog.d("Evicting extracted jar %s from the jar cache", dir.getPath());
+            FileUtil.recursiveDelete(dir);
+            totalBytes -= sizes.get(dir);
+        }
+    }
+
+    private static long getSize(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += getSize(child);
+        }
+        return size;
+    }
+
+    private static boolean sync(ITestDevice device, Map<String, File> localFiles,
+            String remoteDir, File localDir) throws DeviceNotAvailableException {
+        Map<String, String> localDigests = new TreeMap<String, String>();
+        try {
+            for (Map.Entry<String, File> entry : localFiles.entrySet()) {
+                localDigests.put(entry.getKey(), getDigest(entry.getValue()));
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to compute digests of files to push: %s", e.getMessage());
+            return false;
+        }
+        String manifestPath = remoteDir + "/" + MANIFEST_NAME;
+        Map<String, String> remoteDigests = null;
+        if (device.doesFileExist(manifestPath)) {
+            remoteDigests = parseManifest(device.executeShellCommand("cat " + manifestPath));
+        }
+        List<String> changed = getChangedFiles(localDigests, remoteDigests);
+        if (changed.isEmpty()) {
+            CLog.d("All %d files in %s are up to date", localFiles.size(), remoteDir);
+            return true;
+        }
+
+        if (remoteDigests != null) {
+            // invalidate the manifest while the directory is being changed
+            device.executeShellCommand("rm " + manifestPath);
+        }
+        // only entries of a directory sync are removed, a file push keeps the other entries
+        Map<String, String> newDigests = new TreeMap<String, String>();
+        if (remoteDigests != null && localDir == null) {
+            newDigests.putAll(remoteDigests);
+        }
+        newDigests.putAll(localDigests);
+
+        if (localDir != null && (remoteDigests == null
+                || changed.size() * FULL_PUSH_RATIO > localFiles.size())) {
+            CLog.d("Pushing all %d files of %s to %s", localFiles.size(), localDir.getPath(),
+                    remoteDir);
+            if (!device.pushDir(localDir, remoteDir)) {
+                CLog.e("Failed to push %s to %s", localDir.getPath(), remoteDir);
+                return false;
+            }
+        } else {
+            CLog.d("Pushing %d of %d files to %s", changed.size(), localFiles.size(), remoteDir);
+            createRemoteDirs(device, remoteDir, changed, remoteDigests);
+            for (String path : changed) {
+                if (!device.pushFile(localFiles.get(path), remoteDir + "/" + path)) {
+                    CLog.e("Failed to push %s to %s", localFiles.get(path).getPath(), remoteDir);
+                    return false;
+                }
+            }
+        }
+        if (localDir != null && remoteDigests != null) {
+            removeStaleFiles(device, remoteDir, localDigests, remoteDigests);
+        }
+        return writeManifest(device, manifestPath, newDigests);
+    }
+
+    /**
+     * Returns the paths of the local files which are missing or different on the device.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @param localDigests the digests of the local files by relative path
+     * @param remoteDigests the digests of the device manifest, <code>null</code> if there is no
+     *            manifest
+     */
+    static List<String> getChangedFiles(Map<String, String> localDigests,
+            Map<String, String> remoteDigests) {
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : localDigests.entrySet()) {
+            if (remoteDigests == null
+                    || !entry.getValue().equals(remoteDigests.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Parses a manifest, which holds a "&lt;digest&gt; &lt;relative path&gt;" line per file.
+     * <p/>
+     * Exposed for unit testing
+     */
+    static Map<String, String> parseManifest(String manifest) {
+        Map<String, String> digests = new HashMap<String, String>();
+        for (String line : manifest.split("\r?\n")) {
+            int separator = line.indexOf(' ');
+            if (separator > 0 && separator < line.length() - 1) {
+                digests.put(line.substring(separator + 1), line.substring(0, separator));
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Formats a manifest, see {@link #parseManifest(String)}.
+     * <p/>
+     * Exposed for unit testing
+     */
+    static String formatManifest(Map<String, String> digests) {
+        StringBuilder manifest = new StringBuilder();
+        for (Map.Entry<String, String> entry : digests.entrySet()) {
+            manifest.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+        }
+        return manifest.toString();
+    }
+
+    private static boolean writeManifest(ITestDevice device, String manifestPath,
+            Map<String, String> digests) throws DeviceNotAvailableException {
+        File manifestFile = null;
+        try {
+            manifestFile = FileUtil.createTempFile("cts-push-manifest", ".txt");
+            FileUtil.writeToFile(formatManifest(digests), manifestFile);
+            if (!device.pushFile(manifestFile, manifestPath)) {
+                CLog.w("Failed to push manifest %s, files will be pushed again", manifestPath);
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to write manifest %s, files will be pushed again", manifestPath);
+        } finally {
+            if (manifestFile != null) {
+                manifestFile.delete();
+            }
+        }
+        // the files themselves were pushed successfully
+        return true;
+    }
+
+    /**
+     * Creates the device directories of the given files which are not known to exist from the
+     * manifest.
+     */
+    private static void createRemoteDirs(ITestDevice device, String remoteDir,
+            List<String> paths, Map<String, String> remoteDigests)
+            throws DeviceNotAvailableException {
+        Set<String> existingDirs = new TreeSet<String>();
+        if (remoteDigests != null) {
+            for (String path : remoteDigests.keySet()) {
+                addParentDirs(path, existingDirs);
+            }
+        }
+        // TreeSet sorts a parent before its children
+        Set<String> newDirs = new TreeSet<String>();
+        for (String path : paths) {
+            addParentDirs(path, newDirs);
+        }
+        newDirs.removeAll(existingDirs);
+        ShellCommandBatch batch = new ShellCommandBatch(device);
+        for (String dir : newDirs) {
+            batch.add(String.format("mkdir %s/%s", remoteDir, dir));
+        }
+        batch.execute();
+    }
+
+    private static void addParentDirs(String path, Set<String> dirs) {
+        int separator = path.lastIndexOf('/');
+        while (separator > 0) {
+            path = path.substring(0, separator);
+            dirs.add(path);
+            separator = path.lastIndexOf('/');
+        }
+    }
+
+    /**
+     * Removes the files of the previous manifest which no longer exist on the host.
+     */
+    private static void removeStaleFiles(ITestDevice device, String remoteDir,
+            Map<String, String> localDigests, Map<String, String> remoteDigests)
+            throws DeviceNotAvailableException {
+        ShellCommandBatch batch = new ShellCommandBatch(device);
+        for (String path : remoteDigests.keySet()) {
+            if (!localDigests.containsKey(path)) {
+                batch.add(String.format("rm %s/%s", remoteDir, path));
+            }
+        }
+        batch.execute();
+    }
+
+    private static void collectFiles(File dir, String prefix, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectFiles(child, prefix + child.getName() + "/", files);
+            } else {
+                files.put(prefix + child.getName(), child);
+            }
+        }
+    }
+
+    /**
+     * Returns the SHA-1 digest of the given file, reusing the digest computed earlier if the
+     * file's size and timestamp did not change.
+     */
+    static String getDigest(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        FileDigest cached = sDigests.get(key);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (cached != null && cached.mLength == length && cached.mLastModified == lastModified) {
+            return cached.mDigest;
+        }
+        String digest = computeDigest(file);
+        sDigests.put(key, new FileDigest(length, lastModified, digest));
+        return digest;
+    }
+
+    private static String computeDigest(File file) throws IOException {
+        InputStream in = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            in = new BufferedInputStream(new FileInputStream(file));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not found");
+        } finally {
+            StreamUtil.closeStream(in);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.cts.tradefed.util.ShellCommandBatch.Result;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.List;
+
+/**
+ * Waits until a device that has just booted is ready to run tests.
+ * <p/>
+ * A device is considered ready once boot has completed, the package manager responds, and the
+ * CPU load measured between two consecutive polls has dropped below a threshold. All three are
+ * checked with a single shell invocation per poll.
+ */
+public class DeviceReadinessProbe {
+
+    static final String BOOT_COMPLETED_CMD = "getprop sys.boot_completed";
+    static final String PACKAGE_MANAGER_CMD = "pm path android";
+    static final String CPU_STAT_CMD = "cat /proc/stat";
+
+    private static final long DEFAULT_POLL_INTERVAL_MS = 2 * 1000;
+
+    private final ITestDevice mDevice;
+    private final int mMaxCpuPercent;
+    private final long mPollIntervalMs;
+
+    /** the cpu times of the previous poll, or null if there was none */
+    private long[] mPrevCpuTimes = null;
+
+    /**
+     * @param device the {@link ITestDevice} to probe
+     * @param maxCpuPercent the CPU load in percent below which the device is considered idle
+     */
+    public DeviceReadinessProbe(ITestDevice device, int maxCpuPercent) {
+        this(device, maxCpuPercent, DEFAULT_POLL_INTERVAL_MS);
+    }
+
+    DeviceReadinessProbe(ITestDevice device, int maxCpuPercent, long pollIntervalMs) {
+        mDevice = device;
+        mMaxCpuPercent = maxCpuPercent;
+        mPollIntervalMs = pollIntervalMs;
+    }
+
+    /**
+     * Polls the device until it is ready or the given time has elapsed.
+     *
+     * @param maxWaitMs the maximum time to wait in ms
+     * @return true if the device is ready, false if the time elapsed before
+     * @throws DeviceNotAvailableException
+     */
+    public boolean waitForReady(long maxWaitMs) throws DeviceNotAvailableException {
+        long startTime = getCurrentTime();
+        mPrevCpuTimes = null;
+        while (true) {
+            if (isReady()) {
+                CLog.i("Device %s ready after %d ms", mDevice.getSerialNumber(),
+                        getCurrentTime() - startTime);
+                return true;
+            }
+            if (getCurrentTime() - startTime + mPollIntervalMs > maxWaitMs) {
+                CLog.w("Device %s not idle after %d ms, continuing anyway",
+                        mDevice.getSerialNumber(), maxWaitMs);
+                return false;
+            }
+            sleep(mPollIntervalMs);
+        }
+    }
+
+    /**
+     * Checks once whether the device is ready. The CPU load can only be determined from the
+     * second call on.
+     */
+    boolean isReady() throws DeviceNotAvailableException {
+        List<Result> results = new ShellCommandBatch(mDevice)
+                .add(BOOT_COMPLETED_CMD)
+                .add(PACKAGE_MANAGER_CMD)
+                .add(CPU_STAT_CMD)
+                .execute();
+        long[] cpuTimes = parseCpuTimes(results.get(2).getOutput());
+        long[] prevCpuTimes = mPrevCpuTimes;
+        mPrevCpuTimes = cpuTimes;
+        if (!"1".equals(results.get(0).getOutput().trim())) {
+            return false;
+        }
+        if (!results.get(1).getOutput().contains("package:")) {
+            return false;
+        }
+        int load = getCpuLoad(prevCpuTimes, cpuTimes);
+        CLog.d("CPU load on %s is %d%%", mDevice.getSerialNumber(), load);
+        return load >= 0 && load <= mMaxCpuPercent;
+    }
+
+    /**
+     * Parses the aggregate cpu line of /proc/stat.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @return the idle and the total cpu time, or null if the output could not be parsed
+     */
+    static long[] parseCpuTimes(String procStat) {
+        for (String line : procStat.split("\r?\n")) {
+            if (!line.startsWith("cpu ")) {
+                continue;
+            }
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length < 5) {
+                return null;
+            }
+            long total = 0;
+            try {
+                for (int i = 1; i < fields.length; i++) {
+                    total += Long.parseLong(fields[i]);
+                }
+                // idle + iowait
+                long idle = Long.parseLong(fields[4]);
+                if (fields.length > 5) {
+                    idle += Long.parseLong(fields[5]);
+                }
+                return new long[] {idle, total};
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Exposed for unit testing
+     *
+     * @return the CPU load in percent between the two samples, or -1 if it cannot be determined
+     */
+    static int getCpuLoad(long[] prevCpuTimes, long[] cpuTimes) {
+        if (prevCpuTimes == null || cpuTimes == null) {
+            return -1;
+        }
+        long total = cpuTimes[1] - prevCpuTimes[1];
+        long idle = cpuTimes[0] - prevCpuTimes[0];
+        if (total <= 0) {
+            return -1;
+        }
+        return (int) (100 * (total - idle) / total);
+    }
+
+    /**
+     * Exposed for unit testing
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Exposed for unit testing
+     */
+    void sleep(long timeMs) {
+        try {
+            Thread.sleep(timeMs);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+    }
+}
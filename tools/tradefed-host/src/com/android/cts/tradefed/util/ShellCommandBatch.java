@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Runs several device shell commands in as few adb shell invocations as possible.
+ * <p/>
+ * The commands are joined into one shell command line, each followed by an echo of a marker
+ * and its exit status, so that the output and the exit status of every command can be told
+ * apart. Command lines longer than {@link #MAX_COMMAND_LENGTH} are split across several
+ * invocations.
+ * <p/>
+ * Sample usage:
+ * <pre>
+ * List&lt;Result&gt; results = new ShellCommandBatch(device)
+ *         .add("rm /data/local/tmp/foo")
+ *         .add("mkdir /data/local/tmp/foo")
+ *         .execute();
+ * </pre>
+ */
+public class ShellCommandBatch {
+
+    /** the maximum length of a single shell invocation */
+    static final int MAX_COMMAND_LENGTH = 1000;
+
+    static final String EXIT_MARKER = "##cts-batch-exit ";
+
+    private final ITestDevice mDevice;
+    private final List<String> mCommands = new ArrayList<String>();
+
+    /**
+     * The outcome of a single command of a batch.
+     */
+    public static class Result {
+        private final String mCommand;
+        private final String mOutput;
+        private final int mExitStatus;
+
+        Result(String command, String output, int exitStatus) {
+            mCommand = command;
+            mOutput = output;
+            mExitStatus = exitStatus;
+        }
+
+        public String getCommand() {
+            return mCommand;
+        }
+
+        /**
+         * @return the output of the command, including its error output
+         */
+        public String getOutput() {
+            return mOutput;
+        }
+
+        /**
+         * @return the exit status of the command, or -1 if the command did not complete
+         */
+        public int getExitStatus() {
+            return mExitStatus;
+        }
+
+        public boolean isSuccess() {
+            return mExitStatus == 0;
+        }
+    }
+
+    public ShellCommandBatch(ITestDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Adds a command to the batch.
+     *
+     * @return this batch
+     */
+    public ShellCommandBatch add(String command) {
+        mCommands.add(command);
+        return this;
+    }
+
+    /**
+     * Adds the commands to create the given device directory and all of its missing parents.
+     * The command for the directory itself is added last, and only succeeds if the directory
+     * exists afterwards.
+     *
+     * @param remoteDirPath the absolute path of the directory
+     * @return this batch
+     */
+    public ShellCommandBatch addMkdirs(String remoteDirPath) {
+        LinkedList<String> dirs = new LinkedList<String>();
+        for (File dir = new File(remoteDirPath); dir.getParent() != null;
+                dir = dir.getParentFile()) {
+            dirs.addFirst(dir.getPath());
+        }
+        for (String dir : dirs) {
+            // fails harmlessly if the directory exists, toolbox mkdir has no -p
+            add(String.format("mkdir %s 2>/dev/null", dir));
+        }
+        // in a subshell, so that the working directory of later commands is unchanged
+        return add(String.format("(cd %s)", remoteDirPath));
+    }
+
+    /**
+     * @return the number of commands in the batch
+     */
+    public int size() {
+        return mCommands.size();
+    }
+
+    /**
+     * Runs all commands of the batch in the order they were added. The batch is empty
+     * afterwards.
+     *
+     * @return a {@link Result} for each command, in the order the commands were added
+     * @throws DeviceNotAvailableException
+     */
+    public List<Result> execute() throws DeviceNotAvailableException {
+        List<Result> results = new ArrayList<Result>(mCommands.size());
+        int start = 0;
+        while (start < mCommands.size()) {
+            StringBuilder commandLine = new StringBuilder();
+            int end = start;
+            while (end < mCommands.size()) {
+                String framed = frame(mCommands.get(end), end - start);
+                if (end > start && commandLine.length() + framed.length() > MAX_COMMAND_LENGTH) {
+                    break;
+                }
+                commandLine.append(framed);
+                end++;
+            }
+            String output = mDevice.executeShellCommand(commandLine.toString());
+            results.addAll(parseOutput(mCommands.subList(start, end), output));
+            start = end;
+        }
+        mCommands.clear();
+        return results;
+    }
+
+    private static String frame(String command, int index) {
+        return String.format("%s; echo \"%s%d $?\"; ", command, EXIT_MARKER, index);
+    }
+
+    /**
+     * Splits the output of a batch into the results of its commands.
+     * <p/>
+     * Exposed for unit testing
+     */
+    static List<Result> parseOutput(List<String> commands, String output) {
+        List<Result> results = new ArrayList<Result>(commands.size());
+        int pos = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            String marker = EXIT_MARKER + i + " ";
+            int markerStart = output == null ? -1 : output.indexOf(marker, pos);
+            if (markerStart < 0) {
+                // the shell died, or the output was cut off
+                results.add(new Result(commands.get(i),
+                        output == null ? "" : output.substring(pos), -1));
+                pos = output == null ? 0 : output.length();
+                continue;
+            }
+            int statusEnd = markerStart + marker.length();
+            while (statusEnd < output.length() && Character.isDigit(output.charAt(statusEnd))) {
+                statusEnd++;
+            }
+            int exitStatus;
+            try {
+                exitStatus = Integer.parseInt(
+                        output.substring(markerStart + marker.length(), statusEnd));
+            } catch (NumberFormatException e) {
+                exitStatus = -1;
+            }
+            results.add(new Result(commands.get(i), output.substring(pos, markerStart),
+                    exitStatus));
+            // skip the line break after the marker
+            pos = statusEnd;
+            if (pos < output.length() && output.charAt(pos) == '\r') {
+                pos++;
+            }
+            if (pos < output.length() && output.charAt(pos) == '\n') {
+                pos++;
+            }
+        }
+        return results;
+    }
+}
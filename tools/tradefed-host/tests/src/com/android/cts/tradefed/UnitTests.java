@@ -17,17 +17,34 @@ package com.android.cts.tradefed;
 
 import com.android.cts.tradefed.result.CtsXmlResultReporterTest;
 import com.android.cts.tradefed.result.DeviceInfoResultTest;
+import com.android.cts.tradefed.result.HtmlReportRendererTest;
+import com.android.cts.tradefed.result.IssueReporterTest;
+import com.android.cts.tradefed.result.MultipartFormTest;
+import com.android.cts.tradefed.result.PerfMetricsStoreTest;
+import com.android.cts.tradefed.result.PerfRegressionDetectorTest;
+import com.android.cts.tradefed.result.ResultMergerTest;
+import com.android.cts.tradefed.result.ResultZipWriterTest;
 import com.android.cts.tradefed.result.TestPackageResultTest;
 import com.android.cts.tradefed.result.TestResultsTest;
 import com.android.cts.tradefed.result.TestSummaryXmlTest;
 import com.android.cts.tradefed.result.TestTest;
+import com.android.cts.tradefed.testtype.ApkPreStagerTest;
 import com.android.cts.tradefed.testtype.CtsTestTest;
+import com.android.cts.tradefed.testtype.FailureArtifactCollectorTest;
+import com.android.cts.tradefed.testtype.GeeTestTest;
 import com.android.cts.tradefed.testtype.JarHostTestTest;
+import com.android.cts.tradefed.testtype.PrerequisiteApkInstallerTest;
+import com.android.cts.tradefed.testtype.ShardedPackageProgressTest;
 import com.android.cts.tradefed.testtype.TestFilterTest;
 import com.android.cts.tradefed.testtype.TestPackageDefTest;
 import com.android.cts.tradefed.testtype.TestPackageXmlParserTest;
 import com.android.cts.tradefed.testtype.TestPlanTest;
+import com.android.cts.tradefed.testtype.VMTestBatchResultParserTest;
 import com.android.cts.tradefed.testtype.WrappedGTestResultParserTest;
+import com.android.cts.tradefed.util.CtsHostStoreTest;
+import com.android.cts.tradefed.util.DevicePushCacheTest;
+import com.android.cts.tradefed.util.DeviceReadinessProbeTest;
+import com.android.cts.tradefed.util.ShellCommandBatchTest;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -46,19 +63,38 @@ public class UnitTests extends TestSuite {
         // result package
         addTestSuite(CtsXmlResultReporterTest.class);
         addTestSuite(DeviceInfoResultTest.class);
+        addTestSuite(HtmlReportRendererTest.class);
+        addTestSuite(IssueReporterTest.class);
+        addTestSuite(MultipartFormTest.class);
+        addTestSuite(PerfMetricsStoreTest.class);
+        addTestSuite(PerfRegressionDetectorTest.class);
+        addTestSuite(ResultMergerTest.class);
+        addTestSuite(ResultZipWriterTest.class);
         addTestSuite(TestPackageResultTest.class);
         addTestSuite(TestResultsTest.class);
         addTestSuite(TestSummaryXmlTest.class);
         addTestSuite(TestTest.class);
 
         // testtype package
+        addTestSuite(ApkPreStagerTest.class);
         addTestSuite(CtsTestTest.class);
+        addTestSuite(FailureArtifactCollectorTest.class);
+        addTestSuite(GeeTestTest.class);
         addTestSuite(JarHostTestTest.class);
+        addTestSuite(PrerequisiteApkInstallerTest.class);
+        addTestSuite(ShardedPackageProgressTest.class);
         addTestSuite(TestFilterTest.class);
         addTestSuite(TestPackageDefTest.class);
         addTestSuite(TestPackageXmlParserTest.class);
         addTestSuite(TestPlanTest.class);
+        addTestSuite(VMTestBatchResultParserTest.class);
         addTestSuite(WrappedGTestResultParserTest.class);
+
+        // util package
+        addTestSuite(CtsHostStoreTest.class);
+        addTestSuite(DevicePushCacheTest.class);
+        addTestSuite(DeviceReadinessProbeTest.class);
+        addTestSuite(ShellCommandBatchTest.class);
     }
 
     public static Test suite() {
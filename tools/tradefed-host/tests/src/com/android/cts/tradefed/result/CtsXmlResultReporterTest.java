@@ -15,12 +15,15 @@
  */
 package com.android.cts.tradefed.result;
 
+import com.android.cts.tradefed.testtype.CtsTest;
 import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IFolderBuildInfo;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.XmlResultReporter;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
 
 import junit.framework.TestCase;
 
@@ -29,9 +32,12 @@ import org.easymock.EasyMock;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Unit tests for {@link XmlResultReporter}.
@@ -152,6 +158,71 @@ public class CtsXmlResultReporterTest extends TestCase {
         assertTrue(output.contains(failureTag));
     }
 
+    /**
+     * Test that continuing a session replaces the html report of the previous run, both in the
+     * report directory and in the result zip.
+     */
+    public void testContinueSession_replacesHtmlReport() throws Exception {
+        File resultsDir = new File(mReportDir, "android-cts/repository/results");
+        assertTrue(resultsDir.mkdirs());
+        IFolderBuildInfo build = EasyMock.createNiceMock(IFolderBuildInfo.class);
+        EasyMock.expect(build.getDeviceSerial()).andStubReturn(null);
+        EasyMock.expect(build.getRootDir()).andStubReturn(mReportDir);
+        EasyMock.replay(build);
+        Map<String, String> emptyMap = Collections.emptyMap();
+        TestIdentifier testId = new TestIdentifier("com.foo.FooTest", "testFoo");
+
+        // the first run renders the html report
+        CtsXmlResultReporter firstReporter = new CtsXmlResultReporter();
+        firstReporter.setReportDir(resultsDir);
+        firstReporter.invocationStarted(build);
+        firstReporter.testRunStarted("run", 1);
+        firstReporter.testStarted(testId);
+        firstReporter.testFailed(TestFailure.FAILURE, testId, "trace");
+        firstReporter.testEnded(testId, emptyMap);
+        firstReporter.testRunEnded(3, emptyMap);
+        firstReporter.invocationEnded(1);
+        File[] sessionDirs = resultsDir.listFiles();
+        File sessionDir = null;
+        for (File file : sessionDirs) {
+            if (file.isDirectory()) {
+                sessionDir = file;
+            }
+        }
+        assertNotNull(sessionDir);
+        File htmlDir = new File(sessionDir, HtmlReportRenderer.HTML_DIR_NAME);
+        File indexFile = new File(htmlDir, HtmlReportRenderer.INDEX_FILE_NAME);
+        assertTrue(indexFile.exists());
+        FileUtil.writeToFile("stale", indexFile);
+        File stalePage = new File(htmlDir, HtmlReportRenderer.FAILURES_NAME + "-9.html");
+        FileUtil.writeToFile("stale", stalePage);
+
+        // the continued run must render it anew
+        CtsXmlResultReporter secondReporter = new CtsXmlResultReporter();
+        new OptionSetter(secondReporter).setOptionValue(CtsTest.CONTINUE_OPTION, "0");
+        secondReporter.invocationStarted(build);
+        secondReporter.invocationEnded(1);
+
+        assertFalse(stalePage.exists());
+        String index = FileUtil.readStringFromFile(indexFile);
+        assertFalse("stale".equals(index));
+        ZipFile zip = new ZipFile(new File(resultsDir, sessionDir.getName() + ".zip"));
+        try {
+            String htmlPath = sessionDir.getName() + "/" + HtmlReportRenderer.HTML_DIR_NAME + "/";
+            assertNull(zip.getEntry(htmlPath + stalePage.getName()));
+            ZipEntry indexEntry = zip.getEntry(htmlPath + HtmlReportRenderer.INDEX_FILE_NAME);
+            assertNotNull(indexEntry);
+            InputStream indexStream = zip.getInputStream(indexEntry);
+            try {
+                assertEquals(index, StreamUtil.getStringFromStream(indexStream));
+            } finally {
+                StreamUtil.closeStream(indexStream);
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
     /**
      * Gets the output produced, stripping it of extraneous whitespace characters.
      */
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link HtmlReportRenderer}.
+ */
+public class HtmlReportRendererTest extends TestCase {
+
+    private static final String RESULT =
+        "<TestResult testPlan=\"plan\" starttime=\"start\" endtime=\"end\">" +
+            "<DeviceInfo>" +
+                "<BuildInfo build_fingerprint=\"build\" build_model=\"model\" " +
+                    "deviceID=\"serial\" />" +
+            "</DeviceInfo>" +
+            "<Summary failed=\"1\" notExecuted=\"1\" pass=\"1\" timeout=\"0\"/>" +
+            "<TestPackage appPackageName=\"com.android.cts.foo\" name=\"CtsFooTestCases\">" +
+                "<TestSuite name=\"com\">" +
+                    "<TestCase name=\"FooTest\">" +
+                        "<Test name=\"testPass\" result=\"pass\" />" +
+                        "<Test name=\"testFail\" result=\"fail\">" +
+                            "<FailedScene message=\"expected &lt;1&gt;\">" +
+                                "<StackTrace>at FooTest.testFail</StackTrace>" +
+                            "</FailedScene>" +
+                        "</Test>" +
+                        "<Test name=\"testNotExecuted\" result=\"notExecuted\" />" +
+                    "</TestCase>" +
+                "</TestSuite>" +
+            "</TestPackage>" +
+            "<TestPackage appPackageName=\"com.android.cts.bar\" name=\"CtsBarTestCases\">" +
+            "</TestPackage>" +
+        "</TestResult>";
+
+    private File mHtmlDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHtmlDir = FileUtil.createTempDir("html");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mHtmlDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the index page summarizes the session and links to all packages.
+     */
+    public void testRender_index() throws Exception {
+        render(10);
+        String index = readFile(HtmlReportRenderer.INDEX_FILE_NAME);
+        assertTrue(index.contains("<td>build</td>"));
+        assertTrue(index.contains("<td>model</td>"));
+        assertTrue(index.contains("<tr><th>Tests passed</th><td>1</td></tr>"));
+        assertTrue(index.contains("<a href=\"failures.html\">1</a>"));
+        assertTrue(index.contains("<tr><th>Tests not executed</th><td>1</td></tr>"));
+        assertTrue(index.contains("<a href=\"pkg_com.android.cts.foo.html\">" +
+                "com.android.cts.foo</a></td><td>1</td><td>1</td><td>1</td>"));
+        assertTrue(index.contains("<a href=\"pkg_com.android.cts.bar.html\">"));
+        // a package without tests still gets its page
+        assertTrue(new File(mHtmlDir, "pkg_com.android.cts.bar.html").exists());
+    }
+
+    /**
+     * Test that the tests of a package are split over linked pages.
+     */
+    public void testRender_pages() throws Exception {
+        render(2);
+        String first = readFile("pkg_com.android.cts.foo.html");
+        assertTrue(first.contains("com.FooTest#testPass"));
+        assertTrue(first.contains("com.FooTest#testFail"));
+        assertTrue(first.contains("<a href=\"pkg_com.android.cts.foo-2.html\">Next</a>"));
+        assertFalse(first.contains("Previous"));
+        assertTrue(first.contains("<pre>at FooTest.testFail</pre>"));
+        String second = readFile("pkg_com.android.cts.foo-2.html");
+        assertTrue(second.contains("com.FooTest#testNotExecuted"));
+        assertTrue(second.contains("<a href=\"pkg_com.android.cts.foo.html\">Previous</a>"));
+        assertFalse(second.contains("Next"));
+        assertFalse(new File(mHtmlDir, "pkg_com.android.cts.foo-3.html").exists());
+    }
+
+    /**
+     * Test that the failures index links to the page of each failed test.
+     */
+    public void testRender_failures() throws Exception {
+        render(10);
+        String failures = readFile("failures.html");
+        assertTrue(failures.contains(
+                "<a href=\"pkg_com.android.cts.foo.html#com.FooTest#testFail\">"));
+        assertTrue(failures.contains("expected &lt;1&gt;"));
+        assertFalse(failures.contains("testPass"));
+    }
+
+    public void testRender_searchIndex() throws Exception {
+        render(10);
+        String searchIndex = readFile(HtmlReportRenderer.SEARCH_INDEX_FILE_NAME);
+        assertTrue(searchIndex.contains("{\"test\":\"com.FooTest#testFail\"," +
+                "\"package\":\"com.android.cts.foo\"," +
+                "\"href\":\"pkg_com.android.cts.foo.html#com.FooTest#testFail\"}"));
+        assertTrue(searchIndex.contains("{\"name\":\"com.android.cts.foo\"," +
+                "\"href\":\"pkg_com.android.cts.foo.html\",\"pass\":1,\"fail\":1," +
+                "\"notExecuted\":1}"));
+    }
+
+    public void testEscape() {
+        assertEquals("a&lt;b&gt; &amp; &quot;c&quot;", HtmlReportRenderer.escape("a<b> & \"c\""));
+        assertEquals("", HtmlReportRenderer.escape(null));
+    }
+
+    public void testQuote() {
+        assertEquals("\"a\\\"b\\\\c\\u000a\"", HtmlReportRenderer.quote("a\"b\\c\n"));
+        assertEquals("null", HtmlReportRenderer.quote(null));
+    }
+
+    private void render(int pageSize) throws Exception {
+        new HtmlReportRenderer(mHtmlDir, pageSize).parse(new StringReader(RESULT));
+    }
+
+    private String readFile(String name) throws IOException {
+        return FileUtil.readStringFromFile(new File(mHtmlDir, name));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for {@link IssueReporter}, against a local HTTP server.
+ */
+public class IssueReporterTest extends TestCase {
+
+    private HttpServer mServer;
+    private final List<String> mBodies = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                InputStream input = exchange.getRequestBody();
+                StringBuilder body = new StringBuilder();
+                for (int c; (c = input.read()) != -1; ) {
+                    body.append((char) c);
+                }
+                mBodies.add(body.toString());
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        mServer.stop(0);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a failure is posted together with the bug report captured for it, even if the
+     * bug report arrives after the test ended.
+     */
+    public void testReport_lateBugreport() {
+        mRelease.countDown();
+        IssueReporter reporter = createReporter(1, 10);
+        TestIdentifier test = new TestIdentifier("FooTest", "testFoo");
+        reporter.testFailed(TestFailure.FAILURE, test, "trace");
+        reporter.testEnded(test, Collections.<String, String>emptyMap());
+        reporter.testLog("bug-FooTest_testFoo", LogDataType.TEXT,
+                new ByteArrayInputStreamSource("bugreport".getBytes()));
+        reporter.invocationEnded(0);
+
+        assertEquals(1, mBodies.size());
+        assertTrue(mBodies.get(0).contains("FooTest#testFoo"));
+        assertTrue(mBodies.get(0).contains("filename=\"bugreport.txt.gz\""));
+    }
+
+    /**
+     * Test that failures are dropped instead of queued without limit if the server is slow.
+     */
+    public void testReport_bounded() {
+        IssueReporter reporter = createReporter(1, 2);
+        for (int i = 0; i < 10; i++) {
+            TestIdentifier test = new TestIdentifier("FooTest", "testFoo" + i);
+            reporter.testFailed(TestFailure.FAILURE, test, "trace");
+            reporter.testEnded(test, Collections.<String, String>emptyMap());
+        }
+        reporter.testRunEnded(0, Collections.<String, String>emptyMap());
+        // one issue is being posted, two are waiting
+        assertEquals(7, reporter.getDroppedIssues());
+        mRelease.countDown();
+        reporter.invocationEnded(0);
+        assertEquals(3, mBodies.size());
+    }
+
+    private IssueReporter createReporter(int threads, int queueSize) {
+        IssueReporter reporter = new IssueReporter(
+                String.format("http://localhost:%d/", mServer.getAddress().getPort()),
+                threads, queueSize);
+        // device info is reported by a test run of its own
+        Map<String, String> deviceMetrics = new HashMap<String, String>();
+        deviceMetrics.put("buildName", "product");
+        deviceMetrics.put("build_type", "user");
+        deviceMetrics.put("buildID", "ABC123");
+        reporter.testRunEnded(0, deviceMetrics);
+        return reporter;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unit tests for {@link MultipartForm}, against a local HTTP server.
+ */
+public class MultipartFormTest extends TestCase {
+
+    private HttpServer mServer;
+    private final List<String> mTransferEncodings =
+            Collections.synchronizedList(new ArrayList<String>());
+    private final List<byte[]> mBodies = Collections.synchronizedList(new ArrayList<byte[]>());
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mTransferEncodings.add(exchange.getRequestHeaders().getFirst(
+                        "Transfer-Encoding"));
+                mBodies.add(readAll(exchange.getRequestBody()));
+                if (exchange.getRequestURI().getPath().equals("/redirect")) {
+                    exchange.getResponseHeaders().add("Location", getUrl("/target"));
+                    exchange.sendResponseHeaders(302, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mFile = File.createTempFile("form", ".txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop(0);
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Test that form values and a gzipped file are streamed to the server.
+     */
+    public void testSubmit_gzippedFile() throws IOException {
+        byte[] data = new byte[200 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        writeFile(data);
+        new MultipartForm(getUrl("/"))
+                .addFormValue("suite", "CTS")
+                .addGzippedFormFile("resultXml", "testResult.xml.gz", mFile)
+                .submit();
+
+        assertEquals(1, mBodies.size());
+        assertEquals("chunked", mTransferEncodings.get(0));
+        byte[] body = mBodies.get(0);
+        String text = new String(body, "ISO-8859-1");
+        assertTrue(text.contains("name=\"suite\""));
+        assertTrue(text.contains("CTS"));
+        assertTrue(text.contains("filename=\"testResult.xml.gz\""));
+        assertTrue(text.trim().endsWith("--C75I55u3R3p0r73r--"));
+
+        // the file part starts after the empty line following its headers
+        String emptyLine = System.getProperty("line.separator") +
+                System.getProperty("line.separator");
+        int start = text.indexOf(emptyLine, text.indexOf("filename=")) + emptyLine.length();
+        byte[] unzipped = readAll(new GZIPInputStream(new ByteArrayInputStream(body, start,
+                body.length - start)));
+        assertEquals(data.length, unzipped.length);
+        assertEquals(new String(data, "ISO-8859-1"), new String(unzipped, "ISO-8859-1"));
+    }
+
+    /**
+     * Test that the form is sent again to the url the server redirects to.
+     */
+    public void testSubmit_redirect() throws IOException {
+        writeFile("content".getBytes());
+        new MultipartForm(getUrl("/redirect"))
+                .addGzippedFormFile("bugReport", "bugreport.txt.gz", mFile)
+                .submit();
+        assertEquals(2, mBodies.size());
+        assertTrue(Arrays.equals(mBodies.get(0), mBodies.get(1)));
+    }
+
+    private String getUrl(String path) {
+        return String.format("http://localhost:%d%s", mServer.getAddress().getPort(), path);
+    }
+
+    private void writeFile(byte[] data) throws IOException {
+        OutputStream output = new FileOutputStream(mFile);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        for (int numRead; (numRead = input.read(buffer)) != -1; ) {
+            output.write(buffer, 0, numRead);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.result.PerfMetricsStore.Chunk;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link PerfMetricsStore}.
+ */
+public class PerfMetricsStoreTest extends TestCase {
+
+    private static final String RESULT_TEMPLATE =
+        "<TestResult>" +
+            "<DeviceInfo>" +
+                "<BuildInfo build_fingerprint=\"%s\" deviceID=\"serial\" />" +
+            "</DeviceInfo>" +
+            "<Summary failed=\"0\" notExecuted=\"0\" pass=\"1\" timeout=\"0\"/>" +
+            "<TestPackage appPackageName=\"com.android.cts.filesystem\" " +
+                    "name=\"CtsFileSystemTestCases\">" +
+                "<TestSuite name=\"android\"><TestSuite name=\"filesystem\">" +
+                    "<TestCase name=\"SequentialRWTest\">" +
+                        "<Test name=\"testSingleSequentialWrite\" result=\"pass\">" +
+                            "<Summary message=\"write throughput\" scoreType=\"higher_better\" " +
+                                "unit=\"MB/s\">%s</Summary>" +
+                            "<Details>" +
+                                "<ValueArray source=\"SequentialRWTest#doWrite:42\" " +
+                                        "message=\"write time\" scoreType=\"lower_better\" " +
+                                        "unit=\"ms\">" +
+                                    "<Value>1.5</Value>" +
+                                    "<Value>2.5</Value>" +
+                                "</ValueArray>" +
+                            "</Details>" +
+                        "</Test>" +
+                    "</TestCase>" +
+                "</TestSuite></TestSuite>" +
+            "</TestPackage>" +
+        "</TestResult>";
+
+    private File mStoreDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStoreDir = FileUtil.createTempDir("perf-metrics");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mStoreDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that the summary and the details of a session can be read back column by column.
+     */
+    public void testAppendSession() throws Exception {
+        PerfMetricsStore store = new PerfMetricsStore(mStoreDir);
+        store.appendSession("session1", getResult("build1", 100.5));
+        assertTrue(store.hasSession("session1"));
+        assertFalse(store.hasSession("session2"));
+
+        List<Chunk> chunks = store.getChunks();
+        assertEquals(1, chunks.size());
+        Chunk chunk = chunks.get(0);
+        assertEquals("session1", chunk.getSessionName());
+        assertEquals("build1", chunk.getFingerprint());
+        assertEquals("serial", chunk.getDevice());
+        assertEquals(3, chunk.getRowCount());
+
+        int[] tests = chunk.readIntColumn(PerfMetricsStore.TEST_COLUMN);
+        int[] sources = chunk.readIntColumn(PerfMetricsStore.SOURCE_COLUMN);
+        int[] messages = chunk.readIntColumn(PerfMetricsStore.MESSAGE_COLUMN);
+        int[] indexes = chunk.readIntColumn(PerfMetricsStore.INDEX_COLUMN);
+        double[] values = chunk.readDoubleColumn(PerfMetricsStore.VALUE_COLUMN);
+        assertEquals("android.filesystem.SequentialRWTest#testSingleSequentialWrite",
+                store.getString(tests[0]));
+        assertEquals("com.android.cts.filesystem", store.getString(
+                chunk.readIntColumn(PerfMetricsStore.PACKAGE_COLUMN)[0]));
+        // summary
+        assertNull(store.getString(sources[0]));
+        assertEquals("write throughput", store.getString(messages[0]));
+        assertEquals(100.5, values[0]);
+        // details
+        assertEquals("SequentialRWTest#doWrite:42", store.getString(sources[1]));
+        assertEquals("write time", store.getString(messages[2]));
+        assertEquals(1, indexes[2]);
+        assertEquals(2.5, values[2]);
+    }
+
+    /**
+     * Test that sessions appended by separate instances share the dictionary.
+     */
+    public void testAppendSession_reopen() throws Exception {
+        new PerfMetricsStore(mStoreDir).appendSession("session1", getResult("build1", 100));
+        new PerfMetricsStore(mStoreDir).appendSession("session2", getResult("build2", 90));
+
+        PerfMetricsStore store = new PerfMetricsStore(mStoreDir);
+        List<Chunk> chunks = store.getChunks();
+        assertEquals(2, chunks.size());
+        assertEquals("build2", chunks.get(1).getFingerprint());
+        int messageId = store.getStringId("write throughput");
+        assertEquals(messageId,
+                chunks.get(0).readIntColumn(PerfMetricsStore.MESSAGE_COLUMN)[0]);
+        assertEquals(messageId,
+                chunks.get(1).readIntColumn(PerfMetricsStore.MESSAGE_COLUMN)[0]);
+        assertEquals(90.0, chunks.get(1).readDoubleColumn(PerfMetricsStore.VALUE_COLUMN)[0]);
+        assertEquals(-1, store.getStringId("unknown"));
+    }
+
+    private StringReader getResult(String fingerprint, double value) {
+        return new StringReader(String.format(RESULT_TEMPLATE, fingerprint,
+                Double.toString(value)));
+    }
+}
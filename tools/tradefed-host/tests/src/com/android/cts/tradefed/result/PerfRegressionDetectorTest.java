@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.result.PerfRegressionDetector.ChangePoint;
+import com.android.cts.tradefed.result.PerfRegressionDetector.Regression;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
+
+import java.io.StringReader;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link PerfRegressionDetector}.
+ */
+public class PerfRegressionDetectorTest extends TestCase {
+
+    private static final String RESULT_TEMPLATE =
+        "<TestResult>" +
+            "<DeviceInfo>" +
+                "<BuildInfo build_fingerprint=\"%s\" deviceID=\"%s\" />" +
+            "</DeviceInfo>" +
+            "<Summary failed=\"0\" notExecuted=\"0\" pass=\"1\" timeout=\"0\"/>" +
+            "<TestPackage appPackageName=\"com.android.cts.foo\" name=\"CtsFooTestCases\">" +
+                "<TestSuite name=\"com\"><TestSuite name=\"android\">" +
+                    "<TestCase name=\"FooTest\">" +
+                        "<Test name=\"testFoo\" result=\"pass\">" +
+                            "<Summary message=\"frames per sec\" scoreType=\"%s\" " +
+                                "unit=\"fps\">%s</Summary>" +
+                        "</Test>" +
+                    "</TestCase>" +
+                "</TestSuite></TestSuite>" +
+            "</TestPackage>" +
+        "</TestResult>";
+
+    private static final double[] STEP_DOWN = {
+        100, 101, 99, 100, 102, 100, 80, 81, 79, 80, 82, 80
+    };
+
+    /**
+     * Test that a drop of a higher-is-better metric is reported, with the builds around it.
+     */
+    public void testDetectRegressions_higherBetter() throws ParseException {
+        PerfRegressionDetector detector = new PerfRegressionDetector(2.5, 5.0, 5, 100);
+        addSessions(detector, "higher_better", STEP_DOWN);
+        List<Regression> regressions = detector.detectRegressions();
+        assertEquals(1, regressions.size());
+        Regression r = regressions.get(0);
+        assertEquals("serial", r.getDevice());
+        assertEquals("com.android.FooTest#testFoo", r.getTestName());
+        assertEquals("frames per sec", r.getMessage());
+        assertEquals("fps", r.getUnit());
+        assertEquals(100.0, r.getMedianBefore());
+        assertEquals(80.0, r.getMedianAfter());
+        assertEquals(-20.0, r.getChangePercent());
+        assertEquals(6, r.getFirstSessionAfter());
+        assertEquals("build5", r.getLastFingerprintBefore());
+        assertEquals("build6", r.getFirstFingerprintAfter());
+    }
+
+    /**
+     * Test that a drop of a lower-is-better metric is not reported.
+     */
+    public void testDetectRegressions_lowerBetter() throws ParseException {
+        PerfRegressionDetector detector = new PerfRegressionDetector(2.5, 5.0, 5, 100);
+        addSessions(detector, "lower_better", STEP_DOWN);
+        assertTrue(detector.detectRegressions().isEmpty());
+    }
+
+    /**
+     * Test that only the most recent sessions are analyzed.
+     */
+    public void testDetectRegressions_maxSessions() throws ParseException {
+        PerfRegressionDetector detector = new PerfRegressionDetector(2.5, 5.0, 2, 6);
+        addSessions(detector, "higher_better", STEP_DOWN);
+        assertTrue(detector.detectRegressions().isEmpty());
+    }
+
+    /**
+     * Test that a max-sessions too small to hold two segments is rejected.
+     */
+    public void testCheckFields_maxSessions() throws ConfigurationException {
+        new PerfRegressionDetector(2.5, 5.0, 3, 6).checkFields();
+        try {
+            new PerfRegressionDetector(2.5, 5.0, 3, 5).checkFields();
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+        try {
+            new PerfRegressionDetector(2.5, 5.0, 0, 0).checkFields();
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a single outlier does not count as a change.
+     */
+    public void testFindChangePoint_outlier() {
+        double[] values = {100, 101, 99, 100, 102, 10, 100, 101, 99, 100, 102, 100};
+        ChangePoint change = PerfRegressionDetector.findChangePoint(values, 3);
+        assertTrue(Math.abs(change.mZScore) < 2);
+    }
+
+    public void testFindChangePoint_step() {
+        ChangePoint change = PerfRegressionDetector.findChangePoint(STEP_DOWN, 3);
+        assertEquals(6, change.mIndex);
+        assertTrue(change.mZScore < -2.5);
+        assertEquals(100.0, change.mMedianBefore);
+        assertEquals(80.0, change.mMedianAfter);
+    }
+
+    public void testFindChangePoint_tooFew() {
+        assertNull(PerfRegressionDetector.findChangePoint(new double[] {1, 2, 3}, 2));
+    }
+
+    private void addSessions(PerfRegressionDetector detector, String scoreType,
+            double[] values) throws ParseException {
+        for (int i = 0; i < values.length; i++) {
+            detector.addResult(i, new StringReader(String.format(RESULT_TEMPLATE, "build" + i,
+                    "serial", scoreType, Double.toString(values[i]))));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.cts.tradefed.result.ResultMerger.DuplicatePolicy;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ResultMerger}.
+ */
+public class ResultMergerTest extends TestCase {
+
+    private static final String RESULT_START =
+        "<TestResult testPlan=\"plan\" starttime=\"start%d\" endtime=\"end%d\" version=\"4.4\">" +
+            "<DeviceInfo>" +
+                "<BuildInfo build_fingerprint=\"build\" deviceID=\"serial%d\" />" +
+            "</DeviceInfo>" +
+            "<HostInfo name=\"host%d\" />" +
+            "<Summary failed=\"0\" notExecuted=\"0\" pass=\"0\" timeout=\"0\"/>";
+    private static final String PACKAGE =
+            "<TestPackage appPackageName=\"%s\" name=\"%s\">" +
+                "<TestSuite name=\"com\">" +
+                    "<TestCase name=\"FooTest\">%s</TestCase>" +
+                "</TestSuite>" +
+            "</TestPackage>";
+    private static final String TEST =
+            "<Test name=\"%s\" result=\"%s\" starttime=\"start\" endtime=\"end\" />";
+    private static final String RESULT_END = "</TestResult>";
+
+    /**
+     * Test that the packages of the shards are interleaved in order, and the summary counts
+     * the merged tests.
+     */
+    public void testMerge_disjoint() throws Exception {
+        String shard0 = String.format(RESULT_START, 0, 0, 0, 0) +
+                createPackage("a", String.format(TEST, "testA", "pass")) +
+                createPackage("c", String.format(TEST, "testC", "fail")) +
+                RESULT_END;
+        String shard1 = String.format(RESULT_START, 1, 1, 1, 1) +
+                createPackage("b", String.format(TEST, "testB", "pass")) +
+                RESULT_END;
+        TestResults results = merge(DuplicatePolicy.PASS_WINS, shard0, shard1);
+        Iterator<TestPackageResult> pkgs = results.getPackages().iterator();
+        assertEquals("a", pkgs.next().getAppPackageName());
+        assertEquals("b", pkgs.next().getAppPackageName());
+        assertEquals("c", pkgs.next().getAppPackageName());
+        assertFalse(pkgs.hasNext());
+        assertEquals(2, results.countTests(CtsTestStatus.PASS));
+        assertEquals(1, results.countTests(CtsTestStatus.FAIL));
+    }
+
+    /**
+     * Test that the device info and start time are taken from the first shard, and the end
+     * time from the last one.
+     */
+    public void testMerge_header() throws Exception {
+        String shard0 = String.format(RESULT_START, 0, 0, 0, 0) + RESULT_END;
+        String shard1 = String.format(RESULT_START, 1, 1, 1, 1) + RESULT_END;
+        String output = mergeToString(DuplicatePolicy.PASS_WINS, shard0, shard1);
+        assertTrue(output.contains("starttime=\"start0\""));
+        assertTrue(output.contains("endtime=\"end1\""));
+        assertTrue(output.contains("deviceID=\"serial0\""));
+        assertTrue(output.contains("name=\"host0\""));
+        assertFalse(output.contains("serial1"));
+        assertFalse(output.contains("host1"));
+    }
+
+    /**
+     * Test that the tests of a package reported by several shards are merged.
+     */
+    public void testMerge_samePackage() throws Exception {
+        String shard0 = String.format(RESULT_START, 0, 0, 0, 0) +
+                createPackage("a", String.format(TEST, "testA", "pass")) +
+                RESULT_END;
+        String shard1 = String.format(RESULT_START, 1, 1, 1, 1) +
+                createPackage("a", String.format(TEST, "testB", "fail")) +
+                RESULT_END;
+        TestResults results = merge(DuplicatePolicy.PASS_WINS, shard0, shard1);
+        assertEquals(1, results.getPackages().size());
+        TestPackageResult pkg = results.getPackages().iterator().next();
+        assertEquals(CtsTestStatus.PASS, pkg.findTest(
+                new TestIdentifier("com.FooTest", "testA")).getResult());
+        assertEquals(CtsTestStatus.FAIL, pkg.findTest(
+                new TestIdentifier("com.FooTest", "testB")).getResult());
+    }
+
+    public void testMerge_passWins() throws Exception {
+        assertEquals(CtsTestStatus.PASS, mergeDuplicate(DuplicatePolicy.PASS_WINS, "fail",
+                "pass"));
+        assertEquals(CtsTestStatus.PASS, mergeDuplicate(DuplicatePolicy.PASS_WINS, "pass",
+                "fail"));
+    }
+
+    public void testMerge_failWins() throws Exception {
+        assertEquals(CtsTestStatus.FAIL, mergeDuplicate(DuplicatePolicy.FAIL_WINS, "fail",
+                "pass"));
+        assertEquals(CtsTestStatus.FAIL, mergeDuplicate(DuplicatePolicy.FAIL_WINS, "pass",
+                "fail"));
+    }
+
+    public void testMerge_lastWins() throws Exception {
+        assertEquals(CtsTestStatus.PASS, mergeDuplicate(DuplicatePolicy.LAST_WINS, "fail",
+                "pass"));
+        assertEquals(CtsTestStatus.FAIL, mergeDuplicate(DuplicatePolicy.LAST_WINS, "pass",
+                "fail"));
+    }
+
+    /**
+     * Test that an executed result always wins over a not executed one.
+     */
+    public void testMerge_notExecuted() throws Exception {
+        assertEquals(CtsTestStatus.FAIL, mergeDuplicate(DuplicatePolicy.LAST_WINS, "fail",
+                "notExecuted"));
+        assertEquals(CtsTestStatus.FAIL, mergeDuplicate(DuplicatePolicy.PASS_WINS,
+                "notExecuted", "fail"));
+    }
+
+    public void testGetPolicy() {
+        assertEquals(DuplicatePolicy.PASS_WINS, DuplicatePolicy.getPolicy("pass-wins"));
+        assertEquals(DuplicatePolicy.LAST_WINS, DuplicatePolicy.getPolicy("LAST-WINS"));
+        assertNull(DuplicatePolicy.getPolicy("first-wins"));
+    }
+
+    private CtsTestStatus mergeDuplicate(DuplicatePolicy policy, String result0,
+            String result1) throws Exception {
+        String shard0 = String.format(RESULT_START, 0, 0, 0, 0) +
+                createPackage("a", String.format(TEST, "testA", result0)) +
+                RESULT_END;
+        String shard1 = String.format(RESULT_START, 1, 1, 1, 1) +
+                createPackage("a", String.format(TEST, "testA", result1)) +
+                RESULT_END;
+        TestResults results = merge(policy, shard0, shard1);
+        TestPackageResult pkg = results.getPackages().iterator().next();
+        return pkg.findTest(new TestIdentifier("com.FooTest", "testA")).getResult();
+    }
+
+    private String createPackage(String appPackageName, String tests) {
+        return String.format(PACKAGE, appPackageName, appPackageName.toUpperCase(), tests);
+    }
+
+    private TestResults merge(DuplicatePolicy policy, String... shards) throws Exception {
+        TestResults results = new TestResults();
+        results.parse(new StringReader(mergeToString(policy, shards)));
+        return results;
+    }
+
+    private String mergeToString(DuplicatePolicy policy, String... shards) throws Exception {
+        List<Reader> inputs = new ArrayList<Reader>();
+        for (String shard : shards) {
+            inputs.add(new StringReader(shard));
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ResultMerger(policy).merge(inputs, output);
+        return output.toString("UTF-8");
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.result;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Unit tests for {@link ResultZipWriter}.
+ */
+public class ResultZipWriterTest extends TestCase {
+
+    private File mRootDir;
+    private File mResultsDir;
+    private File mZipFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRootDir = FileUtil.createTempDir("results");
+        mResultsDir = new File(mRootDir, "2013.01.01_00.00.00");
+        mResultsDir.mkdirs();
+        mZipFile = new File(mRootDir, "2013.01.01_00.00.00.zip");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mRootDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that files added at different times end up below the result directory name, and
+     * that compressed files are stored.
+     */
+    public void testClose() throws IOException {
+        File xmlFile = new File(mResultsDir, "testResult.xml");
+        File pngFile = new File(mResultsDir, "logo.png");
+        File subDir = new File(mResultsDir, "sub");
+        subDir.mkdir();
+        File subFile = new File(subDir, "log.txt");
+        FileUtil.writeToFile("<TestResult/>", xmlFile);
+        FileUtil.writeToFile("not really a png", pngFile);
+        FileUtil.writeToFile("log", subFile);
+
+        ResultZipWriter writer = new ResultZipWriter(mResultsDir, mZipFile);
+        writer.addFile(pngFile);
+        writer.addFile(subDir);
+        // adding a file twice is ignored
+        writer.addFile(pngFile);
+        writer.addFile(xmlFile);
+        assertTrue(writer.close());
+        assertFalse(new File(mZipFile.getPath() + ".tmp").exists());
+
+        Map<String, ZipEntry> entries = getEntries();
+        assertEquals(5, entries.size());
+        assertTrue(entries.containsKey("2013.01.01_00.00.00/"));
+        assertTrue(entries.containsKey("2013.01.01_00.00.00/sub/"));
+        assertEquals(ZipEntry.DEFLATED,
+                entries.get("2013.01.01_00.00.00/testResult.xml").getMethod());
+        assertEquals(ZipEntry.DEFLATED,
+                entries.get("2013.01.01_00.00.00/sub/log.txt").getMethod());
+        assertEquals(ZipEntry.STORED, entries.get("2013.01.01_00.00.00/logo.png").getMethod());
+    }
+
+    /**
+     * Test that files which don't exist are skipped.
+     */
+    public void testClose_missingFile() throws IOException {
+        ResultZipWriter writer = new ResultZipWriter(mResultsDir, mZipFile);
+        writer.addFile(new File(mResultsDir, "testResult.xml"));
+        assertTrue(writer.close());
+        assertEquals(1, getEntries().size());
+    }
+
+    private Map<String, ZipEntry> getEntries() throws IOException {
+        Map<String, ZipEntry> entries = new HashMap<String, ZipEntry>();
+        ZipFile zip = new ZipFile(mZipFile);
+        try {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                entries.put(entry.getName(), entry);
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.device.ITestDevice;
+
+import org.easymock.EasyMock;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * Unit tests for {@link ApkPreStager}.
+ */
+public class ApkPreStagerTest extends TestCase {
+
+    private static final File APK = new File("Foo.apk");
+    private static final String REMOTE_APK = ApkPreStager.STAGING_DIR + "/Foo.apk";
+
+    private ITestDevice mMockDevice;
+    private ApkPreStager mStager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        mStager = new ApkPreStager(mMockDevice);
+    }
+
+    /**
+     * Test that a staged apk is installed from its staged copy.
+     */
+    public void testInstall_staged() throws Exception {
+        expectMkdirs();
+        EasyMock.expect(mMockDevice.pushFile(APK, REMOTE_APK)).andReturn(true);
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains(
+                "pm install -r " + REMOTE_APK))).andReturn(
+                "\tpkg: " + REMOTE_APK + "\r\nSuccess\r\n##cts-batch-exit 0 0\r\n" +
+                "##cts-batch-exit 1 0\r\n");
+        EasyMock.replay(mMockDevice);
+        mStager.stage(Collections.singletonList(APK));
+        assertNull(mStager.install(APK));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an apk whose push failed is installed from the host.
+     */
+    public void testInstall_pushFailed() throws Exception {
+        expectMkdirs();
+        EasyMock.expect(mMockDevice.pushFile(APK, REMOTE_APK)).andReturn(false);
+        EasyMock.expect(mMockDevice.installPackage(APK, true)).andReturn(null);
+        EasyMock.replay(mMockDevice);
+        mStager.stage(Collections.singletonList(APK));
+        assertNull(mStager.install(APK));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an apk which was not staged is installed from the host.
+     */
+    public void testInstall_notStaged() throws Exception {
+        EasyMock.expect(mMockDevice.installPackage(APK, true)).andReturn("FAILED");
+        EasyMock.replay(mMockDevice);
+        assertEquals("FAILED", mStager.install(APK));
+        EasyMock.verify(mMockDevice);
+    }
+
+    public void testParseInstallOutput() {
+        assertNull(ApkPreStager.parseInstallOutput("\tpkg: /data/local/tmp/a.apk\r\nSuccess\r\n"));
+        assertEquals("INSTALL_FAILED_INVALID_APK", ApkPreStager.parseInstallOutput(
+                "\tpkg: /data/local/tmp/a.apk\r\nFailure [INSTALL_FAILED_INVALID_APK]\r\n"));
+        assertEquals("Error: no such file", ApkPreStager.parseInstallOutput(
+                "Error: no such file\r\n"));
+    }
+
+    private void expectMkdirs() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains("mkdir"))).andReturn(
+                "##cts-batch-exit 0 0\n##cts-batch-exit 1 0\n##cts-batch-exit 2 0\n" +
+                "##cts-batch-exit 3 0\n##cts-batch-exit 4 0\n");
+    }
+}
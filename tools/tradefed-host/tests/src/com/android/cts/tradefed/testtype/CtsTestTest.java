@@ -34,6 +34,7 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 
 /**
  * Unit tests for {@link CtsTest}.
@@ -95,6 +96,10 @@ public class CtsTestTest extends TestCase {
         mCtsTest.setSkipDeviceInfo(true);
         EasyMock.expect(mMockPackageDef.getTargetApkName()).andStubReturn(null);
         EasyMock.expect(mMockPackageDef.getTargetPackageName()).andStubReturn(null);
+        EasyMock.expect(mMockPlan.getRebootBeforeUris()).andStubReturn(
+                Collections.<String>emptyList());
+        EasyMock.expect(mMockPlan.getRebootAfterUris()).andStubReturn(
+                Collections.<String>emptyList());
     }
 
     /**
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for {@link FailureArtifactCollector}.
+ */
+public class FailureArtifactCollectorTest extends TestCase {
+
+    private static final TestIdentifier TEST1 = new TestIdentifier("FooTest", "testFoo");
+    private static final TestIdentifier TEST2 = new TestIdentifier("FooTest", "testFoo2");
+
+    private ITestInvocationListener mMockListener;
+    private ITestDevice mMockDevice;
+    private long mCurrentTime = 1000;
+    private FailureArtifactCollector mCollector;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockListener = EasyMock.createNiceMock(ITestInvocationListener.class);
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        mCollector = createCollector(60 * 1000, 1024);
+    }
+
+    private FailureArtifactCollector createCollector(long timeBudgetMs, long bytesBudget) {
+        return new FailureArtifactCollector(mMockListener, mMockDevice, timeBudgetMs,
+                bytesBudget) {
+            @Override
+            long getCurrentTime() {
+                return mCurrentTime;
+            }
+        };
+    }
+
+    /**
+     * Test that failures in quick succession share one screenshot.
+     */
+    public void testScreenshot_burst() throws Exception {
+        mCollector.enableScreenshot();
+        EasyMock.expect(mMockDevice.getScreenshot()).andReturn(createSource(10));
+        mMockListener.testLog(EasyMock.eq("screenshot-FooTest_testFoo"),
+                EasyMock.eq(LogDataType.PNG), (InputStreamSource)EasyMock.anyObject());
+        EasyMock.replay(mMockListener, mMockDevice);
+        runFailures(TEST1, TEST2);
+        EasyMock.verify(mMockListener, mMockDevice);
+    }
+
+    /**
+     * Test that a bugreport is captured in the background and forwarded before the run ends,
+     * and that failures while it is captured share it.
+     */
+    public void testBugreport_shared() throws Exception {
+        mCollector.enableBugreport();
+        final CountDownLatch secondFailure = new CountDownLatch(1);
+        EasyMock.expect(mMockDevice.getBugreport()).andAnswer(
+                new IAnswer<InputStreamSource>() {
+                    @Override
+                    public InputStreamSource answer() throws Throwable {
+                        // keep the capture in progress until both tests have failed
+                        secondFailure.await();
+                        return createSource(100);
+                    }
+                });
+        mMockListener.testLog(EasyMock.eq("bug-FooTest_testFoo"),
+                EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
+        EasyMock.replay(mMockListener, mMockDevice);
+        mCollector.testRunStarted("run", 2);
+        runFailure(TEST1);
+        runFailure(TEST2);
+        secondFailure.countDown();
+        mCollector.testRunEnded(200, Collections.<String, String>emptyMap());
+        mCollector.close();
+        EasyMock.verify(mMockListener, mMockDevice);
+    }
+
+    /**
+     * Test that no more artifacts are captured once the bytes budget is used up.
+     */
+    public void testLogcat_budget() throws Exception {
+        mCollector = createCollector(60 * 1000, 500);
+        mCollector.enableLogcat(1000);
+        EasyMock.expect(mMockDevice.getLogcat(1000)).andReturn(createSource(500));
+        mMockListener.testLog(EasyMock.eq("logcat-FooTest_testFoo"),
+                EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
+        EasyMock.replay(mMockListener, mMockDevice);
+        runFailures(TEST1, TEST2);
+        EasyMock.verify(mMockListener, mMockDevice);
+    }
+
+    /**
+     * Test that an artifact larger than the remaining bytes budget is skipped instead of being
+     * truncated, and that smaller artifacts are still captured afterwards.
+     */
+    public void testLogcat_tooLarge() throws Exception {
+        mCollector = createCollector(60 * 1000, 100);
+        mCollector.enableLogcat(1000);
+        EasyMock.expect(mMockDevice.getLogcat(1000)).andReturn(createSource(500));
+        EasyMock.expect(mMockDevice.getLogcat(1000)).andReturn(createSource(100));
+        mMockListener.testLog(EasyMock.eq("logcat-FooTest_testFoo2"),
+                EasyMock.eq(LogDataType.TEXT), (InputStreamSource)EasyMock.anyObject());
+        EasyMock.replay(mMockListener, mMockDevice);
+        runFailures(TEST1, TEST2);
+        EasyMock.verify(mMockListener, mMockDevice);
+    }
+
+    private void runFailures(TestIdentifier... tests) {
+        mCollector.testRunStarted("run", tests.length);
+        for (TestIdentifier test : tests) {
+            runFailure(test);
+        }
+        mCollector.testRunEnded(tests.length * 100, Collections.<String, String>emptyMap());
+    }
+
+    private void runFailure(TestIdentifier test) {
+        mCollector.testStarted(test);
+        mCollector.testFailed(TestFailure.FAILURE, test, "trace");
+        mCollector.testEnded(test, Collections.<String, String>emptyMap());
+        mCurrentTime += 100;
+    }
+
+    private InputStreamSource createSource(int size) {
+        return new ByteArrayInputStreamSource(new byte[size]);
+    }
+}
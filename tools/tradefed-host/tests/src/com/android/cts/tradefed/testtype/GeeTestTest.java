@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link GeeTest}.
+ */
+public class GeeTestTest extends TestCase {
+
+    private GeeTest mGeeTest;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGeeTest = new GeeTest("android.bionic", "bionic-unit-tests-cts");
+    }
+
+    /**
+     * Test that no flags or environment are used by default.
+     */
+    public void testDefaults() {
+        assertEquals("", mGeeTest.getFlags());
+        assertEquals("", mGeeTest.getEnvironment());
+    }
+
+    /**
+     * Test that the test filter is passed as a quoted --gtest_filter flag.
+     */
+    public void testSetTestFilter() {
+        TestFilter filter = new TestFilter();
+        filter.addExcludedClass("android.bionic.stdio");
+        mGeeTest.setTestFilter(filter);
+        assertEquals("--gtest_filter='*-stdio.*'", mGeeTest.getFlags());
+    }
+
+    /**
+     * Test that a shard keeps the filter, and selects its tests using the gtest environment.
+     */
+    public void testCreateShard() {
+        TestFilter filter = new TestFilter();
+        filter.addExcludedClass("android.bionic.stdio");
+        mGeeTest.setTestFilter(filter);
+        GeeTest shard = mGeeTest.createShard(1, 3);
+        assertEquals("--gtest_filter='*-stdio.*'", shard.getFlags());
+        assertEquals("GTEST_TOTAL_SHARDS=3 GTEST_SHARD_INDEX=1 ", shard.getEnvironment());
+        assertEquals("", mGeeTest.getEnvironment());
+    }
+
+    /**
+     * Test that an invalid shard is rejected.
+     */
+    public void testSetShard_invalid() {
+        try {
+            mGeeTest.setShard(3, 3);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
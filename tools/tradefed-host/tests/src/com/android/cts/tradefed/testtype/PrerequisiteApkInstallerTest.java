@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import org.easymock.EasyMock;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Unit tests for {@link PrerequisiteApkInstaller}.
+ */
+public class PrerequisiteApkInstallerTest extends TestCase {
+
+    private static final String PKG_NAME = "com.android.foo";
+    private static final String UPDATE_TIME = "2013-05-14 10:15:53";
+    private static final String PKG_DUMP = String.format("Packages:\n" +
+            "  Package [%s] (41a3c5f8):\n" +
+            "    versionCode=3 targetSdk=17\n" +
+            "    lastUpdateTime=%s\n" +
+            "    signatures=PackageSignatures{41a3c8b0 [41a3c9a8]}\n", PKG_NAME, UPDATE_TIME);
+
+    private ITestDevice mMockDevice;
+    private File mApkFile;
+    private PrerequisiteApkInstaller mInstaller;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        mApkFile = FileUtil.createTempFile("foo", ".apk");
+        writeApk(mApkFile, createManifest(3));
+        mInstaller = new PrerequisiteApkInstaller(mMockDevice);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mApkFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Test that an apk is not installed again if its marker matches.
+     */
+    public void testInstall_current() throws Exception {
+        String digest = PrerequisiteApkInstaller.getApkInfo(mApkFile).get().getDigest();
+        expectQuery(PKG_DUMP, digest + " " + UPDATE_TIME);
+        EasyMock.replay(mMockDevice);
+        mInstaller.install(getApks());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an apk is installed and its marker written if the marker does not match.
+     */
+    public void testInstall_stale() throws Exception {
+        expectQuery(PKG_DUMP, "0000 " + UPDATE_TIME);
+        expectInstall();
+        EasyMock.replay(mMockDevice);
+        mInstaller.install(getApks());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that an apk is installed if its package is not installed.
+     */
+    public void testInstall_missing() throws Exception {
+        String digest = PrerequisiteApkInstaller.getApkInfo(mApkFile).get().getDigest();
+        expectQuery("Unable to find package: " + PKG_NAME, digest + " " + UPDATE_TIME);
+        expectInstall();
+        EasyMock.replay(mMockDevice);
+        mInstaller.install(getApks());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that nothing is done on the device if there are no apks.
+     */
+    public void testInstall_empty() throws Exception {
+        EasyMock.replay(mMockDevice);
+        mInstaller.install(Collections.<File, String>emptyMap());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the info of an unchanged apk is only read once.
+     */
+    public void testGetApkInfo_cached() throws Exception {
+        assertSame(PrerequisiteApkInstaller.getApkInfo(mApkFile),
+                PrerequisiteApkInstaller.getApkInfo(mApkFile));
+        ApkInfo apkInfo = PrerequisiteApkInstaller.getApkInfo(mApkFile).get();
+        assertEquals(3, apkInfo.getVersionCode());
+        assertTrue(apkInfo.getSignatureHashes().isEmpty());
+    }
+
+    /**
+     * Test that a failed read of an apk is retried.
+     */
+    public void testGetApkInfo_failed() throws Exception {
+        File badApk = FileUtil.createTempFile("bad", ".apk");
+        try {
+            FileUtil.writeToFile("not an apk", badApk);
+            Future<ApkInfo> apkInfo = PrerequisiteApkInstaller.getApkInfo(badApk);
+            try {
+                apkInfo.get();
+                fail("ExecutionException not thrown");
+            } catch (ExecutionException e) {
+                // expected
+            }
+            assertNotSame(apkInfo, PrerequisiteApkInstaller.getApkInfo(badApk));
+        } finally {
+            badApk.delete();
+        }
+    }
+
+    public void testIsInstalled() {
+        ApkInfo apkInfo = new ApkInfo("abc", 3, Collections.singleton("1a2b"));
+        assertTrue(PrerequisiteApkInstaller.isInstalled(apkInfo, PKG_DUMP.replace("\n", "\r\n"),
+                "abc " + UPDATE_TIME + "\r\n"));
+        // different apk
+        assertFalse(PrerequisiteApkInstaller.isInstalled(apkInfo, PKG_DUMP,
+                "abd " + UPDATE_TIME));
+        // reinstalled since the marker was written
+        assertFalse(PrerequisiteApkInstaller.isInstalled(apkInfo, PKG_DUMP,
+                "abc 2013-05-14 09:00:00"));
+        // different version
+        assertFalse(PrerequisiteApkInstaller.isInstalled(apkInfo,
+                PKG_DUMP.replace("versionCode=3", "versionCode=4"), "abc " + UPDATE_TIME));
+        // not installed
+        assertFalse(PrerequisiteApkInstaller.isInstalled(apkInfo, "", "abc "));
+    }
+
+    /**
+     * Test that the signatures are compared if the device lists the certificate hashes.
+     */
+    public void testIsInstalled_signatures() {
+        ApkInfo apkInfo = new ApkInfo("abc", 3, Collections.singleton("1a2b"));
+        String dump = PKG_DUMP.replace("41a3c8b0 [41a3c9a8]",
+                "41a3c8b0 version:2, signatures:[%s], past signatures:[]");
+        assertTrue(PrerequisiteApkInstaller.isInstalled(apkInfo, String.format(dump, "1a2b"),
+                "abc " + UPDATE_TIME));
+        assertFalse(PrerequisiteApkInstaller.isInstalled(apkInfo, String.format(dump, "3c4d"),
+                "abc " + UPDATE_TIME));
+    }
+
+    public void testParseVersionCode() throws IOException {
+        assertEquals(42, ApkInfo.parseVersionCode(createManifest(42)));
+        try {
+            ApkInfo.parseVersionCode(new byte[] {3, 0, 8, 0});
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private Map<File, String> getApks() {
+        return Collections.singletonMap(mApkFile, PKG_NAME);
+    }
+
+    private void expectQuery(String packageDump, String markerOutput) throws Exception {
+        String output = String.format("%s\n##cts-batch-exit 0 0\n%s\n##cts-batch-exit 1 0\n",
+                packageDump, markerOutput);
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains("cat ")))
+                .andReturn(output);
+    }
+
+    private void expectInstall() throws Exception {
+        EasyMock.expect(mMockDevice.installPackage(mApkFile, true)).andReturn(null);
+        // the package is queried again for the lastUpdateTime of the new install
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.and(
+                EasyMock.contains("dumpsys package"), EasyMock.not(EasyMock.contains("cat ")))))
+                .andReturn(PKG_DUMP + "\n##cts-batch-exit 0 0\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                EasyMock.contains(UPDATE_TIME + "\" > "))).andReturn("");
+    }
+
+    /**
+     * Creates a binary AndroidManifest.xml holding only a manifest element with a versionCode.
+     */
+    private static byte[] createManifest(int versionCode) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // file header
+        writeShort(out, 0x0003);
+        writeShort(out, 8);
+        writeInt(out, 8 + 12 + 56);
+        // resource map, attribute name 0 is android:versionCode
+        writeShort(out, 0x0180);
+        writeShort(out, 8);
+        writeInt(out, 12);
+        writeInt(out, 0x0101021b);
+        // start element with one attribute
+        writeShort(out, 0x0102);
+        writeShort(out, 16);
+        writeInt(out, 56);
+        writeInt(out, 1);
+        writeInt(out, -1);
+        writeInt(out, -1);
+        writeInt(out, 1);
+        writeShort(out, 20);
+        writeShort(out, 20);
+        writeShort(out, 1);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeInt(out, -1);
+        writeInt(out, 0);
+        writeInt(out, -1);
+        writeShort(out, 8);
+        out.writeByte(0);
+        out.writeByte(0x10);
+        writeInt(out, versionCode);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeShort(DataOutputStream out, int value) throws IOException {
+        out.writeShort(Short.reverseBytes((short) value));
+    }
+
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeInt(Integer.reverseBytes(value));
+    }
+
+    private static void writeApk(File apkFile, byte[] manifest) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apkFile));
+        try {
+            out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            out.write(manifest);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+}
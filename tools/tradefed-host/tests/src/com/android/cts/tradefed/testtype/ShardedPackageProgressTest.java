@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Unit tests for {@link ShardedPackageProgress}.
+ */
+public class ShardedPackageProgressTest extends TestCase {
+
+    private static final TestIdentifier TEST1 = new TestIdentifier("FooTest", "testFoo");
+    private static final TestIdentifier TEST2 = new TestIdentifier("FooTest", "testFoo2");
+
+    private ShardedPackageProgress mProgress;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProgress = new ShardedPackageProgress(Arrays.asList(TEST1, TEST2), 2);
+    }
+
+    /**
+     * Test that only the last shard to complete reports the unexecuted tests.
+     */
+    public void testShardCompleted() {
+        mProgress.testExecuted(TEST1);
+        assertTrue(mProgress.shardCompleted(1).isEmpty());
+        Collection<TestIdentifier> remaining = mProgress.shardCompleted(0);
+        assertEquals(1, remaining.size());
+        assertTrue(remaining.contains(TEST2));
+    }
+
+    /**
+     * Test that a shard which completes again after being resumed is not counted twice.
+     */
+    public void testShardCompleted_resumed() {
+        assertTrue(mProgress.shardCompleted(0).isEmpty());
+        assertTrue(mProgress.shardCompleted(0).isEmpty());
+        assertEquals(2, mProgress.shardCompleted(1).size());
+    }
+
+    /**
+     * Test that an invalid shard index is rejected.
+     */
+    public void testShardCompleted_invalid() {
+        try {
+            mProgress.shardCompleted(2);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
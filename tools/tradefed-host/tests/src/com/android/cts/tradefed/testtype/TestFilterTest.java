@@ -96,4 +96,32 @@ public class TestFilterTest extends TestCase {
         Iterator<TestIdentifier> iter = filteredList.iterator();
         assertEquals(TEST1, iter.next());
     }
+
+    /**
+     * Test {@link TestFilter#getGTestFilter(String)} with no rules defined
+     */
+    public void testGetGTestFilter_empty() {
+        assertNull(mFilter.getGTestFilter("pkg."));
+    }
+
+    /**
+     * Test {@link TestFilter#getGTestFilter(String)} with excluded classes and tests
+     */
+    public void testGetGTestFilter_exclude() {
+        mFilter.addExcludedClass("pkg.FooTest");
+        mFilter.addExcludedTest(new TestIdentifier("pkg.BarTest", "testBar"));
+        mFilter.addExcludedClass("other.FooTest");
+        assertEquals("*-BarTest.testBar:FooTest.*", mFilter.getGTestFilter("pkg."));
+    }
+
+    /**
+     * Test {@link TestFilter#getGTestFilter(String)} with inclusion and exclusion rules
+     */
+    public void testGetGTestFilter_include() {
+        mFilter.setTestInclusion("pkg.FooTest", null);
+        assertEquals("FooTest.*", mFilter.getGTestFilter("pkg."));
+        mFilter.setTestInclusion("pkg.FooTest", "testFoo");
+        mFilter.addExcludedTest(new TestIdentifier("pkg.FooTest", "testFoo2"));
+        assertEquals("FooTest.testFoo-FooTest.testFoo2", mFilter.getGTestFilter("pkg."));
+    }
 }
@@ -16,12 +16,19 @@
 
 package com.android.cts.tradefed.testtype;
 
+import com.android.cts.util.TestPackageDescriptor;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.util.xml.AbstractXmlParser.ParseException;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -102,6 +109,16 @@ public class TestPackageXmlParserTest extends TestCase {
         assertFalse(iterator.hasNext());
     }
 
+    /**
+     * Test that the tests of a class share the same class name instance.
+     */
+    public void testParse_sharedClassName() throws ParseException  {
+        TestPackageXmlParser parser = new TestPackageXmlParser(true);
+        parser.parse(getStringAsStream(HOST_TEST_DATA));
+        Iterator<TestIdentifier> iterator = parser.getTestPackageDef().getTests().iterator();
+        assertSame(iterator.next().getClassName(), iterator.next().getClassName());
+    }
+
     public void testParse_hostTest_noKnownFailures() throws ParseException  {
         TestPackageXmlParser parser = new TestPackageXmlParser(false);
         parser.parse(getStringAsStream(HOST_TEST_DATA));
@@ -146,6 +163,59 @@ public class TestPackageXmlParserTest extends TestCase {
         assertEquals(expectedType, def.getTestType());
     }
 
+    /**
+     * Test that reading the descriptor of a package gives the same tests as parsing its xml.
+     */
+    public void testParseDescriptor_hostTest() throws ParseException, IOException {
+        for (boolean includeKnownFailures : new boolean[] {true, false}) {
+            TestPackageXmlParser xmlParser = new TestPackageXmlParser(includeKnownFailures);
+            xmlParser.parse(getStringAsStream(HOST_TEST_DATA));
+            TestPackageXmlParser parser = new TestPackageXmlParser(includeKnownFailures);
+            parser.parseDescriptor(getHostTestDescriptor());
+            TestPackageDef def = parser.getTestPackageDef();
+            assertEquals(TestPackageDef.HOST_SIDE_ONLY_TEST, def.getTestType());
+            assertEquals(new ArrayList<TestIdentifier>(xmlParser.getTestPackageDef().getTests()),
+                    new ArrayList<TestIdentifier>(def.getTests()));
+        }
+    }
+
+    /**
+     * Test that the descriptor keeps the attributes, expectations and timeouts of the tests.
+     */
+    public void testReadDescriptor() throws IOException {
+        final List<String> tests = new ArrayList<String>();
+        TestPackageDescriptor.read(getHostTestDescriptor(), new TestPackageDescriptor.Listener() {
+            @Override
+            public void onPackage(Map<String, String> attributes) {
+                tests.add(attributes.toString());
+            }
+
+            @Override
+            public void onTest(String className, String methodName, boolean knownFailure,
+                    int timeout) {
+                tests.add(className + "#" + methodName + " " + knownFailure + " " + timeout);
+            }
+        });
+        assertEquals(Arrays.asList("{hostSideOnly=true, version=1.0}",
+                "com.example.ExampleTest#testFoo false -1",
+                "com.example.ExampleTest#testFoo2 true -1",
+                "com.example2.Example2Test#testFoo false 5"), tests);
+    }
+
+    /**
+     * Test that data other than a descriptor is rejected.
+     */
+    public void testParseDescriptor_invalid() {
+        TestPackageXmlParser parser = new TestPackageXmlParser(true);
+        try {
+            parser.parseDescriptor(getStringAsStream(HOST_TEST_DATA));
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNull(parser.getTestPackageDef());
+    }
+
     /**
      * Test parsing a test case xml with no test package data.
      */
@@ -155,6 +225,21 @@ public class TestPackageXmlParserTest extends TestCase {
         assertNull(parser.getTestPackageDef());
     }
 
+    /**
+     * Returns the descriptor of {@link #HOST_TEST_DATA}, with a timeout for the last test.
+     */
+    private InputStream getHostTestDescriptor() throws IOException {
+        TestPackageDescriptor descriptor = new TestPackageDescriptor();
+        descriptor.setAttribute("hostSideOnly", "true");
+        descriptor.setAttribute("version", "1.0");
+        descriptor.addTest("com.example.ExampleTest", "testFoo", false, -1);
+        descriptor.addTest("com.example.ExampleTest", "testFoo2", true, -1);
+        descriptor.addTest("com.example2.Example2Test", "testFoo", false, 5);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        descriptor.write(output);
+        return new ByteArrayInputStream(output.toByteArray());
+    }
+
     private InputStream getStringAsStream(String input) {
         return new ByteArrayInputStream(input.getBytes());
     }
@@ -65,6 +65,17 @@ public class TestPlanTest extends TestCase {
                     EXCLUDE_TEST_CLASS) +
         "</TestPlan>";
 
+    static final String TEST_REBOOT_DATA =
+        "<TestPlan version=\"1.0\">" +
+            String.format("<Entry uri=\"%s\" reboot=\"before\" />", TEST_URI1) +
+            String.format("<Entry uri=\"%s\" reboot=\"both\" />", TEST_URI2) +
+        "</TestPlan>";
+
+    static final String TEST_INVALID_REBOOT_DATA =
+        "<TestPlan version=\"1.0\">" +
+            String.format("<Entry uri=\"%s\" reboot=\"never\" />", TEST_URI1) +
+        "</TestPlan>";
+
     private TestPlan mPlan;
 
     @Override
@@ -137,6 +148,51 @@ public class TestPlanTest extends TestCase {
         assertTrue(filter.getExcludedClasses().contains(EXCLUDE_TEST_CLASS));
     }
 
+    /**
+     * Test parsing a plan containing packages to reboot around
+     */
+    public void testParse_reboot() throws ParseException  {
+        mPlan.parse(getStringAsStream(TEST_REBOOT_DATA));
+        assertReboot(mPlan);
+    }
+
+    /**
+     * Perform checks to ensure TEST_REBOOT_DATA was parsed correctly
+     * @param plan
+     */
+    private void assertReboot(TestPlan plan) {
+        assertEquals(2, plan.getTestUris().size());
+        assertEquals(2, plan.getRebootBeforeUris().size());
+        assertTrue(plan.getRebootBeforeUris().contains(TEST_URI1));
+        assertTrue(plan.getRebootBeforeUris().contains(TEST_URI2));
+        assertEquals(1, plan.getRebootAfterUris().size());
+        assertTrue(plan.getRebootAfterUris().contains(TEST_URI2));
+    }
+
+    /**
+     * Test parsing a plan containing an invalid reboot value
+     */
+    public void testParse_invalidReboot() {
+        try {
+            mPlan.parse(getStringAsStream(TEST_INVALID_REBOOT_DATA));
+            fail("ParseException not thrown");
+        } catch (ParseException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test serializing and deserializing plan with packages to reboot around
+     */
+    public void testSerialize_reboot() throws ParseException, IOException  {
+        mPlan.parse(getStringAsStream(TEST_REBOOT_DATA));
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        mPlan.serialize(outStream);
+        TestPlan parsedPlan = new TestPlan("parsed");
+        parsedPlan.parse(getStringAsStream(outStream.toString()));
+        assertReboot(parsedPlan);
+    }
+
     /**
      * Test serializing an empty plan
      * @throws IOException
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.testtype;
+
+import com.android.cts.tradefed.build.StubCtsBuildHelper;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.ITestInvocationListener;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link VMTestBatchResultParser} and the batch mode of {@link VMHostTest}.
+ */
+public class VMTestBatchResultParserTest extends TestCase {
+
+    private static final String CLASS_NAME = "dot.junit.opcodes.aaload.JUnit_Test_aaload";
+    private static final TestIdentifier TEST1 = new TestIdentifier(CLASS_NAME, "testN1");
+    private static final TestIdentifier TEST2 = new TestIdentifier(CLASS_NAME, "testN2");
+    private static final TestIdentifier TEST3 = new TestIdentifier(CLASS_NAME, "testN3");
+
+    private static final String[] OUTPUT_ALL = new String[] {
+        "##vmtest-start " + CLASS_NAME + "#testN1",
+        "##vmtest-end " + CLASS_NAME + "#testN1 pass",
+        "##vmtest-start " + CLASS_NAME + "#testN2",
+        "java.lang.RuntimeException: AssertionFailedError: condition was false",
+        "##vmtest-end " + CLASS_NAME + "#testN2 fail",
+        "##vmtest-start " + CLASS_NAME + "#testN3",
+        "##vmtest-end " + CLASS_NAME + "#testN3 pass",
+        "##vmtest-batch-end",
+    };
+
+    private static final String[] OUTPUT_CRASH = new String[] {
+        "##vmtest-start " + CLASS_NAME + "#testN1",
+        "##vmtest-end " + CLASS_NAME + "#testN1 pass",
+        "##vmtest-start " + CLASS_NAME + "#testN2",
+        "Segmentation fault",
+    };
+
+    private static final String[] OUTPUT_REMAINING = new String[] {
+        "##vmtest-start " + CLASS_NAME + "#testN3",
+        "##vmtest-end " + CLASS_NAME + "#testN3 pass",
+        "##vmtest-batch-end",
+    };
+
+    /**
+     * Test parsing a batch where all tests complete.
+     */
+    @SuppressWarnings("unchecked")
+    public void testParse() {
+        ITestRunListener listener = EasyMock.createStrictMock(ITestRunListener.class);
+        listener.testStarted(TEST1);
+        listener.testEnded(TEST1, Collections.EMPTY_MAP);
+        listener.testStarted(TEST2);
+        listener.testFailed(TestFailure.FAILURE, TEST2,
+                "java.lang.RuntimeException: AssertionFailedError: condition was false\n");
+        listener.testEnded(TEST2, Collections.EMPTY_MAP);
+        listener.testStarted(TEST3);
+        listener.testEnded(TEST3, Collections.EMPTY_MAP);
+        EasyMock.replay(listener);
+
+        VMTestBatchResultParser parser = new VMTestBatchResultParser(listener);
+        parser.processNewLines(OUTPUT_ALL);
+        parser.done();
+        assertTrue(parser.isBatchCompleted());
+        assertEquals(3, parser.getCompletedTests().size());
+        EasyMock.verify(listener);
+    }
+
+    /**
+     * Test that a test in progress when the vm dies is reported as failed.
+     */
+    @SuppressWarnings("unchecked")
+    public void testParse_vmCrash() {
+        ITestRunListener listener = EasyMock.createStrictMock(ITestRunListener.class);
+        listener.testStarted(TEST1);
+        listener.testEnded(TEST1, Collections.EMPTY_MAP);
+        listener.testStarted(TEST2);
+        listener.testFailed(EasyMock.eq(TestFailure.ERROR), EasyMock.eq(TEST2),
+                EasyMock.contains("Segmentation fault"));
+        listener.testEnded(TEST2, Collections.EMPTY_MAP);
+        EasyMock.replay(listener);
+
+        VMTestBatchResultParser parser = new VMTestBatchResultParser(listener);
+        parser.processNewLines(OUTPUT_CRASH);
+        parser.done();
+        assertFalse(parser.isBatchCompleted());
+        assertEquals(2, parser.getCompletedTests().size());
+        EasyMock.verify(listener);
+    }
+
+    /**
+     * Test that {@link VMHostTest} runs a whole class in one shell command, and resumes with the
+     * remaining tests in a new vm after a crash.
+     */
+    @SuppressWarnings("unchecked")
+    public void testRunBatched() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        device.executeShellCommand(
+                EasyMock.contains("dot.junit.DxBatchMain /data/local/tmp/vm-tests/" +
+                        VMHostTest.BATCH_MANIFEST + " " + CLASS_NAME + " testN1 testN2 testN3"),
+                (IShellOutputReceiver) EasyMock.anyObject(), EasyMock.anyInt(), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(new ShellOutputAnswer(OUTPUT_CRASH));
+        device.executeShellCommand(EasyMock.endsWith(CLASS_NAME + " testN3"),
+                (IShellOutputReceiver) EasyMock.anyObject(), EasyMock.anyInt(), EasyMock.eq(0));
+        EasyMock.expectLastCall().andAnswer(new ShellOutputAnswer(OUTPUT_REMAINING));
+
+        ITestInvocationListener listener = EasyMock.createStrictMock(
+                ITestInvocationListener.class);
+        listener.testRunStarted("run", 3);
+        listener.testStarted(TEST1);
+        listener.testEnded(TEST1, Collections.EMPTY_MAP);
+        listener.testStarted(TEST2);
+        listener.testFailed(EasyMock.eq(TestFailure.ERROR), EasyMock.eq(TEST2),
+                (String) EasyMock.anyObject());
+        listener.testEnded(TEST2, Collections.EMPTY_MAP);
+        listener.testStarted(TEST3);
+        listener.testEnded(TEST3, Collections.EMPTY_MAP);
+        listener.testRunEnded(EasyMock.anyLong(), EasyMock.eq(Collections.EMPTY_MAP));
+
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(TEST1);
+        tests.add(TEST2);
+        tests.add(TEST3);
+        VMHostTest vmTest = new VMHostTest();
+        vmTest.setBuildHelper(new StubCtsBuildHelper());
+        vmTest.setDevice(device);
+        vmTest.setJarFileName("fakefile");
+        vmTest.setRunName("run");
+        vmTest.setTests(tests);
+        vmTest.setBatchMode(true);
+
+        EasyMock.replay(device, listener);
+        vmTest.runBatched(listener);
+        EasyMock.verify(device, listener);
+    }
+
+    /**
+     * Feeds the given lines to the {@link IShellOutputReceiver} passed to
+     * {@link ITestDevice#executeShellCommand(String, IShellOutputReceiver, int, int)}.
+     */
+    private static class ShellOutputAnswer implements IAnswer<Object> {
+        private final String[] mLines;
+
+        ShellOutputAnswer(String[] lines) {
+            mLines = lines;
+        }
+
+        @Override
+        public Object answer() throws Throwable {
+            IShellOutputReceiver receiver =
+                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+            StringBuilder output = new StringBuilder();
+            for (String line : mLines) {
+                output.append(line).append("\r\n");
+            }
+            byte[] data = output.toString().getBytes();
+            receiver.addOutput(data, 0, data.length);
+            receiver.flush();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.cts.tradefed.util.CtsHostStore.PerfResult;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link CtsHostStore}.
+ */
+public class CtsHostStoreTest extends TestCase {
+
+    private static final String SERIAL1 = "serial1";
+    private static final String SERIAL2 = "serial2";
+    private static final String TEST = "com.example.FooTest#testFoo";
+    private static final String RESULT =
+            "time|100.0|lowerBetter|ms|42.5++++com.example.FooTest#testFoo:10|time|lowerBetter|" +
+            "ms|40.0 45.0 ";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        CtsHostStore.startInvocation(SERIAL1);
+        CtsHostStore.startInvocation(SERIAL2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CtsHostStore.endInvocation(SERIAL1);
+        CtsHostStore.endInvocation(SERIAL2);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a stored result can be removed once, and is split into summary and details.
+     */
+    public void testStoreAndRemove() {
+        CtsHostStore.storeCtsResult(SERIAL1, TEST, RESULT);
+        assertNull(CtsHostStore.removePerfResult(SERIAL2, TEST));
+        PerfResult result = CtsHostStore.removePerfResult(SERIAL1, TEST);
+        assertTrue(result.isValid());
+        assertEquals("time|100.0|lowerBetter|ms|42.5", result.getSummary());
+        assertEquals("com.example.FooTest#testFoo:10|time|lowerBetter|ms|40.0 45.0 ",
+                result.getDetails());
+        assertNull(CtsHostStore.removeCtsResult(SERIAL1, TEST));
+    }
+
+    /**
+     * Test that results of tests that never completed are discarded with the invocation.
+     */
+    public void testEndInvocation() {
+        CtsHostStore.storeCtsResult(SERIAL1, TEST, RESULT);
+        CtsHostStore.endInvocation(SERIAL1);
+        assertNull(CtsHostStore.removeCtsResult(SERIAL1, TEST));
+    }
+}
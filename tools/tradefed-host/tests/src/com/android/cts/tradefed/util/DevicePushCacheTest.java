@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Unit tests for {@link DevicePushCache}.
+ */
+public class DevicePushCacheTest extends TestCase {
+
+    private Map<String, String> mLocalDigests;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocalDigests = new TreeMap<String, String>();
+        mLocalDigests.put("dot/junit/dexcore.jar", "aaaa");
+        mLocalDigests.put("dot/junit/opcodes/add_int/Main_testN1.jar", "bbbb");
+        mLocalDigests.put("vm-tests-batch.txt", "cccc");
+    }
+
+    /**
+     * Test that a manifest survives formatting and parsing.
+     */
+    public void testManifest_roundTrip() {
+        Map<String, String> parsed = DevicePushCache.parseManifest(
+                DevicePushCache.formatManifest(mLocalDigests));
+        assertEquals(mLocalDigests, parsed);
+    }
+
+    /**
+     * Test that malformed manifest lines, like an error message of the device shell, are ignored.
+     */
+    public void testParseManifest_malformed() {
+        Map<String, String> parsed = DevicePushCache.parseManifest(
+                "aaaa dir/file name\r\nno_such_file\n\nbbbb \n");
+        assertEquals(Collections.singletonMap("dir/file name", "aaaa"), parsed);
+    }
+
+    /**
+     * Test that all files are changed if the device has no manifest.
+     */
+    public void testGetChangedFiles_noManifest() {
+        assertEquals(3, DevicePushCache.getChangedFiles(mLocalDigests, null).size());
+    }
+
+    /**
+     * Test that only new and modified files are changed.
+     */
+    public void testGetChangedFiles() {
+        Map<String, String> remoteDigests = new TreeMap<String, String>(mLocalDigests);
+        remoteDigests.remove("vm-tests-batch.txt");
+        remoteDigests.put("dot/junit/dexcore.jar", "dddd");
+        remoteDigests.put("stale.jar", "eeee");
+        List<String> changed = DevicePushCache.getChangedFiles(mLocalDigests, remoteDigests);
+        assertEquals(Arrays.asList("dot/junit/dexcore.jar", "vm-tests-batch.txt"), changed);
+    }
+
+    /**
+     * Test that the least recently used extracted jars are evicted until the cache fits, and that
+     * extractions in progress are kept.
+     */
+    public void testEvictJars() throws IOException {
+        File cacheDir = FileUtil.createTempDir("cts-jar-cache");
+        try {
+            long now = System.currentTimeMillis();
+            File oldest = createExtractedJar(cacheDir, "oldest", now - 3000);
+            File older = createExtractedJar(cacheDir, "older", now - 2000);
+            File newest = createExtractedJar(cacheDir, "newest", now - 1000);
+            File inProgress = new File(cacheDir, "cts-jar-tmp");
+            assertTrue(inProgress.mkdir());
+            DevicePushCache.evictJars(cacheDir, 250);
+            assertFalse(oldest.exists());
+            assertTrue(older.exists());
+            assertTrue(newest.exists());
+            assertTrue(inProgress.exists());
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    private File createExtractedJar(File cacheDir, String name, long lastUsed)
+            throws IOException {
+        File dir = new File(cacheDir, name);
+        assertTrue(dir.mkdir());
+        FileUtil.writeToFile(new String(new char[100]), new File(dir, "classes.dex"));
+        File marker = new File(dir, ".extracted");
+        assertTrue(marker.createNewFile());
+        assertTrue(marker.setLastModified(lastUsed));
+        return dir;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.tradefed.device.ITestDevice;
+
+import org.easymock.EasyMock;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link DeviceReadinessProbe}.
+ */
+public class DeviceReadinessProbeTest extends TestCase {
+
+    private static final String PROC_STAT =
+            "cpu  %d 0 %d %d 0 0 0 0 0 0\n" +
+            "cpu0 1 2 3 4 5 6 7 0 0 0\n" +
+            "intr 12345\n";
+
+    private ITestDevice mMockDevice;
+    private long mCurrentTime = 0;
+    private DeviceReadinessProbe mProbe;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        mProbe = new DeviceReadinessProbe(mMockDevice, 30, 1000) {
+            @Override
+            long getCurrentTime() {
+                return mCurrentTime;
+            }
+
+            @Override
+            void sleep(long timeMs) {
+                mCurrentTime += timeMs;
+            }
+        };
+    }
+
+    /**
+     * Test parsing the aggregate cpu line of /proc/stat.
+     */
+    public void testParseCpuTimes() {
+        long[] times = DeviceReadinessProbe.parseCpuTimes(
+                "cpu  10 20 30 400 50 0 0 0 0 0\r\ncpu0 1 1 1 1 1 1 1 1 1 1\r\n");
+        assertEquals(450, times[0]);
+        assertEquals(510, times[1]);
+        assertNull(DeviceReadinessProbe.parseCpuTimes("/proc/stat: No such file"));
+    }
+
+    /**
+     * Test computing the load between two samples.
+     */
+    public void testGetCpuLoad() {
+        assertEquals(-1, DeviceReadinessProbe.getCpuLoad(null, new long[] {10, 20}));
+        assertEquals(-1, DeviceReadinessProbe.getCpuLoad(new long[] {10, 20},
+                new long[] {10, 20}));
+        assertEquals(25, DeviceReadinessProbe.getCpuLoad(new long[] {100, 200},
+                new long[] {175, 300}));
+    }
+
+    /**
+     * Test that the probe waits until the CPU load drops below the threshold.
+     */
+    public void testWaitForReady() throws Exception {
+        // busy, busy, idle
+        expectPoll("1", String.format(PROC_STAT, 100, 0, 100));
+        expectPoll("1", String.format(PROC_STAT, 180, 0, 120));
+        expectPoll("1", String.format(PROC_STAT, 190, 0, 210));
+        EasyMock.replay(mMockDevice);
+        assertTrue(mProbe.waitForReady(10 * 1000));
+        assertEquals(2000, mCurrentTime);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the probe gives up once the maximum wait time has elapsed.
+     */
+    public void testWaitForReady_timeout() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            expectPoll("0", String.format(PROC_STAT, 0, 0, 100 * i));
+        }
+        EasyMock.replay(mMockDevice);
+        assertFalse(mProbe.waitForReady(2500));
+        EasyMock.verify(mMockDevice);
+    }
+
+    private void expectPoll(String bootCompleted, String procStat) throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand((String)EasyMock.anyObject())).andReturn(
+                String.format("%s\n##cts-batch-exit 0 0\n" +
+                        "package:/system/framework/framework-res.apk\n##cts-batch-exit 1 0\n" +
+                        "%s##cts-batch-exit 2 0\n", bootCompleted, procStat));
+    }
+}
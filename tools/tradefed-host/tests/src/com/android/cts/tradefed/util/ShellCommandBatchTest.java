@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.cts.tradefed.util;
+
+import com.android.cts.tradefed.util.ShellCommandBatch.Result;
+import com.android.tradefed.device.ITestDevice;
+
+import org.easymock.EasyMock;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link ShellCommandBatch}.
+ */
+public class ShellCommandBatchTest extends TestCase {
+
+    private ITestDevice mMockDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+    }
+
+    /**
+     * Test that the output and exit status of every command are separated.
+     */
+    public void testExecute() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "ls /foo; echo \"##cts-batch-exit 0 $?\"; " +
+                "rm /bar; echo \"##cts-batch-exit 1 $?\"; "))
+                .andReturn("a\r\nb\r\n##cts-batch-exit 0 0\r\n" +
+                        "rm failed for /bar, No such file or directory\r\n" +
+                        "##cts-batch-exit 1 255\r\n");
+        EasyMock.replay(mMockDevice);
+        List<Result> results = new ShellCommandBatch(mMockDevice).add("ls /foo").add("rm /bar")
+                .execute();
+        assertEquals(2, results.size());
+        assertEquals("a\r\nb\r\n", results.get(0).getOutput());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("rm /bar", results.get(1).getCommand());
+        assertEquals("rm failed for /bar, No such file or directory\r\n",
+                results.get(1).getOutput());
+        assertEquals(255, results.get(1).getExitStatus());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that a batch exceeding the maximum command length is split.
+     */
+    public void testExecute_split() throws Exception {
+        StringBuilder longArg = new StringBuilder();
+        while (longArg.length() < ShellCommandBatch.MAX_COMMAND_LENGTH / 2 + 1) {
+            longArg.append('x');
+        }
+        EasyMock.expect(mMockDevice.executeShellCommand((String)EasyMock.anyObject()))
+                .andReturn("##cts-batch-exit 0 0\n").times(2);
+        EasyMock.replay(mMockDevice);
+        List<Result> results = new ShellCommandBatch(mMockDevice)
+                .add("echo " + longArg).add("echo " + longArg).execute();
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(1).isSuccess());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that commands are reported as not completed if the output was cut off.
+     */
+    public void testParseOutput_truncated() {
+        List<Result> results = ShellCommandBatch.parseOutput(
+                Arrays.asList("true", "sleep 100", "true"), "##cts-batch-exit 0 0\nKilled");
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("Killed", results.get(1).getOutput());
+        assertEquals(-1, results.get(1).getExitStatus());
+        assertEquals(-1, results.get(2).getExitStatus());
+    }
+
+    /**
+     * Test that the commands to create a directory include all of its parents.
+     */
+    public void testAddMkdirs() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "mkdir /data 2>/dev/null; echo \"##cts-batch-exit 0 $?\"; " +
+                "mkdir /data/local 2>/dev/null; echo \"##cts-batch-exit 1 $?\"; " +
+                "(cd /data/local); echo \"##cts-batch-exit 2 $?\"; "))
+                .andReturn("##cts-batch-exit 0 1\n##cts-batch-exit 1 1\n##cts-batch-exit 2 0\n");
+        EasyMock.replay(mMockDevice);
+        List<Result> results = new ShellCommandBatch(mMockDevice).addMkdirs("/data/local")
+                .execute();
+        assertTrue(results.get(2).isSuccess());
+        EasyMock.verify(mMockDevice);
+    }
+}
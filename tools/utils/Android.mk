@@ -20,7 +20,8 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE := descGen
 
-LOCAL_SRC_FILES := CollectAllTests.java DescriptionGenerator.java VogarUtils.java
+LOCAL_SRC_FILES := CollectAllTests.java DescriptionGenerator.java VogarUtils.java \
+    ../../libs/commonutil/src/com/android/cts/util/TestPackageDescriptor.java
 
 LOCAL_CLASSPATH := $(HOST_JDK_TOOLS_JAR)
 
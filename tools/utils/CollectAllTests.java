@@ -14,8 +14,11 @@
  * limitations under the License.
  */
 
+import com.android.cts.util.TestPackageDescriptor;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -29,18 +32,24 @@ import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -68,6 +77,23 @@ public class CollectAllTests extends DescriptionGenerator {
     private static final String JAR_PATH = "LOCAL_JAR_PATH :=";
     private static final String TEST_TYPE = "LOCAL_TEST_TYPE :";
 
+    /** Flags of the annotations that exclude a test method from the package. */
+    private static final int FLAG_KNOWN_FAILURE = 1 << 0;
+    private static final int FLAG_BROKEN_TEST = 1 << 1;
+    private static final int FLAG_SUPPRESSED_TEST = 1 << 2;
+    private static final int FLAG_SIDE_EFFECT = 1 << 3;
+
+    /**
+     * Orders methods by name. {@link Class#getDeclaredMethods()} returns them in no particular
+     * order, which varies with the order the VM loaded the classes in.
+     */
+    private static final Comparator<Method> METHOD_NAME_COMPARATOR = new Comparator<Method>() {
+        @Override
+        public int compare(Method method1, Method method2) {
+            return method1.getName().compareTo(method2.getName());
+        }
+    };
+
     public static void main(String[] args) {
         if (args.length < 4 || args.length > 6) {
             System.err.println("usage: CollectAllTests <output-file> <manifest-file> <jar-file> "
@@ -170,7 +196,7 @@ public class CollectAllTests extends DescriptionGenerator {
             System.exit(1);
             return;
         }
-        ExpectationStore[] expectations = new ExpectationStore[] {
+        final ExpectationStore[] expectations = new ExpectationStore[] {
             libcoreVogarExpectationStore, ctsVogarExpectationStore
         };
 
@@ -183,10 +209,9 @@ public class CollectAllTests extends DescriptionGenerator {
             System.exit(1);
         }
 
-        Map<String,TestClass> testCases = new LinkedHashMap<String, TestClass>();
-
         String javaPackagePrefix = javaPackageFilter.isEmpty() ? "" : (javaPackageFilter + ".");
 
+        List<String> classNames = new ArrayList<String>();
         Enumeration<JarEntry> jarEntries = jarFile.entries();
         while (jarEntries.hasMoreElements()) {
             JarEntry jarEntry = jarEntries.nextElement();
@@ -199,49 +224,55 @@ public class CollectAllTests extends DescriptionGenerator {
             if (!className.startsWith(javaPackagePrefix)) {
                 continue;
             }
-            try {
-                Class<?> klass = Class.forName(className,
-                                               false,
-                                               CollectAllTests.class.getClassLoader());
-                if (!TestCase.class.isAssignableFrom(klass)) {
-                    continue;
-                }
-                if (Modifier.isAbstract(klass.getModifiers())) {
-                    continue;
-                }
-                if (!Modifier.isPublic(klass.getModifiers())) {
-                    continue;
+            classNames.add(className);
+        }
+
+        // Classes are independent, so collect their tests in parallel. The results are still
+        // added in jar order, so the generated xml and the log don't depend on the scheduling.
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        List<Future<CollectedClass>> results = new ArrayList<Future<CollectedClass>>();
+        for (final String className : classNames) {
+            results.add(executor.submit(new Callable<CollectedClass>() {
+                @Override
+                public CollectedClass call() throws ClassNotFoundException {
+                    return collectTests(expectations, className);
                 }
+            }));
+        }
+        TestPackageDescriptor descriptor = new TestPackageDescriptor();
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                CollectedClass collected;
                 try {
-                    klass.getConstructor(new Class<?>[] { String.class } );
-                    addToTests(expectations, testCases, klass.asSubclass(TestCase.class));
-                    continue;
-                } catch (NoSuchMethodException e) {
-                } catch (SecurityException e) {
-                    System.out.println("Known bug (Working as intended): problem with class "
-                            + className);
-                    e.printStackTrace();
+                    collected = results.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof ClassNotFoundException) {
+                        System.out.println("class not found " + classNames.get(i));
+                    } else {
+                        System.out.println("cannot collect tests of " + classNames.get(i) + ": "
+                                + cause);
+                    }
+                    cause.printStackTrace();
+                    System.exit(1);
+                    return;
                 }
-                try {
-                    klass.getConstructor(new Class<?>[0]);
-                    addToTests(expectations, testCases, klass.asSubclass(TestCase.class));
-                    continue;
-                } catch (NoSuchMethodException e) {
-                } catch (SecurityException e) {
-                    System.out.println("Known bug (Working as intended): problem with class "
-                            + className);
-                    e.printStackTrace();
+                System.out.print(collected.mLog);
+                if (collected.mTestClass != null) {
+                    // added first, as the xml generator consumes the class name
+                    for (TestMethod testMethod : collected.mTestClass.mCases) {
+                        descriptor.addTest(collected.mTestClass.mName, testMethod.mName, false,
+                                -1);
+                    }
+                    xmlGenerator.addTestClass(collected.mTestClass);
                 }
-            } catch (ClassNotFoundException e) {
-                System.out.println("class not found " + className);
-                e.printStackTrace();
-                System.exit(1);
             }
-        }
-
-        for (Iterator<TestClass> iterator = testCases.values().iterator(); iterator.hasNext();) {
-            TestClass type = iterator.next();
-            xmlGenerator.addTestClass(type);
+        } catch (InterruptedException e) {
+            System.err.println("interrupted while collecting tests");
+            System.exit(1);
+        } finally {
+            executor.shutdownNow();
         }
 
         try {
@@ -251,6 +282,21 @@ public class CollectAllTests extends DescriptionGenerator {
             e.printStackTrace();
             System.exit(1);
         }
+
+        // written after the xml, so that it is never older than the xml it was built with
+        NamedNodeMap attributes = xmlGenerator.mDoc.getDocumentElement().getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            descriptor.setAttribute(attribute.getNodeName(), attribute.getNodeValue());
+        }
+        File descriptorFile = TestPackageDescriptor.getDescriptorFile(new File(outputXmlFile));
+        try {
+            descriptor.write(descriptorFile);
+        } catch (IOException e) {
+            System.err.println("cannot write test package descriptor to " + descriptorFile);
+            e.printStackTrace();
+            System.exit(1);
+        }
     }
 
     private static class TestType {
@@ -314,70 +360,89 @@ public class CollectAllTests extends DescriptionGenerator {
         }
     }
 
-    private static String getKnownFailure(final Class<? extends TestCase> testClass,
-            final String testName) {
-        return getAnnotation(testClass, testName, KNOWN_FAILURE);
-    }
-
-    private static boolean isKnownFailure(final Class<? extends TestCase> testClass,
-            final String testName) {
-        return getAnnotation(testClass, testName, KNOWN_FAILURE) != null;
-    }
-
-    private static boolean isBrokenTest(final Class<? extends TestCase> testClass,
-            final String testName)  {
-        return getAnnotation(testClass, testName, BROKEN_TEST) != null;
-    }
-
-    private static boolean isSuppressed(final Class<? extends TestCase> testClass,
-            final String testName)  {
-        return getAnnotation(testClass, testName, SUPPRESSED_TEST) != null;
-    }
-
-    private static boolean hasSideEffects(final Class<? extends TestCase> testClass,
-            final String testName) {
-        return getAnnotation(testClass, testName, SIDE_EFFECT) != null;
+    /**
+     * The tests collected from one class, and the messages to log about it.
+     */
+    private static class CollectedClass {
+        /** the class and its tests, or null if it has no tests to run */
+        TestClass mTestClass;
+        final StringWriter mLog = new StringWriter();
     }
 
-    private static String getAnnotation(final Class<? extends TestCase> testClass,
-            final String testName, final String annotationName) {
+    /**
+     * Collects the tests of a class found in the jar.
+     *
+     * @return the collected tests, without a {@link TestClass} if the class isn't a test case
+     *         or none of its tests should run
+     */
+    private static CollectedClass collectTests(ExpectationStore[] expectations,
+            String className) throws ClassNotFoundException {
+        CollectedClass collected = new CollectedClass();
+        PrintWriter log = new PrintWriter(collected.mLog);
+        Class<?> klass = Class.forName(className,
+                                       false,
+                                       CollectAllTests.class.getClassLoader());
+        if (!TestCase.class.isAssignableFrom(klass)) {
+            return collected;
+        }
+        if (Modifier.isAbstract(klass.getModifiers())) {
+            return collected;
+        }
+        if (!Modifier.isPublic(klass.getModifiers())) {
+            return collected;
+        }
         try {
-            Method testMethod = testClass.getMethod(testName, (Class[])null);
-            Annotation[] annotations = testMethod.getAnnotations();
-            for (Annotation annot : annotations) {
-
-                if (annot.annotationType().getName().equals(annotationName)) {
-                    String annotStr = annot.toString();
-                    String knownFailure = null;
-                    if (annotStr.contains("(value=")) {
-                        knownFailure =
-                            annotStr.substring(annotStr.indexOf("=") + 1,
-                                    annotStr.length() - 1);
-
-                    }
-
-                    if (knownFailure == null) {
-                        knownFailure = "true";
-                    }
-
-                    return knownFailure;
-                }
-
-            }
-
+            klass.getConstructor(new Class<?>[] { String.class } );
+            addToTests(expectations, collected, log, klass.asSubclass(TestCase.class));
+            return collected;
+        } catch (NoSuchMethodException e) {
+        } catch (SecurityException e) {
+            log.println("Known bug (Working as intended): problem with class " + className);
+            e.printStackTrace(log);
+        }
+        try {
+            klass.getConstructor(new Class<?>[0]);
+            addToTests(expectations, collected, log, klass.asSubclass(TestCase.class));
+            return collected;
         } catch (NoSuchMethodException e) {
+        } catch (SecurityException e) {
+            log.println("Known bug (Working as intended): problem with class " + className);
+            e.printStackTrace(log);
         }
+        return collected;
+    }
 
-        return null;
+    /**
+     * Resolves all the annotations that exclude a test method in a single pass.
+     *
+     * @return the FLAG_* bits of the annotations present on the method
+     */
+    private static int getAnnotationFlags(Method testMethod) {
+        int flags = 0;
+        for (Annotation annot : testMethod.getAnnotations()) {
+            String annotationName = annot.annotationType().getName();
+            if (annotationName.equals(KNOWN_FAILURE)) {
+                flags |= FLAG_KNOWN_FAILURE;
+            } else if (annotationName.equals(BROKEN_TEST)) {
+                flags |= FLAG_BROKEN_TEST;
+            } else if (annotationName.equals(SUPPRESSED_TEST)) {
+                flags |= FLAG_SUPPRESSED_TEST;
+            } else if (annotationName.equals(SIDE_EFFECT)) {
+                flags |= FLAG_SIDE_EFFECT;
+            }
+        }
+        return flags;
     }
 
     private static void addToTests(ExpectationStore[] expectations,
-                                   Map<String,TestClass> testCases,
+                                   CollectedClass collected,
+                                   PrintWriter log,
                                    Class<? extends TestCase> test) {
         Class testClass = test;
         Set<String> testNames = new HashSet<String>();
         while (TestCase.class.isAssignableFrom(testClass)) {
             Method[] testMethods = testClass.getDeclaredMethods();
+            Arrays.sort(testMethods, METHOD_NAME_COMPARATOR);
             for (Method testMethod : testMethods) {
                 String testName = testMethod.getName();
                 if (testNames.contains(testName)) {
@@ -396,49 +461,48 @@ public class CollectAllTests extends DescriptionGenerator {
                     continue;
                 }
                 testNames.add(testName);
-                addToTests(expectations, testCases, test, testName);
+                addToTests(expectations, collected, log, test, testMethod);
             }
             testClass = testClass.getSuperclass();
         }
     }
 
     private static void addToTests(ExpectationStore[] expectations,
-                                   Map<String,TestClass> testCases,
+                                   CollectedClass collected,
+                                   PrintWriter log,
                                    Class<? extends TestCase> test,
-                                   String testName) {
+                                   Method testMethod) {
 
         String testClassName = test.getName();
-        String knownFailure = getKnownFailure(test, testName);
+        String testName = testMethod.getName();
+        int flags = getAnnotationFlags(testMethod);
 
-        if (isKnownFailure(test, testName)) {
-            System.out.println("ignoring known failure: " + test + "#" + testName);
+        if ((flags & FLAG_KNOWN_FAILURE) != 0) {
+            log.println("ignoring known failure: " + test + "#" + testName);
             return;
-        } else if (isBrokenTest(test, testName)) {
-            System.out.println("ignoring broken test: " + test + "#" + testName);
+        } else if ((flags & FLAG_BROKEN_TEST) != 0) {
+            log.println("ignoring broken test: " + test + "#" + testName);
             return;
-        } else if (isSuppressed(test, testName)) {
-            System.out.println("ignoring suppressed test: " + test + "#" + testName);
+        } else if ((flags & FLAG_SUPPRESSED_TEST) != 0) {
+            log.println("ignoring suppressed test: " + test + "#" + testName);
             return;
-        } else if (hasSideEffects(test, testName)) {
-            System.out.println("ignoring test with side effects: " + test + "#" + testName);
+        } else if ((flags & FLAG_SIDE_EFFECT) != 0) {
+            log.println("ignoring test with side effects: " + test + "#" + testName);
             return;
         } else if (VogarUtils.isVogarKnownFailure(expectations,
                                                   testClassName,
                                                   testName)) {
-            System.out.println("ignoring expectation known failure: " + test
+            log.println("ignoring expectation known failure: " + test
                                + "#" + testName);
             return;
         }
 
-        TestClass testClass = null;
-        if (testCases.containsKey(testClassName)) {
-            testClass = testCases.get(testClassName);
-        } else {
-            testClass = new TestClass(testClassName, new ArrayList<TestMethod>());
-            testCases.put(testClassName, testClass);
+        if (collected.mTestClass == null) {
+            collected.mTestClass = new TestClass(testClassName, new ArrayList<TestMethod>());
         }
 
-        testClass.mCases.add(new TestMethod(testName, "", "", knownFailure, false, false));
+        // known failures are excluded above, so there is no known failure to record
+        collected.mTestClass.mCases.add(new TestMethod(testName, "", "", null, false, false));
     }
 
     /**
@@ -177,6 +177,10 @@ def GenerateSignatureCheckDescription(test_repository):
   description = open(os.path.join(test_repository, 'SignatureTest.xml'), 'w')
   package.WriteDescription(description)
   description.close()
+  # cts-tradefed would otherwise load a stale compact descriptor in place of the xml
+  descriptor = os.path.join(test_repository, 'SignatureTest.pkgdesc')
+  if os.path.exists(descriptor):
+    os.remove(descriptor)
 
 if __name__ == '__main__':
   builder = CtsBuilder(sys.argv)
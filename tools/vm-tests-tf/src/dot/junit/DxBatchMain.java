@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dot.junit;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs many generated Main_testXXX entry points inside a single vm.
+ * <p/>
+ * Usage: DxBatchMain &lt;batch-manifest&gt; &lt;test-class&gt; &lt;test-method&gt;...
+ * <p/>
+ * The batch manifest is generated by util.build.BuildDalvikSuite and holds one line per test:
+ * <pre>
+ * &lt;test-class&gt;#&lt;test-method&gt; &lt;main-class&gt; &lt;classpath&gt;
+ * </pre>
+ * Every test is loaded through its own class loader so the test classes of one test cannot
+ * leak into the next one. A test passes if its main method returns normally without writing
+ * anything to System.out or System.err, which is the same contract the single-test host
+ * methods enforce on the dalvikvm output.
+ * <p/>
+ * Results are streamed to System.out using the following markers, the output captured for a
+ * failing test is printed between its start and end markers:
+ * <pre>
+ * ##vmtest-start &lt;test-class&gt;#&lt;test-method&gt;
+ * ##vmtest-end &lt;test-class&gt;#&lt;test-method&gt; pass|fail
+ * ##vmtest-batch-end
+ * </pre>
+ * The host side parser is com.android.cts.tradefed.testtype.VMTestBatchResultParser, keep both
+ * in sync.
+ */
+public class DxBatchMain {
+
+    public static final String START_MARKER = "##vmtest-start ";
+    public static final String END_MARKER = "##vmtest-end ";
+    public static final String BATCH_END_MARKER = "##vmtest-batch-end";
+    public static final String PASS = "pass";
+    public static final String FAIL = "fail";
+
+    private static final String PATH_CLASS_LOADER = "dalvik.system.PathClassLoader";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: DxBatchMain <batch-manifest> <test-class> <test-method>...");
+            System.exit(1);
+        }
+        Map<String, String[]> manifest = readManifest(args[0]);
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        String className = args[1];
+        try {
+            for (int i = 2; i < args.length; i++) {
+                String testId = className + "#" + args[i];
+                out.println(START_MARKER + testId);
+                out.flush();
+                ByteArrayOutputStream captured = new ByteArrayOutputStream();
+                PrintStream capture = new PrintStream(captured, true);
+                System.setOut(capture);
+                System.setErr(capture);
+                boolean passed;
+                try {
+                    passed = runTest(manifest.get(testId), testId, capture);
+                } finally {
+                    capture.flush();
+                    System.setOut(out);
+                    System.setErr(err);
+                }
+                if (captured.size() > 0) {
+                    passed = false;
+                    out.print(captured.toString());
+                    if (captured.toByteArray()[captured.size() - 1] != '\n') {
+                        out.println();
+                    }
+                }
+                out.println(END_MARKER + testId + " " + (passed ? PASS : FAIL));
+                out.flush();
+            }
+        } finally {
+            out.println(BATCH_END_MARKER);
+            out.flush();
+        }
+    }
+
+    /**
+     * Runs the main method of a single test in its own class loader.
+     *
+     * @return <code>true</code> if the main method returned normally
+     */
+    private static boolean runTest(String[] entry, String testId, PrintStream capture) {
+        if (entry == null) {
+            capture.println("test " + testId + " not found in batch manifest");
+            return false;
+        }
+        try {
+            ClassLoader loader = createClassLoader(entry[1]);
+            Class<?> mainClass = Class.forName(entry[0], true, loader);
+            Method main = mainClass.getMethod("main", String[].class);
+            main.invoke(null, (Object) new String[0]);
+            return true;
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace(capture);
+        } catch (Throwable t) {
+            t.printStackTrace(capture);
+        }
+        return false;
+    }
+
+    /**
+     * Creates a class loader for the given test classpath, parented to the loader of this class
+     * so that {@link DxAbstractMain} and {@link DxUtil} are shared between all tests.
+     */
+    private static ClassLoader createClassLoader(String classPath) throws Exception {
+        ClassLoader parent = DxBatchMain.class.getClassLoader();
+        try {
+            Class<?> pathClassLoader = Class.forName(PATH_CLASS_LOADER);
+            return (ClassLoader) pathClassLoader.getConstructor(String.class, ClassLoader.class)
+                    .newInstance(classPath, parent);
+        } catch (ClassNotFoundException e) {
+            // not running on dalvik, used when exercising the driver on a host vm
+            String[] paths = classPath.split(File.pathSeparator);
+            URL[] urls = new URL[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                urls[i] = new File(paths[i]).toURI().toURL();
+            }
+            return new URLClassLoader(urls, parent);
+        }
+    }
+
+    private static Map<String, String[]> readManifest(String fileName) throws IOException {
+        Map<String, String[]> manifest = new HashMap<String, String[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 3) {
+                    manifest.put(parts[0], new String[] {parts[1], parts[2]});
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+}
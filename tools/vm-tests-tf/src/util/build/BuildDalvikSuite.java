@@ -27,7 +27,6 @@ import junit.textui.TestRunner;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
@@ -35,10 +34,12 @@ import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeSet;
@@ -76,6 +77,9 @@ public class BuildDalvikSuite {
 
     private static final String TARGET_JAR_ROOT_PATH = "/data/local/tmp/vm-tests";
 
+    // the manifest read by dot.junit.DxBatchMain to run many tests in one vm invocation
+    private static final String BATCH_MANIFEST_NAME = "vm-tests-batch.txt";
+
     private int testClassCnt = 0;
     private int testMethodsCnt = 0;
 
@@ -89,10 +93,17 @@ public class BuildDalvikSuite {
     private LinkedHashMap<String, List<String>> map = new LinkedHashMap<String,
     List<String>>();
 
-    private class MethodData {
+    private static class MethodData {
         String methodBody, constraint, title;
     }
 
+    private static final Pattern METHOD_PATTERN = Pattern.compile(
+            "public\\s+void\\s+(\\w+)[^\\{]+\\{");
+
+    // parsed test methods, key: absolute path of the test source file
+    private Map<String, Map<String, MethodData>> methodCache =
+            new HashMap<String, Map<String, MethodData>>();
+
     /**
      * @param args
      *            args 0 must be the project root folder (where src, lib etc.
@@ -182,20 +193,34 @@ public class BuildDalvikSuite {
         li.add(method);
     }
     private String curJunitFileName = null;
+    private String curJunitClassName = null;
     private String curJunitFileData = "";
 
     private JavacBuildStep javacHostJunitBuildStep;
 
+    // one line per test method: <host-junit-class>#<method> <main-class> <classpath>
+    private StringBuilder batchManifest = new StringBuilder();
+
+    // files below OUTPUT_FOLDER and HOSTJUNIT_CLASSES_OUTPUT_FOLDER belonging to this run,
+    // everything else there is left over from removed or renamed tests
+    private Set<File> producedFiles = new HashSet<File>();
+
     private void flushHostJunitFile() {
         if (curJunitFileName != null) {
             File toWrite = new File(curJunitFileName);
             String absPath = toWrite.getAbsolutePath();
-            // add to java source files for later compilation
-            javacHostJunitBuildStep.addSourceFile(absPath);
             // write file
             curJunitFileData += "\n}\n";
             writeToFileMkdir(toWrite, curJunitFileData);
+            // add to java source files for later compilation, unless the class is up to date
+            File classFile = new File(HOSTJUNIT_CLASSES_OUTPUT_FOLDER,
+                    curJunitClassName.replace('.', '/') + ".class");
+            if (toWrite.lastModified() > classFile.lastModified()) {
+                javacHostJunitBuildStep.addSourceFile(absPath);
+            }
+            producedFiles.add(classFile.getAbsoluteFile());
             curJunitFileName = null;
+            curJunitClassName = null;
             curJunitFileData = "";
         }
     }
@@ -206,6 +231,7 @@ public class BuildDalvikSuite {
         String sourceName = "JUnit_" + classOnlyName;
 
         // prepare current testcase-file
+        curJunitClassName = pName + "." + sourceName;
         curJunitFileName = HOSTJUNIT_SRC_OUTPUT_FOLDER + "/" + pName.replaceAll("\\.","/") + "/" +
         sourceName + ".java";
         curJunitFileData = getWarningMessage() +
@@ -255,6 +281,14 @@ public class BuildDalvikSuite {
         String mainclass = pName + ".Main_" + method;
         curJunitFileData += "    " + getShellExecJavaLine(cp, mainclass);
         curJunitFileData += "}\n\n";
+
+        addBatchManifestEntry(method, mainclass, cp);
+    }
+
+    private void addBatchManifestEntry(String method, String mainclass,
+            String cp) {
+        batchManifest.append(curJunitClassName).append('#').append(method)
+                .append(' ').append(mainclass).append(' ').append(cp).append('\n');
     }
 
     private void handleTests() throws IOException {
@@ -327,14 +361,16 @@ public class BuildDalvikSuite {
 
                 File classFile = new File(CLASSES_OUTPUT_FOLDER + "/" +
                         getFileName(pName, method, ".class"));
-                // if (sourceFile.lastModified() > classFile.lastModified()) {
+                // writeToFile keeps the timestamp of unchanged sources, so only recompile
+                // sources which are newer than their class file
                 writeToFile(sourceFile, content);
-                javacBuildStep.addSourceFile(sourceFile.getAbsolutePath());
+                if (sourceFile.lastModified() > classFile.lastModified()) {
+                    javacBuildStep.addSourceFile(sourceFile.getAbsolutePath());
+                }
 
                 BuildStep dexBuildStep = generateDexBuildStep(
                         CLASSES_OUTPUT_FOLDER, getFileName(pName, method, ""));
                 targets.add(dexBuildStep);
-                // }
 
                 generateBuildStepFor(pName, method, dependentTestClassNames,
                         targets);
@@ -346,25 +382,64 @@ public class BuildDalvikSuite {
         // write latest HOSTJUNIT generated file.
         flushHostJunitFile();
 
+        File batchManifestFile = new File(OUTPUT_FOLDER, BATCH_MANIFEST_NAME);
+        writeToFileMkdir(batchManifestFile, batchManifest.toString());
+        producedFiles.add(batchManifestFile.getAbsoluteFile());
+
         if (!javacHostJunitBuildStep.build()) {
             System.out.println("main javac cts-host-hostjunit-classes build step failed");
             System.exit(1);
         }
 
         if (javacBuildStep.build()) {
-            for (BuildStep buildStep : targets) {
-                if (!buildStep.build()) {
-                    System.out.println("building failed. buildStep: " +
-                            buildStep.getClass().getName() + ", " + buildStep);
-                    System.exit(1);
-                }
+            // all targets only depend on the javac steps above and are independent of each
+            // other, targets which are up to date are skipped
+            if (!new BuildStepExecutor().build(targets)) {
+                System.exit(1);
+            }
+            for (BuildStep target : targets) {
+                producedFiles.add(target.outputFile.fileName.getAbsoluteFile());
             }
+            // the intermediates of previous builds are kept to skip up to date targets, so
+            // remove the outputs no target produced before they get packaged
+            int pruned = pruneStaleFiles(new File(OUTPUT_FOLDER))
+                    + pruneStaleFiles(new File(HOSTJUNIT_CLASSES_OUTPUT_FOLDER));
+            System.out.println("removed " + pruned + " stale files of previous builds");
         } else {
             System.out.println("main javac dalvik-cts-buildutil build step failed");
             System.exit(1);
         }
     }
 
+    /**
+     * Deletes all files below the given folder which do not belong to this run, as well as
+     * folders left empty.
+     *
+     * @return the number of deleted files
+     */
+    private int pruneStaleFiles(File folder) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int pruned = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                pruned += pruneStaleFiles(file);
+                String[] remaining = file.list();
+                if (remaining != null && remaining.length == 0) {
+                    file.delete();
+                }
+            } else if (!producedFiles.contains(file.getAbsoluteFile())) {
+                if (!file.delete()) {
+                    throw new RuntimeException("cannot delete stale file " + file);
+                }
+                pruned++;
+            }
+        }
+        return pruned;
+    }
+
     private void generateBuildStepFor(String pName, String method,
             Set<String> dependentTestClassNames, Set<BuildStep> targets) {
 
@@ -519,74 +594,86 @@ public class BuildDalvikSuite {
 
         String path = pname.replaceAll("\\.", "/");
         String absPath = JAVASRC_FOLDER + "/" + path + "/" + classOnlyName + ".java";
-        File f = new File(absPath);
 
-        Scanner scanner;
-        try {
-            scanner = new Scanner(f);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException("error while reading to file: " + e.getClass().getName() +
-                    ", msg:" + e.getMessage());
+        Map<String, MethodData> methods = methodCache.get(absPath);
+        if (methods == null) {
+            methods = parseTestMethods(new File(absPath), pname, classOnlyName);
+            methodCache.put(absPath, methods);
         }
-
-        String methodPattern = "public\\s+void\\s+" + method + "[^\\{]+\\{";
-
-        String token = scanner.findWithinHorizon(methodPattern, (int) f.length());
-        if (token == null) {
+        MethodData md = methods.get(method);
+        if (md == null) {
             throw new RuntimeException("cannot find method source of 'public void " + method +
                     "' in file '" + absPath + "'");
         }
+        return md;
+    }
 
-        MatchResult result = scanner.match();
-        result.start();
-        result.end();
-
-        StringBuilder builder = new StringBuilder();
-        //builder.append(token);
+    /**
+     * Parses all public void methods of a test source file in a single pass.
+     *
+     * @return a map of method name to the method's body and javadoc data
+     */
+    private Map<String, MethodData> parseTestMethods(File f, String pname,
+            String classOnlyName) {
+        // using platform's default charset
+        String all = new String(FileUtils.readFile(f));
+        Map<String, MethodData> methods = new HashMap<String, MethodData>();
 
-        try {
-            FileReader reader = new FileReader(f);
-            reader.skip(result.end());
+        Matcher methodM = METHOD_PATTERN.matcher(all);
+        while (methodM.find()) {
+            String method = methodM.group(1);
+            if (methods.containsKey(method)) {
+                continue;
+            }
 
-            char currentChar;
+            // the body is everything up to and including the matching closing brace
             int blocks = 1;
-            while ((currentChar = (char) reader.read()) != -1 && blocks > 0) {
-                switch (currentChar) {
-                    case '}': {
-                        blocks--;
-                        builder.append(currentChar);
-                        break;
-                    }
-                    case '{': {
-                        blocks++;
-                        builder.append(currentChar);
-                        break;
-                    }
-                    default: {
-                        builder.append(currentChar);
-                        break;
-                    }
+            int end = methodM.end();
+            while (end < all.length() && blocks > 0) {
+                char currentChar = all.charAt(end++);
+                if (currentChar == '}') {
+                    blocks--;
+                } else if (currentChar == '{') {
+                    blocks++;
                 }
             }
-            if (reader != null) {
-                reader.close();
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("failed to parse", e);
+
+            MethodData md = new MethodData();
+            md.methodBody = all.substring(methodM.end(), end);
+            parseJavadoc(md, findJavadoc(all, methodM.start()), pname, classOnlyName, method);
+            methods.put(method, md);
         }
+        return methods;
+    }
 
-        // find the @title/@constraint in javadoc comment for this method
-        // using platform's default charset
-        String all = new String(FileUtils.readFile(f));
-        // System.out.println("grepping javadoc found for method " + method +
-        // " in " + pname + "," + classOnlyName);
-        String commentPattern = "/\\*\\*([^{]*)\\*/\\s*" + methodPattern;
-        Pattern p = Pattern.compile(commentPattern, Pattern.DOTALL);
-        Matcher m = p.matcher(all);
+    /**
+     * Returns the content of the javadoc comment directly preceding the given offset, or null if
+     * there is none. Like the comment itself, the returned content never contains a '{'.
+     */
+    private static String findJavadoc(String source, int methodStart) {
+        int commentEnd = methodStart;
+        while (commentEnd > 0 && Character.isWhitespace(source.charAt(commentEnd - 1))) {
+            commentEnd--;
+        }
+        if (commentEnd < 2 || !source.startsWith("*/", commentEnd - 2)) {
+            return null;
+        }
+        commentEnd -= 2;
+        int lastBrace = source.lastIndexOf('{', commentEnd);
+        int commentStart = source.indexOf("/**", lastBrace + 1);
+        if (commentStart < 0 || commentStart + 3 > commentEnd) {
+            return null;
+        }
+        return source.substring(commentStart + 3, commentEnd);
+    }
+
+    /**
+     * Greps @title and @constraint from the javadoc of a test method.
+     */
+    private static void parseJavadoc(MethodData md, String res, String pname,
+            String classOnlyName, String method) {
         String title = null, constraint = null;
-        if (m.find()) {
-            String res = m.group(1);
-            // System.out.println("res: " + res);
+        if (res != null) {
             // now grep @title and @constraint
             Matcher titleM = Pattern.compile("@title (.*)", Pattern.DOTALL)
             .matcher(res);
@@ -594,7 +681,6 @@ public class BuildDalvikSuite {
                 title = titleM.group(1).replaceAll("\\n     \\*", "");
                 title = title.replaceAll("\\n", " ");
                 title = title.trim();
-                // System.out.println("title: " + title);
             } else {
                 System.err.println("warning: no @title found for method " + method + " in " + pname +
                         "," + classOnlyName);
@@ -605,7 +691,6 @@ public class BuildDalvikSuite {
             if (constraintM.find()) {
                 constraint = constraintM.group(1);
                 constraint = constraint.trim();
-                // System.out.println("constraint: " + constraint);
             } else if (method.contains("VFE")) {
                 System.err
                 .println("warning: no @constraint for for a VFE method:" + method + " in " +
@@ -615,14 +700,8 @@ public class BuildDalvikSuite {
             System.err.println("warning: no javadoc found for method " + method + " in " + pname +
                     "," + classOnlyName);
         }
-        MethodData md = new MethodData();
-        md.methodBody = builder.toString();
         md.constraint = constraint;
         md.title = title;
-        if (scanner != null) {
-            scanner.close();
-        }
-        return md;
     }
 
     private void writeToFileMkdir(File file, String content) {
@@ -20,12 +20,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.nio.channels.FileChannel;
+import java.security.CodeSource;
 import java.util.HashSet;
 import java.util.Set;
 
 abstract class BuildStep implements Comparable<BuildStep> {
 
+    /**
+     * The jars of the tools run by the steps. A rebuilt tool may change the output of any step,
+     * so these count as sources of every step.
+     */
+    private static final Set<File> TOOL_FILES = getCodeSources(
+            com.android.dx.command.dexer.Main.class, dasm.DAsm.class,
+            dxconvext.ClassFileAssembler.class);
+
     BuildFile inputFile;
     BuildFile outputFile;
 
@@ -96,6 +106,62 @@ abstract class BuildStep implements Comparable<BuildStep> {
     @Override
     public abstract int hashCode();
 
+    /**
+     * Returns the files this step is ultimately built from. For a step with children these are
+     * the sources of the children, as intermediate files are usually deleted after the build.
+     */
+    Set<File> getSourceFiles() {
+        Set<File> sources = new HashSet<File>();
+        if (children == null) {
+            if (inputFile != null) {
+                sources.add(inputFile.fileName);
+            }
+        } else {
+            for (BuildStep child : children) {
+                sources.addAll(child.getSourceFiles());
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Returns true if the output of this step exists and is not older than any of its sources,
+     * so that the step can be skipped.
+     */
+    boolean isUpToDate() {
+        if (outputFile == null || !outputFile.fileName.exists()) {
+            return false;
+        }
+        Set<File> sources = getSourceFiles();
+        if (sources.isEmpty()) {
+            return false;
+        }
+        sources.addAll(TOOL_FILES);
+        long outputTime = outputFile.fileName.lastModified();
+        for (File source : sources) {
+            if (!source.exists() || source.lastModified() > outputTime) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<File> getCodeSources(Class<?>... classes) {
+        Set<File> files = new HashSet<File>();
+        for (Class<?> clazz : classes) {
+            CodeSource source = clazz.getProtectionDomain().getCodeSource();
+            if (source == null || source.getLocation() == null) {
+                continue;
+            }
+            try {
+                files.add(new File(source.getLocation().toURI()));
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException("cannot locate " + clazz.getName(), e);
+            }
+        }
+        return files;
+    }
+
     public void addChild(BuildStep child) {
         if (children == null) {
             children = new HashSet<BuildStep>();
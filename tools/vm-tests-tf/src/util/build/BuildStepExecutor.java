@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package util.build;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a set of independent {@link BuildStep}s on a thread pool. Each step builds its own
+ * children first, so a step together with its children forms one unit of work. Steps whose
+ * output is newer than all of their sources are skipped.
+ */
+class BuildStepExecutor {
+
+    private final int threadCount;
+
+    BuildStepExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    BuildStepExecutor(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Builds all steps that are not up to date.
+     *
+     * @return true if all steps were built successfully
+     */
+    boolean build(Collection<BuildStep> steps) {
+        List<BuildStep> outdated = new ArrayList<BuildStep>();
+        for (BuildStep step : steps) {
+            if (!step.isUpToDate()) {
+                outdated.add(step);
+            }
+        }
+        System.out.println("building " + outdated.size() + " of " + steps.size() +
+                " targets, " + (steps.size() - outdated.size()) + " are up to date");
+        if (outdated.isEmpty()) {
+            return true;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(outdated.size());
+            for (final BuildStep step : outdated) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return step.build();
+                    }
+                }));
+            }
+            boolean success = true;
+            for (int i = 0; i < results.size(); i++) {
+                BuildStep step = outdated.get(i);
+                try {
+                    if (!results.get(i).get()) {
+                        System.out.println("building failed. buildStep: " +
+                                step.getClass().getName() + ", " + step);
+                        success = false;
+                    }
+                } catch (ExecutionException e) {
+                    System.out.println("building failed. buildStep: " +
+                            step.getClass().getName() + ", " + step);
+                    e.getCause().printStackTrace();
+                    success = false;
+                }
+            }
+            return success;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
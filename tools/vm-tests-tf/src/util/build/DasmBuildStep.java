@@ -17,21 +17,24 @@
 package util.build;
 
 import dasm.DAsm;
-import dasm.DasmError;
 import dasm.Utils;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
 
 class DasmBuildStep extends BuildStep {
 
+    /**
+     * Steps are built on several threads, each thread keeps one assembler for all of its steps.
+     */
+    private static final ThreadLocal<DAsm> ASSEMBLERS = new ThreadLocal<DAsm>() {
+        @Override
+        protected DAsm initialValue() {
+            return new DAsm();
+        }
+    };
 
     boolean generate_linenum = false;
 
@@ -48,46 +51,17 @@ class DasmBuildStep extends BuildStep {
         return false;
     }
 
-    private static Reader createReader(String fname) throws IOException {
-        FileInputStream fs = new FileInputStream(fname);
-        InputStreamReader ir;
-        ir = new InputStreamReader(fs);
-        return new BufferedReader(ir);
-    }
-    
     private boolean assemble(File file) {
-        DAsm dAsm = new DAsm();
         String fname = file.getAbsolutePath();
-        
-        // read and parse .d file
-        Reader inp = null; 
-        try {
-            inp = createReader(fname);
-            dAsm.readD(inp, new File(fname).getName(), generate_linenum);
-            close(inp);
-        } catch(DasmError e) {
-            if(BuildDalvikSuite.DEBUG)
-                e.printStackTrace();
-            System.err.println("DASM Error: " + e.getMessage());
-        } catch(Exception e) {
-             if(BuildDalvikSuite.DEBUG)
-                 e.printStackTrace();
-             System.err.println("Exception <" + e.getClass().getName() + ">" + e.getMessage() + 
-                         " while reading and parsing " + fname);
-             return false;
-             
-        }
-        finally {
-            close(inp);
-        }
-        
-        if(dAsm.errorCount() > 0) {
-            System.err.println("Found " + dAsm.errorCount() + " errors " +
-                    " while reading and parsing " + fname);
-                return false;
+
+        // read and parse .d file, the assembler of this thread is reused
+        DAsm.Result result = ASSEMBLERS.get().assemble(file, generate_linenum);
+        if (!result.isSuccess()) {
+            System.err.println(result.getError() + " (" + fname + ")");
+            return false;
         }
 
-        String class_path[] = Utils.getClassFieldFromString(dAsm.getClassName());
+        String class_path[] = Utils.getClassFieldFromString(result.getClassName());
         String class_name = class_path[1];
 
         // determine where to place .dex file
@@ -125,7 +99,7 @@ class DasmBuildStep extends BuildStep {
 
         try {
             outp = new FileOutputStream(out_file);
-            dAsm.write(outp, null);
+            outp.write(result.getDex());
         } catch(Exception e) {
                 if(BuildDalvikSuite.DEBUG)
                 e.printStackTrace();
@@ -42,7 +42,11 @@ public class DexBuildStep extends BuildStep {
 
             int result = 0;
             try {
-                result = Main.run(args);
+                // dx keeps the arguments and the output of a run in static fields, so dex steps
+                // cannot run concurrently
+                synchronized (DexBuildStep.class) {
+                    result = Main.run(args);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
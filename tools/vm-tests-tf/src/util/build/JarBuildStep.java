@@ -37,9 +37,16 @@ public class JarBuildStep extends BuildStep {
     @Override
     boolean build() {
         if (super.build()) {
+            // several steps may share an input folder and dest file name (e.g. classes.dex), so
+            // the input is copied to a folder private to this step
+            File jarRoot = inputFile.folder;
+            File tempDir = null;
             File tempFile = new File(inputFile.folder, destFileName);
             try {
                 if (!inputFile.fileName.equals(tempFile)) {
+                    tempDir = createTempDir(inputFile.folder);
+                    jarRoot = tempDir;
+                    tempFile = new File(tempDir, destFileName);
                     copyFile(inputFile.fileName, tempFile);
                 } else {
                     tempFile = null;
@@ -51,34 +58,43 @@ public class JarBuildStep extends BuildStep {
             }
 
             File outDir = outputFile.fileName.getParentFile();
-            if (!outDir.exists() && !outDir.mkdirs()) {
+            if (!outDir.mkdirs() && !outDir.isDirectory()) {
                 System.err.println("failed to create output dir: "
                         + outDir.getAbsolutePath());
                 return false;
             }
             String[] arguments = new String[] {
                     "-cMf", outputFile.fileName.getAbsolutePath(), "-C",
-                    inputFile.folder.getAbsolutePath(), destFileName};
+                    jarRoot.getAbsolutePath(), destFileName};
             Main main = new Main(System.out, System.err, "jar");
             boolean success = main.run(arguments);
 
+            if (tempFile != null) {
+                tempFile.delete();
+                tempDir.delete();
+            }
             if (success) {
-                if (tempFile != null) {
-                    tempFile.delete();
-                }
                 if (deleteInputFileAfterBuild) {
                     inputFile.fileName.delete();
                 }
             } else {
                 System.err.println("exception in JarBuildStep while calling jar with args:" +
-                        " \"-cMf\", "+outputFile.fileName.getAbsolutePath()+", \"-C\"," + 
-                        inputFile.folder.getAbsolutePath()+", "+ destFileName);
+                        " \"-cMf\", "+outputFile.fileName.getAbsolutePath()+", \"-C\"," +
+                        jarRoot.getAbsolutePath()+", "+ destFileName);
             }
             return success;
         }
         return false;
     }
 
+    private static File createTempDir(File parent) throws IOException {
+        File tempDir = File.createTempFile("jar", ".tmp", parent);
+        if (!tempDir.delete() || !tempDir.mkdir()) {
+            throw new IOException("failed to create temp dir " + tempDir.getAbsolutePath());
+        }
+        return tempDir;
+    }
+
     @Override
     public int hashCode() {
         return inputFile.hashCode() ^ outputFile.hashCode()
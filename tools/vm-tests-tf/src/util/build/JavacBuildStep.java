@@ -48,7 +48,7 @@ public class JavacBuildStep extends BuildStep {
             }
             
             File destFile = new File(destPath);
-            if (!destFile.exists() && !destFile.mkdirs())
+            if (!destFile.mkdirs() && !destFile.isDirectory())
             {
                 System.err.println("failed to create destination dir");
                 return false;